@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.format.UnexpectedFormatException;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.common.RecordConverter;
+import io.cdap.plugin.gcp.bigquery.source.BigQueryAvroToStructuredTransformer;
+import io.cdap.plugin.gcp.bigquery.source.BigQuerySourceConfig;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.util.Utf8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Compares {@link BigQueryAvroToStructuredTransformer} with the conversion it replaced, which looked up every field
+ * of every record by name and resolved its type for every value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvroToStructuredRecordBenchmark {
+
+  private static final int RECORDS = 1000;
+
+  private static final Schema ITEM = Schema.recordOf(
+    "item",
+    Schema.Field.of("key", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("value", Schema.nullableOf(Schema.of(Schema.Type.LONG))));
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "record",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("score", Schema.of(Schema.Type.DOUBLE)),
+    Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)),
+    Schema.Field.of("data", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+    Schema.Field.of("dt", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+    Schema.Field.of("tm", Schema.nullableOf(Schema.of(Schema.LogicalType.TIME_MICROS))),
+    Schema.Field.of("ts", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(38, 9))),
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("items", Schema.arrayOf(ITEM)));
+
+  private GenericRecord[] records;
+  private BigQueryAvroToStructuredTransformer compiled;
+  private LegacyTransformer legacy;
+
+  @Setup
+  public void setup() {
+    org.apache.avro.Schema avroSchema = new org.apache.avro.Schema.Parser().parse(SCHEMA.toString());
+    org.apache.avro.Schema itemSchema = avroSchema.getField("items").schema().getElementType();
+    Random random = new Random(42);
+    records = new GenericRecord[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      List<GenericRecord> items = new ArrayList<>();
+      for (int j = random.nextInt(4); j > 0; j--) {
+        items.add(new GenericRecordBuilder(itemSchema)
+                    .set("key", new Utf8("key" + j))
+                    .set("value", random.nextLong())
+                    .build());
+      }
+      // the export writes dates and times as strings and decimals as their unscaled bytes
+      records[i] = new GenericRecordBuilder(avroSchema)
+        .set("id", random.nextLong())
+        .set("name", new Utf8("name" + i))
+        .set("score", random.nextDouble())
+        .set("flag", random.nextBoolean())
+        .set("data", ByteBuffer.wrap(new byte[] {1, 2, 3, (byte) i}))
+        .set("dt", new Utf8(LocalDate.ofEpochDay(random.nextInt(20000)).toString()))
+        .set("tm", new Utf8(LocalTime.ofSecondOfDay(random.nextInt(86400)).withNano(123456000).toString()))
+        .set("ts", random.nextLong() >>> 12)
+        .set("price", ByteBuffer.wrap(BigDecimal.valueOf(random.nextLong(), 9).unscaledValue().toByteArray()))
+        .set("tags", Arrays.asList(new Utf8("a"), new Utf8("b" + i)))
+        .set("items", items)
+        .build();
+    }
+    compiled = new BigQueryAvroToStructuredTransformer();
+    legacy = new LegacyTransformer();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void compiled(Blackhole blackhole) throws IOException {
+    for (GenericRecord record : records) {
+      blackhole.consume(compiled.transform(record, SCHEMA));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void legacy(Blackhole blackhole) throws IOException {
+    for (GenericRecord record : records) {
+      blackhole.consume(legacy.transform(record, SCHEMA));
+    }
+  }
+
+  /**
+   * The conversion before the plans were compiled.
+   */
+  private static final class LegacyTransformer extends RecordConverter<GenericRecord, StructuredRecord> {
+    @Override
+    public StructuredRecord transform(GenericRecord genericRecord, Schema structuredSchema) throws IOException {
+      StructuredRecord.Builder builder = StructuredRecord.builder(structuredSchema);
+      for (Schema.Field field : structuredSchema.getFields()) {
+        String fieldName = field.getName();
+        Object value = convertField(genericRecord.get(fieldName), field.getSchema());
+        builder.set(fieldName, value);
+      }
+      return builder.build();
+    }
+
+    @Override
+    @Nullable
+    protected Object convertField(Object field, Schema fieldSchema) throws IOException {
+      if (field == null) {
+        return null;
+      }
+
+      fieldSchema = fieldSchema.isNullable() ? fieldSchema.getNonNullable() : fieldSchema;
+      Schema.Type fieldType = fieldSchema.getType();
+      Schema.LogicalType logicalType = fieldSchema.getLogicalType();
+
+      try {
+        if (logicalType != null) {
+          switch (logicalType) {
+            case DATE:
+              return Math.toIntExact(LocalDate.parse(field.toString()).toEpochDay());
+            case TIME_MILLIS:
+              return Math.toIntExact(TimeUnit.NANOSECONDS.toMillis(LocalTime.parse(field.toString()).toNanoOfDay()));
+            case TIME_MICROS:
+              return TimeUnit.NANOSECONDS.toMicros(LocalTime.parse(field.toString()).toNanoOfDay());
+            case TIMESTAMP_MILLIS:
+            case TIMESTAMP_MICROS:
+              return field;
+            case DECIMAL:
+              ByteBuffer value = (ByteBuffer) field;
+              byte[] bytes = new byte[value.remaining()];
+              int pos = value.position();
+              value.get(bytes);
+              value.position(pos);
+              return bytes;
+            default:
+              throw new UnexpectedFormatException("Field type '" + fieldSchema.getDisplayName() +
+                                                    "' is not supported.");
+          }
+        }
+      } catch (ArithmeticException e) {
+        throw new IOException("Field type %s has value that is too large." + fieldType);
+      }
+
+      if (!BigQuerySourceConfig.SUPPORTED_TYPES.contains(fieldType)) {
+        throw new UnexpectedFormatException("Field type " + fieldType + " is not supported.");
+      }
+
+      if (fieldSchema.getType() == Schema.Type.RECORD && field instanceof List) {
+        List<Object> valuesList = (List<Object>) field;
+        List<Object> resultList = new ArrayList<>(valuesList.size());
+        for (Object value : valuesList) {
+          resultList.add(super.convertField(value, fieldSchema));
+        }
+        return resultList;
+      }
+      return super.convertField(field, fieldSchema);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.format.avro.StructuredToAvroTransformer;
+import io.cdap.plugin.gcp.bigquery.sink.StructuredRecordDatumWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the direct encoding of {@link StructuredRecordDatumWriter} with the {@link StructuredToAvroTransformer}
+ * and {@link GenericDatumWriter} path that the BigQuery sinks used before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructuredRecordDatumWriterBenchmark {
+
+  private static final int RECORDS = 1000;
+
+  private static final Schema NESTED = Schema.recordOf(
+    "nested",
+    Schema.Field.of("city", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("zip", Schema.nullableOf(Schema.of(Schema.Type.INT))));
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "record",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("score", Schema.of(Schema.Type.DOUBLE)),
+    Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)),
+    Schema.Field.of("data", Schema.of(Schema.Type.BYTES)),
+    Schema.Field.of("dt", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+    Schema.Field.of("tm", Schema.of(Schema.LogicalType.TIME_MICROS)),
+    Schema.Field.of("ts", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(38, 9))),
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("address", Schema.nullableOf(NESTED)),
+    Schema.Field.of("addresses", Schema.arrayOf(NESTED)));
+
+  private StructuredRecord[] records;
+  private StructuredRecordDatumWriter directWriter;
+  private StructuredToAvroTransformer transformer;
+  private GenericDatumWriter<GenericRecord> genericWriter;
+  private ByteArrayOutputStream out;
+  private BinaryEncoder encoder;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    records = new StructuredRecord[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      List<StructuredRecord> addresses = new ArrayList<>();
+      for (int j = random.nextInt(4); j > 0; j--) {
+        addresses.add(address(random, j));
+      }
+      records[i] = StructuredRecord.builder(SCHEMA)
+        .set("id", random.nextLong())
+        .set("name", "name " + i)
+        .set("score", random.nextDouble())
+        .set("flag", random.nextBoolean())
+        .set("data", new byte[] {1, 2, 3, (byte) i})
+        .setDate("dt", LocalDate.ofEpochDay(random.nextInt(20000)))
+        .setTime("tm", LocalTime.ofSecondOfDay(random.nextInt(86400)).withNano(123456000))
+        .set("ts", random.nextLong() >>> 12)
+        .setDecimal("price", BigDecimal.valueOf(random.nextLong(), 9))
+        .set("tags", Arrays.asList("a", "b" + i))
+        .set("address", address(random, i))
+        .set("addresses", addresses)
+        .build();
+    }
+    directWriter = new StructuredRecordDatumWriter(SCHEMA);
+    transformer = new StructuredToAvroTransformer(SCHEMA);
+    genericWriter = new GenericDatumWriter<>(directWriter.getAvroSchema());
+    out = new ByteArrayOutputStream();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void direct(Blackhole blackhole) throws IOException {
+    out.reset();
+    encoder = EncoderFactory.get().binaryEncoder(out, encoder);
+    for (StructuredRecord record : records) {
+      directWriter.write(record, encoder);
+    }
+    encoder.flush();
+    blackhole.consume(out.size());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void generic(Blackhole blackhole) throws IOException {
+    out.reset();
+    encoder = EncoderFactory.get().binaryEncoder(out, encoder);
+    for (StructuredRecord record : records) {
+      genericWriter.write(transformer.transform(record), encoder);
+    }
+    encoder.flush();
+    blackhole.consume(out.size());
+  }
+
+  private static StructuredRecord address(Random random, int i) {
+    return StructuredRecord.builder(NESTED).set("city", "city" + i).set("zip", random.nextInt(100000)).build();
+  }
+}
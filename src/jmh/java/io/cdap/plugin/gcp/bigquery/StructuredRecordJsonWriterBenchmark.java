@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.gson.stream.JsonWriter;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.BigQueryRecordToJson;
+import io.cdap.plugin.gcp.bigquery.sink.StructuredRecordJsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link StructuredRecordJsonWriter} with the gson {@link JsonWriter} and {@link BigQueryRecordToJson} it
+ * replaced in the streaming insert record writer, for flat, nested and repeated schemas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructuredRecordJsonWriterBenchmark {
+
+  private static final int RECORDS = 1000;
+
+  private static final Schema FLAT = Schema.recordOf(
+    "flat",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("count", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("score", Schema.of(Schema.Type.DOUBLE)),
+    Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("data", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+    Schema.Field.of("dt", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+    Schema.Field.of("tm", Schema.nullableOf(Schema.of(Schema.LogicalType.TIME_MICROS))),
+    Schema.Field.of("ts", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(38, 9))));
+
+  private static final Schema NESTED = Schema.recordOf(
+    "nested",
+    Schema.Field.of("key", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("inner", Schema.nullableOf(FLAT)));
+
+  private static final Schema REPEATED = Schema.recordOf(
+    "repeated",
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("times", Schema.arrayOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("items", Schema.arrayOf(NESTED)));
+
+  @Param({"flat", "nested", "repeated"})
+  public String schema;
+
+  private StructuredRecord[] records;
+  private StructuredRecordJsonWriter writer;
+  private StructuredRecordJsonWriter.Utf8Buffer buffer;
+  private ByteArrayOutputStream row;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    records = new StructuredRecord[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      switch (schema) {
+        case "flat":
+          records[i] = flat(random, i);
+          break;
+        case "nested":
+          records[i] = nested(random, i);
+          break;
+        default:
+          List<StructuredRecord> items = new ArrayList<>();
+          for (int j = random.nextInt(4); j > 0; j--) {
+            items.add(nested(random, i));
+          }
+          records[i] = StructuredRecord.builder(REPEATED)
+            .set("tags", Arrays.asList("a", "b" + i))
+            .set("times", Arrays.asList(random.nextLong() >>> 12, random.nextLong() >>> 12))
+            .set("items", items)
+            .build();
+      }
+    }
+    writer = new StructuredRecordJsonWriter(records[0].getSchema());
+    buffer = new StructuredRecordJsonWriter.Utf8Buffer();
+    row = new ByteArrayOutputStream();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void compiled(Blackhole blackhole) throws IOException {
+    for (StructuredRecord record : records) {
+      buffer.reset();
+      writer.write(record, buffer);
+      blackhole.consume(buffer.size());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void gson(Blackhole blackhole) throws IOException {
+    for (StructuredRecord record : records) {
+      row.reset();
+      try (Writer out = new OutputStreamWriter(row, StandardCharsets.UTF_8);
+           JsonWriter jsonWriter = new JsonWriter(out)) {
+        jsonWriter.beginObject();
+        for (Schema.Field field : Objects.requireNonNull(record.getSchema().getFields())) {
+          BigQueryRecordToJson.write(jsonWriter, field.getName(), record.get(field.getName()), field.getSchema());
+        }
+        jsonWriter.endObject();
+      }
+      blackhole.consume(row.size());
+    }
+  }
+
+  private static StructuredRecord flat(Random random, int i) {
+    return StructuredRecord.builder(FLAT)
+      .set("id", random.nextLong())
+      .set("count", random.nextInt())
+      .set("score", random.nextDouble())
+      .set("flag", random.nextBoolean())
+      .set("name", "name " + i)
+      .set("data", new byte[] {1, 2, 3, (byte) i})
+      .setDate("dt", LocalDate.ofEpochDay(random.nextInt(20000)))
+      .setTime("tm", LocalTime.ofSecondOfDay(random.nextInt(86400)).withNano(123456000))
+      .set("ts", random.nextLong() >>> 12)
+      .setDecimal("price", BigDecimal.valueOf(random.nextLong(), 9))
+      .build();
+  }
+
+  private static StructuredRecord nested(Random random, int i) {
+    return StructuredRecord.builder(NESTED).set("key", "key" + i).set("inner", flat(random, i)).build();
+  }
+}
@@ -18,6 +18,7 @@ package io.cdap.plugin.gcp.bigquery.sink;
 import com.google.auth.Credentials;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.FieldList;
 import com.google.cloud.bigquery.LegacySQLTypeName;
@@ -28,8 +29,6 @@ import com.google.cloud.hadoop.io.bigquery.BigQueryFileFormat;
 import com.google.cloud.hadoop.io.bigquery.output.BigQueryOutputConfiguration;
 import com.google.cloud.hadoop.io.bigquery.output.BigQueryTableFieldSchema;
 import com.google.cloud.hadoop.io.bigquery.output.BigQueryTableSchema;
-import io.cdap.cdap.api.data.batch.Output;
-import io.cdap.cdap.api.data.batch.OutputFormatProvider;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.FailureCollector;
@@ -38,14 +37,15 @@ import io.cdap.cdap.etl.api.batch.BatchSinkContext;
 import io.cdap.cdap.etl.api.validation.ValidationFailure;
 import io.cdap.plugin.common.LineageRecorder;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryJobStatistics;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
+import io.cdap.plugin.gcp.bigquery.util.StagingArea;
 import io.cdap.plugin.gcp.common.GCPUtils;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapreduce.AvroJob;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,17 +60,21 @@ import javax.annotation.Nullable;
 /**
  * Base class for Big Query batch sink plugins.
  */
-public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, AvroKey<GenericRecord>, NullWritable> {
+public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, StructuredRecord, NullWritable> {
 
   private static final Logger LOG = LoggerFactory.getLogger(AbstractBigQuerySink.class);
 
   private static final String gcsPathFormat = "gs://%s";
-  private static final String temporaryBucketFormat = gcsPathFormat + "/input/%s-%s";
+  private static final String temporaryBucketFormat = gcsPathFormat + "/input/%s/%s";
+  private static final String statisticsPathFormat = gcsPathFormat + "/statistics/%s";
 
-  // UUID for the run. Will be used as bucket name if bucket is not provided.
-  // UUID is used since GCS bucket names must be globally unique.
+  // UUID for the run. Files of the run are staged under a prefix that contains it.
   private final UUID uuid = UUID.randomUUID();
   protected Configuration baseConfiguration;
+  // staging area of the run, when no bucket is provided
+  private StagingArea stagingArea;
+  // directory that the statistics of the BigQuery jobs of the run are written to, if any
+  private String jobStatisticsPath;
 
   /**
    * Executes main prepare run logic. Child classes cannot override this method,
@@ -90,9 +94,28 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
     String project = config.getProject();
     BigQuery bigQuery = GCPUtils.getBigQuery(project, credentials);
     baseConfiguration = getBaseConfiguration();
-    String bucket = configureBucket();
+    String bucket = config.getBucket();
+    if (bucket == null && isStagingRequired()) {
+      // runs share a staging bucket in the location of the dataset, and each run stages its files under its own prefix
+      Dataset dataset = bigQuery.getDataset(config.getDataset());
+      stagingArea = StagingArea.of(GCPUtils.getStorage(project, credentials), project,
+                                   dataset == null ? null : dataset.getLocation(), String.format("input/%s/", uuid),
+                                   !context.isPreviewEnabled());
+      bucket = stagingArea.getBucket();
+    } else if (bucket == null) {
+      // records are not staged, so the bucket is never used
+      bucket = uuid.toString();
+    }
+    configureBucket(bucket);
     if (!context.isPreviewEnabled()) {
-      BigQueryUtil.createResources(bigQuery, GCPUtils.getStorage(project, credentials), config.getDataset(), bucket);
+      if (isStagingRequired()) {
+        jobStatisticsPath = String.format(statisticsPathFormat, bucket, uuid);
+        baseConfiguration.set(BigQueryConstants.CONFIG_JOB_STATISTICS_PATH, jobStatisticsPath);
+        BigQueryUtil.createResources(bigQuery, GCPUtils.getStorage(project, credentials), config.getDataset(),
+                                     bucket);
+      } else {
+        BigQueryUtil.createDataset(bigQuery, config.getDataset());
+      }
     }
 
     prepareRunInternal(context, bigQuery, bucket);
@@ -100,22 +123,20 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
 
   @Override
   public final void onRunFinish(boolean succeeded, BatchSinkContext context) {
-    if (getConfig().getBucket() == null) {
-      Path gcsPath = new Path(String.format(gcsPathFormat, uuid.toString()));
+    BigQueryJobStatistics.emitMetrics(context.getMetrics(), baseConfiguration, jobStatisticsPath);
+    // previews do not create the staging bucket, so there is nothing to delete
+    if (stagingArea != null && !context.isPreviewEnabled()) {
       try {
-        FileSystem fs = gcsPath.getFileSystem(baseConfiguration);
-        if (fs.exists(gcsPath)) {
-          fs.delete(gcsPath, true);
-          LOG.debug("Deleted temporary bucket '{}'", gcsPath);
-        }
+        stagingArea.delete();
       } catch (IOException e) {
-        LOG.warn("Failed to delete bucket '{}': {}", gcsPath, e.getMessage());
+        LOG.warn("Failed to delete staged files under '{}': {}", stagingArea, e.getMessage());
       }
     }
   }
 
   /**
-   * Initializes output along with lineage recording for given table and its schema.
+   * Prepares the output configuration for given table and records lineage for it. Child classes add the output
+   * to the context once the configuration is prepared.
    *
    * @param context batch sink context
    * @param bigQuery big query client for the configured project
@@ -123,10 +144,11 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
    * @param tableName table name
    * @param tableSchema table schema
    * @param bucket bucket name
+   * @return Hadoop configuration of the output
    */
-  protected final void initOutput(BatchSinkContext context, BigQuery bigQuery, String outputName, String tableName,
-                                  @Nullable Schema tableSchema, String bucket,
-                                  FailureCollector collector) throws IOException {
+  protected final Configuration initOutput(BatchSinkContext context, BigQuery bigQuery, String outputName,
+                                           String tableName, @Nullable Schema tableSchema, String bucket,
+                                           FailureCollector collector) throws IOException {
     LOG.debug("Init output for table '{}' with schema: {}", tableName, tableSchema);
 
     List<BigQueryTableFieldSchema> fields = getBigQueryTableFields(bigQuery, tableName, tableSchema,
@@ -134,12 +156,22 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
     Configuration configuration = getOutputConfiguration(bucket, tableName, fields);
 
     // Both emitLineage and setOutputFormat internally try to create an external dataset if it does not already exist.
-    // We call emitLineage before since it creates the dataset with schema which is used.
+    // We call emitLineage before the output is added since it creates the dataset with schema which is used.
     List<String> fieldNames = fields.stream()
       .map(BigQueryTableFieldSchema::getName)
       .collect(Collectors.toList());
     recordLineage(context, outputName, tableSchema, fieldNames);
-    context.addOutput(Output.of(outputName, getOutputFormatProvider(configuration, tableName, tableSchema)));
+    return configuration;
+  }
+
+  /**
+   * Returns whether records are staged in Google Cloud Storage before they are written to BigQuery.
+   * If they are not, no staging area is created or cleaned up.
+   *
+   * @return true if a temporary bucket is required
+   */
+  protected boolean isStagingRequired() {
+    return true;
   }
 
   /**
@@ -170,18 +202,6 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
   protected abstract void prepareRunInternal(BatchSinkContext context, BigQuery bigQuery,
                                              String bucket) throws IOException;
 
-  /**
-   * Returns output format provider instance specific to the child classes that extend this class.
-   *
-   * @param configuration Hadoop configuration
-   * @param tableName table name
-   * @param tableSchema table schema
-   * @return output format provider
-   */
-  protected abstract OutputFormatProvider getOutputFormatProvider(Configuration configuration,
-                                                                  String tableName,
-                                                                  Schema tableSchema);
-
   /**
    * Initialized base configuration needed to load data into BigQuery table.
    *
@@ -194,9 +214,64 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
                                  getConfig().isAllowSchemaRelaxation());
     baseConfiguration.setStrings(BigQueryConfiguration.OUTPUT_TABLE_WRITE_DISPOSITION_KEY,
                                  getConfig().getWriteDisposition().name());
+    configureStaging(baseConfiguration);
+    configureLoadJobs(baseConfiguration);
     return baseConfiguration;
   }
 
+  /**
+   * Sets the limits of the load jobs that import the files written to the temporary bucket. Limits that are not
+   * provided keep the defaults of the output format.
+   *
+   * @param configuration Hadoop configuration
+   */
+  private void configureLoadJobs(Configuration configuration) {
+    AbstractBigQuerySinkConfig config = getConfig();
+    Integer maxFilesPerJob = config.getMaxFilesPerLoadJob();
+    if (maxFilesPerJob != null) {
+      configuration.setInt(BigQueryConstants.CONFIG_LOAD_MAX_FILES_PER_JOB, maxFilesPerJob);
+    }
+    Long maxBytesPerJob = config.getMaxLoadJobSizeBytes();
+    if (maxBytesPerJob != null) {
+      configuration.setLong(BigQueryConstants.CONFIG_LOAD_MAX_BYTES_PER_JOB, maxBytesPerJob);
+    }
+    Integer maxConcurrentJobs = config.getMaxConcurrentLoadJobs();
+    if (maxConcurrentJobs != null) {
+      configuration.setInt(BigQueryConstants.CONFIG_LOAD_MAX_CONCURRENT_JOBS, maxConcurrentJobs);
+    }
+  }
+
+  /**
+   * Sets the format, size and compression of the files written to the temporary bucket.
+   *
+   * @param configuration Hadoop configuration
+   */
+  private void configureStaging(Configuration configuration) {
+    AbstractBigQuerySinkConfig config = getConfig();
+    configuration.set(BigQueryConstants.CONFIG_STAGING_FORMAT, config.getStagingFormat().name());
+    configuration.setLong(BigQueryConstants.CONFIG_STAGING_MAX_FILE_BYTES, config.getStagingFileSizeBytes());
+    String codec = config.getStagingCodec();
+    if (config.getStagingFormat() == StagingFormat.PARQUET) {
+      String parquetCodec = AbstractBigQuerySinkConfig.CODEC_NONE.equals(codec)
+        ? CompressionCodecName.UNCOMPRESSED.name() : codec.toUpperCase();
+      configuration.set(org.apache.parquet.hadoop.ParquetOutputFormat.COMPRESSION, parquetCodec);
+      configuration.setBoolean(org.apache.parquet.hadoop.ParquetOutputFormat.ENABLE_DICTIONARY, true);
+      return;
+    }
+    if (!AbstractBigQuerySinkConfig.CODEC_NONE.equals(codec)) {
+      configuration.setBoolean(FileOutputFormat.COMPRESS, true);
+      configuration.set(AvroJob.CONF_OUTPUT_CODEC, codec);
+    }
+    Integer deflateLevel = config.getDeflateLevel();
+    if (deflateLevel != null) {
+      configuration.setInt(org.apache.avro.mapred.AvroOutputFormat.DEFLATE_LEVEL_KEY, deflateLevel);
+    }
+    Integer syncInterval = config.getSyncIntervalBytes();
+    if (syncInterval != null) {
+      configuration.setInt(org.apache.avro.mapred.AvroOutputFormat.SYNC_INTERVAL_KEY, syncInterval);
+    }
+  }
+
   /**
    * Generates full path to temporary bucket based on given bucket and table names.
    *
@@ -205,27 +280,18 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
    * @return full path to temporary bucket
    */
   private String getTemporaryGcsPath(String bucket, String tableName) {
-    return String.format(temporaryBucketFormat, bucket, tableName, uuid);
+    return String.format(temporaryBucketFormat, bucket, uuid, tableName);
   }
 
   /**
    * Updates {@link #baseConfiguration} with bucket details.
-   * Uses provided bucket, otherwise generates random.
    *
-   * @return bucket name
+   * @param bucket bucket name
    */
-  private String configureBucket() {
-    String bucket = getConfig().getBucket();
-    if (bucket == null) {
-      bucket = uuid.toString();
-      // By default, this option is false, meaning the job can not delete the bucket.
-      // So enable it only when bucket name is not provided.
-      baseConfiguration.setBoolean("fs.gs.bucket.delete.enable", true);
-    }
+  private void configureBucket(String bucket) {
     baseConfiguration.set("fs.gs.system.bucket", bucket);
     baseConfiguration.setBoolean("fs.gs.impl.disable.cache", true);
     baseConfiguration.setBoolean("fs.gs.metadata.cache.enable", false);
-    return bucket;
   }
 
   /**
@@ -391,13 +457,15 @@ public abstract class AbstractBigQuerySink extends BatchSink<StructuredRecord, A
       outputTableSchema.setFields(fields);
     }
 
+    // the connector does not know every staging format, so the load job takes its source format
+    // from the staging format that is set in the base configuration
     BigQueryOutputConfiguration.configure(
       configuration,
       String.format("%s.%s", getConfig().getDataset(), tableName),
       outputTableSchema,
       temporaryGcsPath,
       BigQueryFileFormat.AVRO,
-      AvroOutputFormat.class);
+      getConfig().getStagingFormat().getOutputFormatClass());
 
     return configuration;
   }
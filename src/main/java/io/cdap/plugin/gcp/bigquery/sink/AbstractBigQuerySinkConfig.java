@@ -16,6 +16,7 @@
 package io.cdap.plugin.gcp.bigquery.sink;
 
 import com.google.cloud.bigquery.JobInfo;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Macro;
@@ -24,6 +25,7 @@ import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.plugin.gcp.common.GCPReferenceSinkConfig;
 
+import java.util.Arrays;
 import java.util.Set;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
@@ -40,6 +42,26 @@ public abstract class AbstractBigQuerySinkConfig extends GCPReferenceSinkConfig
   public static final String NAME_DATASET = "dataset";
   public static final String NAME_BUCKET = "bucket";
   public static final String NAME_TRUNCATE_TABLE = "truncateTable";
+  public static final String NAME_STAGING_FORMAT = "stagingFormat";
+  public static final String NAME_STAGING_FILE_SIZE_MB = "stagingFileSizeMb";
+  public static final String NAME_STAGING_CODEC = "stagingCodec";
+  public static final String NAME_DEFLATE_LEVEL = "deflateLevel";
+  public static final String NAME_SYNC_INTERVAL_KB = "syncIntervalKb";
+  public static final String NAME_MAX_FILES_PER_LOAD_JOB = "maxFilesPerLoadJob";
+  public static final String NAME_MAX_LOAD_JOB_SIZE_GB = "maxLoadJobSizeGb";
+  public static final String NAME_MAX_CONCURRENT_LOAD_JOBS = "maxConcurrentLoadJobs";
+
+  // codecs that are supported both by the staging format and by BigQuery load jobs
+  public static final String CODEC_NONE = "none";
+  public static final String CODEC_SNAPPY = "snappy";
+  public static final String CODEC_DEFLATE = "deflate";
+  public static final String CODEC_GZIP = "gzip";
+  private static final Set<String> AVRO_CODECS = ImmutableSet.of(CODEC_NONE, CODEC_SNAPPY, CODEC_DEFLATE);
+  private static final Set<String> PARQUET_CODECS = ImmutableSet.of(CODEC_NONE, CODEC_SNAPPY, CODEC_GZIP);
+  // Avro accepts sync intervals between 32 bytes and 1 GB
+  private static final int MAX_SYNC_INTERVAL_KB = 1024 * 1024;
+  // BigQuery accepts at most 10,000 source URIs in a load job
+  private static final int MAX_FILES_PER_LOAD_JOB = 10000;
 
   @Name(NAME_DATASET)
   @Macro
@@ -53,7 +75,9 @@ public abstract class AbstractBigQuerySinkConfig extends GCPReferenceSinkConfig
   @Description("The Google Cloud Storage bucket to store temporary data in. "
     + "It will be automatically created if it does not exist, but will not be automatically deleted. "
     + "Cloud Storage data will be deleted after it is loaded into BigQuery. "
-    + "If it is not provided, a unique bucket will be created and then deleted after the run finishes.")
+    + "If it is not provided, a staging bucket shared by all runs is used, which is created once per project and "
+    + "location and expires its objects after 7 days. Each run uses its own prefix in it, which is deleted after "
+    + "the run finishes.")
   protected String bucket;
 
   @Macro
@@ -67,6 +91,61 @@ public abstract class AbstractBigQuerySinkConfig extends GCPReferenceSinkConfig
     + "Should only be used with the Insert operation.")
   protected Boolean truncateTable;
 
+  @Name(NAME_STAGING_FORMAT)
+  @Macro
+  @Nullable
+  @Description("Format of the files written to the temporary bucket. This can be set to 'avro' or 'parquet'. "
+    + "Parquet files are dictionary encoded and are usually smaller for wide and sparse tables. Defaults to 'avro'.")
+  protected String stagingFormat;
+
+  @Name(NAME_STAGING_FILE_SIZE_MB)
+  @Macro
+  @Nullable
+  @Description("Size in megabytes after which a task starts a new file in the temporary bucket. Smaller files "
+    + "let BigQuery load skewed outputs in parallel. If it is not provided, every task writes a single file.")
+  protected Integer stagingFileSizeMb;
+
+  @Name(NAME_STAGING_CODEC)
+  @Macro
+  @Nullable
+  @Description("Compression codec of the files written to the temporary bucket. This can be set to 'none', "
+    + "'snappy' or 'deflate' for Avro, and to 'none', 'snappy' or 'gzip' for Parquet. Defaults to 'none'.")
+  protected String stagingCodec;
+
+  @Name(NAME_DEFLATE_LEVEL)
+  @Macro
+  @Nullable
+  @Description("Compression level from 1 to 9 when the staging codec is 'deflate'. Higher levels produce smaller "
+    + "files but take more time to compress.")
+  protected Integer deflateLevel;
+
+  @Name(NAME_SYNC_INTERVAL_KB)
+  @Macro
+  @Nullable
+  @Description("Approximate size in kilobytes of the Avro blocks written to the temporary bucket. This value is "
+    + "ignored for Parquet. Defaults to 64.")
+  protected Integer syncIntervalKb;
+
+  @Name(NAME_MAX_FILES_PER_LOAD_JOB)
+  @Macro
+  @Nullable
+  @Description("Maximum number of staged files that a single load job imports. Staged files are split into several "
+    + "load jobs when there are more of them. Defaults to 10000, which is the most BigQuery allows.")
+  protected Integer maxFilesPerLoadJob;
+
+  @Name(NAME_MAX_LOAD_JOB_SIZE_GB)
+  @Macro
+  @Nullable
+  @Description("Maximum size in gigabytes of the staged files that a single load job imports. Defaults to 10240.")
+  protected Integer maxLoadJobSizeGb;
+
+  @Name(NAME_MAX_CONCURRENT_LOAD_JOBS)
+  @Macro
+  @Nullable
+  @Description("Maximum number of load jobs, and of partition copy jobs when partitions are overwritten, that run at "
+    + "the same time for a table. Defaults to 4.")
+  protected Integer maxConcurrentLoadJobs;
+
   @Nullable
   protected String getTable() {
     return null;
@@ -95,6 +174,47 @@ public abstract class AbstractBigQuerySinkConfig extends GCPReferenceSinkConfig
     return allowSchemaRelaxation;
   }
 
+  public StagingFormat getStagingFormat() {
+    return Strings.isNullOrEmpty(stagingFormat) ? StagingFormat.AVRO
+      : StagingFormat.valueOf(stagingFormat.toUpperCase());
+  }
+
+  /**
+   * @return the size in bytes after which a new staging file is started, or 0 if there is no limit
+   */
+  public long getStagingFileSizeBytes() {
+    return stagingFileSizeMb == null ? AvroRecordWriter.UNLIMITED_FILE_SIZE : stagingFileSizeMb * 1024L * 1024L;
+  }
+
+  public String getStagingCodec() {
+    return Strings.isNullOrEmpty(stagingCodec) ? CODEC_NONE : stagingCodec.toLowerCase();
+  }
+
+  @Nullable
+  public Integer getDeflateLevel() {
+    return deflateLevel;
+  }
+
+  @Nullable
+  public Integer getSyncIntervalBytes() {
+    return syncIntervalKb == null ? null : syncIntervalKb * 1024;
+  }
+
+  @Nullable
+  public Integer getMaxFilesPerLoadJob() {
+    return maxFilesPerLoadJob;
+  }
+
+  @Nullable
+  public Long getMaxLoadJobSizeBytes() {
+    return maxLoadJobSizeGb == null ? null : maxLoadJobSizeGb * 1024L * 1024L * 1024L;
+  }
+
+  @Nullable
+  public Integer getMaxConcurrentLoadJobs() {
+    return maxConcurrentLoadJobs;
+  }
+
   public JobInfo.WriteDisposition getWriteDisposition() {
     return truncateTable != null && truncateTable ? JobInfo.WriteDisposition.WRITE_TRUNCATE
       : JobInfo.WriteDisposition.WRITE_APPEND;
@@ -112,5 +232,63 @@ public abstract class AbstractBigQuerySinkConfig extends GCPReferenceSinkConfig
           .withConfigProperty("bucket");
       }
     }
+    validateStagingProperties(collector);
+    validateLoadJobProperties(collector);
+  }
+
+  private void validateStagingProperties(FailureCollector collector) {
+    if (!containsMacro(NAME_STAGING_FORMAT) && !Strings.isNullOrEmpty(stagingFormat)
+      && Arrays.stream(StagingFormat.values()).map(Enum::name).noneMatch(stagingFormat.toUpperCase()::equals)) {
+      collector.addFailure(String.format("Staging format has incorrect value '%s'.", stagingFormat),
+                           "Set the staging format to 'avro' or 'parquet'.")
+        .withConfigProperty(NAME_STAGING_FORMAT);
+      return;
+    }
+    if (!containsMacro(NAME_STAGING_FILE_SIZE_MB) && stagingFileSizeMb != null && stagingFileSizeMb < 1) {
+      collector.addFailure(String.format("Invalid staging file size '%d'.", stagingFileSizeMb),
+                           "Staging file size must be at least 1 megabyte.")
+        .withConfigProperty(NAME_STAGING_FILE_SIZE_MB);
+    }
+    if (!containsMacro(NAME_STAGING_FORMAT) && !containsMacro(NAME_STAGING_CODEC)) {
+      boolean parquet = getStagingFormat() == StagingFormat.PARQUET;
+      if (!(parquet ? PARQUET_CODECS : AVRO_CODECS).contains(getStagingCodec())) {
+        collector.addFailure(String.format("Staging codec has incorrect value '%s'.", stagingCodec),
+                             String.format("Set the staging codec to 'none', 'snappy' or '%s'.",
+                                           parquet ? CODEC_GZIP : CODEC_DEFLATE))
+          .withConfigProperty(NAME_STAGING_CODEC).withConfigProperty(NAME_STAGING_FORMAT);
+      }
+    }
+    if (!containsMacro(NAME_DEFLATE_LEVEL) && deflateLevel != null && (deflateLevel < 1 || deflateLevel > 9)) {
+      collector.addFailure(String.format("Invalid deflate level '%d'.", deflateLevel),
+                           "Deflate level must be between 1 and 9.")
+        .withConfigProperty(NAME_DEFLATE_LEVEL);
+    }
+    if (!containsMacro(NAME_SYNC_INTERVAL_KB) && syncIntervalKb != null
+      && (syncIntervalKb < 1 || syncIntervalKb > MAX_SYNC_INTERVAL_KB)) {
+      collector.addFailure(String.format("Invalid sync interval '%d'.", syncIntervalKb),
+                           String.format("Sync interval must be between 1 and %d kilobytes.", MAX_SYNC_INTERVAL_KB))
+        .withConfigProperty(NAME_SYNC_INTERVAL_KB);
+    }
+  }
+
+  private void validateLoadJobProperties(FailureCollector collector) {
+    if (!containsMacro(NAME_MAX_FILES_PER_LOAD_JOB) && maxFilesPerLoadJob != null
+      && (maxFilesPerLoadJob < 1 || maxFilesPerLoadJob > MAX_FILES_PER_LOAD_JOB)) {
+      collector.addFailure(String.format("Invalid maximum number of files per load job '%d'.", maxFilesPerLoadJob),
+                           String.format("Maximum number of files per load job must be between 1 and %d.",
+                                         MAX_FILES_PER_LOAD_JOB))
+        .withConfigProperty(NAME_MAX_FILES_PER_LOAD_JOB);
+    }
+    if (!containsMacro(NAME_MAX_LOAD_JOB_SIZE_GB) && maxLoadJobSizeGb != null && maxLoadJobSizeGb < 1) {
+      collector.addFailure(String.format("Invalid maximum load job size '%d'.", maxLoadJobSizeGb),
+                           "Maximum load job size must be at least 1 gigabyte.")
+        .withConfigProperty(NAME_MAX_LOAD_JOB_SIZE_GB);
+    }
+    if (!containsMacro(NAME_MAX_CONCURRENT_LOAD_JOBS) && maxConcurrentLoadJobs != null && maxConcurrentLoadJobs < 1) {
+      collector.addFailure(String.format("Invalid maximum number of concurrent load jobs '%d'.",
+                                         maxConcurrentLoadJobs),
+                           "Maximum number of concurrent load jobs must be at least 1.")
+        .withConfigProperty(NAME_MAX_CONCURRENT_LOAD_JOBS);
+    }
   }
 }
@@ -16,70 +16,68 @@
 
 package io.cdap.plugin.gcp.bigquery.sink;
 
-import org.apache.avro.Schema;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
 import org.apache.avro.file.CodecFactory;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.hadoop.io.AvroSerialization;
-import org.apache.avro.mapred.AvroKey;
-import org.apache.avro.mapreduce.AvroJob;
-import org.apache.avro.mapreduce.AvroKeyOutputFormat;
-import org.apache.hadoop.conf.Configuration;
+import org.apache.avro.mapreduce.AvroOutputFormatBase;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * avro output format.
+ * Avro output format that writes {@link StructuredRecord} keys to Avro container files.
+ * The writer schema is taken from the records themselves, and every distinct schema is written to its own file.
+ * Files are rolled over to a new object after {@link BigQueryConstants#CONFIG_STAGING_MAX_FILE_BYTES} bytes
+ * if it is set, and records are sorted first if {@link BigQueryConstants#CONFIG_STAGING_SORT_FIELDS} is set.
+ * The block codec and sync interval are read from the standard Avro output properties.
  */
-public class AvroOutputFormat extends AvroKeyOutputFormat<GenericRecord> {
-  public AvroOutputFormat() {
-    super();
-  }
+public class AvroOutputFormat extends AvroOutputFormatBase<StructuredRecord, NullWritable> {
+  private static final String AVRO_EXTENSION = org.apache.avro.mapred.AvroOutputFormat.EXT;
 
-  public AvroOutputFormat(RecordWriterFactory recordWriterFactory) {
-    super(recordWriterFactory);
+  @Override
+  public RecordWriter<StructuredRecord, NullWritable> getRecordWriter(TaskAttemptContext context)
+    throws IOException {
+    int maxOpenFiles = context.getConfiguration().getInt(BigQueryConstants.CONFIG_STAGING_MAX_OPEN_FILES,
+                                                         AvroRecordWriter.DEFAULT_MAX_OPEN_FILES);
+    long maxFileBytes = context.getConfiguration().getLong(BigQueryConstants.CONFIG_STAGING_MAX_FILE_BYTES,
+                                                           AvroRecordWriter.UNLIMITED_FILE_SIZE);
+    return SortingRecordWriter.wrap(context.getConfiguration(),
+                                    create(getCompressionCodec(context), getOutputStreamFactory(context),
+                                           getSyncInterval(context), maxOpenFiles, maxFileBytes));
   }
 
   /**
-   *
-   * @param context
-   * @return
-   * @throws IOException
+   * Returns a factory that opens the default work file for the first container of the task,
+   * and numbered work files for every following one.
    */
-  public RecordWriter<AvroKey<GenericRecord>, NullWritable> getRecordWriter(TaskAttemptContext context)
-    throws IOException {
-    Configuration conf = context.getConfiguration();
-
-    // Get the writer schema.
-    Schema writerSchema = AvroJob.getOutputKeySchema(conf);
-    boolean isMapOnly = context.getNumReduceTasks() == 0;
-    if (isMapOnly) {
-      Schema mapOutputSchema = AvroJob.getMapOutputKeySchema(conf);
-      if (mapOutputSchema != null) {
-        writerSchema = mapOutputSchema;
+  private AvroRecordWriter.OutputStreamFactory getOutputStreamFactory(TaskAttemptContext context) {
+    AtomicInteger fileCount = new AtomicInteger();
+    return () -> {
+      int index = fileCount.getAndIncrement();
+      if (index == 0) {
+        return getAvroFileOutputStream(context);
       }
-    }
-
-    GenericData dataModel = AvroSerialization.createDataModel(conf);
-    return create(writerSchema, dataModel, getCompressionCodec(context),
-                  getAvroFileOutputStream(context), getSyncInterval(context));
+      Path path = getDefaultWorkFile(context, "_" + index + AVRO_EXTENSION);
+      return path.getFileSystem(context.getConfiguration()).create(path);
+    };
   }
 
   /**
    * Creates a new record writer instance.
    *
-   * @param writerSchema The writer schema for the records to write.
-   * @param compressionCodec The compression type for the writer file.
-   * @param outputStream The target output stream for the records.
-   * @param syncInterval The sync interval for the writer file.
+   * @param compressionCodec The compression type for the writer files.
+   * @param outputStreamFactory The factory that opens the target output stream for each file.
+   * @param syncInterval The sync interval for the writer files.
+   * @param maxOpenFiles The maximum number of files that are open at the same time.
+   * @param maxFileBytes The size in bytes after which a new file is started.
    */
-  private RecordWriter<AvroKey<GenericRecord>, NullWritable> create(
-    Schema writerSchema, GenericData dataModel, CodecFactory compressionCodec,
-    OutputStream outputStream, int syncInterval) throws IOException {
-    return new AvroRecordWriter(writerSchema, dataModel, compressionCodec, outputStream, syncInterval);
+  private RecordWriter<StructuredRecord, NullWritable> create(CodecFactory compressionCodec,
+                                                              AvroRecordWriter.OutputStreamFactory outputStreamFactory,
+                                                              int syncInterval, int maxOpenFiles, long maxFileBytes) {
+    return new AvroRecordWriter(compressionCodec, outputStreamFactory, syncInterval, maxOpenFiles, maxFileBytes);
   }
 }
@@ -16,13 +16,13 @@
 
 package io.cdap.plugin.gcp.bigquery.sink;
 
-import org.apache.avro.Schema;
+import com.google.common.io.CountingOutputStream;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.data.schema.SchemaHash;
 import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileConstants;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.mapred.AvroKey;
 import org.apache.avro.mapreduce.Syncable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.RecordWriter;
@@ -30,83 +30,178 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * avro record writer
+ * Avro record writer that encodes {@link StructuredRecord} values straight into Avro container files.
+ *
+ * Records are grouped by schema fingerprint and every schema gets its own container file, so records with
+ * interleaved schemas do not force the writer to close and reopen files. At most {@code maxOpenFiles} containers
+ * are kept open at a time; when the limit is reached the least recently used container is closed, and a later record
+ * with its schema starts a new file.
+ *
+ * If a maximum file size is set, a container is also closed once the bytes written to it reach that size, and the
+ * following records with its schema go to a new file. Since blocks are only written out at sync points, a file can
+ * exceed the maximum size by up to one block.
  */
-public class AvroRecordWriter extends RecordWriter<AvroKey<GenericRecord>, NullWritable> implements Syncable {
-  /** A writer for the Avro container file. */
-  private DataFileWriter<GenericRecord> mAvroFileWriter;
-  private Schema prevSchema;
-  private GenericData dataModel;
-  private CodecFactory compressionCodec;
-  private OutputStream outputStream;
-  private int syncInterval;
+public class AvroRecordWriter extends RecordWriter<StructuredRecord, NullWritable> implements Syncable {
+  public static final int DEFAULT_MAX_OPEN_FILES = 4;
+  /** No limit on the size of a single Avro container file. */
+  public static final long UNLIMITED_FILE_SIZE = 0L;
+
+  private final CodecFactory compressionCodec;
+  private final OutputStreamFactory outputStreamFactory;
+  private final int syncInterval;
+  private final int maxOpenFiles;
+  private final long maxFileBytes;
+  /** Fingerprints of the recently seen schema instances, so that a fingerprint is not computed for every record. */
+  private final SchemaCache<SchemaHash> fingerprints = new SchemaCache<>(Schema::getSchemaHash);
+  /** Datum writers compiled for the schemas seen by this writer. */
+  private final Map<SchemaHash, StructuredRecordDatumWriter> datumWriters = new HashMap<>();
+  /** Open containers in least recently used order. */
+  private final LinkedHashMap<SchemaHash, Container> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+  private Schema lastSchema;
+  private Container lastContainer;
 
   /**
    * Constructor.
    *
-   * @param writerSchema The writer schema for the records in the Avro container file.
-   * @param compressionCodec A compression codec factory for the Avro container file.
-   * @param outputStream The output stream to write the Avro container file to.
-   * @param syncInterval The sync interval for the Avro container file.
-   * @throws IOException If the record writer cannot be opened.
+   * @param compressionCodec A compression codec factory for the Avro container files.
+   * @param outputStreamFactory Factory that opens the output stream for each new Avro container file.
+   * @param syncInterval The sync interval for the Avro container files.
+   * @param maxOpenFiles The maximum number of Avro container files that are open at the same time.
+   * @param maxFileBytes The size in bytes after which a new Avro container file is started,
+   *                     or {@link #UNLIMITED_FILE_SIZE} to write a single file per schema.
    */
-  public AvroRecordWriter(Schema writerSchema, GenericData dataModel, CodecFactory compressionCodec,
-                          OutputStream outputStream, int syncInterval) throws IOException {
-    this.dataModel = dataModel;
+  public AvroRecordWriter(CodecFactory compressionCodec, OutputStreamFactory outputStreamFactory,
+                          int syncInterval, int maxOpenFiles, long maxFileBytes) {
     this.compressionCodec = compressionCodec;
-    this.outputStream = outputStream;
+    this.outputStreamFactory = outputStreamFactory;
     this.syncInterval = syncInterval;
+    this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    this.maxFileBytes = maxFileBytes;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param compressionCodec A compression codec factory for the Avro container files.
+   * @param outputStreamFactory Factory that opens the output stream for each new Avro container file.
+   * @param syncInterval The sync interval for the Avro container files.
+   * @param maxOpenFiles The maximum number of Avro container files that are open at the same time.
+   */
+  public AvroRecordWriter(CodecFactory compressionCodec, OutputStreamFactory outputStreamFactory,
+                          int syncInterval, int maxOpenFiles) {
+    this(compressionCodec, outputStreamFactory, syncInterval, maxOpenFiles, UNLIMITED_FILE_SIZE);
   }
+
   /**
    * Constructor.
    *
-   * @param writerSchema The writer schema for the records in the Avro container file.
-   * @param compressionCodec A compression codec factory for the Avro container file.
-   * @param outputStream The output stream to write the Avro container file to.
-   * @throws IOException If the record writer cannot be opened.
+   * @param compressionCodec A compression codec factory for the Avro container files.
+   * @param outputStreamFactory Factory that opens the output stream for each new Avro container file.
    */
-  public AvroRecordWriter(Schema writerSchema, GenericData dataModel,
-                          CodecFactory compressionCodec, OutputStream outputStream) throws IOException {
-    this(writerSchema, dataModel, compressionCodec, outputStream,
-         DataFileConstants.DEFAULT_SYNC_INTERVAL);
+  public AvroRecordWriter(CodecFactory compressionCodec, OutputStreamFactory outputStreamFactory) {
+    this(compressionCodec, outputStreamFactory, DataFileConstants.DEFAULT_SYNC_INTERVAL, DEFAULT_MAX_OPEN_FILES);
   }
 
   /** {@inheritDoc} */
   @Override
-  public void write(AvroKey<GenericRecord> record, NullWritable ignore) throws IOException {
-    // Create an Avro container file and a writer to it.
-    Schema writerSchema = record.datum().getSchema();
-    if (mAvroFileWriter == null) {
-      createFileWriter(writerSchema);
+  public void write(StructuredRecord record, NullWritable ignore) throws IOException {
+    Schema schema = record.getSchema();
+    // fast path for consecutive records that share the same schema instance
+    if (schema != lastSchema) {
+      lastContainer = getContainer(schema);
+      lastSchema = schema;
     }
-
-    if (prevSchema != null && !prevSchema.equals(writerSchema)) {
-      mAvroFileWriter.sync();
-      mAvroFileWriter.close();
-      createFileWriter(writerSchema);
+    lastContainer.fileWriter.append(record);
+    if (maxFileBytes > 0 && lastContainer.output.getCount() >= maxFileBytes) {
+      // roll over, the next record with this schema opens a new file
+      openFiles.remove(lastContainer.fingerprint);
+      lastContainer.fileWriter.close();
+      lastContainer = null;
+      lastSchema = null;
     }
-    mAvroFileWriter.append(record.datum());
   }
 
-  private void createFileWriter(Schema writerSchema) throws IOException {
-    mAvroFileWriter = new DataFileWriter<GenericRecord>(dataModel.createDatumWriter(writerSchema));
-    mAvroFileWriter.setCodec(compressionCodec);
-    mAvroFileWriter.setSyncInterval(syncInterval);
-    mAvroFileWriter.create(writerSchema, outputStream);
-    prevSchema = writerSchema;
+  private Container getContainer(Schema schema) throws IOException {
+    SchemaHash fingerprint = fingerprints.get(schema);
+    Container container = openFiles.get(fingerprint);
+    if (container != null) {
+      return container;
+    }
+
+    if (openFiles.size() >= maxOpenFiles) {
+      Iterator<Container> eldest = openFiles.values().iterator();
+      Container evicted = eldest.next();
+      eldest.remove();
+      evicted.fileWriter.close();
+    }
+
+    StructuredRecordDatumWriter datumWriter = datumWriters.computeIfAbsent(
+      fingerprint, f -> new StructuredRecordDatumWriter(schema));
+    CountingOutputStream output = new CountingOutputStream(outputStreamFactory.create());
+    DataFileWriter<StructuredRecord> fileWriter = new DataFileWriter<>(datumWriter);
+    fileWriter.setCodec(compressionCodec);
+    fileWriter.setSyncInterval(syncInterval);
+    fileWriter.create(datumWriter.getAvroSchema(), output);
+    container = new Container(fingerprint, fileWriter, output);
+    openFiles.put(fingerprint, container);
+    return container;
   }
 
   /** {@inheritDoc} */
   @Override
   public void close(TaskAttemptContext context) throws IOException {
-    mAvroFileWriter.close();
+    List<IOException> failures = new ArrayList<>();
+    for (Container container : openFiles.values()) {
+      try {
+        container.fileWriter.close();
+      } catch (IOException e) {
+        failures.add(e);
+      }
+    }
+    openFiles.clear();
+    lastSchema = null;
+    lastContainer = null;
+    if (!failures.isEmpty()) {
+      IOException exception = failures.get(0);
+      failures.stream().skip(1).forEach(exception::addSuppressed);
+      throw exception;
+    }
   }
 
   /** {@inheritDoc} */
   @Override
   public long sync() throws IOException {
-    return mAvroFileWriter.sync();
+    return lastContainer == null ? 0L : lastContainer.fileWriter.sync();
+  }
+
+  /**
+   * An open Avro container file together with the stream that counts the bytes written to it.
+   */
+  private static final class Container {
+    private final SchemaHash fingerprint;
+    private final DataFileWriter<StructuredRecord> fileWriter;
+    private final CountingOutputStream output;
+
+    private Container(SchemaHash fingerprint, DataFileWriter<StructuredRecord> fileWriter,
+                      CountingOutputStream output) {
+      this.fingerprint = fingerprint;
+      this.fileWriter = fileWriter;
+      this.output = output;
+    }
+  }
+
+  /**
+   * Opens the output stream of a new Avro container file. Every call must return a stream to a distinct object.
+   */
+  public interface OutputStreamFactory {
+    OutputStream create() throws IOException;
   }
 }
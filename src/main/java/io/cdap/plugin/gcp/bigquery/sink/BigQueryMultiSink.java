@@ -19,7 +19,7 @@ import com.google.cloud.bigquery.BigQuery;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
-import io.cdap.cdap.api.data.batch.OutputFormatProvider;
+import io.cdap.cdap.api.data.batch.Output;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.api.dataset.lib.KeyValue;
@@ -28,15 +28,13 @@ import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
 import io.cdap.cdap.etl.api.batch.BatchSink;
 import io.cdap.cdap.etl.api.batch.BatchSinkContext;
-import io.cdap.plugin.format.avro.StructuredToAvroTransformer;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.mapred.AvroKey;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -78,8 +76,13 @@ public class BigQueryMultiSink extends AbstractBigQuerySink {
   @Override
   protected void prepareRunInternal(BatchSinkContext context, BigQuery bigQuery, String bucket) throws IOException {
     baseConfiguration.set(BigQueryConstants.CONFIG_OPERATION, Operation.INSERT.name());
+    // tables without records are left untouched instead of running a load job without files
+    baseConfiguration.setBoolean(BigQueryConstants.CONFIG_LOAD_SKIP_EMPTY, true);
+    baseConfiguration.setInt(BigQueryConstants.CONFIG_MULTI_MAX_CONCURRENT_TABLES, config.getMaxConcurrentTables());
     Map<String, String> arguments = new HashMap<>(context.getArguments().asMap());
     FailureCollector collector = context.getFailureCollector();
+    Map<String, Configuration> tableConfigs = new LinkedHashMap<>();
+    Map<String, Schema> tableSchemas = new HashMap<>();
     for (Map.Entry<String, String> argument : arguments.entrySet()) {
       String key = argument.getKey();
       if (!key.startsWith(TABLE_PREFIX)) {
@@ -95,25 +98,27 @@ public class BigQueryMultiSink extends AbstractBigQuerySink {
       try {
         Schema tableSchema = Schema.parseJson(argument.getValue());
         String outputName = String.format("%s-%s", config.getReferenceName(), tableName);
-        initOutput(context, bigQuery, outputName, tableName, tableSchema, bucket, context.getFailureCollector());
+        Configuration configuration = initOutput(context, bigQuery, outputName, tableName, tableSchema, bucket,
+                                                 context.getFailureCollector());
+        String routingName = MultiSinkOutputFormatProvider.getTableName(tableName);
+        tableConfigs.put(routingName, configuration);
+        tableSchemas.put(routingName, tableSchema);
       } catch (IOException e) {
         collector.addFailure("Invalid schema: " + e.getMessage(), null);
       }
     }
     collector.getOrThrowException();
-  }
 
-  @Override
-  protected OutputFormatProvider getOutputFormatProvider(Configuration configuration,
-                                                         String tableName,
-                                                         Schema tableSchema) {
-    return new MultiSinkOutputFormatProvider(configuration, tableName, tableSchema, config.getSplitField());
+    // all tables are written through a single output that routes every record to the table it belongs to
+    if (!tableConfigs.isEmpty()) {
+      context.addOutput(Output.of(config.getReferenceName(), new MultiSinkOutputFormatProvider(
+        baseConfiguration, tableConfigs, tableSchemas, config.getSplitField())));
+    }
   }
 
   @Override
   public void transform(StructuredRecord input,
-                        Emitter<KeyValue<AvroKey<GenericRecord>, NullWritable>> emitter) throws IOException {
-    StructuredToAvroTransformer transformer = new StructuredToAvroTransformer(input.getSchema());
-    emitter.emit(new KeyValue<>(new AvroKey<>(transformer.transform(input)), NullWritable.get()));
+                        Emitter<KeyValue<StructuredRecord, NullWritable>> emitter) {
+    emitter.emit(new KeyValue<>(input, NullWritable.get()));
   }
 }
@@ -18,6 +18,8 @@ package io.cdap.plugin.gcp.bigquery.sink;
 import com.google.common.base.Strings;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Macro;
+import io.cdap.cdap.api.annotation.Name;
+import io.cdap.cdap.etl.api.FailureCollector;
 
 import javax.annotation.Nullable;
 
@@ -26,15 +28,38 @@ import javax.annotation.Nullable;
  */
 public class BigQueryMultiSinkConfig extends AbstractBigQuerySinkConfig {
 
+  public static final String NAME_MAX_CONCURRENT_TABLES = "maxConcurrentTables";
+
   private static final String SPLIT_FIELD_DEFAULT = "tablename";
+  private static final int MAX_CONCURRENT_TABLES_DEFAULT = 10;
 
   @Macro
   @Nullable
   @Description("The name of the field that will be used to determine which table to write to.")
   private String splitField;
 
+  @Name(NAME_MAX_CONCURRENT_TABLES)
+  @Macro
+  @Nullable
+  @Description("Maximum number of tables that are loaded at the same time at the end of the run. Defaults to 10.")
+  private Integer maxConcurrentTables;
+
   public String getSplitField() {
     return Strings.isNullOrEmpty(splitField) ? SPLIT_FIELD_DEFAULT : splitField;
   }
 
+  public int getMaxConcurrentTables() {
+    return maxConcurrentTables == null ? MAX_CONCURRENT_TABLES_DEFAULT : maxConcurrentTables;
+  }
+
+  @Override
+  public void validate(FailureCollector collector) {
+    super.validate(collector);
+    if (!containsMacro(NAME_MAX_CONCURRENT_TABLES) && maxConcurrentTables != null && maxConcurrentTables < 1) {
+      collector.addFailure(String.format("Invalid maximum number of concurrent tables '%d'.", maxConcurrentTables),
+                           "Maximum number of concurrent tables must be at least 1.")
+        .withConfigProperty(NAME_MAX_CONCURRENT_TABLES);
+    }
+  }
+
 }
@@ -16,6 +16,7 @@
 
 package io.cdap.plugin.gcp.bigquery.sink;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.json.JsonParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.BackOff;
@@ -29,6 +30,7 @@ import com.google.api.services.bigquery.model.ErrorProto;
 import com.google.api.services.bigquery.model.Job;
 import com.google.api.services.bigquery.model.JobConfiguration;
 import com.google.api.services.bigquery.model.JobConfigurationLoad;
+import com.google.api.services.bigquery.model.JobConfigurationTableCopy;
 import com.google.api.services.bigquery.model.JobReference;
 import com.google.api.services.bigquery.model.Table;
 import com.google.api.services.bigquery.model.TableFieldSchema;
@@ -39,6 +41,7 @@ import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValueList;
 import com.google.cloud.bigquery.JobId;
 import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.QueryJobConfiguration;
@@ -46,7 +49,6 @@ import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
 import com.google.cloud.hadoop.io.bigquery.BigQueryFactory;
-import com.google.cloud.hadoop.io.bigquery.BigQueryFileFormat;
 import com.google.cloud.hadoop.io.bigquery.BigQueryHelper;
 import com.google.cloud.hadoop.io.bigquery.BigQueryStrings;
 import com.google.cloud.hadoop.io.bigquery.BigQueryUtils;
@@ -57,10 +59,16 @@ import com.google.cloud.hadoop.util.ConfigurationUtil;
 import com.google.cloud.hadoop.util.ResilientOperation;
 import com.google.cloud.hadoop.util.RetryDeterminer;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.mapred.AvroKey;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryJobStatistics;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.JobStatus;
@@ -74,12 +82,19 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -88,12 +103,24 @@ import javax.annotation.Nullable;
  * This is added to override BigQueryUtils.waitForJobCompletion error message with more useful error message.
  * See CDAP-15289 for more information.
  */
-public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<AvroKey<GenericRecord>, NullWritable> {
+public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<StructuredRecord, NullWritable> {
   private static final Logger LOG = LoggerFactory.getLogger(BigQueryOutputFormat.class);
 
-  private static final String UPDATE_QUERY = "UPDATE %s T SET %s FROM %s S WHERE %s";
-  private static final String UPSERT_QUERY = "MERGE %s T USING %s S ON %s WHEN MATCHED THEN UPDATE SET %s " +
-    "WHEN NOT MATCHED THEN INSERT (%s) VALUES(%s)";
+  private static final int DEFAULT_LOAD_MAX_FILES_PER_JOB = 10000;
+  private static final long DEFAULT_LOAD_MAX_BYTES_PER_JOB = 10L * 1024 * 1024 * 1024 * 1024;
+  private static final int DEFAULT_LOAD_MAX_CONCURRENT_JOBS = 4;
+  // partitions are pruned with the list of days up to this many days, and with a range of days beyond
+  private static final int MAX_PRUNED_PARTITION_DAYS = 100;
+  private static final Set<String> PRUNABLE_PARTITION_TYPES = ImmutableSet.of("DATE", "TIMESTAMP");
+  private static final Map<String, String> PRUNABLE_CLUSTERING_TYPES = ImmutableMap.<String, String>builder()
+    .put("STRING", "STRING")
+    .put("INTEGER", "INT64")
+    .put("INT64", "INT64")
+    .put("NUMERIC", "NUMERIC")
+    .put("DATE", "DATE")
+    .put("DATETIME", "DATETIME")
+    .put("TIMESTAMP", "TIMESTAMP")
+    .build();
 
   @Override
   public OutputCommitter createCommitter(TaskAttemptContext context) throws IOException {
@@ -107,6 +134,7 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
    */
   public static class BigQueryOutputCommitter extends ForwardingBigQueryFileOutputCommitter {
     private BigQueryHelper bigQueryHelper;
+    private Configuration conf;
 
     private Operation operation;
     private TableReference temporaryTableReference;
@@ -114,6 +142,8 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
     private List<String> tableFieldsList;
 
     private boolean allowSchemaRelaxation;
+    private boolean prunePartitions;
+    private boolean overwritePartitions;
 
     BigQueryOutputCommitter(TaskAttemptContext context, OutputCommitter delegate) throws IOException {
       super(context, delegate);
@@ -132,14 +162,17 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       super.commitJob(jobContext);
 
       // Get the destination configuration information.
-      Configuration conf = jobContext.getConfiguration();
+      conf = jobContext.getConfiguration();
       TableReference destTable = getTableReference(conf);
       String destProjectId = BigQueryOutputConfiguration.getProjectId(conf);
       String writeDisposition = BigQueryOutputConfiguration.getWriteDisposition(conf);
       Optional<TableSchema> destSchema = getTableSchema(conf);
       String kmsKeyName = BigQueryOutputConfiguration.getKmsKeyName(conf);
-      BigQueryFileFormat outputFileFormat = BigQueryOutputConfiguration.getFileFormat(conf);
-      List<String> sourceUris = getOutputFileURIs();
+      StagingFormat stagingFormat = StagingFormat.valueOf(conf.get(BigQueryConstants.CONFIG_STAGING_FORMAT,
+                                                                   StagingFormat.AVRO.name()));
+      List<List<String>> loadJobs = planLoadJobs(conf);
+      int maxConcurrentJobs = conf.getInt(BigQueryConstants.CONFIG_LOAD_MAX_CONCURRENT_JOBS,
+                                          DEFAULT_LOAD_MAX_CONCURRENT_JOBS);
 
       allowSchemaRelaxation = conf.getBoolean(BigQueryConstants.CONFIG_ALLOW_SCHEMA_RELAXATION, false);
       LOG.debug("Allow schema relaxation: '{}'", allowSchemaRelaxation);
@@ -161,11 +194,19 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       tableFieldsList = Arrays.stream(tableFields != null ? tableFields.split(",") : new String[0])
         .map(String::trim).collect(Collectors.toList());
       boolean tableExists = conf.getBoolean(BigQueryConstants.CONFIG_DESTINATION_TABLE_EXISTS, false);
+      prunePartitions = conf.getBoolean(BigQueryConstants.CONFIG_PRUNE_PARTITIONS, false);
+      overwritePartitions = conf.getBoolean(BigQueryConstants.CONFIG_OVERWRITE_PARTITIONS, false);
+
+      if (loadJobs.isEmpty() && conf.getBoolean(BigQueryConstants.CONFIG_LOAD_SKIP_EMPTY, false)) {
+        LOG.info("No files were staged for table '{}', skipping the load.", BigQueryStrings.toString(destTable));
+        cleanup(jobContext);
+        return;
+      }
 
       try {
-        importFromGcs(destProjectId, destTable, destSchema.orElse(null), kmsKeyName, outputFileFormat,
-                      writeDisposition, sourceUris, createPartitionedTable, partitionByField,
-                      requirePartitionFilter, clusteringOrderList, tableExists);
+        importFromGcs(destProjectId, destTable, destSchema.orElse(null), kmsKeyName, stagingFormat,
+                      writeDisposition, loadJobs, maxConcurrentJobs, createPartitionedTable, partitionByField,
+                      requirePartitionFilter, clusteringOrderList, tableExists, conf);
         if (temporaryTableReference != null) {
           operationAction(destTable);
         }
@@ -184,17 +225,34 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
     }
 
     /**
-     * This method is copied from BigQueryHelper#importFromGcs.
+     * Plans the load jobs for the files written to the GCS output path. Files are grouped so that each load job stays
+     * within the configured limits, and files that share a name prefix are collapsed into wildcard URIs.
+     */
+    private static List<List<String>> planLoadJobs(Configuration conf) throws IOException {
+      Path outputPath = BigQueryOutputConfiguration.getGcsOutputPath(conf);
+      FileSystem fs = outputPath.getFileSystem(conf);
+      List<FileStatus> listing = Arrays.asList(fs.listStatus(outputPath));
+      int maxFilesPerJob = conf.getInt(BigQueryConstants.CONFIG_LOAD_MAX_FILES_PER_JOB,
+                                       DEFAULT_LOAD_MAX_FILES_PER_JOB);
+      long maxBytesPerJob = conf.getLong(BigQueryConstants.CONFIG_LOAD_MAX_BYTES_PER_JOB,
+                                         DEFAULT_LOAD_MAX_BYTES_PER_JOB);
+      return LoadJobPlanner.plan(listing, maxFilesPerJob, maxBytesPerJob);
+    }
+
+    /**
+     * This method is copied from BigQueryHelper#importFromGcs. It is modified to load large sets of files with
+     * several concurrent load jobs.
      */
     private void importFromGcs(String projectId, TableReference tableRef, @Nullable TableSchema schema,
-                               @Nullable String kmsKeyName, BigQueryFileFormat sourceFormat, String writeDisposition,
-                               List<String> gcsPaths, boolean createPartitionedTable,
+                               @Nullable String kmsKeyName, StagingFormat sourceFormat, String writeDisposition,
+                               List<List<String>> loadJobs, int maxConcurrentJobs, boolean createPartitionedTable,
                                @Nullable String partitionByField, boolean requirePartitionFilter,
-                               List<String> clusteringOrderList, boolean tableExists)
+                               List<String> clusteringOrderList, boolean tableExists, Configuration conf)
       throws IOException, InterruptedException {
-      LOG.info("Importing into table '{}' from {} paths; path[0] is '{}'; awaitCompletion: {}",
-               BigQueryStrings.toString(tableRef), gcsPaths.size(), gcsPaths.isEmpty() ? "(empty)" : gcsPaths.get(0),
-               true);
+      List<String> gcsPaths = loadJobs.isEmpty() ? Collections.emptyList() : loadJobs.get(0);
+      LOG.info("Importing into table '{}' from {} paths in {} load jobs; path[0] is '{}'; awaitCompletion: {}",
+               BigQueryStrings.toString(tableRef), loadJobs.stream().mapToInt(List::size).sum(), loadJobs.size(),
+               gcsPaths.isEmpty() ? "(empty)" : gcsPaths.get(0), true);
 
       // Create load conf with minimal requirements.
       JobConfigurationLoad loadConfig = new JobConfigurationLoad();
@@ -202,7 +260,9 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       loadConfig.setSourceFormat(sourceFormat.getFormatIdentifier());
       loadConfig.setSourceUris(gcsPaths);
       loadConfig.setWriteDisposition(writeDisposition);
-      loadConfig.setUseAvroLogicalTypes(true);
+      if (sourceFormat == StagingFormat.AVRO) {
+        loadConfig.setUseAvroLogicalTypes(true);
+      }
       if (!tableExists && createPartitionedTable) {
         TimePartitioning timePartitioning = new TimePartitioning();
         timePartitioning.setType("DAY");
@@ -219,7 +279,18 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       }
 
       temporaryTableReference = null;
-      if (tableExists && !isTableEmpty(tableRef) && !Operation.INSERT.equals(operation)) {
+      TableReference partitionStagingTable = null;
+      Table destinationTable = overwritePartitions && tableExists ? bigQueryHelper.getTable(tableRef) : null;
+      TimePartitioning destinationPartitioning = null;
+      if (destinationTable != null) {
+        destinationPartitioning = destinationTable.getTimePartitioning();
+        if (destinationPartitioning == null) {
+          throw new IOException(String.format("Partitions of table '%s' cannot be overwritten because it is not " +
+                                                "time partitioned.", BigQueryStrings.toString(tableRef)));
+        }
+      }
+      boolean hasRows = tableExists && !isTableEmpty(tableRef);
+      if (hasRows && !Operation.INSERT.equals(operation)) {
         String temporaryTableName = tableRef.getTableId() + "_"
           + UUID.randomUUID().toString().replaceAll("-", "_");
         temporaryTableReference = new TableReference()
@@ -227,6 +298,17 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
           .setProjectId(tableRef.getProjectId())
           .setTableId(temporaryTableName);
         loadConfig.setDestinationTable(temporaryTableReference);
+      } else if (hasRows && overwritePartitions) {
+        // rows are loaded into a staging table with the same partitioning, whose partitions then replace the ones
+        // of the destination table. Partition filters are not required, so that the staged partitions can be listed.
+        partitionStagingTable = new TableReference()
+          .setDatasetId(tableRef.getDatasetId())
+          .setProjectId(tableRef.getProjectId())
+          .setTableId(tableRef.getTableId() + "_" + UUID.randomUUID().toString().replaceAll("-", "_"));
+        loadConfig.setDestinationTable(partitionStagingTable)
+          .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE.name())
+          .setTimePartitioning(destinationPartitioning.clone().setRequirePartitionFilter(null))
+          .setClustering(destinationTable.getClustering());
       } else {
         loadConfig.setDestinationTable(tableRef);
 
@@ -249,15 +331,162 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
         LOG.info("Using provided import schema '{}'.", schema.toString());
       }
 
-      JobConfiguration config = new JobConfiguration();
-      config.setLoad(loadConfig);
-
       // Get the dataset to determine the location
       Dataset dataset =
         bigQueryHelper.getRawBigquery().datasets().get(tableRef.getProjectId(), tableRef.getDatasetId()).execute();
 
-      JobReference jobReference =
-        bigQueryHelper.createJobReference(projectId, "direct-bigqueryhelper-import", dataset.getLocation());
+      try {
+        if (loadJobs.size() > 1) {
+          if (temporaryTableReference == null) {
+            createTableIfNotExists(bigQueryHelper, conf, tableRef);
+          }
+          importInChunks(projectId, loadConfig, loadJobs, maxConcurrentJobs, dataset.getLocation());
+        } else {
+          runJob(projectId, new JobConfiguration().setLoad(loadConfig), "direct-bigqueryhelper-import",
+                 dataset.getLocation());
+        }
+        if (partitionStagingTable != null) {
+          overwritePartitions(projectId, partitionStagingTable, tableRef, destinationPartitioning,
+                              loadConfig.getDestinationEncryptionConfiguration(), maxConcurrentJobs,
+                              dataset.getLocation());
+        }
+      } finally {
+        if (partitionStagingTable != null) {
+          deleteTables(Collections.singletonList(partitionStagingTable));
+        }
+      }
+
+      if (temporaryTableReference != null && bigQueryHelper.tableExists(temporaryTableReference)) {
+        long expirationMillis = DateTime.now().plusDays(1).getMillis();
+        Table table = bigQueryHelper.getTable(temporaryTableReference).setExpirationTime(expirationMillis);
+        bigQueryHelper.getRawBigquery().tables().update(temporaryTableReference.getProjectId(),
+                                                        temporaryTableReference.getDatasetId(),
+                                                        temporaryTableReference.getTableId(), table).execute();
+      }
+    }
+
+    /**
+     * Loads every group of files into its own staging table with concurrent load jobs, and then copies all staging
+     * tables into the load destination with a single copy job, so that the destination is updated atomically.
+     * Every load job writes to a different table, which means that they do not contend for the destination table.
+     */
+    private void importInChunks(String projectId, JobConfigurationLoad loadConfig, List<List<String>> loadJobs,
+                                int maxConcurrentJobs, String location) throws IOException, InterruptedException {
+      TableReference destination = loadConfig.getDestinationTable();
+      String chunkTablePrefix = destination.getTableId() + "_" + UUID.randomUUID().toString().replaceAll("-", "_");
+
+      // staging tables are partitioned and clustered like the destination, since copy jobs require matching specs
+      Table destinationTable = bigQueryHelper.tableExists(destination) ? bigQueryHelper.getTable(destination) : null;
+      List<TableReference> chunkTables = new ArrayList<>();
+      List<Future<?>> futures = new ArrayList<>();
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrentJobs,
+                                                                                   loadJobs.size())));
+      try {
+        for (int i = 0; i < loadJobs.size(); i++) {
+          TableReference chunkTable = new TableReference()
+            .setProjectId(destination.getProjectId())
+            .setDatasetId(destination.getDatasetId())
+            .setTableId(chunkTablePrefix + "_" + i);
+          chunkTables.add(chunkTable);
+
+          JobConfigurationLoad chunkConfig = loadConfig.clone()
+            .setSourceUris(loadJobs.get(i))
+            .setDestinationTable(chunkTable)
+            .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE.name())
+            .setSchemaUpdateOptions(null);
+          if (destinationTable != null) {
+            chunkConfig.setTimePartitioning(destinationTable.getTimePartitioning());
+            chunkConfig.setClustering(destinationTable.getClustering());
+          }
+          futures.add(executor.submit(() -> {
+            runJob(projectId, new JobConfiguration().setLoad(chunkConfig), "direct-bigqueryhelper-import", location);
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+          }
+        }
+
+        if (allowSchemaRelaxation && destinationTable != null) {
+          updateTableSchema(chunkTables.get(0), destination);
+        }
+        JobConfigurationTableCopy copyConfig = new JobConfigurationTableCopy()
+          .setSourceTables(chunkTables)
+          .setDestinationTable(destination)
+          .setWriteDisposition(loadConfig.getWriteDisposition())
+          .setDestinationEncryptionConfiguration(loadConfig.getDestinationEncryptionConfiguration());
+        runJob(projectId, new JobConfiguration().setCopy(copyConfig), "direct-bigqueryhelper-copy", location);
+      } finally {
+        futures.forEach(future -> future.cancel(true));
+        executor.shutdownNow();
+        deleteTables(chunkTables);
+      }
+    }
+
+    /**
+     * Replaces every partition of the destination table that has rows in the staging table with the same partition
+     * of the staging table. Every partition is replaced by its own copy job into the partition decorator, and the
+     * copy jobs run concurrently. Partitions of the destination table without staged rows are left unchanged.
+     */
+    private void overwritePartitions(String projectId, TableReference stagingTable, TableReference destination,
+                                     TimePartitioning timePartitioning,
+                                     @Nullable EncryptionConfiguration encryptionConfiguration,
+                                     int maxConcurrentJobs, String location) throws IOException, InterruptedException {
+      if (allowSchemaRelaxation) {
+        updateTableSchema(stagingTable, destination);
+      }
+      BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
+      String query = UpdateQueryGenerator.partitionIdQuery(
+        stagingTable.getDatasetId() + "." + stagingTable.getTableId(), timePartitioning.getType(),
+        timePartitioning.getField());
+      List<String> partitionIds = new ArrayList<>();
+      for (FieldValueList row : bigquery.query(QueryJobConfiguration.newBuilder(query).setUseLegacySql(false).build())
+        .iterateAll()) {
+        partitionIds.add(row.get("partition_id").getStringValue());
+      }
+      LOG.info("Overwriting {} partitions of table '{}'.", partitionIds.size(), BigQueryStrings.toString(destination));
+
+      List<Future<?>> futures = new ArrayList<>();
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrentJobs,
+                                                                                   partitionIds.size())));
+      try {
+        for (String partitionId : partitionIds) {
+          JobConfigurationTableCopy copyConfig = new JobConfigurationTableCopy()
+            .setSourceTable(getPartition(stagingTable, partitionId))
+            .setDestinationTable(getPartition(destination, partitionId))
+            .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE.name())
+            .setDestinationEncryptionConfiguration(encryptionConfiguration);
+          futures.add(executor.submit(() -> {
+            runJob(projectId, new JobConfiguration().setCopy(copyConfig), "direct-bigqueryhelper-copy", location);
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+          }
+        }
+      } finally {
+        futures.forEach(future -> future.cancel(true));
+        executor.shutdownNow();
+      }
+    }
+
+    private static TableReference getPartition(TableReference table, String partitionId) {
+      return table.clone().setTableId(table.getTableId() + "$" + partitionId);
+    }
+
+    private void runJob(String projectId, JobConfiguration config, String jobIdPrefix,
+                        String location) throws IOException, InterruptedException {
+      JobReference jobReference = bigQueryHelper.createJobReference(projectId, jobIdPrefix, location);
       Job job = new Job();
       job.setConfiguration(config);
       job.setJobReference(jobReference);
@@ -266,22 +495,38 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       bigQueryHelper.insertJobOrFetchDuplicate(projectId, job);
 
       // Poll until job is complete.
-      waitForJobCompletion(bigQueryHelper.getRawBigquery(), projectId, jobReference);
+      Job completedJob;
+      try {
+        completedJob = waitForJobCompletion(bigQueryHelper.getRawBigquery(), projectId, jobReference);
+      } catch (IOException e) {
+        BigQueryJobStatistics.recordFinished(conf, bigQueryHelper.getRawBigquery(), jobReference);
+        throw e;
+      }
+      BigQueryJobStatistics.record(conf, completedJob);
+    }
 
-      if (temporaryTableReference != null && bigQueryHelper.tableExists(temporaryTableReference)) {
-        long expirationMillis = DateTime.now().plusDays(1).getMillis();
-        Table table = bigQueryHelper.getTable(temporaryTableReference).setExpirationTime(expirationMillis);
-        bigQueryHelper.getRawBigquery().tables().update(temporaryTableReference.getProjectId(),
-                                                        temporaryTableReference.getDatasetId(),
-                                                        temporaryTableReference.getTableId(), table).execute();
+    private void deleteTables(List<TableReference> tables) {
+      for (TableReference table : tables) {
+        try {
+          bigQueryHelper.getRawBigquery().tables()
+            .delete(table.getProjectId(), table.getDatasetId(), table.getTableId()).execute();
+        } catch (GoogleJsonResponseException e) {
+          if (e.getStatusCode() != 404) {
+            LOG.warn("Failed to delete staging table '{}'.", BigQueryStrings.toString(table), e);
+          }
+        } catch (IOException e) {
+          LOG.warn("Failed to delete staging table '{}'.", BigQueryStrings.toString(table), e);
+        }
       }
     }
 
     /**
      * This method is copied from BigQueryUtils#waitForJobCompletion for getting useful error message.
+     *
+     * @return the completed job, along with its statistics
      */
-    private static void waitForJobCompletion(Bigquery bigquery, String projectId,
-                                             JobReference jobReference) throws IOException, InterruptedException {
+    private static Job waitForJobCompletion(Bigquery bigquery, String projectId,
+                                            JobReference jobReference) throws IOException, InterruptedException {
 
       Sleeper sleeper = Sleeper.DEFAULT;
       BackOff pollBackOff =
@@ -295,6 +540,7 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       long startTime = System.currentTimeMillis();
       long elapsedTime;
       boolean notDone = true;
+      Job completedJob = null;
 
       // While job is incomplete continue to poll.
       while (notDone) {
@@ -314,6 +560,7 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
                   pollJob.getStatus().getState());
         if (pollJob.getStatus().getState().equals("DONE")) {
           notDone = false;
+          completedJob = pollJob;
           if (pollJob.getStatus().getErrorResult() != null) {
             List<ErrorProto> errors = pollJob.getStatus().getErrors();
             int numOfErrors;
@@ -347,6 +594,7 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
           progressable.progress();
         }
       }
+      return completedJob;
     }
 
     /**
@@ -381,28 +629,90 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       return Optional.empty();
     }
 
-    private void operationAction(TableReference tableRef) throws InterruptedException {
+    /**
+     * Creates the destination table with the configured schema, partitioning and clustering if it does not exist.
+     * Nothing is created if no schema is configured.
+     */
+    static void createTableIfNotExists(BigQueryHelper bigQueryHelper, Configuration conf,
+                                       TableReference tableRef) throws IOException {
+      Optional<TableSchema> schema = getTableSchema(conf);
+      if (!schema.isPresent() || bigQueryHelper.tableExists(tableRef)) {
+        return;
+      }
+
+      Table table = new Table().setTableReference(tableRef).setSchema(schema.get());
+      if (conf.getBoolean(BigQueryConstants.CONFIG_CREATE_PARTITIONED_TABLE, false)) {
+        TimePartitioning timePartitioning = new TimePartitioning();
+        timePartitioning.setType("DAY");
+        timePartitioning.setField(conf.get(BigQueryConstants.CONFIG_PARTITION_BY_FIELD));
+        timePartitioning.setRequirePartitionFilter(
+          conf.getBoolean(BigQueryConstants.CONFIG_REQUIRE_PARTITION_FILTER, false));
+        table.setTimePartitioning(timePartitioning);
+        String clusteringOrder = conf.get(BigQueryConstants.CONFIG_CLUSTERING_ORDER);
+        if (clusteringOrder != null) {
+          Clustering clustering = new Clustering();
+          clustering.setFields(Arrays.stream(clusteringOrder.split(",")).map(String::trim)
+                                 .collect(Collectors.toList()));
+          table.setClustering(clustering);
+        }
+      }
+      try {
+        bigQueryHelper.getRawBigquery().tables()
+          .insert(tableRef.getProjectId(), tableRef.getDatasetId(), table).execute();
+      } catch (GoogleJsonResponseException e) {
+        // a conflict means that the table was created in the meantime
+        if (e.getStatusCode() != 409) {
+          throw e;
+        }
+      }
+    }
+
+    private void operationAction(TableReference tableRef) throws IOException, InterruptedException {
       if (allowSchemaRelaxation) {
-        updateTableSchema(tableRef);
+        updateTableSchema(temporaryTableReference, tableRef);
       }
-      String query = generateQuery(tableRef);
+      BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
+      String query = UpdateQueryGenerator.generate(
+        operation, tableRef.getDatasetId() + "." + tableRef.getTableId(),
+        temporaryTableReference.getDatasetId() + "." + temporaryTableReference.getTableId(),
+        tableKeyList, tableFieldsList, getPruningPredicates(bigquery, tableRef));
       LOG.debug("Update/Upsert query: " + query);
 
-      BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
       QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(query).setUseLegacySql(false).build();
 
       JobId jobId = JobId.of(UUID.randomUUID().toString());
       com.google.cloud.bigquery.Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
 
       // Wait for the query to complete.
-      queryJob.waitFor();
+      try {
+        queryJob.waitFor();
+      } finally {
+        recordStatistics(queryJob.getJobId().getProject(), jobId.getJob(), tableRef);
+      }
+    }
+
+    /**
+     * Records the statistics of a job that was run with the cloud client, which are fetched with the API client so
+     * that all jobs are recorded alike. Jobs run in the location of the dataset of the destination table.
+     */
+    private void recordStatistics(String projectId, String jobId, TableReference tableRef) {
+      Bigquery bigquery = bigQueryHelper.getRawBigquery();
+      String location;
+      try {
+        location = bigquery.datasets().get(tableRef.getProjectId(), tableRef.getDatasetId()).execute().getLocation();
+      } catch (IOException e) {
+        LOG.warn("Failed to get the statistics of BigQuery job {}: {}", jobId, e.getMessage());
+        return;
+      }
+      BigQueryJobStatistics.recordFinished(
+        conf, bigquery, new JobReference().setProjectId(projectId).setJobId(jobId).setLocation(location));
     }
 
-    private void updateTableSchema(TableReference tableRef) {
-      LOG.debug("Update/Upsert table schema update");
+    private void updateTableSchema(TableReference sourceRef, TableReference tableRef) {
+      LOG.debug("Update table schema of '{}'", BigQueryStrings.toString(tableRef));
       BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
 
-      TableId sourceTableId = TableId.of(temporaryTableReference.getDatasetId(), temporaryTableReference.getTableId());
+      TableId sourceTableId = TableId.of(sourceRef.getDatasetId(), sourceRef.getTableId());
       TableId destinationTableId = TableId.of(tableRef.getDatasetId(), tableRef.getTableId());
 
       com.google.cloud.bigquery.Table sourceTable = bigquery.getTable(sourceTableId);
@@ -427,24 +737,92 @@ public class BigQueryOutputFormat extends ForwardingBigQueryFileOutputFormat<Avr
       );
     }
 
-    private String generateQuery(TableReference tableRef) {
-      String criteriaTemplate = "T.%s = S.%s";
-      String sourceTable = temporaryTableReference.getDatasetId() + "." + temporaryTableReference.getTableId();
-      String destinationTable = tableRef.getDatasetId() + "." + tableRef.getTableId();
-      String criteria = tableKeyList.stream().map(s -> String.format(criteriaTemplate, s, s))
-        .collect(Collectors.joining(" AND "));
-      String fieldsForUpdate = tableFieldsList.stream().filter(s -> !tableKeyList.contains(s))
-        .map(s -> String.format(criteriaTemplate, s, s)).collect(Collectors.joining(", "));
-      switch (operation) {
-        case UPDATE:
-          return String.format(UPDATE_QUERY, destinationTable, fieldsForUpdate, sourceTable, criteria);
-        case UPSERT:
-          String insertFields = String.join(", ", tableFieldsList);
-          return String.format(UPSERT_QUERY, destinationTable, sourceTable, criteria, fieldsForUpdate,
-                                insertFields, insertFields);
-        default:
-          return "";
+    /**
+     * Returns predicates on the partitioning and clustering columns of the destination table that restrict the
+     * update to the partitions and clustered blocks that the staged rows can match. Predicates are only derived for
+     * columns that are part of the table key, since an existing row with a different value in any other column
+     * would not be matched anymore, unless partition pruning is enabled explicitly.
+     */
+    private List<String> getPruningPredicates(BigQuery bigquery, TableReference tableRef)
+      throws IOException, InterruptedException {
+      Table destination = bigQueryHelper.getTable(tableRef);
+      Set<String> stagedFields = bigQueryHelper.getTable(temporaryTableReference).getSchema().getFields().stream()
+        .map(TableFieldSchema::getName).collect(Collectors.toSet());
+      Map<String, String> columnTypes = destination.getSchema().getFields().stream()
+        .filter(field -> !"REPEATED".equals(field.getMode()) && stagedFields.contains(field.getName()))
+        .collect(Collectors.toMap(TableFieldSchema::getName, TableFieldSchema::getType));
+
+      TimePartitioning timePartitioning = destination.getTimePartitioning();
+      String partitionColumn = timePartitioning == null ? null : timePartitioning.getField();
+      if (partitionColumn == null || !isPrunable(partitionColumn)
+        || !PRUNABLE_PARTITION_TYPES.contains(columnTypes.get(partitionColumn))) {
+        partitionColumn = null;
+      }
+      List<String> clusteringColumns = destination.getClustering() == null ? Collections.emptyList()
+        : destination.getClustering().getFields().stream()
+        .filter(column -> isPrunable(column) && PRUNABLE_CLUSTERING_TYPES.containsKey(columnTypes.get(column)))
+        .collect(Collectors.toList());
+      if (partitionColumn == null && clusteringColumns.isEmpty()) {
+        return Collections.emptyList();
+      }
+
+      // collect the partitions and clustering ranges of the staged rows with a single query
+      List<String> selections = new ArrayList<>();
+      if (partitionColumn != null) {
+        String day = "TIMESTAMP".equals(columnTypes.get(partitionColumn))
+          ? "DATE(" + partitionColumn + ")" : partitionColumn;
+        selections.add(String.format("ARRAY_AGG(DISTINCT CAST(%s AS STRING) IGNORE NULLS LIMIT %d) AS p_days",
+                                     day, MAX_PRUNED_PARTITION_DAYS + 1));
+        selections.add(getRangeSelection("p", day));
+      }
+      for (int i = 0; i < clusteringColumns.size(); i++) {
+        selections.add(getRangeSelection("c" + i, clusteringColumns.get(i)));
       }
+      String query = String.format("SELECT %s FROM %s.%s", String.join(", ", selections),
+                                   temporaryTableReference.getDatasetId(), temporaryTableReference.getTableId());
+      FieldValueList row = bigquery.query(QueryJobConfiguration.newBuilder(query).setUseLegacySql(false).build())
+        .iterateAll().iterator().next();
+
+      List<String> predicates = new ArrayList<>();
+      if (partitionColumn != null) {
+        List<LocalDate> days = row.get("p_days").isNull() ? Collections.emptyList()
+          : row.get("p_days").getRepeatedValue().stream()
+          .map(value -> LocalDate.parse(value.getStringValue())).collect(Collectors.toList());
+        String min = getNullableString(row, "p_min");
+        String max = getNullableString(row, "p_max");
+        predicates.add(UpdateQueryGenerator.partitionPredicate(
+          partitionColumn, columnTypes.get(partitionColumn),
+          days.size() > MAX_PRUNED_PARTITION_DAYS ? Collections.emptyList() : days,
+          min == null ? null : LocalDate.parse(min), max == null ? null : LocalDate.parse(max),
+          hasNull(row, "p_null")));
+      }
+      for (int i = 0; i < clusteringColumns.size(); i++) {
+        String column = clusteringColumns.get(i);
+        predicates.add(UpdateQueryGenerator.rangePredicate(
+          column, PRUNABLE_CLUSTERING_TYPES.get(columnTypes.get(column)), getNullableString(row, "c" + i + "_min"),
+          getNullableString(row, "c" + i + "_max"), hasNull(row, "c" + i + "_null")));
+      }
+      return predicates;
+    }
+
+    private boolean isPrunable(String column) {
+      return prunePartitions || tableKeyList.contains(column);
+    }
+
+    private static String getRangeSelection(String alias, String expression) {
+      return String.format("CAST(MIN(%s) AS STRING) AS %s_min, CAST(MAX(%s) AS STRING) AS %s_max, " +
+                             "LOGICAL_OR(%s IS NULL) AS %s_null", expression, alias, expression, alias,
+                           expression, alias);
+    }
+
+    @Nullable
+    private static String getNullableString(FieldValueList row, String name) {
+      return row.get(name).isNull() ? null : row.get(name).getStringValue();
+    }
+
+    private static boolean hasNull(FieldValueList row, String name) {
+      // the aggregate is null when the staging table is empty
+      return !row.get(name).isNull() && row.get(name).getBooleanValue();
     }
 
     private static TableSchema createTableSchemaFromFields(String fieldsJson) throws IOException {
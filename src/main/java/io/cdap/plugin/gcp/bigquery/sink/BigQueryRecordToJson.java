@@ -24,6 +24,7 @@ import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
@@ -32,6 +33,7 @@ import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
@@ -53,7 +55,21 @@ public final class BigQueryRecordToJson {
    * @param fieldSchema field schema to be written
    */
   public static void write(JsonWriter writer, String name, Object object, Schema fieldSchema) throws IOException {
-    write(writer, name, false, object, fieldSchema);
+    write(writer, name, false, object, fieldSchema, false);
+  }
+
+  /**
+   * Writes object to json writer in the encoding expected by the BigQuery Storage Write API json writer. It differs
+   * from {@link #write(JsonWriter, String, Object, Schema)} only in that timestamps are written as epoch
+   * microseconds and bytes as an array of byte values, since the Write API does not parse timestamp or base64 strings.
+   * @param writer json writer to write the object to
+   * @param name name of the field to be written
+   * @param object object to be written
+   * @param fieldSchema field schema to be written
+   */
+  public static void writeForStorageWrite(JsonWriter writer, String name, Object object,
+                                          Schema fieldSchema) throws IOException {
+    write(writer, name, false, object, fieldSchema, true);
   }
 
   /**
@@ -64,9 +80,10 @@ public final class BigQueryRecordToJson {
    *                    added to the json writer
    * @param object object to be written
    * @param fieldSchema field schema to be written
+   * @param storageWrite true if the object is written for the Storage Write API
    */
   private static void write(JsonWriter writer, String name, boolean isArrayItem, Object object,
-                            Schema fieldSchema) throws IOException {
+                            Schema fieldSchema, boolean storageWrite) throws IOException {
     Schema schema = BigQueryUtil.getNonNullableSchema(fieldSchema);
     switch (schema.getType()) {
       case NULL:
@@ -77,13 +94,13 @@ public final class BigQueryRecordToJson {
       case BOOLEAN:
       case STRING:
       case BYTES:
-        writeSimpleTypes(writer, name, isArrayItem, object, schema);
+        writeSimpleTypes(writer, name, isArrayItem, object, schema, storageWrite);
         break;
       case ARRAY:
-        writeArray(writer, name, object, schema);
+        writeArray(writer, name, object, schema, storageWrite);
         break;
       case RECORD:
-        writeRecord(writer, name, object, schema);
+        writeRecord(writer, name, object, schema, storageWrite);
         break;
       default:
         throw new IllegalStateException(
@@ -99,9 +116,10 @@ public final class BigQueryRecordToJson {
    *                    added to the json writer
    * @param object object to be written
    * @param schema field schema to be written
+   * @param storageWrite true if the object is written for the Storage Write API
    */
   private static void writeSimpleTypes(JsonWriter writer, String name, boolean isArrayItem, Object object,
-                                       Schema schema) throws IOException {
+                                       Schema schema, boolean storageWrite) throws IOException {
     if (!isArrayItem) {
       writer.name(name);
     }
@@ -126,16 +144,24 @@ public final class BigQueryRecordToJson {
             Objects.requireNonNull(LocalTime.ofNanoOfDay(TimeUnit.MICROSECONDS.toNanos((Long) object)))));
           break;
         case TIMESTAMP_MILLIS:
+          if (storageWrite) {
+            writer.value(TimeUnit.MILLISECONDS.toMicros((long) object));
+            break;
+          }
           //timestamp for json input should be in this format yyyy-MM-dd HH:mm:ss.SSSSSS
           writer.value(DATETIME_FORMATTER.format(
             Objects.requireNonNull(getZonedDateTime((long) object, TimeUnit.MILLISECONDS))));
           break;
         case TIMESTAMP_MICROS:
+          if (storageWrite) {
+            writer.value((long) object);
+            break;
+          }
           writer.value(DATETIME_FORMATTER.format(
             Objects.requireNonNull(getZonedDateTime((long) object, TimeUnit.MICROSECONDS))));
           break;
         case DECIMAL:
-          writer.value(Objects.requireNonNull(getDecimal(name, (byte[]) object, schema)).toPlainString());
+          writer.value(Objects.requireNonNull(getDecimal(name, getBytes(name, object), schema)).toPlainString());
           break;
         default:
           throw new IllegalStateException(
@@ -160,7 +186,19 @@ public final class BigQueryRecordToJson {
       case STRING:
         writer.value(object.toString());
         break;
-      // TODO CDAP-15342 write byte type to json writer
+      case BYTES:
+        if (storageWrite) {
+          // the Write API json writer only accepts bytes as an array of byte values
+          writer.beginArray();
+          for (byte b : getBytes(name, object)) {
+            writer.value(b);
+          }
+          writer.endArray();
+          break;
+        }
+        // BigQuery expects bytes as base64 encoded strings
+        writer.value(Base64.getEncoder().encodeToString(getBytes(name, object)));
+        break;
       default:
         throw new IllegalStateException(String.format("Field '%s' is of unsupported type '%s'",
                                                       name, schema.getType()));
@@ -170,7 +208,8 @@ public final class BigQueryRecordToJson {
   private static void writeArray(JsonWriter writer,
                                  String name,
                                  @Nullable Object value,
-                                 Schema fieldSchema) throws IOException {
+                                 Schema fieldSchema,
+                                 boolean storageWrite) throws IOException {
     if (value == null) {
       throw new RuntimeException(
         String.format("Field '%s' is of value null, which is not a valid value for BigQuery type array.", name));
@@ -206,9 +245,9 @@ public final class BigQueryRecordToJson {
       }
       if (element instanceof StructuredRecord) {
         StructuredRecord record = (StructuredRecord) element;
-        processRecord(writer, record, Objects.requireNonNull(record.getSchema().getFields()));
+        processRecord(writer, record, Objects.requireNonNull(record.getSchema().getFields()), storageWrite);
       } else {
-        write(writer, name, true, element, componentSchema);
+        write(writer, name, true, element, componentSchema, storageWrite);
       }
     }
     writer.endArray();
@@ -217,7 +256,8 @@ public final class BigQueryRecordToJson {
   private static void writeRecord(JsonWriter writer,
                                   String name,
                                   @Nullable Object value,
-                                  Schema fieldSchema) throws IOException {
+                                  Schema fieldSchema,
+                                  boolean storageWrite) throws IOException {
     if (value == null) {
       writer.name(name);
       writer.nullValue();
@@ -231,19 +271,35 @@ public final class BigQueryRecordToJson {
     }
 
     writer.name(name);
-    processRecord(writer, (StructuredRecord) value, Objects.requireNonNull(fieldSchema.getFields()));
+    processRecord(writer, (StructuredRecord) value, Objects.requireNonNull(fieldSchema.getFields()), storageWrite);
   }
 
   private static void processRecord(JsonWriter writer,
                                     StructuredRecord record,
-                                    List<Schema.Field> fields) throws IOException {
+                                    List<Schema.Field> fields,
+                                    boolean storageWrite) throws IOException {
     writer.beginObject();
     for (Schema.Field field : fields) {
-      write(writer, field.getName(), record.get(field.getName()), field.getSchema());
+      write(writer, field.getName(), false, record.get(field.getName()), field.getSchema(), storageWrite);
     }
     writer.endObject();
   }
 
+  private static byte[] getBytes(String name, Object value) {
+    if (value instanceof byte[]) {
+      return (byte[]) value;
+    }
+    if (value instanceof ByteBuffer) {
+      ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    }
+    throw new IllegalArgumentException(
+      String.format("Field '%s' is of type '%s' when it is expected to be a ByteBuffer or byte array.",
+                    name, value.getClass().getSimpleName()));
+  }
+
   private static ZonedDateTime getZonedDateTime(long ts, TimeUnit unit) {
     long mod = unit.convert(1, TimeUnit.SECONDS);
     int fraction = (int) (ts % mod);
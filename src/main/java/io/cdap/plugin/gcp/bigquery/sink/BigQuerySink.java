@@ -21,6 +21,7 @@ import com.google.cloud.bigquery.Table;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
+import io.cdap.cdap.api.data.batch.Output;
 import io.cdap.cdap.api.data.batch.OutputFormatProvider;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
@@ -32,11 +33,8 @@ import io.cdap.cdap.etl.api.StageConfigurer;
 import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
 import io.cdap.cdap.etl.api.batch.BatchSink;
 import io.cdap.cdap.etl.api.batch.BatchSinkContext;
-import io.cdap.plugin.format.avro.StructuredToAvroTransformer;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.mapred.AvroKey;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapred.JobContext;
@@ -45,6 +43,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.UUID;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -58,7 +57,8 @@ import javax.annotation.Nullable;
 @Name(BigQuerySink.NAME)
 @Description("This sink writes to a BigQuery table. "
   + "BigQuery is Google's serverless, highly scalable, enterprise data warehouse. "
-  + "Data is first written to a temporary location on Google Cloud Storage, then loaded into BigQuery from there.")
+  + "Data is first written to a temporary location on Google Cloud Storage, then loaded into BigQuery from there, "
+  + "unless it is configured to write data directly to BigQuery.")
 public final class BigQuerySink extends AbstractBigQuerySink {
 
   public static final String NAME = "BigQueryTable";
@@ -89,6 +89,12 @@ public final class BigQuerySink extends AbstractBigQuerySink {
     return config;
   }
 
+  @Override
+  protected boolean isStagingRequired() {
+    // storage writes keep the manifests of their write streams in the staging area
+    return config.getWriteMode() != WriteMode.STREAMING_INSERT;
+  }
+
   @Override
   protected void prepareRunValidation(BatchSinkContext context) {
     FailureCollector collector = context.getFailureCollector();
@@ -102,23 +108,29 @@ public final class BigQuerySink extends AbstractBigQuerySink {
     configureTable();
     configureBigQuerySink();
     Schema schema = configSchema == null ? context.getInputSchema() : configSchema;
-    initOutput(context, bigQuery, config.getReferenceName(), config.getTable(), schema, bucket, collector);
+    Configuration configuration = initOutput(context, bigQuery, config.getReferenceName(), config.getTable(), schema,
+                                             bucket, collector);
+    context.addOutput(Output.of(config.getReferenceName(), getOutputFormatProvider(configuration)));
   }
 
-  @Override
-  protected OutputFormatProvider getOutputFormatProvider(Configuration configuration,
-                                                         String tableName,
-                                                         Schema tableSchema) {
+  private OutputFormatProvider getOutputFormatProvider(Configuration configuration) {
     return new OutputFormatProvider() {
       @Override
       public String getOutputFormatClassName() {
-        return BigQueryOutputFormat.class.getName();
+        switch (config.getWriteMode()) {
+          case STORAGE_WRITE:
+            return BigQueryStorageWriteOutputFormat.class.getName();
+          case STREAMING_INSERT:
+            return BigQueryStreamingInsertOutputFormat.class.getName();
+          default:
+            return BigQueryOutputFormat.class.getName();
+        }
       }
 
       @Override
       public Map<String, String> getOutputFormatConfiguration() {
         Map<String, String> map = BigQueryUtil.configToMap(configuration);
-        map.put(JobContext.OUTPUT_KEY_CLASS, AvroKey.class.getName());
+        map.put(JobContext.OUTPUT_KEY_CLASS, StructuredRecord.class.getName());
         return map;
       }
     };
@@ -132,9 +144,8 @@ public final class BigQuerySink extends AbstractBigQuerySink {
 
   @Override
   public void transform(StructuredRecord input,
-                        Emitter<KeyValue<AvroKey<GenericRecord>, NullWritable>> emitter) throws IOException {
-    StructuredToAvroTransformer transformer = new StructuredToAvroTransformer(input.getSchema());
-    emitter.emit(new KeyValue<>(new AvroKey<>(transformer.transform(input)), NullWritable.get()));
+                        Emitter<KeyValue<StructuredRecord, NullWritable>> emitter) {
+    emitter.emit(new KeyValue<>(input, NullWritable.get()));
   }
 
   /**
@@ -150,11 +161,30 @@ public final class BigQuerySink extends AbstractBigQuerySink {
                                  getConfig().isPartitionFilterRequired());
     if (config.getClusteringOrder() != null) {
       baseConfiguration.set(BigQueryConstants.CONFIG_CLUSTERING_ORDER, getConfig().getClusteringOrder());
+      if (config.shouldSortByClustering()) {
+        baseConfiguration.set(BigQueryConstants.CONFIG_STAGING_SORT_FIELDS, getConfig().getClusteringOrder());
+      }
     }
     baseConfiguration.set(BigQueryConstants.CONFIG_OPERATION, getConfig().getOperation().name());
     if (config.getRelationTableKey() != null) {
       baseConfiguration.set(BigQueryConstants.CONFIG_TABLE_KEY, getConfig().getRelationTableKey());
     }
+    baseConfiguration.setBoolean(BigQueryConstants.CONFIG_PRUNE_PARTITIONS, config.shouldPrunePartitions());
+    baseConfiguration.setBoolean(BigQueryConstants.CONFIG_OVERWRITE_PARTITIONS, config.shouldOverwritePartitions());
+    if (config.getWriteMode() == WriteMode.STORAGE_WRITE) {
+      if (config.getServiceAccountFilePath() != null) {
+        baseConfiguration.set(BigQueryConstants.CONFIG_SERVICE_ACCOUNT_FILE_PATH, config.getServiceAccountFilePath());
+      }
+      baseConfiguration.setInt(BigQueryConstants.CONFIG_WRITE_STREAM_COUNT, config.getWriteStreamCount());
+      baseConfiguration.setLong(BigQueryConstants.CONFIG_WRITE_MAX_IN_FLIGHT_BYTES, config.getMaxInFlightBytes());
+    }
+    if (config.getWriteMode() == WriteMode.STREAMING_INSERT) {
+      // insert ids are limited to 128 characters, so they are not derived from the table name
+      baseConfiguration.set(BigQueryConstants.CONFIG_INSERT_ID_PREFIX, UUID.randomUUID().toString());
+      baseConfiguration.setInt(BigQueryConstants.CONFIG_INSERT_BATCH_ROWS, config.getInsertBatchSize());
+      baseConfiguration.setInt(BigQueryConstants.CONFIG_INSERT_MAX_IN_FLIGHT_REQUESTS,
+                               config.getMaxInFlightRequests());
+    }
   }
 
   /**
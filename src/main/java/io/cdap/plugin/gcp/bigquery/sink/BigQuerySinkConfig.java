@@ -52,11 +52,21 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
   public static final String NAME_TABLE = "table";
   public static final String NAME_SCHEMA = "schema";
   public static final String NAME_TABLE_KEY = "relationTableKey";
+  public static final String NAME_PRUNE_PARTITIONS = "prunePartitions";
+  public static final String NAME_OVERWRITE_PARTITIONS = "overwritePartitions";
   public static final String NAME_PARTITION_BY_FIELD = "partitionByField";
   public static final String NAME_CLUSTERING_ORDER = "clusteringOrder";
+  public static final String NAME_SORT_BY_CLUSTERING = "sortByClustering";
   public static final String NAME_OPERATION = "operation";
+  public static final String NAME_WRITE_MODE = "writeMode";
+  public static final String NAME_WRITE_STREAM_COUNT = "writeStreamCount";
+  public static final String NAME_MAX_IN_FLIGHT_MB = "maxInFlightMb";
+  public static final String NAME_INSERT_BATCH_SIZE = "insertBatchSize";
+  public static final String NAME_MAX_IN_FLIGHT_REQUESTS = "maxInFlightRequests";
 
   public static final int MAX_NUMBER_OF_COLUMNS = 4;
+  // BigQuery accepts at most 50,000 rows per insertAll request
+  public static final int MAX_INSERT_BATCH_SIZE = 50000;
 
   @Name(NAME_TABLE)
   @Macro
@@ -96,6 +106,23 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
   @Description("List of fields that determines relation between tables during Update and Upsert operations.")
   protected String relationTableKey;
 
+  @Name(NAME_PRUNE_PARTITIONS)
+  @Macro
+  @Nullable
+  @Description("Whether Update and Upsert operations only look for existing rows in the partitions and clustering " +
+    "ranges of the incoming rows. This avoids scanning the whole table, but an existing row is not matched if its " +
+    "partitioning or clustering column differs from the incoming row with the same key. Partitioning and clustering " +
+    "columns that are part of the table key are always pruned.")
+  protected Boolean prunePartitions;
+
+  @Name(NAME_OVERWRITE_PARTITIONS)
+  @Macro
+  @Nullable
+  @Description("Whether the Insert operation replaces the partitions of the table that contain incoming rows, "
+    + "instead of appending to them. Other partitions are left unchanged. The table must be time partitioned. "
+    + "Only used when the write mode is 'load'.")
+  protected Boolean overwritePartitions;
+
   @Macro
   @Nullable
   @Description("Whether to create a table that requires a partition filter. This value is ignored if the table " +
@@ -110,6 +137,52 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
     "only used when the BigQuery table is automatically created and ignored if the table already exists.")
   protected String clusteringOrder;
 
+  @Name(NAME_SORT_BY_CLUSTERING)
+  @Macro
+  @Nullable
+  @Description("Whether each task sorts its records by the clustering order fields before they are staged, so that "
+    + "loads into clustered tables produce well clustered storage. Records that do not fit in memory are spilled "
+    + "to local disk. Only used when the write mode is 'load'.")
+  protected Boolean sortByClustering;
+
+  @Name(NAME_WRITE_MODE)
+  @Macro
+  @Nullable
+  @Description("How records are written to BigQuery. 'load' stages records in Google Cloud Storage and loads them "
+    + "with a load job. 'storage_write' appends records to pending streams of the BigQuery Storage Write API, "
+    + "which are committed together at the end of the run. "
+    + "'streaming_insert' sends records with streaming inserts, which makes them available right away. "
+    + "Defaults to 'load'.")
+  protected String writeMode;
+
+  @Name(NAME_WRITE_STREAM_COUNT)
+  @Macro
+  @Nullable
+  @Description("Number of streams each task writes to in parallel when the write mode is 'storage_write'. "
+    + "Defaults to 1.")
+  protected Integer writeStreamCount;
+
+  @Name(NAME_MAX_IN_FLIGHT_MB)
+  @Macro
+  @Nullable
+  @Description("Maximum amount of data in megabytes that each stream has sent and not yet acknowledged by BigQuery "
+    + "when the write mode is 'storage_write'. Defaults to 10.")
+  protected Integer maxInFlightMb;
+
+  @Name(NAME_INSERT_BATCH_SIZE)
+  @Macro
+  @Nullable
+  @Description("Maximum number of records sent in a single streaming insert request when the write mode is "
+    + "'streaming_insert'. Requests are also limited to 5 MB. Defaults to 500.")
+  protected Integer insertBatchSize;
+
+  @Name(NAME_MAX_IN_FLIGHT_REQUESTS)
+  @Macro
+  @Nullable
+  @Description("Number of streaming insert requests each task can have in progress at the same time when the write "
+    + "mode is 'streaming_insert'. Defaults to 4.")
+  protected Integer maxInFlightRequests;
+
   public BigQuerySinkConfig(String referenceName, String dataset, String table,
                             @Nullable String bucket, @Nullable String schema) {
     this.referenceName = referenceName;
@@ -141,10 +214,44 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
     return Strings.isNullOrEmpty(clusteringOrder) ? null : clusteringOrder;
   }
 
+  public boolean shouldSortByClustering() {
+    return sortByClustering == null ? false : sortByClustering;
+  }
+
+  public boolean shouldPrunePartitions() {
+    return prunePartitions == null ? false : prunePartitions;
+  }
+
+  public boolean shouldOverwritePartitions() {
+    return overwritePartitions == null ? false : overwritePartitions;
+  }
+
   public Operation getOperation() {
     return Strings.isNullOrEmpty(operation) ? Operation.INSERT : Operation.valueOf(operation.toUpperCase());
   }
 
+  public WriteMode getWriteMode() {
+    return Strings.isNullOrEmpty(writeMode) ? WriteMode.LOAD : WriteMode.valueOf(writeMode.toUpperCase());
+  }
+
+  public int getWriteStreamCount() {
+    return writeStreamCount == null ? BigQueryStorageWriteOutputFormat.DEFAULT_STREAM_COUNT : writeStreamCount;
+  }
+
+  public long getMaxInFlightBytes() {
+    return maxInFlightMb == null ? BigQueryStorageWriteOutputFormat.DEFAULT_MAX_IN_FLIGHT_BYTES
+      : maxInFlightMb * 1024L * 1024L;
+  }
+
+  public int getInsertBatchSize() {
+    return insertBatchSize == null ? BigQueryStreamingInsertOutputFormat.DEFAULT_BATCH_ROWS : insertBatchSize;
+  }
+
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests == null ? BigQueryStreamingInsertOutputFormat.DEFAULT_MAX_IN_FLIGHT_REQUESTS
+      : maxInFlightRequests;
+  }
+
   @Nullable
   public String getRelationTableKey() {
     return Strings.isNullOrEmpty(relationTableKey) ? null : relationTableKey;
@@ -178,6 +285,44 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
     }
   }
 
+  private void validateOverwritePartitions(FailureCollector collector) {
+    if (containsMacro(NAME_OVERWRITE_PARTITIONS) || !shouldOverwritePartitions()) {
+      return;
+    }
+    if (!containsMacro(NAME_OPERATION) && !getOperation().equals(Operation.INSERT)) {
+      collector.addFailure("Overwriting partitions must only be used with operation 'Insert'.",
+                           "Set Overwrite Partitions to false, or change the Operation to 'Insert'.")
+        .withConfigProperty(NAME_OVERWRITE_PARTITIONS).withConfigProperty(NAME_OPERATION);
+    }
+    if (!containsMacro(NAME_TRUNCATE_TABLE)
+      && getWriteDisposition().equals(JobInfo.WriteDisposition.WRITE_TRUNCATE)) {
+      collector.addFailure("Overwriting partitions cannot be combined with truncating the table.",
+                           "Set either Overwrite Partitions or Truncate to false.")
+        .withConfigProperty(NAME_OVERWRITE_PARTITIONS).withConfigProperty(NAME_TRUNCATE_TABLE);
+    }
+    if (!containsMacro(NAME_WRITE_MODE) && getWriteMode() != WriteMode.LOAD) {
+      collector.addFailure("Overwriting partitions is only supported with write mode 'load'.",
+                           "Set Overwrite Partitions to false, or set the write mode to 'load'.")
+        .withConfigProperty(NAME_OVERWRITE_PARTITIONS).withConfigProperty(NAME_WRITE_MODE);
+    }
+  }
+
+  private void validateSortByClustering(FailureCollector collector) {
+    if (containsMacro(NAME_SORT_BY_CLUSTERING) || !shouldSortByClustering()) {
+      return;
+    }
+    if (!containsMacro(NAME_CLUSTERING_ORDER) && getClusteringOrder() == null) {
+      collector.addFailure("Sorting by clustering requires a clustering order.",
+                           "Set the Clustering Order, or set Sort By Clustering to false.")
+        .withConfigProperty(NAME_SORT_BY_CLUSTERING).withConfigProperty(NAME_CLUSTERING_ORDER);
+    }
+    if (!containsMacro(NAME_WRITE_MODE) && getWriteMode() != WriteMode.LOAD) {
+      collector.addFailure("Sorting by clustering is only supported with write mode 'load'.",
+                           "Set Sort By Clustering to false, or set the write mode to 'load'.")
+        .withConfigProperty(NAME_SORT_BY_CLUSTERING).withConfigProperty(NAME_WRITE_MODE);
+    }
+  }
+
   /**
    * Verifies if output schema only contains simple types. It also verifies if all the output schema fields are
    * present in input schema.
@@ -188,6 +333,9 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
    */
   public void validate(@Nullable Schema inputSchema, @Nullable Schema outputSchema, FailureCollector collector) {
     super.validate(collector);
+    validateWriteModeProperties(collector);
+    validateOverwritePartitions(collector);
+    validateSortByClustering(collector);
     if (!containsMacro(NAME_SCHEMA)) {
       Schema schema = outputSchema == null ? inputSchema : outputSchema;
       validatePartitionProperties(schema, collector);
@@ -343,6 +491,66 @@ public final class BigQuerySinkConfig extends AbstractBigQuerySinkConfig {
     }
   }
 
+  private void validateWriteModeProperties(FailureCollector collector) {
+    if (containsMacro(NAME_WRITE_MODE)) {
+      return;
+    }
+    if (!Strings.isNullOrEmpty(writeMode)
+      && Arrays.stream(WriteMode.values()).map(Enum::name).noneMatch(writeMode.toUpperCase()::equals)) {
+      collector.addFailure(String.format("Write mode has incorrect value '%s'.", writeMode),
+                           "Set the write mode to 'load', 'storage_write' or 'streaming_insert'.")
+        .withConfigProperty(NAME_WRITE_MODE);
+      return;
+    }
+    WriteMode mode = getWriteMode();
+    if (mode == WriteMode.LOAD) {
+      return;
+    }
+    String modeName = mode.name().toLowerCase();
+    if (!containsMacro(NAME_OPERATION) && !Operation.INSERT.equals(getOperation())) {
+      collector.addFailure(String.format("Write mode '%s' must only be used with operation 'Insert'.", modeName),
+                           "Change the Operation to 'Insert', or set the write mode to 'load'.")
+        .withConfigProperty(NAME_WRITE_MODE).withConfigProperty(NAME_OPERATION);
+    }
+    if (!containsMacro("allowSchemaRelaxation") && allowSchemaRelaxation) {
+      collector.addFailure(String.format("Updating the table schema is not supported with write mode '%s'.", modeName),
+                           "Set Update Table Schema to false, or set the write mode to 'load'.")
+        .withConfigProperty(NAME_WRITE_MODE).withConfigProperty("allowSchemaRelaxation");
+    }
+
+    if (!containsMacro(NAME_TRUNCATE_TABLE) && getWriteDisposition() == JobInfo.WriteDisposition.WRITE_TRUNCATE) {
+      collector.addFailure(String.format("Truncate is not supported with write mode '%s'.", modeName),
+                           "Set Truncate to false, or set the write mode to 'load'.")
+        .withConfigProperty(NAME_WRITE_MODE).withConfigProperty(NAME_TRUNCATE_TABLE);
+    }
+
+    if (mode == WriteMode.STREAMING_INSERT) {
+      if (!containsMacro(NAME_INSERT_BATCH_SIZE) && insertBatchSize != null
+        && (insertBatchSize < 1 || insertBatchSize > MAX_INSERT_BATCH_SIZE)) {
+        collector.addFailure(String.format("Invalid insert batch size '%d'.", insertBatchSize),
+                             String.format("Insert batch size must be between 1 and %d.", MAX_INSERT_BATCH_SIZE))
+          .withConfigProperty(NAME_INSERT_BATCH_SIZE);
+      }
+      if (!containsMacro(NAME_MAX_IN_FLIGHT_REQUESTS) && maxInFlightRequests != null && maxInFlightRequests < 1) {
+        collector.addFailure(String.format("Invalid number of in-flight requests '%d'.", maxInFlightRequests),
+                             "Number of in-flight requests must be at least 1.")
+          .withConfigProperty(NAME_MAX_IN_FLIGHT_REQUESTS);
+      }
+      return;
+    }
+
+    if (!containsMacro(NAME_WRITE_STREAM_COUNT) && writeStreamCount != null && writeStreamCount < 1) {
+      collector.addFailure(String.format("Invalid number of write streams '%d'.", writeStreamCount),
+                           "Number of write streams must be at least 1.")
+        .withConfigProperty(NAME_WRITE_STREAM_COUNT);
+    }
+    if (!containsMacro(NAME_MAX_IN_FLIGHT_MB) && maxInFlightMb != null && maxInFlightMb < 1) {
+      collector.addFailure(String.format("Invalid maximum in-flight size '%d'.", maxInFlightMb),
+                           "Maximum in-flight size must be at least 1 megabyte.")
+        .withConfigProperty(NAME_MAX_IN_FLIGHT_MB);
+    }
+  }
+
   private boolean isSupportedLogicalType(Schema.LogicalType logicalType) {
     if (logicalType != null) {
       return logicalType == Schema.LogicalType.DATE || logicalType == Schema.LogicalType.TIMESTAMP_MICROS ||
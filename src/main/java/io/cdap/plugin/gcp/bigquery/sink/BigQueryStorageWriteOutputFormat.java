@@ -0,0 +1,286 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
+import com.google.cloud.hadoop.io.bigquery.BigQueryFactory;
+import com.google.cloud.hadoop.io.bigquery.output.BigQueryOutputConfiguration;
+import com.google.cloud.hadoop.util.ConfigurationUtil;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Output format for the {@link WriteMode#STORAGE_WRITE} write mode.
+ *
+ * Every task streams its records into a fixed number of pending streams of a {@link BigQueryWriteService}, without
+ * staging them in Google Cloud Storage. Stream names are assigned by BigQuery, so each task attempt writes the names
+ * of its finalized streams to a manifest file under the output path, which is promoted when the task is committed.
+ * The streams listed in the committed manifests are committed at once in {@link OutputCommitter#commitJob(JobContext)}.
+ * Streams of failed attempts or aborted jobs are never committed and are discarded by BigQuery.
+ */
+public class BigQueryStorageWriteOutputFormat extends OutputFormat<StructuredRecord, NullWritable> {
+  private static final Logger LOG = LoggerFactory.getLogger(BigQueryStorageWriteOutputFormat.class);
+
+  public static final int DEFAULT_STREAM_COUNT = 1;
+  public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 10L * 1024 * 1024;
+
+  private static final String MANIFEST_DIR = "_write_streams";
+  private static final String ATTEMPTS_DIR = "_attempts";
+
+  @Override
+  public RecordWriter<StructuredRecord, NullWritable> getRecordWriter(TaskAttemptContext context) throws IOException {
+    Configuration conf = context.getConfiguration();
+    int streamCount = Math.max(1, conf.getInt(BigQueryConstants.CONFIG_WRITE_STREAM_COUNT, DEFAULT_STREAM_COUNT));
+    long maxInFlightBytes = conf.getLong(BigQueryConstants.CONFIG_WRITE_MAX_IN_FLIGHT_BYTES,
+                                         DEFAULT_MAX_IN_FLIGHT_BYTES);
+    return new StorageWriteRecordWriter(createWriteService(conf), getDestinationTable(conf),
+                                        getAttemptManifest(context), streamCount, maxInFlightBytes);
+  }
+
+  @Override
+  public void checkOutputSpecs(JobContext context) throws IOException {
+    // validate that the destination and the output path are configured
+    getDestinationTable(context.getConfiguration());
+    getManifestDir(context.getConfiguration());
+  }
+
+  @Override
+  public OutputCommitter getOutputCommitter(TaskAttemptContext context) {
+    return new StorageWriteOutputCommitter();
+  }
+
+  private static BigQueryWriteService createWriteService(Configuration conf) throws IOException {
+    Class<? extends BigQueryWriteService.Factory> factoryClass =
+      conf.getClass(BigQueryConstants.CONFIG_WRITE_SERVICE_FACTORY, StorageWriteApiService.Factory.class,
+                    BigQueryWriteService.Factory.class);
+    return ReflectionUtils.newInstance(factoryClass, conf).create(conf);
+  }
+
+  private static TableId getDestinationTable(Configuration conf) throws IOException {
+    String projectId = BigQueryOutputConfiguration.getProjectId(conf);
+    String datasetId = ConfigurationUtil.getMandatoryConfig(conf, BigQueryConfiguration.OUTPUT_DATASET_ID_KEY);
+    String tableId = ConfigurationUtil.getMandatoryConfig(conf, BigQueryConfiguration.OUTPUT_TABLE_ID_KEY);
+    return TableId.of(projectId, datasetId, tableId);
+  }
+
+  private static Path getManifestDir(Configuration conf) throws IOException {
+    return new Path(ConfigurationUtil.getMandatoryConfig(conf, FileOutputFormat.OUTDIR), MANIFEST_DIR);
+  }
+
+  private static Path getAttemptManifest(TaskAttemptContext context) throws IOException {
+    return new Path(new Path(getManifestDir(context.getConfiguration()), ATTEMPTS_DIR),
+                    context.getTaskAttemptID().toString());
+  }
+
+  private static Path getTaskManifest(TaskAttemptContext context) throws IOException {
+    return new Path(getManifestDir(context.getConfiguration()), context.getTaskAttemptID().getTaskID().toString());
+  }
+
+  /**
+   * Record writer that spreads the records of a task over its pending streams in round robin order.
+   * Streams are opened with the first record, so tasks without records do not create any stream.
+   */
+  static class StorageWriteRecordWriter extends RecordWriter<StructuredRecord, NullWritable> {
+    private final BigQueryWriteService writeService;
+    private final TableId destination;
+    private final Path manifest;
+    private final int streamCount;
+    private final long maxInFlightBytes;
+    private final List<BigQueryWriteService.PendingStream> streams;
+    private int nextStream;
+
+    StorageWriteRecordWriter(BigQueryWriteService writeService, TableId destination, Path manifest,
+                             int streamCount, long maxInFlightBytes) {
+      this.writeService = writeService;
+      this.destination = destination;
+      this.manifest = manifest;
+      this.streamCount = streamCount;
+      this.maxInFlightBytes = maxInFlightBytes;
+      this.streams = new ArrayList<>(streamCount);
+    }
+
+    @Override
+    public void write(StructuredRecord record, NullWritable ignore) throws IOException {
+      if (streams.isEmpty()) {
+        openStreams();
+      }
+      streams.get(nextStream).append(record);
+      nextStream = (nextStream + 1) % streams.size();
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException {
+      try {
+        for (int i = 0; i < streams.size(); i++) {
+          try {
+            streams.get(i).finalizeStream();
+          } catch (IOException | RuntimeException e) {
+            streams.subList(i + 1, streams.size()).forEach(BigQueryWriteService.PendingStream::abort);
+            throw e;
+          }
+        }
+        if (!streams.isEmpty()) {
+          writeManifest(context.getConfiguration());
+        }
+      } finally {
+        streams.clear();
+        writeService.close();
+      }
+    }
+
+    private void writeManifest(Configuration conf) throws IOException {
+      FileSystem fs = manifest.getFileSystem(conf);
+      try (FSDataOutputStream out = fs.create(manifest, true)) {
+        for (BigQueryWriteService.PendingStream stream : streams) {
+          out.write((stream.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    }
+
+    private void openStreams() throws IOException {
+      try {
+        for (int i = 0; i < streamCount; i++) {
+          streams.add(writeService.createPendingStream(destination, maxInFlightBytes));
+        }
+      } catch (IOException | RuntimeException e) {
+        streams.forEach(BigQueryWriteService.PendingStream::abort);
+        streams.clear();
+        throw e;
+      }
+      LOG.debug("Opened {} pending streams for table '{}'.", streamCount, destination.getTable());
+    }
+  }
+
+  /**
+   * Output committer that commits the finalized streams of all committed tasks in a single atomic operation.
+   */
+  static class StorageWriteOutputCommitter extends OutputCommitter {
+
+    @Override
+    public void setupJob(JobContext jobContext) throws IOException {
+      // write streams can only be created for existing tables
+      Configuration conf = jobContext.getConfiguration();
+      TableId destination = getDestinationTable(conf);
+      try {
+        BigQueryOutputFormat.BigQueryOutputCommitter.createTableIfNotExists(
+          new BigQueryFactory().getBigQueryHelper(conf), conf,
+          new TableReference().setProjectId(destination.getProject()).setDatasetId(destination.getDataset())
+            .setTableId(destination.getTable()));
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Failed to create Bigquery client.", e);
+      }
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext taskContext) {
+      // no-op
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext taskContext) throws IOException {
+      Path manifest = getAttemptManifest(taskContext);
+      return manifest.getFileSystem(taskContext.getConfiguration()).exists(manifest);
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext taskContext) throws IOException {
+      Path manifest = getAttemptManifest(taskContext);
+      Path taskManifest = getTaskManifest(taskContext);
+      FileSystem fs = manifest.getFileSystem(taskContext.getConfiguration());
+      fs.delete(taskManifest, false);
+      if (!fs.rename(manifest, taskManifest)) {
+        throw new IOException(String.format("Failed to commit write streams of task attempt '%s'.",
+                                            taskContext.getTaskAttemptID()));
+      }
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext taskContext) throws IOException {
+      // the streams of the attempt are never committed
+      Path manifest = getAttemptManifest(taskContext);
+      manifest.getFileSystem(taskContext.getConfiguration()).delete(manifest, false);
+    }
+
+    @Override
+    public void commitJob(JobContext jobContext) throws IOException {
+      Configuration conf = jobContext.getConfiguration();
+      TableId destination = getDestinationTable(conf);
+      Path manifestDir = getManifestDir(conf);
+      FileSystem fs = manifestDir.getFileSystem(conf);
+
+      List<String> streams = new ArrayList<>();
+      if (fs.exists(manifestDir)) {
+        for (FileStatus status : fs.listStatus(manifestDir)) {
+          if (status.isFile()) {
+            streams.addAll(readManifest(fs, status.getPath()));
+          }
+        }
+      }
+      LOG.info("Committing {} pending streams to table '{}'.", streams.size(), destination.getTable());
+      try {
+        if (!streams.isEmpty()) {
+          try (BigQueryWriteService writeService = createWriteService(conf)) {
+            writeService.commitStreams(destination, streams);
+          }
+        }
+      } finally {
+        fs.delete(manifestDir, true);
+      }
+    }
+
+    @Override
+    public void abortJob(JobContext jobContext, JobStatus.State state) throws IOException {
+      // pending streams that are not committed are discarded by BigQuery
+      Path manifestDir = getManifestDir(jobContext.getConfiguration());
+      manifestDir.getFileSystem(jobContext.getConfiguration()).delete(manifestDir, true);
+    }
+
+    private static List<String> readManifest(FileSystem fs, Path manifest) throws IOException {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(manifest),
+                                                                            StandardCharsets.UTF_8))) {
+        return reader.lines().filter(line -> !line.isEmpty()).collect(Collectors.toList());
+      }
+    }
+  }
+}
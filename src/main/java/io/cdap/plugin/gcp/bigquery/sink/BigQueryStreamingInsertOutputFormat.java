@@ -0,0 +1,321 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.json.Json;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
+import com.google.cloud.hadoop.io.bigquery.BigQueryFactory;
+import com.google.cloud.hadoop.io.bigquery.BigQueryHelper;
+import com.google.cloud.hadoop.io.bigquery.output.BigQueryOutputConfiguration;
+import com.google.cloud.hadoop.util.ConfigurationUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Output format for the {@link WriteMode#STREAMING_INSERT} write mode.
+ *
+ * Records are converted to JSON with {@link StructuredRecordJsonWriter} and sent with {@code tabledata.insertAll}
+ * requests directly from the task, so they are available in the table without waiting for a load job. Rows are
+ * batched by count and by size, and every task keeps several requests in flight. Every row gets an insert id derived
+ * from the run, the task and the position of the row in the task, so rows that are sent again by a retried request
+ * or task are deduplicated by BigQuery on a best effort basis.
+ */
+public class BigQueryStreamingInsertOutputFormat extends OutputFormat<StructuredRecord, NullWritable> {
+  private static final Logger LOG = LoggerFactory.getLogger(BigQueryStreamingInsertOutputFormat.class);
+
+  public static final int DEFAULT_BATCH_ROWS = 500;
+  // BigQuery rejects insertAll requests larger than 10 MB
+  public static final long DEFAULT_BATCH_BYTES = 5L * 1024 * 1024;
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+
+  @Override
+  public RecordWriter<StructuredRecord, NullWritable> getRecordWriter(TaskAttemptContext context) throws IOException {
+    Configuration conf = context.getConfiguration();
+    TaskID taskId = context.getTaskAttemptID().getTaskID();
+    String insertIdPrefix = String.format("%s-%s%05d-", ConfigurationUtil.getMandatoryConfig(
+      conf, BigQueryConstants.CONFIG_INSERT_ID_PREFIX), taskId.getTaskType() == TaskType.MAP ? "m" : "r",
+                                          taskId.getId());
+    InsertAllClient client = new HttpInsertAllClient(getBigQueryHelper(conf).getRawBigquery(),
+                                                     getTableReference(conf));
+    return new StreamingInsertRecordWriter(
+      client, insertIdPrefix,
+      conf.getInt(BigQueryConstants.CONFIG_INSERT_BATCH_ROWS, DEFAULT_BATCH_ROWS),
+      conf.getLong(BigQueryConstants.CONFIG_INSERT_BATCH_BYTES, DEFAULT_BATCH_BYTES),
+      conf.getInt(BigQueryConstants.CONFIG_INSERT_MAX_IN_FLIGHT_REQUESTS, DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+  }
+
+  @Override
+  public void checkOutputSpecs(JobContext context) throws IOException {
+    // validate that the destination is configured
+    getTableReference(context.getConfiguration());
+  }
+
+  @Override
+  public OutputCommitter getOutputCommitter(TaskAttemptContext context) {
+    return new StreamingInsertOutputCommitter();
+  }
+
+  private static BigQueryHelper getBigQueryHelper(Configuration conf) throws IOException {
+    try {
+      return new BigQueryFactory().getBigQueryHelper(conf);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to create Bigquery client.", e);
+    }
+  }
+
+  private static TableReference getTableReference(Configuration conf) throws IOException {
+    return new TableReference()
+      .setProjectId(BigQueryOutputConfiguration.getProjectId(conf))
+      .setDatasetId(ConfigurationUtil.getMandatoryConfig(conf, BigQueryConfiguration.OUTPUT_DATASET_ID_KEY))
+      .setTableId(ConfigurationUtil.getMandatoryConfig(conf, BigQueryConfiguration.OUTPUT_TABLE_ID_KEY));
+  }
+
+  /**
+   * Sends a serialized {@code tabledata.insertAll} request for the destination table.
+   */
+  public interface InsertAllClient {
+    TableDataInsertAllResponse insertAll(byte[] request) throws IOException;
+  }
+
+  /**
+   * Record writer that batches rows into insertAll requests and keeps a bounded number of requests in flight.
+   */
+  public static class StreamingInsertRecordWriter extends RecordWriter<StructuredRecord, NullWritable> {
+    private static final byte[] REQUEST_START = "{\"rows\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REQUEST_END = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INSERT_ID_START = "{\"insertId\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] JSON_START = ",\"json\":".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_REPORTED_ROW_ERRORS = 10;
+    // valid rows of a request that contains invalid rows are rejected with this reason
+    private static final String STOPPED_REASON = "stopped";
+
+    private final InsertAllClient client;
+    private final String insertIdPrefix;
+    private final int maxBatchRows;
+    private final long maxBatchBytes;
+    private final int maxInFlightRequests;
+    private final ExecutorService executor;
+    private final Deque<Future<?>> inFlightRequests = new ArrayDeque<>();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final StructuredRecordJsonWriter.Utf8Buffer row = new StructuredRecordJsonWriter.Utf8Buffer();
+    private final SchemaCache<StructuredRecordJsonWriter> jsonWriters =
+      new SchemaCache<>(StructuredRecordJsonWriter::new);
+    private int batchRows;
+    private long rowCount;
+
+    public StreamingInsertRecordWriter(InsertAllClient client, String insertIdPrefix, int maxBatchRows,
+                                       long maxBatchBytes, int maxInFlightRequests) {
+      this.client = client;
+      this.insertIdPrefix = insertIdPrefix;
+      this.maxBatchRows = Math.max(1, maxBatchRows);
+      this.maxBatchBytes = maxBatchBytes;
+      this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+      this.executor = Executors.newFixedThreadPool(
+        this.maxInFlightRequests,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bigquery-insert-all-%d").build());
+    }
+
+    @Override
+    public void write(StructuredRecord record, NullWritable ignore) throws IOException {
+      row.reset();
+      row.write(INSERT_ID_START);
+      row.writeString(insertIdPrefix + rowCount);
+      row.write(JSON_START);
+      jsonWriters.get(record.getSchema()).write(record, row);
+      row.write('}');
+
+      if (batchRows > 0 && batch.size() + row.size() + REQUEST_END.length + 1 > maxBatchBytes) {
+        flush();
+      }
+      if (batchRows == 0) {
+        batch.write(REQUEST_START);
+      } else {
+        batch.write(',');
+      }
+      row.writeTo(batch);
+      batchRows++;
+      rowCount++;
+      if (batchRows >= maxBatchRows) {
+        flush();
+      }
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException {
+      try {
+        flush();
+        while (!inFlightRequests.isEmpty()) {
+          awaitRequest(inFlightRequests.poll());
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    private void flush() throws IOException {
+      if (batchRows == 0) {
+        return;
+      }
+      batch.write(REQUEST_END);
+      byte[] request = batch.toByteArray();
+      long firstRow = rowCount - batchRows;
+      batch.reset();
+      batchRows = 0;
+
+      // wait for the oldest request if the limit is reached, and surface failures of completed requests early
+      while (inFlightRequests.size() >= maxInFlightRequests
+        || (!inFlightRequests.isEmpty() && inFlightRequests.peek().isDone())) {
+        awaitRequest(inFlightRequests.poll());
+      }
+      inFlightRequests.add(executor.submit(() -> {
+        checkResponse(client.insertAll(request), firstRow);
+        return null;
+      }));
+    }
+
+    private void awaitRequest(Future<?> request) throws IOException {
+      try {
+        request.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for insertAll requests to BigQuery.", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException("Failed to insert rows into BigQuery.", cause);
+      }
+    }
+
+    private void checkResponse(TableDataInsertAllResponse response, long firstRow) throws IOException {
+      List<TableDataInsertAllResponse.InsertErrors> insertErrors = response.getInsertErrors();
+      if (insertErrors == null || insertErrors.isEmpty()) {
+        return;
+      }
+      List<String> rowErrors = insertErrors.stream()
+        .filter(rowError -> rowError.getErrors() != null && rowError.getErrors().stream()
+          .anyMatch(error -> !STOPPED_REASON.equals(error.getReason())))
+        .map(rowError -> String.format("row %d (insert id '%s'): %s", firstRow + rowError.getIndex(),
+                                       insertIdPrefix + (firstRow + rowError.getIndex()),
+                                       rowError.getErrors().stream()
+                                         .filter(error -> !STOPPED_REASON.equals(error.getReason()))
+                                         .map(StreamingInsertRecordWriter::toString)
+                                         .collect(Collectors.joining("; "))))
+        .collect(Collectors.toList());
+      rowErrors.stream().limit(MAX_REPORTED_ROW_ERRORS).forEach(error -> LOG.error("Failed to insert {}", error));
+      throw new IOException(String.format(
+        "Failed to insert %d rows into BigQuery, %d of them are invalid. First error: %s",
+        insertErrors.size(), rowErrors.size(), rowErrors.isEmpty() ? "unknown" : rowErrors.get(0)));
+    }
+
+    private static String toString(ErrorProto error) {
+      return error.getLocation() == null ? String.format("%s (%s)", error.getMessage(), error.getReason())
+        : String.format("field '%s': %s (%s)", error.getLocation(), error.getMessage(), error.getReason());
+    }
+  }
+
+  /**
+   * Sends insertAll requests with the HTTP transport of the BigQuery client.
+   */
+  private static class HttpInsertAllClient implements InsertAllClient {
+    private final Bigquery bigquery;
+    private final GenericUrl url;
+
+    HttpInsertAllClient(Bigquery bigquery, TableReference table) {
+      this.bigquery = bigquery;
+      this.url = new GenericUrl(bigquery.getRootUrl() + bigquery.getServicePath() + String.format(
+        "projects/%s/datasets/%s/tables/%s/insertAll", table.getProjectId(), table.getDatasetId(),
+        table.getTableId()));
+    }
+
+    @Override
+    public TableDataInsertAllResponse insertAll(byte[] request) throws IOException {
+      // the request is serialized by the record writer, so it is sent as is instead of being built as a model object
+      HttpRequest httpRequest = bigquery.getRequestFactory()
+        .buildPostRequest(url, new ByteArrayContent(Json.MEDIA_TYPE, request))
+        .setParser(bigquery.getObjectParser());
+      return httpRequest.execute().parseAs(TableDataInsertAllResponse.class);
+    }
+  }
+
+  /**
+   * Output committer that creates the destination table before the tasks start inserting rows into it.
+   * Rows are visible as soon as they are inserted, so there is nothing to commit.
+   */
+  static class StreamingInsertOutputCommitter extends OutputCommitter {
+
+    @Override
+    public void setupJob(JobContext jobContext) throws IOException {
+      Configuration conf = jobContext.getConfiguration();
+      BigQueryOutputFormat.BigQueryOutputCommitter.createTableIfNotExists(getBigQueryHelper(conf), conf,
+                                                                         getTableReference(conf));
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext taskContext) {
+      // no-op
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext taskContext) {
+      return false;
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext taskContext) {
+      // no-op
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext taskContext) {
+      // no-op
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import com.google.cloud.bigquery.TableId;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Service used by the {@link WriteMode#STORAGE_WRITE} write mode to stream records into BigQuery.
+ *
+ * Records are appended to pending streams. Rows of a pending stream are not visible in the destination table
+ * until the stream is finalized and committed. All streams of a run are committed together, so either all or none
+ * of the rows written by the run become visible. Streams that are never committed are discarded by BigQuery.
+ */
+public interface BigQueryWriteService extends Closeable {
+
+  /**
+   * Opens a new pending stream.
+   *
+   * @param destination destination table the stream will be committed to
+   * @param maxInFlightBytes maximum number of bytes that are sent for the stream and not yet acknowledged
+   * @return the pending stream
+   */
+  PendingStream createPendingStream(TableId destination, long maxInFlightBytes) throws IOException;
+
+  /**
+   * Atomically commits the rows of the given finalized streams to the destination table.
+   *
+   * @param destination destination table
+   * @param streamNames names of the streams to commit, as returned by {@link PendingStream#getName()}
+   */
+  void commitStreams(TableId destination, List<String> streamNames) throws IOException;
+
+  /**
+   * A stream of rows that are not visible in the destination table until committed.
+   */
+  interface PendingStream {
+
+    /**
+     * @return the name of the stream, which is assigned by BigQuery when the stream is created
+     */
+    String getName();
+
+    /**
+     * Appends a record to the stream. Blocks while the stream has more than its in-flight limit unacknowledged.
+     */
+    void append(StructuredRecord record) throws IOException;
+
+    /**
+     * Waits until all appended records are acknowledged and marks the stream ready to be committed.
+     */
+    void finalizeStream() throws IOException;
+
+    /**
+     * Stops writing to the stream, releasing all resources held by it. Rows of the stream are never committed.
+     */
+    void abort();
+  }
+
+  /**
+   * Creates {@link BigQueryWriteService} instances. Implementations must have a public no-argument constructor.
+   */
+  interface Factory {
+    BigQueryWriteService create(Configuration configuration) throws IOException;
+  }
+}
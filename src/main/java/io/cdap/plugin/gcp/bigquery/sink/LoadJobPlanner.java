@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import org.apache.hadoop.fs.FileStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Plans the load jobs that import the files staged in an output directory into BigQuery.
+ *
+ * Data files are split into groups that stay within the configured number of files and bytes per load job.
+ * Within a group, files that share a common name prefix are collapsed into a single wildcard URI, as long as the
+ * wildcard does not match anything else in the directory. This keeps the number of source URIs per load job small,
+ * even for runs that stage many files.
+ */
+public final class LoadJobPlanner {
+  private static final String SUCCESS_FILE_NAME = "_SUCCESS";
+  private static final String WILDCARD = "*";
+
+  /**
+   * Plans the source URIs of the load jobs for the given directory listing.
+   *
+   * @param listing all entries of the output directory, including directories and marker files
+   * @param maxFilesPerJob maximum number of files loaded by a single job
+   * @param maxBytesPerJob maximum number of bytes loaded by a single job
+   * @return the source URIs of every load job
+   */
+  public static List<List<String>> plan(List<FileStatus> listing, int maxFilesPerJob, long maxBytesPerJob) {
+    List<String> entries = listing.stream()
+      .map(status -> status.getPath().toString())
+      .sorted()
+      .collect(Collectors.toList());
+    List<FileStatus> dataFiles = listing.stream()
+      .filter(LoadJobPlanner::isDataFile)
+      .sorted((s1, s2) -> s1.getPath().toString().compareTo(s2.getPath().toString()))
+      .collect(Collectors.toList());
+
+    List<List<String>> jobs = new ArrayList<>();
+    List<String> group = new ArrayList<>();
+    long groupBytes = 0;
+    for (FileStatus file : dataFiles) {
+      if (!group.isEmpty() && (group.size() >= maxFilesPerJob || groupBytes + file.getLen() > maxBytesPerJob)) {
+        jobs.add(collapse(group, entries));
+        group = new ArrayList<>();
+        groupBytes = 0;
+      }
+      group.add(file.getPath().toString());
+      groupBytes += file.getLen();
+    }
+    if (!group.isEmpty()) {
+      jobs.add(collapse(group, entries));
+    }
+    return jobs;
+  }
+
+  private static boolean isDataFile(FileStatus status) {
+    return !status.isDirectory() && !SUCCESS_FILE_NAME.equals(status.getPath().getName());
+  }
+
+  /**
+   * Replaces runs of files in the sorted group with the shortest wildcard URIs that match exactly these files.
+   * A wildcard may only match files that are not covered by an earlier URI yet, which matters when a file name is a
+   * prefix of other file names.
+   */
+  private static List<String> collapse(List<String> group, List<String> entries) {
+    Set<String> pending = new HashSet<>(group);
+    List<String> uris = new ArrayList<>();
+    int i = 0;
+    while (i < group.size()) {
+      String file = group.get(i);
+      // the wildcard must be part of the file name, since the listing does not cover subdirectories
+      int minLength = file.lastIndexOf('/') + 2;
+      String uri = file;
+      int matched = 1;
+      for (int length = minLength; length < file.length(); length++) {
+        String prefix = file.substring(0, length);
+        int count = countMatches(prefix, entries, pending);
+        if (count > 1) {
+          uri = prefix + WILDCARD;
+          matched = count;
+          break;
+        }
+        if (count == 1) {
+          // longer prefixes match the same single file
+          break;
+        }
+      }
+      uris.add(uri);
+      for (int covered = i; covered < i + matched; covered++) {
+        pending.remove(group.get(covered));
+      }
+      i += matched;
+    }
+    return uris;
+  }
+
+  /**
+   * Returns the number of entries that start with the prefix, or -1 if any of them is not a pending group member.
+   */
+  private static int countMatches(String prefix, List<String> entries, Set<String> pending) {
+    int from = Collections.binarySearch(entries, prefix);
+    from = from < 0 ? -from - 1 : from;
+    int count = 0;
+    for (int index = from; index < entries.size() && entries.get(index).startsWith(prefix); index++) {
+      if (!pending.contains(entries.get(index))) {
+        return -1;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  private LoadJobPlanner() {
+    // no-op
+  }
+}
@@ -15,42 +15,80 @@
  */
 package io.cdap.plugin.gcp.bigquery.sink;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.cdap.cdap.api.data.batch.OutputFormatProvider;
+import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericRecordBuilder;
-import org.apache.avro.mapred.AvroKey;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
 import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /**
- * Provides {@link MultiSinkOutputFormatDelegate} to output values for multiple tables.
+ * Provides {@link MultiSinkOutputFormatDelegate} to output values for multiple tables through a single output.
+ * The configuration of every table is stored under a table specific prefix, so that each table is written and
+ * committed with its own {@link BigQueryOutputFormat}.
  */
 public class MultiSinkOutputFormatProvider implements OutputFormatProvider {
 
-  private static final String FILTER_FIELD = "bq.multi.record.filter.field";
-  private static final String FILTER_VALUE = "bq.multi.record.filter.value";
-  private static final String SCHEMA = "bq.multi.record.schema";
+  private static final String SPLIT_FIELD = "bq.multi.split.field";
+  private static final String TABLES = "bq.multi.tables";
+  private static final String TABLE_CONFIG_PREFIX = "bq.multi.table.%s.";
+  private static final String TABLE_SCHEMA = "bq.multi.schema.%s";
 
   private final Configuration config;
 
-  public MultiSinkOutputFormatProvider(Configuration config,
-                                       String tableName,
-                                       Schema tableSchema,
-                                       String filterField) {
-    this.config = new Configuration(config);
-    this.config.set(FILTER_VALUE, tableName);
-    this.config.set(FILTER_FIELD, filterField);
-    this.config.set(SCHEMA, tableSchema.toString());
+  /**
+   * @param baseConfig configuration shared by all tables
+   * @param tableConfigs output configuration of every table, keyed by table name
+   * @param tableSchemas schema of every table, keyed by table name
+   * @param splitField field of the records that contains the table name
+   */
+  public MultiSinkOutputFormatProvider(Configuration baseConfig,
+                                       Map<String, Configuration> tableConfigs,
+                                       Map<String, Schema> tableSchemas,
+                                       String splitField) {
+    this.config = new Configuration(baseConfig);
+    this.config.set(SPLIT_FIELD, splitField);
+    this.config.setStrings(TABLES, tableConfigs.keySet().toArray(new String[0]));
+
+    Map<String, String> baseEntries = BigQueryUtil.configToMap(baseConfig);
+    for (Map.Entry<String, Configuration> table : tableConfigs.entrySet()) {
+      // only the entries that differ from the base configuration need to be stored for every table
+      String prefix = String.format(TABLE_CONFIG_PREFIX, table.getKey());
+      for (Map.Entry<String, String> entry : BigQueryUtil.configToMap(table.getValue()).entrySet()) {
+        if (!Objects.equals(baseEntries.get(entry.getKey()), entry.getValue())) {
+          this.config.set(prefix + entry.getKey(), entry.getValue());
+        }
+      }
+      this.config.set(String.format(TABLE_SCHEMA, table.getKey()), tableSchemas.get(table.getKey()).toString());
+    }
   }
 
   @Override
@@ -61,101 +99,328 @@ public class MultiSinkOutputFormatProvider implements OutputFormatProvider {
   @Override
   public Map<String, String> getOutputFormatConfiguration() {
     Map<String, String> map = BigQueryUtil.configToMap(config);
-    map.put(org.apache.hadoop.mapred.JobContext.OUTPUT_KEY_CLASS, AvroKey.class.getName());
+    map.put(org.apache.hadoop.mapred.JobContext.OUTPUT_KEY_CLASS, StructuredRecord.class.getName());
     return map;
   }
 
   /**
-   * Uses {@link BigQueryOutputFormat} as delegate and creates {@link FilterRecordWriter}
-   * to output values based on filter and its value and schema.
+   * Normalizes the value of the split field to the name of the table it is written to.
+   * The database prefix is removed, as BigQuery doesn't allow dots.
    */
-  public static class MultiSinkOutputFormatDelegate extends OutputFormat<AvroKey<GenericRecord>, NullWritable> {
-
-    private final OutputFormat delegate;
+  public static String getTableName(String value) {
+    String[] split = value.split("\\.");
+    if (split.length == 2) {
+      value = split[1];
+    }
+    return value.toLowerCase();
+  }
 
-    public MultiSinkOutputFormatDelegate() {
-      this.delegate = new BigQueryOutputFormat();
+  /**
+   * Returns the configuration of the given table, which is the shared configuration overlaid with the
+   * table specific entries.
+   */
+  private static Configuration getTableConfiguration(Configuration conf, String tableName) {
+    Configuration tableConf = new Configuration(conf);
+    String prefix = String.format(TABLE_CONFIG_PREFIX, tableName);
+    for (Map.Entry<String, String> entry : conf.getValByRegex("^" + Pattern.quote(prefix)).entrySet()) {
+      tableConf.set(entry.getKey().substring(prefix.length()), entry.getValue());
     }
+    return tableConf;
+  }
+
+  private static JobContext getTableJobContext(JobContext context, String tableName) {
+    return new JobContextImpl(getTableConfiguration(context.getConfiguration(), tableName), context.getJobID());
+  }
+
+  private static TaskAttemptContext getTableContext(TaskAttemptContext context, String tableName) {
+    return new TaskAttemptContextImpl(getTableConfiguration(context.getConfiguration(), tableName),
+                                      context.getTaskAttemptID());
+  }
+
+  /**
+   * Creates a {@link RoutingRecordWriter} that writes every record to the {@link BigQueryOutputFormat} of its table,
+   * and a {@link MultiTableOutputCommitter} that commits the output of all tables.
+   */
+  public static class MultiSinkOutputFormatDelegate extends OutputFormat<StructuredRecord, NullWritable> {
+
+    // committers of BigQueryOutputFormat are cached per instance, so every table has its own output format
+    private final Map<String, BigQueryOutputFormat> delegates = new HashMap<>();
 
     @Override
-    public RecordWriter<AvroKey<GenericRecord>, NullWritable> getRecordWriter(TaskAttemptContext taskAttemptContext)
-      throws IOException, InterruptedException {
+    public RecordWriter<StructuredRecord, NullWritable> getRecordWriter(TaskAttemptContext taskAttemptContext) {
       Configuration conf = taskAttemptContext.getConfiguration();
-      String filterField = conf.get(FILTER_FIELD);
-      String filterValue = conf.get(FILTER_VALUE);
-      Schema schema = Schema.parseJson(conf.get(SCHEMA));
-      @SuppressWarnings("unchecked")
-      RecordWriter<AvroKey<GenericRecord>, NullWritable> recordWriter = delegate.getRecordWriter(taskAttemptContext);
-      return new FilterRecordWriter(filterField, filterValue, schema, recordWriter);
+      Set<String> tableNames = new HashSet<>(Arrays.asList(conf.getTrimmedStrings(TABLES)));
+      return new RoutingRecordWriter(conf.get(SPLIT_FIELD), tableNames, tableName -> {
+        TaskAttemptContext tableContext = getTableContext(taskAttemptContext, tableName);
+        Schema schema = Schema.parseJson(conf.get(String.format(TABLE_SCHEMA, tableName)));
+        return new TableRecordWriter(schema, getDelegate(tableName).getRecordWriter(tableContext));
+      });
     }
 
     @Override
     public void checkOutputSpecs(JobContext jobContext) throws IOException, InterruptedException {
-      delegate.checkOutputSpecs(jobContext);
+      for (String tableName : jobContext.getConfiguration().getTrimmedStrings(TABLES)) {
+        getDelegate(tableName).checkOutputSpecs(getTableJobContext(jobContext, tableName));
+      }
     }
 
     @Override
     public OutputCommitter getOutputCommitter(TaskAttemptContext taskAttemptContext)
       throws IOException, InterruptedException {
-      return delegate.getOutputCommitter(taskAttemptContext);
+      Map<String, OutputCommitter> committers = new LinkedHashMap<>();
+      for (String tableName : taskAttemptContext.getConfiguration().getTrimmedStrings(TABLES)) {
+        TaskAttemptContext tableContext = getTableContext(taskAttemptContext, tableName);
+        committers.put(tableName, getDelegate(tableName).getOutputCommitter(tableContext));
+      }
+      return new MultiTableOutputCommitter(committers);
+    }
+
+    private BigQueryOutputFormat getDelegate(String tableName) {
+      return delegates.computeIfAbsent(tableName, name -> new BigQueryOutputFormat());
     }
   }
 
   /**
-   * Filters records before writing them out using a delegate based on filter and its value and given schema.
+   * Reads the split field of every record once and routes the record to the writer of its table.
+   * Writers are opened on the first record of their table. Records without a table, or with a table
+   * that is not configured, are dropped.
    */
-  public static class FilterRecordWriter extends RecordWriter<AvroKey<GenericRecord>, NullWritable> {
+  public static class RoutingRecordWriter extends RecordWriter<StructuredRecord, NullWritable> {
 
-    private final String filterField;
-    private final String filterValue;
-    private final Schema schema;
-    private final RecordWriter<AvroKey<GenericRecord>, NullWritable> delegate;
+    private static final int MAX_ROUTES = 1024;
 
+    private final String splitField;
+    private final Collection<String> tableNames;
+    private final TableWriterFactory writerFactory;
+    // recently seen split field values, mapped to the writer of their table or to null if the table is not configured
+    private final Map<String, TableRecordWriter> routes =
+      new LinkedHashMap<String, TableRecordWriter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TableRecordWriter> eldest) {
+          return size() > MAX_ROUTES;
+        }
+      };
+    private final Map<String, TableRecordWriter> writers = new HashMap<>();
 
-    public FilterRecordWriter(String filterField,
-                              String filterValue,
-                              Schema schema,
-                              RecordWriter<AvroKey<GenericRecord>, NullWritable> delegate) {
-      this.filterField = filterField;
-      this.filterValue = filterValue;
-      this.schema = schema;
-      this.delegate = delegate;
+    public RoutingRecordWriter(String splitField, Collection<String> tableNames, TableWriterFactory writerFactory) {
+      this.splitField = splitField;
+      this.tableNames = tableNames;
+      this.writerFactory = writerFactory;
     }
 
     @Override
-    public void write(AvroKey<GenericRecord> key, NullWritable value) throws IOException, InterruptedException {
-      Object objectValue = key.datum().get(filterField);
+    public void write(StructuredRecord key, NullWritable value) throws IOException, InterruptedException {
+      Object objectValue = key.get(splitField);
       if (objectValue == null) {
         return;
       }
-      String name = (String) objectValue;
-      String[] split = name.split("\\.");
-      if (split.length == 2) {
-        name = split[1];
+      String splitValue = (String) objectValue;
+      TableRecordWriter writer = routes.get(splitValue);
+      if (writer == null) {
+        if (routes.containsKey(splitValue)) {
+          return;
+        }
+        writer = getWriter(getTableName(splitValue));
+        routes.put(splitValue, writer);
+        if (writer == null) {
+          return;
+        }
       }
-      if (!filterValue.equalsIgnoreCase(name)) {
-        return;
+      writer.write(key, splitField);
+    }
+
+    @Nullable
+    private TableRecordWriter getWriter(String tableName) throws IOException, InterruptedException {
+      if (!tableNames.contains(tableName)) {
+        return null;
+      }
+      TableRecordWriter writer = writers.get(tableName);
+      if (writer == null) {
+        writer = writerFactory.create(tableName);
+        writers.put(tableName, writer);
+      }
+      return writer;
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+      IOException failure = null;
+      for (TableRecordWriter writer : writers.values()) {
+        try {
+          writer.close(context);
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+      writers.clear();
+      routes.clear();
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Creates the writer of a table.
+   */
+  public interface TableWriterFactory {
+    TableRecordWriter create(String tableName) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Projects records to the schema of a table before writing them out using a delegate.
+   * The fields to copy are computed once for every input schema.
+   */
+  public static class TableRecordWriter {
+
+    private final Schema schema;
+    private final RecordWriter<StructuredRecord, NullWritable> delegate;
+    // created on the first record, once the split field is known
+    private SchemaCache<String[]> projections;
+
+    public TableRecordWriter(Schema schema, RecordWriter<StructuredRecord, NullWritable> delegate) {
+      this.schema = schema;
+      this.delegate = delegate;
+    }
+
+    void write(StructuredRecord record, String splitField) throws IOException, InterruptedException {
+      if (projections == null) {
+        projections = new SchemaCache<>(inputSchema -> {
+          List<String> names = new ArrayList<>();
+          for (Schema.Field field : inputSchema.getFields()) {
+            if (!splitField.equals(field.getName()) && schema.getField(field.getName()) != null) {
+              names.add(field.getName());
+            }
+          }
+          return names.toArray(new String[0]);
+        });
       }
+      String[] fieldNames = projections.get(record.getSchema());
 
-      org.apache.avro.Schema avroSchema = getAvroSchema(schema);
-      GenericRecordBuilder recordBuilder = new GenericRecordBuilder(avroSchema);
+      StructuredRecord.Builder recordBuilder = StructuredRecord.builder(schema);
+      for (String fieldName : fieldNames) {
+        recordBuilder.set(fieldName, record.get(fieldName));
+      }
+      delegate.write(recordBuilder.build(), NullWritable.get());
+    }
 
-      key.datum().getSchema().getFields().stream()
-        .filter(entry -> !filterField.equals(entry.name()))
-        .filter(entry -> schema.getField(entry.name()) != null)
-        .forEach(entry -> recordBuilder.set(entry.name(), key.datum().get(entry.name())));
+    void close(TaskAttemptContext context) throws IOException, InterruptedException {
+      delegate.close(context);
+    }
+  }
+
+  /**
+   * Delegates every step of the commit to the committers of all tables, each with the configuration of its table.
+   */
+  public static class MultiTableOutputCommitter extends OutputCommitter {
+
+    private static final int DEFAULT_MAX_CONCURRENT_TABLES = 10;
 
-      AvroKey<GenericRecord> object = new AvroKey<>(recordBuilder.build());
-      delegate.write(object, value);
+    private final Map<String, OutputCommitter> committers;
+
+    public MultiTableOutputCommitter(Map<String, OutputCommitter> committers) {
+      this.committers = committers;
     }
 
-    private org.apache.avro.Schema getAvroSchema(Schema cdapSchema) {
-      return new org.apache.avro.Schema.Parser().parse(cdapSchema.toString());
+    @Override
+    public void setupJob(JobContext jobContext) throws IOException {
+      for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+        committer.getValue().setupJob(getTableJobContext(jobContext, committer.getKey()));
+      }
     }
 
+    /**
+     * Commits all tables concurrently, so that the commit takes as long as the slowest table instead of the sum
+     * of all tables. Tables without staged files are skipped by their committers. The commit of every table is
+     * awaited even if another table fails, and the first failure is rethrown with the others suppressed.
+     */
     @Override
-    public void close(TaskAttemptContext context) throws IOException, InterruptedException {
-      delegate.close(context);
+    public void commitJob(JobContext jobContext) throws IOException {
+      int maxConcurrentTables = jobContext.getConfiguration().getInt(
+        BigQueryConstants.CONFIG_MULTI_MAX_CONCURRENT_TABLES, DEFAULT_MAX_CONCURRENT_TABLES);
+      Map<String, Future<?>> futures = new LinkedHashMap<>();
+      ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(maxConcurrentTables, committers.size())),
+        new ThreadFactoryBuilder().setNameFormat("bigquery-multi-commit-%d").setDaemon(true).build());
+      try {
+        for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+          JobContext tableContext = getTableJobContext(jobContext, committer.getKey());
+          futures.put(committer.getKey(), executor.submit(() -> {
+            committer.getValue().commitJob(tableContext);
+            return null;
+          }));
+        }
+
+        IOException failure = null;
+        for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+          try {
+            future.getValue().get();
+          } catch (ExecutionException e) {
+            IOException tableFailure = new IOException(
+              String.format("Failed to commit table '%s': %s", future.getKey(), e.getCause().getMessage()),
+              e.getCause());
+            if (failure == null) {
+              failure = tableFailure;
+            } else {
+              failure.addSuppressed(tableFailure);
+            }
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while committing tables.", e);
+      } finally {
+        futures.values().forEach(future -> future.cancel(true));
+        executor.shutdownNow();
+      }
+    }
+
+    @Override
+    public void abortJob(JobContext jobContext, JobStatus.State state) throws IOException {
+      for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+        committer.getValue().abortJob(getTableJobContext(jobContext, committer.getKey()), state);
+      }
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext taskContext) throws IOException {
+      for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+        committer.getValue().setupTask(getTableContext(taskContext, committer.getKey()));
+      }
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext taskContext) throws IOException {
+      for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+        if (committer.getValue().needsTaskCommit(getTableContext(taskContext, committer.getKey()))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext taskContext) throws IOException {
+      for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+        TaskAttemptContext tableContext = getTableContext(taskContext, committer.getKey());
+        if (committer.getValue().needsTaskCommit(tableContext)) {
+          committer.getValue().commitTask(tableContext);
+        }
+      }
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext taskContext) throws IOException {
+      for (Map.Entry<String, OutputCommitter> committer : committers.entrySet()) {
+        committer.getValue().abortTask(getTableContext(taskContext, committer.getKey()));
+      }
     }
   }
 }
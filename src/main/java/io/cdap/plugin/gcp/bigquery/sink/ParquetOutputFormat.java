@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parquet output format that writes {@link StructuredRecord} keys to Parquet files.
+ * The file schema is taken from the records themselves, and every distinct schema is written to its own file.
+ * Compression, dictionary encoding and row group size are read from the standard Parquet output properties.
+ * Records are sorted first if {@link BigQueryConstants#CONFIG_STAGING_SORT_FIELDS} is set.
+ */
+public class ParquetOutputFormat extends FileOutputFormat<StructuredRecord, NullWritable> {
+  private static final String PARQUET_EXTENSION = ".parquet";
+
+  @Override
+  public RecordWriter<StructuredRecord, NullWritable> getRecordWriter(TaskAttemptContext context) {
+    Configuration conf = context.getConfiguration();
+    CompressionCodecName compressionCodec = CompressionCodecName.fromConf(
+      conf.get(org.apache.parquet.hadoop.ParquetOutputFormat.COMPRESSION));
+    boolean enableDictionary = conf.getBoolean(org.apache.parquet.hadoop.ParquetOutputFormat.ENABLE_DICTIONARY,
+                                               ParquetWriter.DEFAULT_IS_DICTIONARY_ENABLED);
+    int rowGroupSize = conf.getInt(org.apache.parquet.hadoop.ParquetOutputFormat.BLOCK_SIZE,
+                                   ParquetWriter.DEFAULT_BLOCK_SIZE);
+    int maxOpenFiles = conf.getInt(BigQueryConstants.CONFIG_STAGING_MAX_OPEN_FILES,
+                                   AvroRecordWriter.DEFAULT_MAX_OPEN_FILES);
+    long maxFileBytes = conf.getLong(BigQueryConstants.CONFIG_STAGING_MAX_FILE_BYTES,
+                                     AvroRecordWriter.UNLIMITED_FILE_SIZE);
+    return SortingRecordWriter.wrap(conf, new ParquetRecordWriter(conf, getPathFactory(context), compressionCodec,
+                                                                  enableDictionary, rowGroupSize, maxOpenFiles,
+                                                                  maxFileBytes));
+  }
+
+  /**
+   * Returns a factory that returns the default work file for the first file of the task,
+   * and numbered work files for every following one.
+   */
+  private ParquetRecordWriter.PathFactory getPathFactory(TaskAttemptContext context) {
+    AtomicInteger fileCount = new AtomicInteger();
+    return () -> {
+      int index = fileCount.getAndIncrement();
+      return getDefaultWorkFile(context, index == 0 ? PARQUET_EXTENSION : "_" + index + PARQUET_EXTENSION);
+    };
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.data.schema.SchemaHash;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parquet record writer that encodes {@link StructuredRecord} values straight into Parquet files.
+ *
+ * Like {@link AvroRecordWriter}, records are grouped by schema fingerprint into their own files, at most
+ * {@code maxOpenFiles} files are open at a time, and a file is closed once its size reaches the maximum file size.
+ * Since Parquet buffers a whole row group in memory, the row group size is capped at the maximum file size.
+ */
+public class ParquetRecordWriter extends RecordWriter<StructuredRecord, NullWritable> {
+
+  private final Configuration configuration;
+  private final PathFactory pathFactory;
+  private final CompressionCodecName compressionCodec;
+  private final boolean enableDictionary;
+  private final int rowGroupSize;
+  private final int maxOpenFiles;
+  private final long maxFileBytes;
+  /** Fingerprints of the recently seen schema instances, so that a fingerprint is not computed for every record. */
+  private final SchemaCache<SchemaHash> fingerprints = new SchemaCache<>(Schema::getSchemaHash);
+  /** Write supports compiled for the schemas seen by this writer. */
+  private final Map<SchemaHash, StructuredRecordWriteSupport> writeSupports = new HashMap<>();
+  /** Open files in least recently used order. */
+  private final LinkedHashMap<SchemaHash, ParquetWriter<StructuredRecord>> openFiles =
+    new LinkedHashMap<>(16, 0.75f, true);
+  private Schema lastSchema;
+  private SchemaHash lastFingerprint;
+  private ParquetWriter<StructuredRecord> lastFileWriter;
+
+  /**
+   * Constructor.
+   *
+   * @param configuration Hadoop configuration used to open the files.
+   * @param pathFactory Factory that returns the path of each new Parquet file.
+   * @param compressionCodec The compression codec of the Parquet pages.
+   * @param enableDictionary Whether columns are dictionary encoded.
+   * @param rowGroupSize The size in bytes of the row groups.
+   * @param maxOpenFiles The maximum number of Parquet files that are open at the same time.
+   * @param maxFileBytes The size in bytes after which a new Parquet file is started,
+   *                     or {@link AvroRecordWriter#UNLIMITED_FILE_SIZE} to write a single file per schema.
+   */
+  public ParquetRecordWriter(Configuration configuration, PathFactory pathFactory,
+                             CompressionCodecName compressionCodec, boolean enableDictionary, int rowGroupSize,
+                             int maxOpenFiles, long maxFileBytes) {
+    this.configuration = configuration;
+    this.pathFactory = pathFactory;
+    this.compressionCodec = compressionCodec;
+    this.enableDictionary = enableDictionary;
+    this.rowGroupSize = maxFileBytes > 0 ? (int) Math.min(rowGroupSize, maxFileBytes) : rowGroupSize;
+    this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    this.maxFileBytes = maxFileBytes;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(StructuredRecord record, NullWritable ignore) throws IOException {
+    Schema schema = record.getSchema();
+    // fast path for consecutive records that share the same schema instance
+    if (schema != lastSchema) {
+      lastFingerprint = fingerprints.get(schema);
+      lastFileWriter = getFileWriter(lastFingerprint, schema);
+      lastSchema = schema;
+    }
+    lastFileWriter.write(record);
+    if (maxFileBytes > 0 && lastFileWriter.getDataSize() >= maxFileBytes) {
+      // roll over, the next record with this schema opens a new file
+      openFiles.remove(lastFingerprint);
+      lastFileWriter.close();
+      lastFileWriter = null;
+      lastSchema = null;
+    }
+  }
+
+  private ParquetWriter<StructuredRecord> getFileWriter(SchemaHash fingerprint, Schema schema) throws IOException {
+    ParquetWriter<StructuredRecord> fileWriter = openFiles.get(fingerprint);
+    if (fileWriter != null) {
+      return fileWriter;
+    }
+
+    if (openFiles.size() >= maxOpenFiles) {
+      Iterator<ParquetWriter<StructuredRecord>> eldest = openFiles.values().iterator();
+      ParquetWriter<StructuredRecord> evicted = eldest.next();
+      eldest.remove();
+      evicted.close();
+    }
+
+    StructuredRecordWriteSupport writeSupport = writeSupports.computeIfAbsent(
+      fingerprint, f -> new StructuredRecordWriteSupport(schema));
+    fileWriter = new Builder(pathFactory.create(), writeSupport)
+      .withConf(configuration)
+      .withCompressionCodec(compressionCodec)
+      .withDictionaryEncoding(enableDictionary)
+      .withRowGroupSize(rowGroupSize)
+      .build();
+    openFiles.put(fingerprint, fileWriter);
+    return fileWriter;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close(TaskAttemptContext context) throws IOException {
+    List<IOException> failures = new ArrayList<>();
+    for (ParquetWriter<StructuredRecord> fileWriter : openFiles.values()) {
+      try {
+        fileWriter.close();
+      } catch (IOException e) {
+        failures.add(e);
+      }
+    }
+    openFiles.clear();
+    lastSchema = null;
+    lastFingerprint = null;
+    lastFileWriter = null;
+    if (!failures.isEmpty()) {
+      IOException exception = failures.get(0);
+      failures.stream().skip(1).forEach(exception::addSuppressed);
+      throw exception;
+    }
+  }
+
+  /**
+   * Returns the path of a new Parquet file. Every call must return a distinct path.
+   */
+  public interface PathFactory {
+    Path create() throws IOException;
+  }
+
+  /**
+   * Builds Parquet writers with a precompiled write support.
+   */
+  private static final class Builder extends ParquetWriter.Builder<StructuredRecord, Builder> {
+    private final StructuredRecordWriteSupport writeSupport;
+
+    private Builder(Path path, StructuredRecordWriteSupport writeSupport) {
+      super(path);
+      this.writeSupport = writeSupport;
+    }
+
+    @Override
+    protected Builder self() {
+      return this;
+    }
+
+    @Override
+    protected WriteSupport<StructuredRecord> getWriteSupport(Configuration conf) {
+      return writeSupport;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.schema.Schema;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of values computed from schema instances, such as fingerprints or field projections.
+ *
+ * Entries are looked up by the identity of the schema, which is much cheaper than hashing the schema, and the least
+ * recently used entry is evicted once the cache is full. This keeps the cache small when an upstream stage creates a
+ * new schema instance for every record, in which case every lookup simply computes the value again.
+ *
+ * @param <V> the type of the cached values
+ */
+public final class SchemaCache<V> {
+  public static final int DEFAULT_MAX_SIZE = 64;
+
+  private final Function<Schema, V> loader;
+  private final Map<IdentityKey, V> entries;
+  private Schema lastSchema;
+  private V lastValue;
+
+  public SchemaCache(Function<Schema, V> loader) {
+    this(loader, DEFAULT_MAX_SIZE);
+  }
+
+  public SchemaCache(Function<Schema, V> loader, int maxSize) {
+    this.loader = loader;
+    this.entries = new LinkedHashMap<IdentityKey, V>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<IdentityKey, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the value of the given schema instance, computing it if it is not cached.
+   */
+  public V get(Schema schema) {
+    // fast path for consecutive records that share the same schema instance
+    if (schema == lastSchema) {
+      return lastValue;
+    }
+    V value = entries.computeIfAbsent(new IdentityKey(schema), key -> loader.apply(schema));
+    lastSchema = schema;
+    lastValue = value;
+    return value;
+  }
+
+  /**
+   * @return the number of cached schema instances
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Key that compares schemas by identity.
+   */
+  private static final class IdentityKey {
+    private final Schema schema;
+
+    private IdentityKey(Schema schema) {
+      this.schema = schema;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof IdentityKey && ((IdentityKey) other).schema == schema;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(schema);
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.data.schema.SchemaHash;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+/**
+ * Record writer that sorts the records of a task by a list of fields before passing them on to another writer.
+ * This is used to write staged rows in the clustering order of the destination table, so that a load produces
+ * well clustered storage blocks.
+ *
+ * Records are buffered in memory until their estimated size reaches the memory budget. The buffer is then sorted
+ * and spilled as a run to a local file, and on close all runs are merged into the delegate writer. Spilled records
+ * are stored in Avro binary encoding along with the index of their schema, so records with different schemas can be
+ * sorted together. Null values sort first, as they do in BigQuery, and records with equal sort keys keep their
+ * arrival order.
+ */
+public class SortingRecordWriter extends RecordWriter<StructuredRecord, NullWritable> {
+  public static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+  /** Maximum number of runs that are merged at once, which bounds the number of open spill files. */
+  private static final int MAX_MERGE_WIDTH = 64;
+  private static final int END_OF_RUN = -1;
+  private static final Comparator<Entry> ENTRY_ORDER = SortingRecordWriter::compareKeys;
+
+  private final RecordWriter<StructuredRecord, NullWritable> delegate;
+  private final List<String> fields;
+  private final long memoryBytes;
+  private final List<Entry> buffer = new ArrayList<>();
+  private final List<File> runs = new ArrayList<>();
+  /** Fingerprints of the recently seen schema instances, so that a fingerprint is not computed for every record. */
+  private final SchemaCache<SchemaHash> fingerprints = new SchemaCache<>(Schema::getSchemaHash);
+  /** Index of every distinct schema seen by this writer, which is stored with each spilled record. */
+  private final Map<SchemaHash, Integer> schemaIndexes = new HashMap<>();
+  private final List<StructuredRecordDatumWriter> datumWriters = new ArrayList<>();
+  private final List<StructuredRecordDatumReader> datumReaders = new ArrayList<>();
+  private long bufferedBytes;
+  private File spillDirectory;
+
+  /**
+   * Wraps the given writer in a sorting writer if sort fields are set in the configuration.
+   */
+  static RecordWriter<StructuredRecord, NullWritable> wrap(Configuration conf,
+                                                           RecordWriter<StructuredRecord, NullWritable> delegate) {
+    String sortFields = conf.get(BigQueryConstants.CONFIG_STAGING_SORT_FIELDS);
+    if (sortFields == null || sortFields.trim().isEmpty()) {
+      return delegate;
+    }
+    List<String> fields = Arrays.stream(sortFields.split(",")).map(String::trim)
+      .filter(field -> !field.isEmpty()).collect(Collectors.toList());
+    return new SortingRecordWriter(delegate, fields,
+                                   conf.getLong(BigQueryConstants.CONFIG_STAGING_SORT_MEMORY_BYTES,
+                                                DEFAULT_MEMORY_BYTES));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param delegate The writer that receives the sorted records.
+   * @param fields The fields to sort by, in order of precedence.
+   * @param memoryBytes The estimated size in bytes of the records that are buffered before a run is spilled.
+   */
+  public SortingRecordWriter(RecordWriter<StructuredRecord, NullWritable> delegate, List<String> fields,
+                             long memoryBytes) {
+    this.delegate = delegate;
+    this.fields = fields;
+    this.memoryBytes = memoryBytes;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(StructuredRecord record, NullWritable ignore) throws IOException {
+    buffer.add(new Entry(record, getSortKey(record)));
+    bufferedBytes += estimateSize(record);
+    if (bufferedBytes >= memoryBytes) {
+      spill();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+    try {
+      if (runs.isEmpty()) {
+        buffer.sort(ENTRY_ORDER);
+        for (Entry entry : buffer) {
+          delegate.write(entry.record, NullWritable.get());
+        }
+        buffer.clear();
+      } else {
+        spill();
+        while (runs.size() > MAX_MERGE_WIDTH) {
+          mergeGroups();
+        }
+        merge(runs, record -> delegate.write(record, NullWritable.get()));
+      }
+    } finally {
+      try {
+        delegate.close(context);
+      } finally {
+        deleteSpillDirectory();
+      }
+    }
+  }
+
+  /**
+   * Sorts the buffered records and writes them to a new run file.
+   */
+  private void spill() throws IOException {
+    if (buffer.isEmpty()) {
+      return;
+    }
+    buffer.sort(ENTRY_ORDER);
+    File run = newRunFile();
+    runs.add(run);
+    try (RunWriter writer = new RunWriter(run)) {
+      for (Entry entry : buffer) {
+        writer.write(entry.record);
+      }
+    }
+    buffer.clear();
+    bufferedBytes = 0L;
+  }
+
+  /**
+   * Merges every group of consecutive runs into a single run. Runs stay in spill order, so that records with equal
+   * keys keep their arrival order.
+   */
+  private void mergeGroups() throws IOException, InterruptedException {
+    List<File> merged = new ArrayList<>();
+    for (int start = 0; start < runs.size(); start += MAX_MERGE_WIDTH) {
+      List<File> group = runs.subList(start, Math.min(start + MAX_MERGE_WIDTH, runs.size()));
+      if (group.size() == 1) {
+        merged.add(group.get(0));
+        continue;
+      }
+      File run = newRunFile();
+      try (RunWriter writer = new RunWriter(run)) {
+        merge(group, writer::write);
+      }
+      merged.add(run);
+      for (File file : group) {
+        Files.delete(file.toPath());
+      }
+    }
+    runs.clear();
+    runs.addAll(merged);
+  }
+
+  private void merge(List<File> files, RecordConsumer consumer) throws IOException, InterruptedException {
+    List<RunReader> readers = new ArrayList<>(files.size());
+    try {
+      // ties are broken by the position of the run, which keeps records with equal keys in arrival order
+      PriorityQueue<RunReader> queue = new PriorityQueue<>(
+        Math.max(1, files.size()), Comparator.comparing((RunReader reader) -> reader.current, ENTRY_ORDER)
+          .thenComparingInt(reader -> reader.position));
+      for (File file : files) {
+        RunReader reader = new RunReader(file, readers.size());
+        readers.add(reader);
+        if (reader.advance()) {
+          queue.add(reader);
+        }
+      }
+      while (!queue.isEmpty()) {
+        RunReader reader = queue.poll();
+        consumer.accept(reader.current.record);
+        if (reader.advance()) {
+          queue.add(reader);
+        }
+      }
+    } finally {
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  private File newRunFile() throws IOException {
+    if (spillDirectory == null) {
+      spillDirectory = Files.createTempDirectory("bigquery-sort").toFile();
+    }
+    return File.createTempFile("run", ".avro", spillDirectory);
+  }
+
+  private void deleteSpillDirectory() throws IOException {
+    runs.clear();
+    if (spillDirectory == null) {
+      return;
+    }
+    File[] files = spillDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Files.deleteIfExists(file.toPath());
+      }
+    }
+    Files.deleteIfExists(spillDirectory.toPath());
+    spillDirectory = null;
+  }
+
+  private int getSchemaIndex(Schema schema) {
+    return schemaIndexes.computeIfAbsent(fingerprints.get(schema), fingerprint -> {
+      datumWriters.add(new StructuredRecordDatumWriter(schema));
+      datumReaders.add(new StructuredRecordDatumReader(schema));
+      return datumWriters.size() - 1;
+    });
+  }
+
+  private Comparable<?>[] getSortKey(StructuredRecord record) {
+    Comparable<?>[] key = new Comparable<?>[fields.size()];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = getSortValue(record, fields.get(i));
+    }
+    return key;
+  }
+
+  @Nullable
+  private static Comparable<?> getSortValue(StructuredRecord record, String name) {
+    Schema.Field field = record.getSchema().getField(name);
+    Object value = field == null ? null : record.get(name);
+    if (value == null) {
+      return null;
+    }
+    Schema schema = field.getSchema().isNullable() ? field.getSchema().getNonNullable() : field.getSchema();
+    if (schema.getLogicalType() == Schema.LogicalType.DECIMAL) {
+      // the unscaled bytes of decimals do not sort in numeric order
+      return record.getDecimal(name);
+    }
+    if (value instanceof byte[]) {
+      return ByteBuffer.wrap((byte[]) value);
+    }
+    if (value instanceof CharSequence) {
+      return value.toString();
+    }
+    if (value instanceof Comparable) {
+      return (Comparable<?>) value;
+    }
+    throw new IllegalArgumentException(
+      String.format("Field '%s' is of type '%s' which cannot be sorted.", name, value.getClass().getSimpleName()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compareKeys(Entry first, Entry second) {
+    for (int i = 0; i < first.key.length; i++) {
+      Comparable<Object> left = (Comparable<Object>) first.key[i];
+      Comparable<Object> right = (Comparable<Object>) second.key[i];
+      if (left == right) {
+        continue;
+      }
+      if (left == null || right == null) {
+        return left == null ? -1 : 1;
+      }
+      int result = left.compareTo(right);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns a rough estimate of the heap size of a record, which only needs to be good enough to bound the buffer.
+   */
+  private static long estimateSize(Object value) {
+    if (value == null) {
+      return 8L;
+    }
+    if (value instanceof StructuredRecord) {
+      StructuredRecord record = (StructuredRecord) value;
+      long size = 64L;
+      for (Schema.Field field : record.getSchema().getFields()) {
+        size += 48L + estimateSize(record.get(field.getName()));
+      }
+      return size;
+    }
+    if (value instanceof CharSequence) {
+      return 40L + 2L * ((CharSequence) value).length();
+    }
+    if (value instanceof ByteBuffer) {
+      return 48L + ((ByteBuffer) value).remaining();
+    }
+    if (value instanceof byte[]) {
+      return 16L + ((byte[]) value).length;
+    }
+    if (value instanceof Collection) {
+      long size = 40L;
+      for (Object element : (Collection<?>) value) {
+        size += 8L + estimateSize(element);
+      }
+      return size;
+    }
+    if (value instanceof Map) {
+      long size = 48L;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += 32L + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+      }
+      return size;
+    }
+    return 16L;
+  }
+
+  /**
+   * A buffered record together with its sort key.
+   */
+  private static final class Entry {
+    private final StructuredRecord record;
+    private final Comparable<?>[] key;
+
+    private Entry(StructuredRecord record, Comparable<?>[] key) {
+      this.record = record;
+      this.key = key;
+    }
+  }
+
+  /**
+   * Receives the records of a merge in sorted order.
+   */
+  private interface RecordConsumer {
+    void accept(StructuredRecord record) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Writes a sorted run, where every record is preceded by the index of its schema.
+   */
+  private final class RunWriter implements Closeable {
+    private final OutputStream output;
+    private final BinaryEncoder encoder;
+
+    private RunWriter(File file) throws IOException {
+      output = new BufferedOutputStream(new FileOutputStream(file));
+      encoder = EncoderFactory.get().directBinaryEncoder(output, null);
+    }
+
+    private void write(StructuredRecord record) throws IOException {
+      int schemaIndex = getSchemaIndex(record.getSchema());
+      encoder.writeInt(schemaIndex);
+      datumWriters.get(schemaIndex).write(record, encoder);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        encoder.writeInt(END_OF_RUN);
+      } finally {
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * Reads a sorted run back, one record at a time.
+   */
+  private final class RunReader implements Closeable {
+    private final int position;
+    private final InputStream input;
+    private final BinaryDecoder decoder;
+    private Entry current;
+
+    private RunReader(File file, int position) throws IOException {
+      this.position = position;
+      input = new BufferedInputStream(new FileInputStream(file));
+      decoder = DecoderFactory.get().directBinaryDecoder(input, null);
+    }
+
+    private boolean advance() throws IOException {
+      int schemaIndex = decoder.readInt();
+      if (schemaIndex == END_OF_RUN) {
+        current = null;
+        return false;
+      }
+      StructuredRecord record = datumReaders.get(schemaIndex).read(null, decoder);
+      current = new Entry(record, getSortKey(record));
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * The file format of the records that are staged in Google Cloud Storage before they are loaded into BigQuery.
+ */
+public enum StagingFormat {
+  /**
+   * Avro container files.
+   */
+  AVRO("AVRO", AvroOutputFormat.class),
+  /**
+   * Parquet files, which are smaller for wide and sparse tables.
+   */
+  PARQUET("PARQUET", ParquetOutputFormat.class);
+
+  private final String formatIdentifier;
+  private final Class<? extends FileOutputFormat> outputFormatClass;
+
+  StagingFormat(String formatIdentifier, Class<? extends FileOutputFormat> outputFormatClass) {
+    this.formatIdentifier = formatIdentifier;
+    this.outputFormatClass = outputFormatClass;
+  }
+
+  /**
+   * @return the source format of BigQuery load jobs for files of this format
+   */
+  public String getFormatIdentifier() {
+    return formatIdentifier;
+  }
+
+  /**
+   * @return the output format that writes the staged files
+   */
+  public Class<? extends FileOutputFormat> getOutputFormatClass() {
+    return outputFormatClass;
+  }
+}
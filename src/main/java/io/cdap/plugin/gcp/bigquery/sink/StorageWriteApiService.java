@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.FinalizeWriteStreamResponse;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.StorageError;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.gson.stream.JsonWriter;
+import com.google.protobuf.Descriptors;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
+import org.apache.hadoop.conf.Configuration;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * {@link BigQueryWriteService} that is backed by the BigQuery Storage Write API.
+ *
+ * Every pending stream is a {@code PENDING} write stream that rows are appended to with a {@link JsonStreamWriter}.
+ * Committing the streams is a single {@code BatchCommitWriteStreams} call, which makes the rows of all streams
+ * visible in the destination table at once.
+ */
+public class StorageWriteApiService implements BigQueryWriteService {
+  // append requests are limited to 10 MB, and rows are buffered as JSON before they are converted to protos
+  private static final long MAX_BATCH_BYTES = 1024L * 1024;
+
+  private final BigQueryWriteClient client;
+
+  StorageWriteApiService(Configuration conf) throws IOException {
+    this.client = BigQueryUtil.getBigQueryWriteClient(
+      conf.get(BigQueryConstants.CONFIG_SERVICE_ACCOUNT_FILE_PATH, null));
+  }
+
+  @Override
+  public PendingStream createPendingStream(TableId destination, long maxInFlightBytes) throws IOException {
+    WriteStream stream = client.createWriteStream(CreateWriteStreamRequest.newBuilder()
+                                                    .setParent(toTableName(destination))
+                                                    .setWriteStream(WriteStream.newBuilder()
+                                                                      .setType(WriteStream.Type.PENDING))
+                                                    .build());
+    try {
+      JsonStreamWriter writer = JsonStreamWriter.newBuilder(stream.getName(), stream.getTableSchema(), client).build();
+      return new WriteApiStream(stream.getName(), writer, maxInFlightBytes);
+    } catch (Descriptors.DescriptorValidationException e) {
+      throw new IOException(String.format("Failed to open write stream for table '%s'.", destination.getTable()), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while opening write stream.", e);
+    }
+  }
+
+  @Override
+  public void commitStreams(TableId destination, List<String> streamNames) throws IOException {
+    BatchCommitWriteStreamsResponse response = client.batchCommitWriteStreams(
+      BatchCommitWriteStreamsRequest.newBuilder()
+        .setParent(toTableName(destination))
+        .addAllWriteStreams(streamNames)
+        .build());
+    if (!response.hasCommitTime()) {
+      throw new IOException(String.format(
+        "Failed to commit %d write streams to table '%s': %s", streamNames.size(), destination.getTable(),
+        response.getStreamErrorsList().stream().map(StorageError::getErrorMessage)
+          .collect(Collectors.joining("; "))));
+    }
+  }
+
+  @Override
+  public void close() {
+    client.close();
+  }
+
+  private static String toTableName(TableId tableId) {
+    return TableName.of(tableId.getProject(), tableId.getDataset(), tableId.getTable()).toString();
+  }
+
+  /**
+   * Pending stream that appends batches of rows and keeps the size of the unacknowledged batches below a limit.
+   */
+  private final class WriteApiStream implements PendingStream {
+    private final String name;
+    private final JsonStreamWriter writer;
+    private final long maxInFlightBytes;
+    private final long maxBatchBytes;
+    private final Deque<InFlightBatch> inFlightBatches = new ArrayDeque<>();
+    private JSONArray batch = new JSONArray();
+    private long batchBytes;
+    private long inFlightBytes;
+    private long rowCount;
+
+    WriteApiStream(String name, JsonStreamWriter writer, long maxInFlightBytes) {
+      this.name = name;
+      this.writer = writer;
+      this.maxInFlightBytes = maxInFlightBytes;
+      this.maxBatchBytes = Math.max(1L, Math.min(MAX_BATCH_BYTES, maxInFlightBytes));
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public void append(StructuredRecord record) throws IOException {
+      String json = toJsonString(record);
+      batch.put(new JSONObject(json));
+      batchBytes += json.length();
+      rowCount++;
+      if (batchBytes >= maxBatchBytes) {
+        flush();
+      }
+    }
+
+    @Override
+    public void finalizeStream() throws IOException {
+      try {
+        flush();
+        while (!inFlightBatches.isEmpty()) {
+          awaitBatch();
+        }
+      } finally {
+        writer.close();
+      }
+      FinalizeWriteStreamResponse response = client.finalizeWriteStream(name);
+      if (response.getRowCount() != rowCount) {
+        throw new IOException(String.format("Write stream '%s' has %d rows instead of %d.",
+                                            name, response.getRowCount(), rowCount));
+      }
+    }
+
+    @Override
+    public void abort() {
+      // the stream is never committed, so BigQuery discards its rows
+      writer.close();
+    }
+
+    private void flush() throws IOException {
+      if (batch.length() == 0) {
+        return;
+      }
+      // wait for the oldest batches if the limit is reached, and surface failures of completed batches early
+      while (!inFlightBatches.isEmpty()
+        && (inFlightBytes + batchBytes > maxInFlightBytes || inFlightBatches.peek().response.isDone())) {
+        awaitBatch();
+      }
+      inFlightBatches.add(new InFlightBatch(writer.append(batch), batchBytes));
+      inFlightBytes += batchBytes;
+      batch = new JSONArray();
+      batchBytes = 0;
+    }
+
+    private void awaitBatch() throws IOException {
+      InFlightBatch inFlightBatch = inFlightBatches.poll();
+      inFlightBytes -= inFlightBatch.bytes;
+      try {
+        AppendRowsResponse response = inFlightBatch.response.get();
+        if (response.hasError()) {
+          throw new IOException(String.format("Failed to append rows to write stream '%s': %s",
+                                              name, response.getError().getMessage()));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(String.format("Interrupted while appending rows to write stream '%s'.", name), e);
+      } catch (ExecutionException e) {
+        throw new IOException(String.format("Failed to append rows to write stream '%s'.", name), e.getCause());
+      }
+    }
+  }
+
+  /**
+   * A batch of rows that is sent and not yet acknowledged.
+   */
+  private static final class InFlightBatch {
+    private final ApiFuture<AppendRowsResponse> response;
+    private final long bytes;
+
+    InFlightBatch(ApiFuture<AppendRowsResponse> response, long bytes) {
+      this.response = response;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Converts a record to the JSON text read by the {@link JsonStreamWriter}.
+   */
+  private static String toJsonString(StructuredRecord record) throws IOException {
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      writer.beginObject();
+      for (Schema.Field field : record.getSchema().getFields()) {
+        BigQueryRecordToJson.writeForStorageWrite(writer, field.getName(), record.get(field.getName()),
+                                                  field.getSchema());
+      }
+      writer.endObject();
+    }
+    return json.toString();
+  }
+
+  /**
+   * Creates {@link StorageWriteApiService} instances.
+   */
+  public static class Factory implements BigQueryWriteService.Factory {
+    @Override
+    public BigQueryWriteService create(Configuration configuration) throws IOException {
+      return new StorageWriteApiService(configuration);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Reads {@link StructuredRecord} values that were written in Avro binary encoding by a
+ * {@link StructuredRecordDatumWriter} with the same schema.
+ *
+ * Like the writer, the decoding plan is compiled once from the CDAP schema. Values are read back in the form the
+ * writer accepts, so that records can be written again without conversion: bytes are read as
+ * {@link java.nio.ByteBuffer}, enums as their symbol, arrays as lists and maps as maps with string keys.
+ */
+public final class StructuredRecordDatumReader implements DatumReader<StructuredRecord> {
+
+  private final RecordDecoder decoder;
+
+  public StructuredRecordDatumReader(Schema schema) {
+    if (schema.getType() != Schema.Type.RECORD) {
+      throw new IllegalArgumentException(
+        String.format("Schema of type '%s' is not a record schema.", schema.getDisplayName()));
+    }
+    this.decoder = new RecordDecoder(schema);
+  }
+
+  @Override
+  public void setSchema(org.apache.avro.Schema schema) {
+    // no-op, the decoding plan is fixed at construction time
+  }
+
+  @Override
+  public StructuredRecord read(StructuredRecord reuse, Decoder in) throws IOException {
+    return decoder.decode(in);
+  }
+
+  private static ValueDecoder compile(Schema schema) {
+    switch (schema.getType()) {
+      case NULL:
+        return in -> {
+          in.readNull();
+          return null;
+        };
+      case BOOLEAN:
+        return Decoder::readBoolean;
+      case INT:
+        return Decoder::readInt;
+      case LONG:
+        return Decoder::readLong;
+      case FLOAT:
+        return Decoder::readFloat;
+      case DOUBLE:
+        return Decoder::readDouble;
+      case STRING:
+        return Decoder::readString;
+      case BYTES:
+        return in -> in.readBytes(null);
+      case ENUM:
+        return in -> schema.getEnumValue(in.readEnum());
+      case ARRAY:
+        return new ArrayDecoder(compile(Objects.requireNonNull(schema.getComponentSchema())));
+      case MAP:
+        return new MapDecoder(compile(schema.getMapSchema().getValue()));
+      case RECORD:
+        return new RecordDecoder(schema);
+      case UNION:
+        List<Schema> branches = schema.getUnionSchemas();
+        ValueDecoder[] decoders = new ValueDecoder[branches.size()];
+        for (int i = 0; i < decoders.length; i++) {
+          decoders[i] = compile(branches.get(i));
+        }
+        return in -> decoders[in.readIndex()].decode(in);
+      default:
+        throw new IllegalArgumentException(String.format("Unsupported schema type '%s'.", schema.getType()));
+    }
+  }
+
+  /**
+   * Decodes a single value of a precompiled schema.
+   */
+  private interface ValueDecoder {
+    Object decode(Decoder in) throws IOException;
+  }
+
+  /**
+   * Decodes record fields in schema order.
+   */
+  private static final class RecordDecoder implements ValueDecoder {
+    private final Schema schema;
+    private final String[] names;
+    private final ValueDecoder[] decoders;
+
+    RecordDecoder(Schema schema) {
+      List<Schema.Field> fields = Objects.requireNonNull(schema.getFields());
+      this.schema = schema;
+      names = new String[fields.size()];
+      decoders = new ValueDecoder[fields.size()];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = fields.get(i).getName();
+        decoders[i] = compile(fields.get(i).getSchema());
+      }
+    }
+
+    @Override
+    public StructuredRecord decode(Decoder in) throws IOException {
+      StructuredRecord.Builder builder = StructuredRecord.builder(schema);
+      for (int i = 0; i < names.length; i++) {
+        builder.set(names[i], decoders[i].decode(in));
+      }
+      return builder.build();
+    }
+  }
+
+  /**
+   * Decodes Avro arrays as lists.
+   */
+  private static final class ArrayDecoder implements ValueDecoder {
+    private final ValueDecoder componentDecoder;
+
+    ArrayDecoder(ValueDecoder componentDecoder) {
+      this.componentDecoder = componentDecoder;
+    }
+
+    @Override
+    public Object decode(Decoder in) throws IOException {
+      List<Object> values = new ArrayList<>();
+      for (long count = in.readArrayStart(); count > 0; count = in.arrayNext()) {
+        for (long i = 0; i < count; i++) {
+          values.add(componentDecoder.decode(in));
+        }
+      }
+      return values;
+    }
+  }
+
+  /**
+   * Decodes Avro maps as maps with string keys.
+   */
+  private static final class MapDecoder implements ValueDecoder {
+    private final ValueDecoder valueDecoder;
+
+    MapDecoder(ValueDecoder valueDecoder) {
+      this.valueDecoder = valueDecoder;
+    }
+
+    @Override
+    public Object decode(Decoder in) throws IOException {
+      Map<String, Object> values = new HashMap<>();
+      for (long count = in.readMapStart(); count > 0; count = in.mapNext()) {
+        for (long i = 0; i < count; i++) {
+          String key = in.readString();
+          values.put(key, valueDecoder.decode(in));
+        }
+      }
+      return values;
+    }
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes {@link StructuredRecord} values directly in Avro binary encoding, without building an intermediate
+ * {@link org.apache.avro.generic.GenericRecord}.
+ *
+ * The encoding plan is compiled once from the CDAP schema, so writing a record only walks the precomputed field
+ * encoders. Field values are read by name, which means that a record whose schema is a superset of the writer
+ * schema is projected onto the writer schema.
+ */
+public final class StructuredRecordDatumWriter implements DatumWriter<StructuredRecord> {
+
+  private final Schema schema;
+  private final org.apache.avro.Schema avroSchema;
+  private final RecordEncoder encoder;
+
+  public StructuredRecordDatumWriter(Schema schema) {
+    if (schema.getType() != Schema.Type.RECORD) {
+      throw new IllegalArgumentException(
+        String.format("Schema of type '%s' is not a record schema.", schema.getDisplayName()));
+    }
+    this.schema = schema;
+    this.avroSchema = new org.apache.avro.Schema.Parser().parse(schema.toString());
+    this.encoder = new RecordEncoder(schema);
+  }
+
+  /**
+   * @return the CDAP schema this writer was compiled for
+   */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * @return the Avro schema that corresponds to the CDAP schema this writer was compiled for
+   */
+  public org.apache.avro.Schema getAvroSchema() {
+    return avroSchema;
+  }
+
+  @Override
+  public void setSchema(org.apache.avro.Schema schema) {
+    // no-op, the encoding plan is fixed at construction time
+  }
+
+  @Override
+  public void write(StructuredRecord record, Encoder out) throws IOException {
+    encoder.encode("", record, out);
+  }
+
+  private static ValueEncoder compile(Schema schema) {
+    switch (schema.getType()) {
+      case NULL:
+        return (name, value, out) -> out.writeNull();
+      case BOOLEAN:
+        return (name, value, out) -> out.writeBoolean((Boolean) requireValue(name, value));
+      case INT:
+        return (name, value, out) -> out.writeInt(((Number) requireValue(name, value)).intValue());
+      case LONG:
+        return (name, value, out) -> out.writeLong(((Number) requireValue(name, value)).longValue());
+      case FLOAT:
+        return (name, value, out) -> out.writeFloat(((Number) requireValue(name, value)).floatValue());
+      case DOUBLE:
+        return (name, value, out) -> out.writeDouble(((Number) requireValue(name, value)).doubleValue());
+      case STRING:
+        return (name, value, out) -> out.writeString(requireValue(name, value).toString());
+      case BYTES:
+        return StructuredRecordDatumWriter::writeBytes;
+      case ENUM:
+        return (name, value, out) -> {
+          String symbol = requireValue(name, value).toString();
+          int index = schema.getEnumIndex(symbol);
+          if (index < 0) {
+            throw new IllegalArgumentException(
+              String.format("Field '%s' has value '%s' that is not a valid enum symbol.", name, symbol));
+          }
+          out.writeEnum(index);
+        };
+      case ARRAY:
+        return new ArrayEncoder(compile(Objects.requireNonNull(schema.getComponentSchema())));
+      case MAP:
+        return new MapEncoder(compile(schema.getMapSchema().getValue()));
+      case RECORD:
+        return new RecordEncoder(schema);
+      case UNION:
+        return compileUnion(schema.getUnionSchemas());
+      default:
+        throw new IllegalArgumentException(String.format("Unsupported schema type '%s'.", schema.getType()));
+    }
+  }
+
+  private static ValueEncoder compileUnion(List<Schema> branches) {
+    // most unions are nullable types, which only need a null check to pick the branch
+    if (branches.size() == 2 && (branches.get(0).getType() == Schema.Type.NULL
+      || branches.get(1).getType() == Schema.Type.NULL)) {
+      int nullIndex = branches.get(0).getType() == Schema.Type.NULL ? 0 : 1;
+      int valueIndex = 1 - nullIndex;
+      ValueEncoder valueEncoder = compile(branches.get(valueIndex));
+      return (name, value, out) -> {
+        if (value == null) {
+          out.writeIndex(nullIndex);
+          out.writeNull();
+        } else {
+          out.writeIndex(valueIndex);
+          valueEncoder.encode(name, value, out);
+        }
+      };
+    }
+
+    Schema.Type[] types = new Schema.Type[branches.size()];
+    ValueEncoder[] encoders = new ValueEncoder[branches.size()];
+    for (int i = 0; i < types.length; i++) {
+      types[i] = branches.get(i).getType();
+      encoders[i] = compile(branches.get(i));
+    }
+    return (name, value, out) -> {
+      for (int i = 0; i < types.length; i++) {
+        if (matches(types[i], value)) {
+          out.writeIndex(i);
+          encoders[i].encode(name, value, out);
+          return;
+        }
+      }
+      throw new IllegalArgumentException(
+        String.format("Field '%s' has value of type '%s' that does not match any of the union types.",
+                      name, value == null ? "null" : value.getClass().getSimpleName()));
+    };
+  }
+
+  private static boolean matches(Schema.Type type, Object value) {
+    switch (type) {
+      case NULL:
+        return value == null;
+      case BOOLEAN:
+        return value instanceof Boolean;
+      case INT:
+        return value instanceof Integer;
+      case LONG:
+        return value instanceof Long;
+      case FLOAT:
+        return value instanceof Float;
+      case DOUBLE:
+        return value instanceof Double;
+      case STRING:
+        return value instanceof CharSequence;
+      case BYTES:
+        return value instanceof ByteBuffer || value instanceof byte[];
+      case ENUM:
+        return value instanceof Enum || value instanceof CharSequence;
+      case ARRAY:
+        return value instanceof Collection || (value != null && value.getClass().isArray());
+      case MAP:
+        return value instanceof Map;
+      case RECORD:
+        return value instanceof StructuredRecord;
+      default:
+        return false;
+    }
+  }
+
+  private static void writeBytes(String name, Object value, Encoder out) throws IOException {
+    requireValue(name, value);
+    if (value instanceof ByteBuffer) {
+      out.writeBytes(((ByteBuffer) value).duplicate());
+    } else if (value instanceof byte[]) {
+      out.writeBytes((byte[]) value);
+    } else {
+      throw new IllegalArgumentException(
+        String.format("Field '%s' is of type '%s' when it is expected to be a ByteBuffer or byte array.",
+                      name, value.getClass().getSimpleName()));
+    }
+  }
+
+  private static Object requireValue(String name, Object value) {
+    if (value == null) {
+      throw new IllegalArgumentException(
+        String.format("Field '%s' is null, but its schema does not allow null values.", name));
+    }
+    return value;
+  }
+
+  /**
+   * Encodes a single value of a precompiled schema.
+   */
+  private interface ValueEncoder {
+    void encode(String name, Object value, Encoder out) throws IOException;
+  }
+
+  /**
+   * Encodes record fields in schema order.
+   */
+  private static final class RecordEncoder implements ValueEncoder {
+    private final String[] names;
+    private final ValueEncoder[] encoders;
+
+    RecordEncoder(Schema schema) {
+      List<Schema.Field> fields = Objects.requireNonNull(schema.getFields());
+      names = new String[fields.size()];
+      encoders = new ValueEncoder[fields.size()];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = fields.get(i).getName();
+        encoders[i] = compile(fields.get(i).getSchema());
+      }
+    }
+
+    @Override
+    public void encode(String name, Object value, Encoder out) throws IOException {
+      if (!(value instanceof StructuredRecord)) {
+        throw new IllegalArgumentException(
+          String.format("Field '%s' is of type '%s' when it is expected to be a record.",
+                        name, value == null ? "null" : value.getClass().getSimpleName()));
+      }
+      StructuredRecord record = (StructuredRecord) value;
+      for (int i = 0; i < names.length; i++) {
+        encoders[i].encode(names[i], record.get(names[i]), out);
+      }
+    }
+  }
+
+  /**
+   * Encodes collections and java arrays as Avro arrays.
+   */
+  private static final class ArrayEncoder implements ValueEncoder {
+    private final ValueEncoder componentEncoder;
+
+    ArrayEncoder(ValueEncoder componentEncoder) {
+      this.componentEncoder = componentEncoder;
+    }
+
+    @Override
+    public void encode(String name, Object value, Encoder out) throws IOException {
+      requireValue(name, value);
+      out.writeArrayStart();
+      if (value instanceof Collection) {
+        Collection<?> collection = (Collection<?>) value;
+        out.setItemCount(collection.size());
+        for (Object element : collection) {
+          out.startItem();
+          componentEncoder.encode(name, element, out);
+        }
+      } else if (value.getClass().isArray()) {
+        int length = Array.getLength(value);
+        out.setItemCount(length);
+        for (int i = 0; i < length; i++) {
+          out.startItem();
+          componentEncoder.encode(name, Array.get(value, i), out);
+        }
+      } else {
+        throw new IllegalArgumentException(
+          String.format("Field '%s' is of type '%s' when it is expected to be a Collection or array.",
+                        name, value.getClass().getSimpleName()));
+      }
+      out.writeArrayEnd();
+    }
+  }
+
+  /**
+   * Encodes maps with string keys as Avro maps.
+   */
+  private static final class MapEncoder implements ValueEncoder {
+    private final ValueEncoder valueEncoder;
+
+    MapEncoder(ValueEncoder valueEncoder) {
+      this.valueEncoder = valueEncoder;
+    }
+
+    @Override
+    public void encode(String name, Object value, Encoder out) throws IOException {
+      if (!(value instanceof Map)) {
+        throw new IllegalArgumentException(
+          String.format("Field '%s' is of type '%s' when it is expected to be a Map.",
+                        name, value == null ? "null" : value.getClass().getSimpleName()));
+      }
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeMapStart();
+      out.setItemCount(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        out.startItem();
+        out.writeString(entry.getKey().toString());
+        valueEncoder.encode(name, entry.getValue(), out);
+      }
+      out.writeMapEnd();
+    }
+  }
+}
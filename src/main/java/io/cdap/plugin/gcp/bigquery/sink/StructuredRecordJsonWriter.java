@@ -0,0 +1,710 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link StructuredRecord} values as BigQuery JSON rows straight into a UTF-8 byte buffer.
+ *
+ * The output is the same as writing every field with {@link BigQueryRecordToJson} through a gson
+ * {@link com.google.gson.stream.JsonWriter}, but the conversion plan is compiled once from the CDAP schema, so
+ * writing a record does not resolve schemas or dispatch on types. Dates, times and timestamps are formatted with
+ * digit tables instead of java.time objects, and decimals that fit into a long are formatted without
+ * {@link BigDecimal}.
+ */
+public final class StructuredRecordJsonWriter {
+  private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS");
+  private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss.SSSSSS");
+
+  private static final byte[] DIGIT_TENS = new byte[100];
+  private static final byte[] DIGIT_ONES = new byte[100];
+  private static final byte[] BASE64 =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+  private static final long MICROS_PER_DAY = TimeUnit.DAYS.toMicros(1);
+  private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+  // days from 0000-03-01 to 1970-01-01, and days per 400 year cycle, as used by LocalDate#ofEpochDay
+  private static final long DAYS_0000_TO_1970 = 719528L - 60L;
+  private static final long DAYS_PER_CYCLE = 146097L;
+  // range of days that are formatted with four digit years by both LocalDate#toString and DATETIME_FORMATTER
+  private static final long MIN_EPOCH_DAY = LocalDate.of(1, 1, 1).toEpochDay();
+  private static final long MAX_EPOCH_DAY = LocalDate.of(9999, 12, 31).toEpochDay();
+
+  static {
+    for (int i = 0; i < 100; i++) {
+      DIGIT_TENS[i] = (byte) ('0' + i / 10);
+      DIGIT_ONES[i] = (byte) ('0' + i % 10);
+    }
+  }
+
+  private final Schema schema;
+  private final RecordEncoder encoder;
+
+  public StructuredRecordJsonWriter(Schema schema) {
+    if (schema.getType() != Schema.Type.RECORD) {
+      throw new IllegalArgumentException(
+        String.format("Schema of type '%s' is not a record schema.", schema.getDisplayName()));
+    }
+    this.schema = schema;
+    this.encoder = new RecordEncoder(schema);
+  }
+
+  /**
+   * @return the CDAP schema this writer was compiled for
+   */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Writes the record as a JSON object. Fields are read by name, so the record schema can be a superset of the
+   * schema this writer was compiled for.
+   */
+  public void write(StructuredRecord record, Utf8Buffer out) throws IOException {
+    encoder.encodeRecord(record, out);
+  }
+
+  private static ValueEncoder compileField(Schema fieldSchema) {
+    Schema schema = BigQueryUtil.getNonNullableSchema(fieldSchema);
+    switch (schema.getType()) {
+      case NULL:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+      case STRING:
+      case BYTES:
+        return compileSimpleType(schema);
+      case ARRAY:
+        return new ArrayEncoder(schema);
+      case RECORD:
+        RecordEncoder recordEncoder = new RecordEncoder(schema);
+        return (name, value, out) -> {
+          if (value == null) {
+            out.write(NULL);
+            return;
+          }
+          recordEncoder.encode(name, value, out);
+        };
+      default:
+        return unsupported(fieldSchema.getType().name());
+    }
+  }
+
+  private static ValueEncoder compileArrayItem(Schema schema) {
+    switch (schema.getType()) {
+      case NULL:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+      case STRING:
+      case BYTES:
+        return compileSimpleType(schema);
+      case RECORD:
+        // structured records are handled by the array encoder, so any other value is invalid
+        return new RecordEncoder(schema);
+      default:
+        return (name, value, out) -> {
+          throw new IllegalStateException(
+            String.format("Field '%s' is an array of '%s', which cannot be written to BigQuery.", name, schema));
+        };
+    }
+  }
+
+  private static ValueEncoder compileSimpleType(Schema schema) {
+    ValueEncoder encoder = compileNonNullSimpleType(schema);
+    return (name, value, out) -> {
+      if (value == null) {
+        out.write(NULL);
+      } else {
+        encoder.encode(name, value, out);
+      }
+    };
+  }
+
+  private static ValueEncoder compileNonNullSimpleType(Schema schema) {
+    Schema.LogicalType logicalType = schema.getLogicalType();
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          return (name, value, out) -> writeDate(((Integer) value).longValue(), out);
+        case TIME_MILLIS:
+          return (name, value, out) -> writeTime(TimeUnit.MILLISECONDS.toMicros((Integer) value), out);
+        case TIME_MICROS:
+          return (name, value, out) -> writeTime((Long) value, out);
+        case TIMESTAMP_MILLIS:
+          return (name, value, out) -> {
+            long millis = (long) value;
+            writeTimestamp(Math.floorDiv(millis, MILLIS_PER_DAY),
+                           TimeUnit.MILLISECONDS.toMicros(Math.floorMod(millis, MILLIS_PER_DAY)),
+                           millis, TimeUnit.MILLISECONDS, out);
+          };
+        case TIMESTAMP_MICROS:
+          return (name, value, out) -> {
+            long micros = (long) value;
+            writeTimestamp(Math.floorDiv(micros, MICROS_PER_DAY), Math.floorMod(micros, MICROS_PER_DAY),
+                           micros, TimeUnit.MICROSECONDS, out);
+          };
+        case DECIMAL:
+          int scale = schema.getScale();
+          return (name, value, out) -> writeDecimal(name, (byte[]) value, scale, out);
+        default:
+          return unsupported(logicalType.getToken());
+      }
+    }
+
+    switch (schema.getType()) {
+      case NULL:
+        return (name, value, out) -> out.write(NULL);
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return (name, value, out) -> writeNumber((Number) value, out);
+      case BOOLEAN:
+        return (name, value, out) -> out.write((Boolean) value ? TRUE : FALSE);
+      case STRING:
+        return (name, value, out) -> out.writeString(value.toString());
+      case BYTES:
+        return StructuredRecordJsonWriter::writeBase64;
+      default:
+        return unsupported(schema.getType().name());
+    }
+  }
+
+  private static ValueEncoder unsupported(String type) {
+    return (name, value, out) -> {
+      throw new IllegalStateException(String.format("Field '%s' is of unsupported type '%s'", name, type));
+    };
+  }
+
+  private static void writeNumber(Number value, Utf8Buffer out) {
+    if (value instanceof Integer || value instanceof Long) {
+      out.writeLong(value.longValue());
+      return;
+    }
+    String string = value.toString();
+    if (string.equals("-Infinity") || string.equals("Infinity") || string.equals("NaN")) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    out.writeAscii(string);
+  }
+
+  private static void writeDate(long epochDay, Utf8Buffer out) {
+    if (epochDay < MIN_EPOCH_DAY || epochDay > MAX_EPOCH_DAY) {
+      out.writeString(LocalDate.ofEpochDay(epochDay).toString());
+      return;
+    }
+    out.writeByte('"');
+    writeDateDigits(epochDay, out);
+    out.writeByte('"');
+  }
+
+  private static void writeTime(long microOfDay, Utf8Buffer out) {
+    if (microOfDay < 0 || microOfDay >= MICROS_PER_DAY) {
+      // fails the same way as the java.time based conversion
+      out.writeString(TIME_FORMATTER.format(LocalTime.ofNanoOfDay(TimeUnit.MICROSECONDS.toNanos(microOfDay))));
+      return;
+    }
+    out.writeByte('"');
+    writeTimeDigits(microOfDay, out);
+    out.writeByte('"');
+  }
+
+  private static void writeTimestamp(long epochDay, long microOfDay, long value, TimeUnit unit, Utf8Buffer out) {
+    if (epochDay < MIN_EPOCH_DAY || epochDay > MAX_EPOCH_DAY) {
+      long mod = unit.convert(1, TimeUnit.SECONDS);
+      Instant instant = Instant.ofEpochSecond(unit.toSeconds(value), unit.toNanos(value % mod));
+      out.writeString(DATETIME_FORMATTER.format(instant.atZone(ZoneId.ofOffset("UTC", ZoneOffset.UTC))));
+      return;
+    }
+    out.writeByte('"');
+    writeDateDigits(epochDay, out);
+    out.writeByte(' ');
+    writeTimeDigits(microOfDay, out);
+    out.writeByte('"');
+  }
+
+  /**
+   * Writes the date as yyyy-MM-dd. This is the algorithm of LocalDate#ofEpochDay for days of years 1 to 9999.
+   */
+  private static void writeDateDigits(long epochDay, Utf8Buffer out) {
+    long zeroDay = epochDay + DAYS_0000_TO_1970;
+    long yearEst = (400 * zeroDay + 591) / DAYS_PER_CYCLE;
+    long doyEst = zeroDay - (365 * yearEst + yearEst / 4 - yearEst / 100 + yearEst / 400);
+    if (doyEst < 0) {
+      yearEst--;
+      doyEst = zeroDay - (365 * yearEst + yearEst / 4 - yearEst / 100 + yearEst / 400);
+    }
+    int marchDoy0 = (int) doyEst;
+    int marchMonth0 = (marchDoy0 * 5 + 2) / 153;
+    int month = (marchMonth0 + 2) % 12 + 1;
+    int dayOfMonth = marchDoy0 - (marchMonth0 * 306 + 5) / 10 + 1;
+    int year = (int) (yearEst + marchMonth0 / 10);
+
+    out.writeTwoDigits(year / 100);
+    out.writeTwoDigits(year % 100);
+    out.writeByte('-');
+    out.writeTwoDigits(month);
+    out.writeByte('-');
+    out.writeTwoDigits(dayOfMonth);
+  }
+
+  /**
+   * Writes the time of day as HH:mm:ss.SSSSSS.
+   */
+  private static void writeTimeDigits(long microOfDay, Utf8Buffer out) {
+    int secondOfDay = (int) (microOfDay / 1_000_000L);
+    int micros = (int) (microOfDay % 1_000_000L);
+    out.writeTwoDigits(secondOfDay / 3600);
+    out.writeByte(':');
+    out.writeTwoDigits(secondOfDay / 60 % 60);
+    out.writeByte(':');
+    out.writeTwoDigits(secondOfDay % 60);
+    out.writeByte('.');
+    out.writeTwoDigits(micros / 10000);
+    out.writeTwoDigits(micros / 100 % 100);
+    out.writeTwoDigits(micros % 100);
+  }
+
+  private static void writeDecimal(String name, byte[] value, int scale, Utf8Buffer out) {
+    if (value.length == 0 || value.length > Long.BYTES || scale < 0) {
+      out.writeString(getDecimal(name, value, scale).toPlainString());
+      return;
+    }
+    // two's complement big-endian unscaled value, as produced by BigInteger#toByteArray
+    long unscaled = value[0];
+    for (int i = 1; i < value.length; i++) {
+      unscaled = (unscaled << 8) | (value[i] & 0xff);
+    }
+    if (unscaled == Long.MIN_VALUE) {
+      out.writeString(getDecimal(name, value, scale).toPlainString());
+      return;
+    }
+
+    long magnitude = Math.abs(unscaled);
+    int digits = out.formatDigits(magnitude);
+    if (scale > 9) {
+      throw new IllegalArgumentException(
+        String.format("Numeric Field '%s' has invalid precision '%s' and scale '%s'. " +
+                        "Precision must be at most 38 and scale must be at most 9.", name, digits, scale));
+    }
+    out.writeByte('"');
+    if (unscaled < 0) {
+      out.writeByte('-');
+    }
+    if (digits > scale) {
+      out.writeScratch(0, digits - scale);
+      if (scale > 0) {
+        out.writeByte('.');
+        out.writeScratch(digits - scale, scale);
+      }
+    } else {
+      out.writeByte('0');
+      out.writeByte('.');
+      for (int i = digits; i < scale; i++) {
+        out.writeByte('0');
+      }
+      out.writeScratch(0, digits);
+    }
+    out.writeByte('"');
+  }
+
+  private static BigDecimal getDecimal(String name, byte[] value, int scale) {
+    BigDecimal decimal = new BigDecimal(new BigInteger(value), scale);
+    if (decimal.precision() > 38 || decimal.scale() > 9) {
+      throw new IllegalArgumentException(
+        String.format("Numeric Field '%s' has invalid precision '%s' and scale '%s'. " +
+                        "Precision must be at most 38 and scale must be at most 9.",
+                      name, decimal.precision(), decimal.scale()));
+    }
+    return decimal;
+  }
+
+  private static void writeBase64(String name, Object value, Utf8Buffer out) {
+    byte[] bytes;
+    int offset;
+    int length;
+    if (value instanceof byte[]) {
+      bytes = (byte[]) value;
+      offset = 0;
+      length = bytes.length;
+    } else if (value instanceof ByteBuffer && ((ByteBuffer) value).hasArray()) {
+      ByteBuffer buffer = (ByteBuffer) value;
+      bytes = buffer.array();
+      offset = buffer.arrayOffset() + buffer.position();
+      length = buffer.remaining();
+    } else if (value instanceof ByteBuffer) {
+      ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+      bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      offset = 0;
+      length = bytes.length;
+    } else {
+      throw new IllegalArgumentException(
+        String.format("Field '%s' is of type '%s' when it is expected to be a ByteBuffer or byte array.",
+                      name, value.getClass().getSimpleName()));
+    }
+
+    out.writeByte('"');
+    int end = offset + length - length % 3;
+    for (int i = offset; i < end; i += 3) {
+      int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+      out.writeByte(BASE64[bits >>> 18]);
+      out.writeByte(BASE64[(bits >>> 12) & 0x3f]);
+      out.writeByte(BASE64[(bits >>> 6) & 0x3f]);
+      out.writeByte(BASE64[bits & 0x3f]);
+    }
+    if (length % 3 == 1) {
+      int bits = (bytes[end] & 0xff) << 16;
+      out.writeByte(BASE64[bits >>> 18]);
+      out.writeByte(BASE64[(bits >>> 12) & 0x3f]);
+      out.writeByte('=');
+      out.writeByte('=');
+    } else if (length % 3 == 2) {
+      int bits = (bytes[end] & 0xff) << 16 | (bytes[end + 1] & 0xff) << 8;
+      out.writeByte(BASE64[bits >>> 18]);
+      out.writeByte(BASE64[(bits >>> 12) & 0x3f]);
+      out.writeByte(BASE64[(bits >>> 6) & 0x3f]);
+      out.writeByte('=');
+    }
+    out.writeByte('"');
+  }
+
+  /**
+   * Encodes a single value of a precompiled schema.
+   */
+  private interface ValueEncoder {
+    void encode(String name, Object value, Utf8Buffer out) throws IOException;
+  }
+
+  /**
+   * Encodes record fields in schema order, with the escaped field names precomputed.
+   */
+  private static final class RecordEncoder implements ValueEncoder {
+    private final Schema schema;
+    private final String[] names;
+    private final byte[][] prefixes;
+    private final ValueEncoder[] encoders;
+
+    RecordEncoder(Schema schema) {
+      List<Schema.Field> fields = Objects.requireNonNull(schema.getFields());
+      this.schema = schema;
+      this.names = new String[fields.size()];
+      this.prefixes = new byte[fields.size()][];
+      this.encoders = new ValueEncoder[fields.size()];
+      Utf8Buffer prefix = new Utf8Buffer();
+      for (int i = 0; i < names.length; i++) {
+        names[i] = fields.get(i).getName();
+        prefix.reset();
+        prefix.writeByte(i == 0 ? '{' : ',');
+        prefix.writeString(names[i]);
+        prefix.writeByte(':');
+        prefixes[i] = prefix.toByteArray();
+        encoders[i] = compileField(fields.get(i).getSchema());
+      }
+    }
+
+    @Override
+    public void encode(String name, Object value, Utf8Buffer out) throws IOException {
+      if (!(value instanceof StructuredRecord)) {
+        throw new IllegalStateException(
+          String.format("Value is of type '%s', expected type is '%s'",
+                        value.getClass().getSimpleName(), StructuredRecord.class.getSimpleName()));
+      }
+      encodeRecord((StructuredRecord) value, out);
+    }
+
+    void encodeRecord(StructuredRecord record, Utf8Buffer out) throws IOException {
+      if (names.length == 0) {
+        out.writeByte('{');
+      }
+      for (int i = 0; i < names.length; i++) {
+        out.write(prefixes[i]);
+        encoders[i].encode(names[i], record.get(names[i]), out);
+      }
+      out.writeByte('}');
+    }
+  }
+
+  /**
+   * Encodes collections and object arrays as JSON arrays. Structured records in the array are written with their
+   * own schema.
+   */
+  private static final class ArrayEncoder implements ValueEncoder {
+    private final Schema componentSchema;
+    private final boolean supported;
+    private final ValueEncoder itemEncoder;
+    private final SchemaCache<RecordEncoder> recordEncoders = new SchemaCache<>(RecordEncoder::new);
+
+    ArrayEncoder(Schema schema) {
+      this.componentSchema = BigQueryUtil.getNonNullableSchema(Objects.requireNonNull(schema.getComponentSchema()));
+      this.supported = !BigQueryUtil.UNSUPPORTED_ARRAY_TYPES.contains(componentSchema.getType());
+      this.itemEncoder = supported ? compileArrayItem(componentSchema) : null;
+    }
+
+    @Override
+    public void encode(String name, Object value, Utf8Buffer out) throws IOException {
+      if (value == null) {
+        throw new RuntimeException(
+          String.format("Field '%s' is of value null, which is not a valid value for BigQuery type array.", name));
+      }
+
+      Collection<?> collection;
+      if (value instanceof Collection) {
+        collection = (Collection<?>) value;
+      } else if (value instanceof Object[]) {
+        collection = Arrays.asList((Object[]) value);
+      } else {
+        throw new IllegalArgumentException(String.format(
+          "A value for the field '%s' is of type '%s' when it is expected to be a Collection or array.",
+          name, value.getClass().getSimpleName()));
+      }
+      if (!supported) {
+        throw new IllegalArgumentException(String.format("Field '%s' is an array of '%s', " +
+                                                           "which is not a valid BigQuery type.",
+                                                         name, componentSchema));
+      }
+
+      out.writeByte('[');
+      boolean first = true;
+      for (Object element : collection) {
+        // BigQuery does not allow null values in array items
+        if (element == null) {
+          throw new IllegalArgumentException(String.format("Field '%s' contains null values in its array, " +
+                                                             "which is not allowed by BigQuery.", name));
+        }
+        if (!first) {
+          out.writeByte(',');
+        }
+        first = false;
+        if (element instanceof StructuredRecord) {
+          StructuredRecord record = (StructuredRecord) element;
+          recordEncoders.get(record.getSchema()).encodeRecord(record, out);
+        } else {
+          itemEncoder.encode(name, element, out);
+        }
+      }
+      out.writeByte(']');
+    }
+  }
+
+  /**
+   * Growable byte buffer that JSON values are written to as UTF-8.
+   */
+  public static final class Utf8Buffer extends ByteArrayOutputStream {
+    private final byte[] scratch = new byte[20];
+    private int formattedDigits;
+
+    public Utf8Buffer() {
+      super(256);
+    }
+
+    /**
+     * Writes a JSON string, escaped the same way as by {@link com.google.gson.stream.JsonWriter}. Unpaired
+     * surrogates are replaced with '?'.
+     */
+    public void writeString(String value) {
+      ensureCapacity(value.length() + 2);
+      buf[count++] = '"';
+      int length = value.length();
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+          if (c < 0x20 || c == '"' || c == '\\') {
+            writeEscaped(c);
+          } else {
+            ensureCapacity(1);
+            buf[count++] = (byte) c;
+          }
+        } else if (c < 0x800) {
+          ensureCapacity(2);
+          buf[count++] = (byte) (0xc0 | (c >> 6));
+          buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (c == '\u2028' || c == '\u2029') {
+          writeEscaped(c);
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          ensureCapacity(4);
+          buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+          buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          ensureCapacity(1);
+          buf[count++] = '?';
+        } else {
+          ensureCapacity(3);
+          buf[count++] = (byte) (0xe0 | (c >> 12));
+          buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+      ensureCapacity(1);
+      buf[count++] = '"';
+    }
+
+    /**
+     * Writes an ASCII string without quoting or escaping.
+     */
+    public void writeAscii(String value) {
+      ensureCapacity(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        buf[count++] = (byte) value.charAt(i);
+      }
+    }
+
+    /**
+     * Writes a long as a JSON number.
+     */
+    public void writeLong(long value) {
+      if (value == Long.MIN_VALUE) {
+        writeAscii(Long.toString(value));
+        return;
+      }
+      if (value < 0) {
+        writeByte('-');
+      }
+      writeScratch(0, formatDigits(Math.abs(value)));
+    }
+
+    @Override
+    public void write(byte[] bytes) {
+      write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      ensureCapacity(length);
+      System.arraycopy(bytes, offset, buf, count, length);
+      count += length;
+    }
+
+    @Override
+    public void write(int b) {
+      writeByte(b);
+    }
+
+    void writeByte(int b) {
+      ensureCapacity(1);
+      buf[count++] = (byte) b;
+    }
+
+    void writeTwoDigits(int value) {
+      ensureCapacity(2);
+      buf[count++] = DIGIT_TENS[value];
+      buf[count++] = DIGIT_ONES[value];
+    }
+
+    /**
+     * Formats the digits of a non-negative value into the scratch space, right aligned.
+     *
+     * @return the number of digits
+     */
+    int formatDigits(long value) {
+      int position = scratch.length;
+      while (value >= 100) {
+        int pair = (int) (value % 100);
+        value /= 100;
+        scratch[--position] = DIGIT_ONES[pair];
+        scratch[--position] = DIGIT_TENS[pair];
+      }
+      scratch[--position] = DIGIT_ONES[(int) value];
+      if (value >= 10) {
+        scratch[--position] = DIGIT_TENS[(int) value];
+      }
+      formattedDigits = scratch.length - position;
+      return formattedDigits;
+    }
+
+    /**
+     * Writes formatted digits from the scratch space.
+     *
+     * @param from index of the first digit to write, counted from the first formatted digit
+     * @param length number of digits to write
+     */
+    void writeScratch(int from, int length) {
+      write(scratch, scratch.length - formattedDigits + from, length);
+    }
+
+    private void writeEscaped(char c) {
+      ensureCapacity(6);
+      buf[count++] = '\\';
+      switch (c) {
+        case '"':
+        case '\\':
+          buf[count++] = (byte) c;
+          break;
+        case '\t':
+          buf[count++] = 't';
+          break;
+        case '\b':
+          buf[count++] = 'b';
+          break;
+        case '\n':
+          buf[count++] = 'n';
+          break;
+        case '\r':
+          buf[count++] = 'r';
+          break;
+        case '\f':
+          buf[count++] = 'f';
+          break;
+        default:
+          buf[count++] = 'u';
+          buf[count++] = HEX[(c >> 12) & 0xf];
+          buf[count++] = HEX[(c >> 8) & 0xf];
+          buf[count++] = HEX[(c >> 4) & 0xf];
+          buf[count++] = HEX[c & 0xf];
+      }
+    }
+
+    private void ensureCapacity(int length) {
+      if (count + length > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + length));
+      }
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.OriginalType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Type;
+import org.apache.parquet.schema.Types;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link StructuredRecord} values to Parquet for BigQuery load jobs.
+ *
+ * The Parquet schema and the write plan are compiled once from the CDAP schema. Nullable fields are optional
+ * columns, and arrays are repeated columns without a list wrapper, so BigQuery maps them to the same REPEATED
+ * and RECORD columns as the table schema generated by the sink. Times and timestamps are always written with
+ * microsecond precision.
+ */
+public final class StructuredRecordWriteSupport extends WriteSupport<StructuredRecord> {
+  private static final String MESSAGE_NAME = "record";
+
+  private final Schema schema;
+  private final MessageType messageType;
+  private final RecordEncoder encoder;
+  private RecordConsumer recordConsumer;
+
+  public StructuredRecordWriteSupport(Schema schema) {
+    if (schema.getType() != Schema.Type.RECORD) {
+      throw new IllegalArgumentException(
+        String.format("Schema of type '%s' is not a record schema.", schema.getDisplayName()));
+    }
+    this.schema = schema;
+    this.encoder = new RecordEncoder(schema);
+    this.messageType = new MessageType(MESSAGE_NAME, encoder.types);
+  }
+
+  /**
+   * @return the CDAP schema this write support was compiled for
+   */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * @return the Parquet schema that corresponds to the CDAP schema this write support was compiled for
+   */
+  public MessageType getMessageType() {
+    return messageType;
+  }
+
+  @Override
+  public WriteContext init(Configuration configuration) {
+    return new WriteContext(messageType, Collections.emptyMap());
+  }
+
+  @Override
+  public void prepareForWrite(RecordConsumer recordConsumer) {
+    this.recordConsumer = recordConsumer;
+  }
+
+  @Override
+  public void write(StructuredRecord record) {
+    recordConsumer.startMessage();
+    encoder.encodeFields(record, recordConsumer);
+    recordConsumer.endMessage();
+  }
+
+  /**
+   * Compiles the column of a record field.
+   */
+  private static FieldEncoder compileField(String name, int index, Schema fieldSchema) {
+    Schema schema = BigQueryUtil.getNonNullableSchema(fieldSchema);
+    if (schema.getType() == Schema.Type.ARRAY) {
+      Schema componentSchema = BigQueryUtil.getNonNullableSchema(Objects.requireNonNull(schema.getComponentSchema()));
+      if (componentSchema.getType() == Schema.Type.RECORD) {
+        RecordEncoder recordEncoder = new RecordEncoder(componentSchema);
+        return new ArrayEncoder(name, index, recordEncoder.getGroupType(name, Type.Repetition.REPEATED),
+                                recordEncoder);
+      }
+      return new ArrayEncoder(name, index, compileType(name, componentSchema, Type.Repetition.REPEATED),
+                              compileValue(componentSchema));
+    }
+
+    Type.Repetition repetition = fieldSchema.isNullable() ? Type.Repetition.OPTIONAL : Type.Repetition.REQUIRED;
+    if (schema.getType() == Schema.Type.RECORD) {
+      RecordEncoder recordEncoder = new RecordEncoder(schema);
+      return new FieldEncoder(name, index, recordEncoder.getGroupType(name, repetition), recordEncoder);
+    }
+    return new FieldEncoder(name, index, compileType(name, schema, repetition), compileValue(schema));
+  }
+
+  /**
+   * Compiles the Parquet type of a column of simple type.
+   */
+  private static Type compileType(String name, Schema schema, Type.Repetition repetition) {
+    Schema.LogicalType logicalType = schema.getLogicalType();
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          return Types.primitive(PrimitiveTypeName.INT32, repetition).as(OriginalType.DATE).named(name);
+        case TIME_MILLIS:
+        case TIME_MICROS:
+          return Types.primitive(PrimitiveTypeName.INT64, repetition).as(OriginalType.TIME_MICROS).named(name);
+        case TIMESTAMP_MILLIS:
+        case TIMESTAMP_MICROS:
+          return Types.primitive(PrimitiveTypeName.INT64, repetition).as(OriginalType.TIMESTAMP_MICROS).named(name);
+        case DECIMAL:
+          return Types.primitive(PrimitiveTypeName.BINARY, repetition).as(OriginalType.DECIMAL)
+            .precision(schema.getPrecision()).scale(schema.getScale()).named(name);
+        default:
+          throw unsupported(name, logicalType.getToken());
+      }
+    }
+
+    switch (schema.getType()) {
+      case BOOLEAN:
+        return Types.primitive(PrimitiveTypeName.BOOLEAN, repetition).named(name);
+      case INT:
+        return Types.primitive(PrimitiveTypeName.INT32, repetition).named(name);
+      case LONG:
+        return Types.primitive(PrimitiveTypeName.INT64, repetition).named(name);
+      case FLOAT:
+        return Types.primitive(PrimitiveTypeName.FLOAT, repetition).named(name);
+      case DOUBLE:
+        return Types.primitive(PrimitiveTypeName.DOUBLE, repetition).named(name);
+      case STRING:
+        return Types.primitive(PrimitiveTypeName.BINARY, repetition).as(OriginalType.UTF8).named(name);
+      case BYTES:
+        return Types.primitive(PrimitiveTypeName.BINARY, repetition).named(name);
+      default:
+        throw unsupported(name, schema.getType().name());
+    }
+  }
+
+  private static ValueEncoder compileValue(Schema schema) {
+    Schema.LogicalType logicalType = schema.getLogicalType();
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          return (name, value, out) -> out.addInteger((Integer) value);
+        case TIME_MILLIS:
+          return (name, value, out) -> out.addLong(TimeUnit.MILLISECONDS.toMicros((Integer) value));
+        case TIME_MICROS:
+        case TIMESTAMP_MICROS:
+          return (name, value, out) -> out.addLong((Long) value);
+        case TIMESTAMP_MILLIS:
+          return (name, value, out) -> out.addLong(TimeUnit.MILLISECONDS.toMicros((Long) value));
+        case DECIMAL:
+          // the unscaled two's complement value of CDAP decimals is the binary layout of Parquet decimals
+          return StructuredRecordWriteSupport::writeBinary;
+        default:
+          throw unsupported("", logicalType.getToken());
+      }
+    }
+
+    switch (schema.getType()) {
+      case BOOLEAN:
+        return (name, value, out) -> out.addBoolean((Boolean) value);
+      case INT:
+        return (name, value, out) -> out.addInteger(((Number) value).intValue());
+      case LONG:
+        return (name, value, out) -> out.addLong(((Number) value).longValue());
+      case FLOAT:
+        return (name, value, out) -> out.addFloat(((Number) value).floatValue());
+      case DOUBLE:
+        return (name, value, out) -> out.addDouble(((Number) value).doubleValue());
+      case STRING:
+        return (name, value, out) -> out.addBinary(Binary.fromString(value.toString()));
+      case BYTES:
+        return StructuredRecordWriteSupport::writeBinary;
+      default:
+        throw unsupported("", schema.getType().name());
+    }
+  }
+
+  private static void writeBinary(String name, Object value, RecordConsumer out) {
+    if (value instanceof ByteBuffer) {
+      out.addBinary(Binary.fromConstantByteBuffer(((ByteBuffer) value).duplicate()));
+    } else if (value instanceof byte[]) {
+      out.addBinary(Binary.fromConstantByteArray((byte[]) value));
+    } else {
+      throw new IllegalArgumentException(
+        String.format("Field '%s' is of type '%s' when it is expected to be a ByteBuffer or byte array.",
+                      name, value.getClass().getSimpleName()));
+    }
+  }
+
+  private static IllegalArgumentException unsupported(String name, String type) {
+    return new IllegalArgumentException(
+      String.format("Field '%s' is of type '%s', which cannot be staged in Parquet.", name, type));
+  }
+
+  /**
+   * Writes a single non-null value of a precompiled schema.
+   */
+  private interface ValueEncoder {
+    void encode(String name, Object value, RecordConsumer out);
+  }
+
+  /**
+   * Writes the column of a record field. Null values are skipped, which leaves optional columns undefined.
+   */
+  private static class FieldEncoder {
+    final String name;
+    final int index;
+    final Type type;
+    final ValueEncoder valueEncoder;
+
+    FieldEncoder(String name, int index, Type type, ValueEncoder valueEncoder) {
+      this.name = name;
+      this.index = index;
+      this.type = type;
+      this.valueEncoder = valueEncoder;
+    }
+
+    void encode(Object value, RecordConsumer out) {
+      if (value == null) {
+        if (type.isRepetition(Type.Repetition.REQUIRED)) {
+          throw new IllegalArgumentException(
+            String.format("Field '%s' is null, but its schema does not allow null values.", name));
+        }
+        return;
+      }
+      out.startField(name, index);
+      valueEncoder.encode(name, value, out);
+      out.endField(name, index);
+    }
+  }
+
+  /**
+   * Writes the items of collections and java arrays as the values of a repeated column.
+   */
+  private static final class ArrayEncoder extends FieldEncoder {
+
+    ArrayEncoder(String name, int index, Type type, ValueEncoder componentEncoder) {
+      super(name, index, type, componentEncoder);
+    }
+
+    @Override
+    void encode(Object value, RecordConsumer out) {
+      if (value == null) {
+        return;
+      }
+      int length;
+      if (value instanceof Collection) {
+        length = ((Collection<?>) value).size();
+      } else if (value.getClass().isArray()) {
+        length = Array.getLength(value);
+      } else {
+        throw new IllegalArgumentException(
+          String.format("Field '%s' is of type '%s' when it is expected to be a Collection or array.",
+                        name, value.getClass().getSimpleName()));
+      }
+      // empty repeated columns are written by leaving the field out
+      if (length == 0) {
+        return;
+      }
+
+      out.startField(name, index);
+      if (value instanceof Collection) {
+        for (Object element : (Collection<?>) value) {
+          encodeItem(element, out);
+        }
+      } else {
+        for (int i = 0; i < length; i++) {
+          encodeItem(Array.get(value, i), out);
+        }
+      }
+      out.endField(name, index);
+    }
+
+    private void encodeItem(Object element, RecordConsumer out) {
+      // BigQuery does not allow null values in array items
+      if (element == null) {
+        throw new IllegalArgumentException(String.format("Field '%s' contains null values in its array, " +
+                                                           "which is not allowed by BigQuery.", name));
+      }
+      valueEncoder.encode(name, element, out);
+    }
+  }
+
+  /**
+   * Writes record fields in schema order. Nested records are written as groups.
+   */
+  private static final class RecordEncoder implements ValueEncoder {
+    private final FieldEncoder[] encoders;
+    private final Type[] types;
+
+    RecordEncoder(Schema schema) {
+      List<Schema.Field> fields = Objects.requireNonNull(schema.getFields());
+      encoders = new FieldEncoder[fields.size()];
+      types = new Type[fields.size()];
+      for (int i = 0; i < encoders.length; i++) {
+        encoders[i] = compileField(fields.get(i).getName(), i, fields.get(i).getSchema());
+        types[i] = encoders[i].type;
+      }
+    }
+
+    Type getGroupType(String name, Type.Repetition repetition) {
+      return Types.buildGroup(repetition).addFields(types).named(name);
+    }
+
+    @Override
+    public void encode(String name, Object value, RecordConsumer out) {
+      if (!(value instanceof StructuredRecord)) {
+        throw new IllegalArgumentException(
+          String.format("Field '%s' is of type '%s' when it is expected to be a record.",
+                        name, value.getClass().getSimpleName()));
+      }
+      out.startGroup();
+      encodeFields((StructuredRecord) value, out);
+      out.endGroup();
+    }
+
+    void encodeFields(StructuredRecord record, RecordConsumer out) {
+      for (FieldEncoder encoder : encoders) {
+        encoder.encode(record.get(encoder.name), out);
+      }
+    }
+  }
+}
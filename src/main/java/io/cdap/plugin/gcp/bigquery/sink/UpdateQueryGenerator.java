@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+/**
+ * Generates the statements that apply the rows of a staging table to the destination table for the Update and
+ * Upsert operations.
+ *
+ * Staged rows are deduplicated per table key, since UPDATE and MERGE fail when several source rows match the same
+ * destination row. The statements can be restricted with pruning predicates on the destination table, so that
+ * BigQuery only scans the partitions and clustered blocks that the staged rows can match.
+ *
+ * It also generates the query that lists the partitions of the staged rows, which replace the same partitions of
+ * the destination table when partitions are overwritten.
+ */
+public final class UpdateQueryGenerator {
+  private static final String UPDATE_QUERY = "UPDATE %s T SET %s FROM %s S WHERE %s";
+  private static final String UPSERT_QUERY = "MERGE %s T USING %s S ON %s WHEN MATCHED THEN UPDATE SET %s " +
+    "WHEN NOT MATCHED THEN INSERT (%s) VALUES(%s)";
+  private static final String DEDUPLICATE_QUERY = "(SELECT AS VALUE ARRAY_AGG(R LIMIT 1)[OFFSET(0)] FROM %s R " +
+    "GROUP BY %s)";
+  private static final String CRITERIA_TEMPLATE = "T.%s = S.%s";
+  private static final String PARTITION_ID_QUERY =
+    "SELECT DISTINCT IFNULL(FORMAT_TIMESTAMP('%s', TIMESTAMP(%s)), '__NULL__') AS partition_id FROM %s";
+  private static final Map<String, String> PARTITION_ID_FORMATS = ImmutableMap.of(
+    "HOUR", "%Y%m%d%H",
+    "DAY", "%Y%m%d",
+    "MONTH", "%Y%m",
+    "YEAR", "%Y");
+
+  /**
+   * Generates the statement for the given operation.
+   *
+   * @param operation the operation, either Update or Upsert
+   * @param destinationTable the destination table, as dataset.table
+   * @param sourceTable the staging table, as dataset.table
+   * @param tableKeyList the fields that relate staged rows to destination rows
+   * @param tableFieldsList the fields of the staging table
+   * @param pruningPredicates predicates on the destination table that every matching destination row satisfies
+   * @return the statement, or an empty string for any other operation
+   */
+  public static String generate(Operation operation, String destinationTable, String sourceTable,
+                                List<String> tableKeyList, List<String> tableFieldsList,
+                                List<String> pruningPredicates) {
+    List<String> conditions = new ArrayList<>();
+    tableKeyList.forEach(s -> conditions.add(String.format(CRITERIA_TEMPLATE, s, s)));
+    conditions.addAll(pruningPredicates);
+    String criteria = String.join(" AND ", conditions);
+    String source = String.format(DEDUPLICATE_QUERY, sourceTable, String.join(", ", tableKeyList));
+    String fieldsForUpdate = tableFieldsList.stream().filter(s -> !tableKeyList.contains(s))
+      .map(s -> String.format(CRITERIA_TEMPLATE, s, s)).collect(Collectors.joining(", "));
+    switch (operation) {
+      case UPDATE:
+        return String.format(UPDATE_QUERY, destinationTable, fieldsForUpdate, source, criteria);
+      case UPSERT:
+        String insertFields = String.join(", ", tableFieldsList);
+        return String.format(UPSERT_QUERY, destinationTable, source, criteria, fieldsForUpdate,
+                             insertFields, insertFields);
+      default:
+        return "";
+    }
+  }
+
+  /**
+   * Generates a predicate that restricts a day partitioned DATE or TIMESTAMP column of the destination table to
+   * the given days. The predicate falls back to the range between the first and last day when no days are given.
+   *
+   * @param column the partitioning column
+   * @param type the BigQuery type of the partitioning column
+   * @param days the days of the staged rows, or an empty list if there are too many to list
+   * @param firstDay the first day of the staged rows, or null if there are none
+   * @param lastDay the last day of the staged rows, or null if there are none
+   * @param hasNull whether any staged row has a null value in the column
+   */
+  public static String partitionPredicate(String column, String type, List<LocalDate> days,
+                                          @Nullable LocalDate firstDay, @Nullable LocalDate lastDay,
+                                          boolean hasNull) {
+    String target = "T." + column;
+    boolean timestamp = "TIMESTAMP".equals(type);
+    List<String> alternatives = new ArrayList<>();
+    if (!days.isEmpty() && !timestamp) {
+      alternatives.add(String.format("%s IN (%s)", target, days.stream()
+        .map(day -> "DATE '" + day + "'").collect(Collectors.joining(", "))));
+    } else if (!days.isEmpty()) {
+      days.forEach(day -> alternatives.add(timestampRange(target, day, day)));
+    } else if (firstDay != null && lastDay != null) {
+      alternatives.add(timestamp ? timestampRange(target, firstDay, lastDay)
+                         : String.format("%s BETWEEN DATE '%s' AND DATE '%s'", target, firstDay, lastDay));
+    }
+    return combine(target, alternatives, hasNull);
+  }
+
+  /**
+   * Generates a predicate that restricts a column of the destination table to the range of the staged values.
+   *
+   * @param column the column
+   * @param type the standard SQL type of the column
+   * @param min the smallest staged value as a string, or null if all staged values are null
+   * @param max the largest staged value as a string, or null if all staged values are null
+   * @param hasNull whether any staged row has a null value in the column
+   */
+  public static String rangePredicate(String column, String type, @Nullable String min, @Nullable String max,
+                                      boolean hasNull) {
+    String target = "T." + column;
+    List<String> alternatives = new ArrayList<>();
+    if (min != null && max != null) {
+      alternatives.add(String.format("%s BETWEEN CAST(%s AS %s) AND CAST(%s AS %s)",
+                                     target, literal(min), type, literal(max), type));
+    }
+    return combine(target, alternatives, hasNull);
+  }
+
+  /**
+   * Generates the query that returns the ids of the partitions of the rows of a time partitioned table, which are
+   * the suffixes of the partition decorators. Rows with a null partitioning column are in the '__NULL__' partition.
+   *
+   * @param table the table, as dataset.table
+   * @param type the partitioning type of the table, such as DAY
+   * @param column the partitioning column, or null if the table is partitioned by ingestion time
+   * @return the query, which returns a single partition_id column
+   */
+  public static String partitionIdQuery(String table, String type, @Nullable String column) {
+    String format = PARTITION_ID_FORMATS.get(type);
+    if (format == null) {
+      throw new IllegalArgumentException(String.format("Unsupported time partitioning type '%s'.", type));
+    }
+    return String.format(PARTITION_ID_QUERY, format, column == null ? "_PARTITIONTIME" : column, table);
+  }
+
+  /**
+   * Returns the value as a standard SQL string literal.
+   */
+  static String literal(String value) {
+    StringBuilder builder = new StringBuilder(value.length() + 2).append('\'');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\'' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append(String.format("\\u%04x", (int) c));
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.append('\'').toString();
+  }
+
+  private static String timestampRange(String target, LocalDate firstDay, LocalDate lastDay) {
+    return String.format("(%s >= TIMESTAMP '%s' AND %s < TIMESTAMP '%s')",
+                         target, firstDay, target, lastDay.plusDays(1));
+  }
+
+  private static String combine(String target, List<String> alternatives, boolean hasNull) {
+    if (hasNull) {
+      alternatives.add(target + " IS NULL");
+    }
+    if (alternatives.isEmpty()) {
+      return "FALSE";
+    }
+    return alternatives.size() == 1 ? alternatives.get(0) : "(" + String.join(" OR ", alternatives) + ")";
+  }
+
+  private UpdateQueryGenerator() {
+    // no-op
+  }
+}
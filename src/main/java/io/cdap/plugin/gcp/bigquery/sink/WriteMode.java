@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.sink;
+
+/**
+ * The way records are written to BigQuery.
+ */
+public enum WriteMode {
+  /**
+   * Records are staged in Google Cloud Storage and loaded with a load job.
+   */
+  LOAD,
+  /**
+   * Records are streamed into pending write streams that are committed atomically at the end of the run.
+   */
+  STORAGE_WRITE,
+  /**
+   * Records are sent with streaming inserts and are available in the table right away.
+   */
+  STREAMING_INSERT;
+}
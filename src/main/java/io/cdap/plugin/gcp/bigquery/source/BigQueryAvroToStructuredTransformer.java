@@ -27,80 +27,236 @@ import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /**
  * Create StructuredRecords from GenericRecords. Contains custom logic for BigQuery date and time types.
+ *
+ * The conversion of a record is compiled once for every pair of Avro and output schemas into a plan that reads the
+ * Avro fields by position, with one converter per field that already knows the type of the output field.
+ * Converted records never share values with the Avro record, so readers may reuse Avro records.
  */
 public class BigQueryAvroToStructuredTransformer extends RecordConverter<GenericRecord, StructuredRecord> {
+  private static final long MICROS_PER_SECOND = TimeUnit.SECONDS.toMicros(1);
+
+  private RecordConversion conversion;
+
   @Override
   public StructuredRecord transform(GenericRecord genericRecord, Schema structuredSchema) throws IOException {
-    StructuredRecord.Builder builder = StructuredRecord.builder(structuredSchema);
-    for (Schema.Field field : structuredSchema.getFields()) {
-      String fieldName = field.getName();
-      Object value = convertField(genericRecord.get(fieldName), field.getSchema());
-      builder.set(fieldName, value);
+    if (conversion == null || conversion.outputSchema != structuredSchema) {
+      conversion = new RecordConversion(structuredSchema);
     }
-    return builder.build();
+    return conversion.convert(genericRecord);
   }
 
   @Override
   @Nullable
   protected Object convertField(Object field, Schema fieldSchema) throws IOException {
-    if (field == null) {
-      return null;
-    }
+    return field == null ? null : compile(fieldSchema).convert(field);
+  }
 
+  /**
+   * Compiles the conversion of the non-null values of a field with the given schema.
+   */
+  private FieldConverter compile(Schema fieldSchema) {
     // Union schema expected to be nullable schema. Underlying non-nullable type should always be a supported type
-    fieldSchema = fieldSchema.isNullable() ? fieldSchema.getNonNullable() : fieldSchema;
-    Schema.Type fieldType = fieldSchema.getType();
-    Schema.LogicalType logicalType = fieldSchema.getLogicalType();
-
-    try {
-      if (logicalType != null) {
-        switch (logicalType) {
-          case DATE:
-            // date will be in yyyy-mm-dd format
-            return Math.toIntExact(LocalDate.parse(field.toString()).toEpochDay());
-          case TIME_MILLIS:
-            // time will be in hh:mm:ss format
-            return Math.toIntExact(TimeUnit.NANOSECONDS.toMillis(LocalTime.parse(field.toString()).toNanoOfDay()));
-          case TIME_MICROS:
-            // time will be in hh:mm:ss format
-            return TimeUnit.NANOSECONDS.toMicros(LocalTime.parse(field.toString()).toNanoOfDay());
-          case TIMESTAMP_MILLIS:
-          case TIMESTAMP_MICROS:
-            return field;
-          case DECIMAL:
-            ByteBuffer value = (ByteBuffer) field;
-            byte[] bytes = new byte[value.remaining()];
-            int pos = value.position();
-            value.get(bytes);
-            value.position(pos);
-            return bytes;
-          default:
-            throw new UnexpectedFormatException("Field type '" + fieldSchema.getDisplayName() + "' is not supported.");
-        }
+    Schema schema = fieldSchema.isNullable() ? fieldSchema.getNonNullable() : fieldSchema;
+    Schema.Type fieldType = schema.getType();
+    Schema.LogicalType logicalType = schema.getLogicalType();
+
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          // date will be in yyyy-mm-dd format
+          return value -> value instanceof CharSequence ? parseDate((CharSequence) value) : value;
+        case TIME_MILLIS:
+          // time will be in hh:mm:ss format
+          return value -> value instanceof CharSequence ?
+            (int) TimeUnit.MICROSECONDS.toMillis(parseTime((CharSequence) value)) : value;
+        case TIME_MICROS:
+          // time will be in hh:mm:ss format
+          return value -> value instanceof CharSequence ? parseTime((CharSequence) value) : value;
+        case TIMESTAMP_MILLIS:
+        case TIMESTAMP_MICROS:
+          return value -> value;
+        case DECIMAL:
+          return BigQueryAvroToStructuredTransformer::toBytes;
+        default:
+          return value -> {
+            throw new UnexpectedFormatException("Field type '" + schema.getDisplayName() + "' is not supported.");
+          };
       }
-    } catch (ArithmeticException e) {
-      throw new IOException("Field type %s has value that is too large." + fieldType);
     }
 
     // Complex types like maps and unions are not supported in BigQuery plugins.
     if (!BigQuerySourceConfig.SUPPORTED_TYPES.contains(fieldType)) {
-      throw new UnexpectedFormatException("Field type " + fieldType + " is not supported.");
+      return value -> {
+        throw new UnexpectedFormatException("Field type " + fieldType + " is not supported.");
+      };
+    }
+
+    switch (fieldType) {
+      case STRING:
+        return Object::toString;
+      case LONG:
+        return value -> value instanceof Long ? value : super.convertField(value, schema);
+      case DOUBLE:
+        return value -> value instanceof Double ? value : super.convertField(value, schema);
+      case BOOLEAN:
+        return value -> value instanceof Boolean ? value : super.convertField(value, schema);
+      case BYTES:
+        return value -> value instanceof ByteBuffer ? toBytes(value) : super.convertField(value, schema);
+      case ARRAY:
+        FieldConverter elementConverter = compile(schema.getComponentSchema());
+        return value -> {
+          Collection<?> values = (Collection<?>) value;
+          List<Object> result = new ArrayList<>(values.size());
+          for (Object element : values) {
+            result.add(element == null ? null : elementConverter.convert(element));
+          }
+          return result;
+        };
+      default:
+        RecordConversion recordConversion = new RecordConversion(schema);
+        return value -> {
+          if (!(value instanceof List)) {
+            return recordConversion.convert((GenericRecord) value);
+          }
+          List<?> values = (List<?>) value;
+          List<Object> result = new ArrayList<>(values.size());
+          for (Object element : values) {
+            result.add(element == null ? null : recordConversion.convert((GenericRecord) element));
+          }
+          return result;
+        };
+    }
+  }
+
+  private static byte[] toBytes(Object value) {
+    // Avro reuses the buffers of reused records, so the bytes are always copied
+    ByteBuffer buffer = (ByteBuffer) value;
+    byte[] bytes = new byte[buffer.remaining()];
+    if (buffer.hasArray()) {
+      System.arraycopy(buffer.array(), buffer.arrayOffset() + buffer.position(), bytes, 0, bytes.length);
+    } else {
+      buffer.duplicate().get(bytes);
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the number of days since the epoch of a date in yyyy-mm-dd format.
+   */
+  private static int parseDate(CharSequence value) {
+    if (value.length() == 10 && value.charAt(4) == '-' && value.charAt(7) == '-') {
+      int year = parseDigits(value, 0, 4);
+      int month = parseDigits(value, 5, 7);
+      int day = parseDigits(value, 8, 10);
+      if (year >= 0 && month >= 0 && day >= 0) {
+        return Math.toIntExact(LocalDate.of(year, month, day).toEpochDay());
+      }
+    }
+    return Math.toIntExact(LocalDate.parse(value).toEpochDay());
+  }
+
+  /**
+   * Returns the number of microseconds since midnight of a time in hh:mm:ss format with an optional fraction.
+   */
+  private static long parseTime(CharSequence value) {
+    int length = value.length();
+    if (length >= 8 && value.charAt(2) == ':' && value.charAt(5) == ':' && (length == 8 || value.charAt(8) == '.')
+      && length <= 18) {
+      int hours = parseDigits(value, 0, 2);
+      int minutes = parseDigits(value, 3, 5);
+      int seconds = parseDigits(value, 6, 8);
+      int fraction = length > 9 ? parseDigits(value, 9, length) : length == 8 ? 0 : -1;
+      if (hours >= 0 && hours < 24 && minutes >= 0 && minutes < 60 && seconds >= 0 && seconds < 60 && fraction >= 0) {
+        long micros = ((hours * 60L + minutes) * 60L + seconds) * MICROS_PER_SECOND;
+        // the fraction has up to 9 digits, of which only the first 6 are microseconds
+        int digits = length - 9;
+        for (int i = digits; i < 6; i++) {
+          fraction *= 10;
+        }
+        for (int i = 6; i < digits; i++) {
+          fraction /= 10;
+        }
+        return micros + fraction;
+      }
+    }
+    return TimeUnit.NANOSECONDS.toMicros(LocalTime.parse(value).toNanoOfDay());
+  }
+
+  /**
+   * Returns the value of the decimal digits in the given range, or -1 if there is any other character.
+   */
+  private static int parseDigits(CharSequence value, int start, int end) {
+    int result = 0;
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Converts a non-null value of a field.
+   */
+  private interface FieldConverter {
+    Object convert(Object value) throws IOException;
+  }
+
+  /**
+   * Conversion of records into an output schema. The plan of the conversion is compiled for the schema of the first
+   * record, and compiled again whenever a record has a different schema.
+   */
+  private final class RecordConversion {
+    private final Schema outputSchema;
+    private final String[] fieldNames;
+    private org.apache.avro.Schema avroSchema;
+    private int[] positions;
+    private FieldConverter[] converters;
+
+    private RecordConversion(Schema outputSchema) {
+      this.outputSchema = outputSchema;
+      List<Schema.Field> fields = outputSchema.getFields();
+      fieldNames = new String[fields.size()];
+      for (int i = 0; i < fieldNames.length; i++) {
+        fieldNames[i] = fields.get(i).getName();
+      }
+    }
+
+    private StructuredRecord convert(GenericRecord record) throws IOException {
+      if (record.getSchema() != avroSchema) {
+        compilePlan(record.getSchema());
+      }
+      StructuredRecord.Builder builder = StructuredRecord.builder(outputSchema);
+      for (int i = 0; i < fieldNames.length; i++) {
+        int position = positions[i];
+        Object value = position < 0 ? null : record.get(position);
+        builder.set(fieldNames[i], value == null ? null : converters[i].convert(value));
+      }
+      return builder.build();
     }
 
-    if (fieldSchema.getType() == Schema.Type.RECORD && field instanceof List) {
-      List<Object> valuesList = (List<Object>) field;
-      List<Object> resultList = new ArrayList<>(valuesList.size());
-      for (Object value : valuesList) {
-        resultList.add(super.convertField(value, fieldSchema));
+    private void compilePlan(org.apache.avro.Schema schema) {
+      List<Schema.Field> fields = outputSchema.getFields();
+      int[] fieldPositions = new int[fields.size()];
+      FieldConverter[] fieldConverters = new FieldConverter[fields.size()];
+      for (int i = 0; i < fieldPositions.length; i++) {
+        org.apache.avro.Schema.Field avroField = schema.getField(fieldNames[i]);
+        // fields that are not in the Avro record are null
+        fieldPositions[i] = avroField == null ? -1 : avroField.pos();
+        fieldConverters[i] = compile(fields.get(i).getSchema());
       }
-      return resultList;
+      avroSchema = schema;
+      positions = fieldPositions;
+      converters = fieldConverters;
     }
-    return super.convertField(field, fieldSchema);
   }
 }
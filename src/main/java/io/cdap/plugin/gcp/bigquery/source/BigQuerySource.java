@@ -18,14 +18,24 @@ package io.cdap.plugin.gcp.bigquery.source;
 
 import com.google.auth.Credentials;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
 import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableDefinition;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableResult;
 import com.google.cloud.bigquery.TimePartitioning;
 import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
+import com.google.cloud.storage.Storage;
+import com.google.common.collect.ImmutableSet;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
@@ -44,11 +54,13 @@ import io.cdap.cdap.etl.api.batch.BatchSourceContext;
 import io.cdap.cdap.etl.api.validation.ValidationFailure;
 import io.cdap.plugin.common.LineageRecorder;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryJobStatistics;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
+import io.cdap.plugin.gcp.bigquery.util.StagingArea;
 import io.cdap.plugin.gcp.common.GCPUtils;
+import io.cdap.plugin.gcp.gcs.GCSPath;
 import org.apache.avro.generic.GenericData;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
@@ -59,9 +71,11 @@ import java.io.IOException;
 import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -73,16 +87,33 @@ import javax.annotation.Nullable;
 @Name(BigQuerySource.NAME)
 @Description("This source reads the entire contents of a BigQuery table. "
   + "BigQuery is Google's serverless, highly scalable, enterprise data warehouse."
-  + "Data is first written to a temporary location on Google Cloud Storage, then read into the pipeline from there.")
+  + "Data is first written to a temporary location on Google Cloud Storage, then read into the pipeline from there, "
+  + "unless it is configured to read data directly from BigQuery. "
+  + "Instead of a table, several tables or the results of a standard SQL query can be read.")
 public final class BigQuerySource extends BatchSource<LongWritable, GenericData.Record, StructuredRecord> {
   private static final Logger LOG = LoggerFactory.getLogger(BigQuerySource.class);
   public static final String NAME = "BigQueryTable";
+  // Number of rows read in preview, which are read directly from BigQuery by a single read stream.
+  private static final int PREVIEW_ROW_COUNT = 100;
+  private static final Set<StandardSQLTypeName> WATERMARK_TYPES = ImmutableSet.of(
+    StandardSQLTypeName.INT64, StandardSQLTypeName.FLOAT64, StandardSQLTypeName.NUMERIC, StandardSQLTypeName.STRING,
+    StandardSQLTypeName.DATE, StandardSQLTypeName.DATETIME, StandardSQLTypeName.TIMESTAMP);
   private BigQuerySourceConfig config;
   private Schema outputSchema;
   private Configuration configuration;
   private final BigQueryAvroToStructuredTransformer transformer = new BigQueryAvroToStructuredTransformer();
-  // UUID for the run. Will be used as bucket name if bucket is not provided.
+  // UUID for the run. Files of the run are exported under a prefix that contains it.
   private UUID uuid;
+  // staging area of the run, when the table is exported and no bucket is provided
+  private StagingArea stagingArea;
+  // directory that the statistics of the BigQuery jobs of the run are written to, if any
+  private String jobStatisticsPath;
+  private ReadMode readMode;
+  // Store of the watermark of incremental reads, and the watermark to store once the run succeeds.
+  private WatermarkStore watermarkStore;
+  private String highWatermark;
+  // Temporary table that the results of the query are stored in, if a query is read.
+  private String queryTable;
 
   @Override
   public void configurePipeline(PipelineConfigurer configurer) {
@@ -99,6 +130,7 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
 
     Schema schema = getSchema(collector);
     validatePartitionProperties(collector);
+    validateWatermarkField(collector);
 
     if (configuredSchema == null) {
       stageConfigurer.setOutputSchema(schema);
@@ -116,6 +148,7 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
     Schema configuredSchema = config.getSchema(collector);
     configuredSchema = configuredSchema == null ? getSchema(collector) : configuredSchema;
     validatePartitionProperties(collector);
+    validateWatermarkField(collector);
     validateConfiguredSchema(configuredSchema, collector);
 
     String serviceAccountPath = config.getServiceAccountFilePath();
@@ -126,36 +159,79 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
     uuid = UUID.randomUUID();
     configuration = BigQueryUtil.getBigQueryConfig(config.getServiceAccountFilePath(), config.getProject());
 
-    String bucket = config.getBucket();
-    if (bucket == null) {
-      bucket = uuid.toString();
-      // By default, this option is false, meaning the job can not delete the bucket. So enable it only when bucket name
-      // is not provided.
-      configuration.setBoolean("fs.gs.bucket.delete.enable", true);
-    }
+    // previews only read the first rows, which are read directly without exporting the table
+    readMode = context.isPreviewEnabled() ? ReadMode.STORAGE_READ : config.getReadMode();
+    // read streams read the table directly, so the temporary bucket is only needed when the table is exported
+    String bucket = null;
+    if (readMode != ReadMode.STORAGE_READ) {
+      Storage storage = GCPUtils.getStorage(config.getProject(), credentials);
+      bucket = config.getBucket();
+      if (bucket == null) {
+        // runs share a staging bucket in the location of the dataset, and each run exports under its own prefix
+        Dataset dataset = bigQuery.getDataset(config.getDataset());
+        stagingArea = StagingArea.of(storage, config.getProject(), dataset == null ? null : dataset.getLocation(),
+                                     String.format("hadoop/input/%s/", uuid), true);
+        bucket = stagingArea.getBucket();
+      }
 
-    BigQueryUtil.createResources(bigQuery, GCPUtils.getStorage(config.getProject(), credentials),
-                                 config.getDataset(), bucket);
+      BigQueryUtil.createResources(bigQuery, storage, config.getDataset(), bucket);
 
-    configuration.set("fs.gs.system.bucket", bucket);
-    configuration.setBoolean("fs.gs.impl.disable.cache", true);
-    configuration.setBoolean("fs.gs.metadata.cache.enable", false);
+      configuration.set("fs.gs.system.bucket", bucket);
+      configuration.setBoolean("fs.gs.impl.disable.cache", true);
+      configuration.setBoolean("fs.gs.metadata.cache.enable", false);
+    }
+    if (context.isPreviewEnabled()) {
+      // the row limit also limits the queries whose results are read, so that previews do not run full queries
+      configuration.setInt(BigQueryConstants.CONFIG_READ_STREAM_COUNT, 1);
+      configuration.setLong(BigQueryConstants.CONFIG_READ_ROW_LIMIT, PREVIEW_ROW_COUNT);
+    } else if (readMode != ReadMode.EXPORT) {
+      configuration.setInt(BigQueryConstants.CONFIG_READ_STREAM_COUNT, config.getReadStreamCount());
+    }
 
     if (config.getServiceAccountFilePath() != null) {
       configuration.set(BigQueryConstants.CONFIG_SERVICE_ACCOUNT_FILE_PATH, config.getServiceAccountFilePath());
     }
-    if (config.getPartitionFrom() != null) {
-      configuration.set(BigQueryConstants.CONFIG_PARTITION_FROM_DATE, config.getPartitionFrom());
+    String filter = config.getFilter();
+    if (config.getWatermarkField() != null) {
+      String watermarkCondition = prepareIncrementalRead(context, bigQuery, credentials, collector);
+      filter = filter == null ? watermarkCondition : String.format("(%s) and %s", filter, watermarkCondition);
     }
-    if (config.getPartitionTo() != null) {
-      configuration.set(BigQueryConstants.CONFIG_PARTITION_TO_DATE, config.getPartitionTo());
+    // the query of several tables selects the rows of every table itself, so its results are read as they are
+    if (!isMultiTableQuery()) {
+      if (config.getPartitionFrom() != null) {
+        configuration.set(BigQueryConstants.CONFIG_PARTITION_FROM_DATE, config.getPartitionFrom());
+      }
+      if (config.getPartitionTo() != null) {
+        configuration.set(BigQueryConstants.CONFIG_PARTITION_TO_DATE, config.getPartitionTo());
+      }
+      if (filter != null) {
+        configuration.set(BigQueryConstants.CONFIG_FILTER, filter);
+      }
+    }
+    configuration.setBoolean(BigQueryConstants.CONFIG_REUSE_QUERY_RESULTS, config.shouldReuseQueryResults());
+    // only the fields of the output schema are read from the table
+    configuration.setStrings(BigQueryConstants.CONFIG_SELECTED_FIELDS, configuredSchema.getFields().stream()
+      .map(Schema.Field::getName).toArray(String[]::new));
+
+    // query jobs also run without a bucket, for example in storage read mode and in previews
+    jobStatisticsPath = bucket == null ? BigQueryJobStatistics.getDefaultDirectory(configuration, uuid.toString())
+      : String.format("gs://%s/hadoop/statistics/%s", bucket, uuid);
+    configuration.set(BigQueryConstants.CONFIG_JOB_STATISTICS_PATH, jobStatisticsPath);
+    if (bucket != null) {
+      String temporaryGcsPath = String.format("gs://%s/hadoop/input/%s", bucket, uuid);
+      PartitionedBigQueryInputFormat.setTemporaryCloudStorageDirectory(configuration, temporaryGcsPath);
+      PartitionedBigQueryInputFormat.setEnableShardedExport(configuration, false);
+    }
+    String table = config.getTable();
+    String sourceQuery = getSourceQuery(configuredSchema, filter, bigQuery);
+    if (sourceQuery != null) {
+      // the input format stores the results of the query in this table, and then reads it like any other table
+      queryTable = "_cdap_query_" + uuid.toString().replace("-", "_");
+      configuration.set(BigQueryConstants.CONFIG_QUERY, sourceQuery);
+      table = queryTable;
     }
-
-    String temporaryGcsPath = String.format("gs://%s/hadoop/input/%s", bucket, uuid);
-    PartitionedBigQueryInputFormat.setTemporaryCloudStorageDirectory(configuration, temporaryGcsPath);
-    PartitionedBigQueryInputFormat.setEnableShardedExport(configuration, false);
     BigQueryConfiguration.configureBigQueryInput(configuration, config.getDatasetProject(),
-                                                 config.getDataset(), config.getTable());
+                                                 config.getDataset(), table);
 
     Job job = Job.getInstance(configuration);
     job.setOutputKeyClass(LongWritable.class);
@@ -188,16 +264,142 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
 
   @Override
   public void onRunFinish(boolean succeeded, BatchSourceContext context) {
-    org.apache.hadoop.fs.Path gcsPath = new org.apache.hadoop.fs.Path(String.format("gs://%s", uuid.toString()));
     try {
-      if (config.getBucket() == null) {
-        FileSystem fs = gcsPath.getFileSystem(configuration);
-        if (fs.exists(gcsPath)) {
-          fs.delete(gcsPath, true);
+      // a preview does not read all new rows, so it never advances the watermark
+      if (succeeded && watermarkStore != null && highWatermark != null && !context.isPreviewEnabled()) {
+        watermarkStore.write(highWatermark);
+        LOG.info("Advanced watermark {} to '{}'.", watermarkStore, highWatermark);
+      }
+    } finally {
+      // clean up even if the watermark could not be stored, the failure is still reported by the run
+      if (queryTable != null) {
+        deleteQueryTable();
+      }
+      BigQueryJobStatistics.emitMetrics(context.getMetrics(), configuration, jobStatisticsPath);
+      if (stagingArea != null) {
+        try {
+          stagingArea.delete();
+        } catch (IOException e) {
+          LOG.warn("Failed to delete exported files under '{}': {}", stagingArea, e.getMessage());
         }
       }
+    }
+  }
+
+  /**
+   * Returns whether several tables, or a table along with its name, are read with a generated query.
+   */
+  private boolean isMultiTableQuery() {
+    return config.getQuery() == null && (config.isMultiTable() || config.getTableNameField() != null);
+  }
+
+  /**
+   * Returns the query that determines the schema of the rows, or null if a single table is read as it is.
+   */
+  @Nullable
+  private String getSourceQuery() {
+    if (config.getQuery() != null) {
+      return config.getQuery();
+    }
+    return isMultiTableQuery() ? PartitionedBigQueryInputFormat.generateMultiTableQuery(
+      config.getDatasetProject(), config.getDataset(), config.getTables(), null, config.getTableNameField()) : null;
+  }
+
+  /**
+   * Returns the query whose results are read, or null if a single table is read as it is. Several tables, or a table
+   * along with its name, are read with a query that selects the fields, partitions and rows of every table.
+   *
+   * @param schema the output schema
+   * @param filter the condition the rows must match, or null to read all rows
+   * @param bigQuery client used to look up the partitioning of the tables
+   */
+  @Nullable
+  private String getSourceQuery(Schema schema, @Nullable String filter, BigQuery bigQuery) {
+    if (!isMultiTableQuery()) {
+      return config.getQuery();
+    }
+    String tableNameField = config.getTableNameField();
+    List<String> selectedFields = schema.getFields().stream()
+      .map(Schema.Field::getName)
+      .filter(name -> !name.equals(tableNameField))
+      .collect(Collectors.toList());
+    Map<String, StandardTableDefinition> tableDefinitions = config.getPartitionFrom() == null
+      && config.getPartitionTo() == null ? Collections.emptyMap() : getTableDefinitions(bigQuery);
+    return PartitionedBigQueryInputFormat.generateMultiTableQuery(
+      config.getDatasetProject(), config.getDataset(), config.getTables(), tableDefinitions,
+      config.getPartitionFrom(), config.getPartitionTo(), filter, selectedFields, tableNameField);
+  }
+
+  /**
+   * Returns the definitions of the tables to read by name. The definition of a wildcard table is the definition of
+   * one of the tables it matches, as all tables of a wildcard are expected to be partitioned the same way.
+   */
+  private Map<String, StandardTableDefinition> getTableDefinitions(BigQuery bigQuery) {
+    Map<String, StandardTableDefinition> definitions = new HashMap<>();
+    List<String> wildcards = new ArrayList<>();
+    for (String table : config.getTables()) {
+      if (table.endsWith("*")) {
+        wildcards.add(table);
+        continue;
+      }
+      Table bqTable = bigQuery.getTable(TableId.of(config.getDatasetProject(), config.getDataset(), table));
+      TableDefinition definition = bqTable == null ? null : bqTable.getDefinition();
+      if (definition instanceof StandardTableDefinition) {
+        definitions.put(table, (StandardTableDefinition) definition);
+      }
+    }
+    if (wildcards.isEmpty()) {
+      return definitions;
+    }
+    for (Table listedTable : bigQuery.listTables(DatasetId.of(config.getDatasetProject(), config.getDataset()))
+      .iterateAll()) {
+      String name = listedTable.getTableId().getTable();
+      List<String> matching = wildcards.stream()
+        .filter(wildcard -> name.startsWith(wildcard.substring(0, wildcard.length() - 1)))
+        .collect(Collectors.toList());
+      if (matching.isEmpty()) {
+        continue;
+      }
+      // listed tables do not have a schema, which is needed to know the type of the partition column
+      Table bqTable = bigQuery.getTable(listedTable.getTableId());
+      TableDefinition definition = bqTable == null ? null : bqTable.getDefinition();
+      if (definition instanceof StandardTableDefinition) {
+        matching.forEach(wildcard -> definitions.put(wildcard, (StandardTableDefinition) definition));
+        wildcards.removeAll(matching);
+      }
+      if (wildcards.isEmpty()) {
+        break;
+      }
+    }
+    return definitions;
+  }
+
+  private void deleteQueryTable() {
+    TableId tableId = TableId.of(config.getDatasetProject(), config.getDataset(), queryTable);
+    try {
+      String serviceAccountPath = config.getServiceAccountFilePath();
+      Credentials credentials = serviceAccountPath == null ?
+        null : GCPUtils.loadServiceAccountCredentials(serviceAccountPath);
+      deleteQueryTable(GCPUtils.getBigQuery(config.getDatasetProject(), credentials), tableId);
     } catch (IOException e) {
-      LOG.warn("Failed to delete bucket " + gcsPath.toUri().getPath() + ", " + e.getMessage());
+      LOG.warn("Failed to delete query results table " + tableId + ", " + e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the table that stores the results of the source query. Failures are only logged, so that they do not
+   * fail a run that has already read the results.
+   *
+   * @param bigQuery client of the project of the dataset
+   * @param tableId the table to delete
+   */
+  public static void deleteQueryTable(BigQuery bigQuery, TableId tableId) {
+    try {
+      if (!bigQuery.delete(tableId)) {
+        LOG.debug("Query results table {} does not exist.", tableId);
+      }
+    } catch (BigQueryException e) {
+      LOG.warn("Failed to delete query results table " + tableId + ", " + e.getMessage());
     }
   }
 
@@ -257,6 +459,18 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
 
   private com.google.cloud.bigquery.Schema getBQSchema(FailureCollector collector) {
     String serviceAccountPath = config.getServiceAccountFilePath();
+    String sourceQuery = getSourceQuery();
+    if (sourceQuery != null) {
+      com.google.cloud.bigquery.Schema querySchema = BigQueryUtil.getQuerySchema(config.getProject(), sourceQuery,
+                                                                                 serviceAccountPath, collector);
+      if (querySchema == null) {
+        collector.addFailure("Cannot read the results of the query because they have no schema.",
+                             "Ensure the query is a select statement.")
+          .withConfigProperty(BigQuerySourceConfig.NAME_QUERY);
+        throw collector.getOrThrowException();
+      }
+      return querySchema;
+    }
     String dataset = config.getDataset();
     String tableName = config.getTable();
     String project = config.getDatasetProject();
@@ -356,6 +570,10 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
   }
 
   private void validatePartitionProperties(FailureCollector collector) {
+    if (getSourceQuery() != null) {
+      // the results of queries are not partitioned, and several tables are each read by their own partitioning
+      return;
+    }
     String project = config.getDatasetProject();
     String dataset = config.getDataset();
     String tableName = config.getTable();
@@ -402,11 +620,71 @@ public final class BigQuerySource extends BatchSource<LongWritable, GenericData.
     }
   }
 
+  private void validateWatermarkField(FailureCollector collector) {
+    String field = config.getWatermarkField();
+    if (config.containsMacro(BigQuerySourceConfig.NAME_WATERMARK_FIELD) || field == null
+      || PartitionedBigQueryInputFormat.DEFAULT_COLUMN_NAME.equals(field)) {
+      return;
+    }
+    Field bqField;
+    try {
+      bqField = getBQSchema(collector).getFields().get(field);
+    } catch (IllegalArgumentException e) {
+      collector.addFailure(String.format("Watermark field '%s' is not present in table '%s:%s.%s'.", field,
+                                         config.getDatasetProject(), config.getDataset(), config.getTable()),
+                           String.format("Set the watermark field to a field of the table or to '%s'.",
+                                         PartitionedBigQueryInputFormat.DEFAULT_COLUMN_NAME))
+        .withConfigProperty(BigQuerySourceConfig.NAME_WATERMARK_FIELD);
+      return;
+    }
+    if (!WATERMARK_TYPES.contains(bqField.getType().getStandardType()) || bqField.getMode() == Field.Mode.REPEATED) {
+      collector.addFailure(String.format("Watermark field '%s' is of unsupported type '%s'.", field,
+                                         bqField.getType().getStandardType().name()),
+                           String.format("Supported watermark field types are: %s.", WATERMARK_TYPES.stream()
+                             .map(Enum::name).collect(Collectors.joining(", "))))
+        .withConfigProperty(BigQuerySourceConfig.NAME_WATERMARK_FIELD);
+    }
+  }
+
+  /**
+   * Reads the watermark of the previous successful run and the current maximum value of the watermark field,
+   * and returns the condition that selects the rows between them.
+   */
+  private String prepareIncrementalRead(BatchSourceContext context, BigQuery bigQuery,
+                                        @Nullable Credentials credentials, FailureCollector collector)
+    throws InterruptedException {
+    String field = config.getWatermarkField();
+    StandardSQLTypeName type = PartitionedBigQueryInputFormat.DEFAULT_COLUMN_NAME.equals(field) ?
+      StandardSQLTypeName.TIMESTAMP : getBQSchema(collector).getFields().get(field).getType().getStandardType();
+
+    watermarkStore = new WatermarkStore(GCPUtils.getStorage(config.getProject(), credentials),
+                                        GCSPath.from(config.getWatermarkPath()), context.getNamespace(),
+                                        context.getPipelineName(), config.referenceName, field);
+    String lowWatermark = watermarkStore.read();
+
+    // rows added after this query are left for the next run
+    String query = PartitionedBigQueryInputFormat.generateWatermarkQuery(config.getDatasetProject(),
+                                                                         config.getDataset(), config.getTable(), field);
+    TableResult result = bigQuery.query(QueryJobConfiguration.newBuilder(query).setUseLegacySql(false).build());
+    FieldValue maxValue = result.iterateAll().iterator().next().get(0);
+    highWatermark = maxValue.isNull() ? null : maxValue.getStringValue();
+    LOG.info("Reading rows of table '{}:{}.{}' with '{}' after '{}' up to '{}'.", config.getDatasetProject(),
+             config.getDataset(), config.getTable(), field, lowWatermark, highWatermark);
+    return PartitionedBigQueryInputFormat.generateWatermarkCondition(field, type, lowWatermark, highWatermark);
+  }
+
   private void setInputFormat(BatchSourceContext context) {
     context.setInput(Input.of(config.referenceName, new InputFormatProvider() {
       @Override
       public String getInputFormatClassName() {
-        return PartitionedBigQueryInputFormat.class.getName();
+        switch (readMode) {
+          case STORAGE_READ:
+            return BigQueryStorageReadInputFormat.class.getName();
+          case SHARDED_EXPORT:
+            return ShardedExportInputFormat.class.getName();
+          default:
+            return PartitionedBigQueryInputFormat.class.getName();
+        }
       }
 
       @Override
@@ -26,10 +26,15 @@ import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.plugin.gcp.common.GCPConfig;
 import io.cdap.plugin.gcp.common.GCPReferenceSourceConfig;
+import io.cdap.plugin.gcp.gcs.GCSPath;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 /**
@@ -43,11 +48,21 @@ public final class BigQuerySourceConfig extends GCPReferenceSourceConfig {
 
   public static final String NAME_DATASET = "dataset";
   public static final String NAME_TABLE = "table";
+  public static final String NAME_QUERY = "query";
+  public static final String NAME_TABLE_NAME_FIELD = "tableNameField";
   public static final String NAME_BUCKET = "bucket";
   public static final String NAME_SCHEMA = "schema";
   public static final String NAME_DATASET_PROJECT = "datasetProject";
   public static final String NAME_PARTITION_FROM = "partitionFrom";
   public static final String NAME_PARTITION_TO = "partitionTo";
+  public static final String NAME_FILTER = "filter";
+  public static final String NAME_REUSE_QUERY_RESULTS = "reuseQueryResults";
+  public static final String NAME_READ_MODE = "readMode";
+  public static final String NAME_READ_STREAM_COUNT = "readStreamCount";
+  public static final String NAME_WATERMARK_FIELD = "watermarkField";
+  public static final String NAME_WATERMARK_PATH = "watermarkPath";
+
+  private static final int DEFAULT_READ_STREAM_COUNT = 10;
 
   @Name(NAME_DATASET)
   @Macro
@@ -57,18 +72,37 @@ public final class BigQuerySourceConfig extends GCPReferenceSourceConfig {
 
   @Name(NAME_TABLE)
   @Macro
+  @Nullable
   @Description("The table to read from. A table contains individual records organized in rows. "
     + "Each record is composed of columns (also called fields). "
-    + "Every table is defined by a schema that describes the column names, data types, and other information.")
+    + "Every table is defined by a schema that describes the column names, data types, and other information. "
+    + "Several tables with the same schema can be read together with a comma separated list of tables, "
+    + "or with a wildcard such as 'events_*'. Required unless a query is given.")
   private String table;
 
+  @Name(NAME_TABLE_NAME_FIELD)
+  @Macro
+  @Nullable
+  @Description("Name of the output field that holds the name of the table that every record was read from.")
+  private String tableNameField;
+
+  @Name(NAME_QUERY)
+  @Macro
+  @Nullable
+  @Description("Standard SQL query whose results are read instead of a table. The results are stored in a temporary "
+    + "table in the dataset, which is deleted after the run finishes. The output schema is derived from a dry run "
+    + "of the query.")
+  private String query;
+
   @Name(NAME_BUCKET)
   @Macro
   @Nullable
   @Description("The Google Cloud Storage bucket to store temporary data in. "
     + "It will be automatically created if it does not exist, but will not be automatically deleted. "
     + "Temporary data will be deleted after it has been read. "
-    + "If it is not provided, a unique bucket will be created and then deleted after the run finishes. "
+    + "If it is not provided, a staging bucket shared by all runs is used, which is created once per project and "
+    + "location and expires its objects after 7 days. Each run uses its own prefix in it, which is deleted after "
+    + "the run finishes. "
     + "The service account must have permission to create buckets in the configured project.")
   private String bucket;
 
@@ -100,12 +134,96 @@ public final class BigQuerySourceConfig extends GCPReferenceSourceConfig {
     "This value is ignored if the table does not support partitioning.")
   private String partitionTo;
 
+  @Name(NAME_FILTER)
+  @Macro
+  @Nullable
+  @Description("Standard SQL condition that the rows to read must match, for example \"country = 'US'\". "
+    + "Rows are filtered in BigQuery before they are read.")
+  private String filter;
+
+  @Name(NAME_REUSE_QUERY_RESULTS)
+  @Macro
+  @Nullable
+  @Description("Whether the rows selected by the partition range, filter and output schema are reused from an "
+    + "earlier run that selected the same rows of the same version of the table, as long as they have not expired. "
+    + "Rows are kept for a day. Only enable this if the filter does not depend on the time it is evaluated at, "
+    + "for example through CURRENT_DATE(). Defaults to false.")
+  private Boolean reuseQueryResults;
+
+  @Name(NAME_READ_MODE)
+  @Macro
+  @Nullable
+  @Description("How records are read from BigQuery. 'export' exports the table to Google Cloud Storage and reads "
+    + "the exported files. 'sharded_export' exports the table in shards and reads every shard while it is being "
+    + "exported. 'storage_read' reads the table directly with the streams of a BigQuery Storage Read API session. "
+    + "Defaults to 'export'.")
+  private String readMode;
+
+  @Name(NAME_READ_STREAM_COUNT)
+  @Macro
+  @Nullable
+  @Description("Maximum number of streams the table is read with in parallel when the read mode is 'storage_read', or "
+    + "number of shards the table is exported into when the read mode is 'sharded_export'. "
+    + "Every stream or shard is read by its own split. Defaults to 10.")
+  private Integer readStreamCount;
+
+  @Name(NAME_WATERMARK_FIELD)
+  @Macro
+  @Nullable
+  @Description("Field that identifies new rows of the table, or '_PARTITIONTIME' for the ingestion time of the rows. "
+    + "If it is set, every run only reads the rows with a value greater than the highest value read by the "
+    + "previous successful run, which is stored in the watermark path.")
+  private String watermarkField;
+
+  @Name(NAME_WATERMARK_PATH)
+  @Macro
+  @Nullable
+  @Description("Google Cloud Storage path to store the watermarks of incremental reads in, "
+    + "for example 'gs://bucket/watermarks'. Every pipeline has its own watermark under this path. "
+    + "Required if a watermark field is set.")
+  private String watermarkPath;
+
+  public BigQuerySourceConfig(String referenceName, String dataset, @Nullable String table, @Nullable String query) {
+    this.referenceName = referenceName;
+    this.dataset = dataset;
+    this.table = table;
+    this.query = query;
+  }
+
   public String getDataset() {
     return dataset;
   }
 
+  @Nullable
   public String getTable() {
-    return table;
+    return Strings.isNullOrEmpty(table) ? null : table;
+  }
+
+  /**
+   * Returns the tables to read, which may contain wildcards.
+   */
+  public List<String> getTables() {
+    return table == null ? Collections.emptyList() : Arrays.stream(table.split(","))
+      .map(String::trim)
+      .filter(name -> !name.isEmpty())
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Returns whether several tables are read, either with a list of tables or with a wildcard.
+   */
+  public boolean isMultiTable() {
+    return table != null && (table.contains(",") || table.contains("*"));
+  }
+
+  @Nullable
+  public String getTableNameField() {
+    return Strings.isNullOrEmpty(tableNameField) ? null : tableNameField.trim();
+  }
+
+  @Nullable
+  public String getQuery() {
+    return Strings.isNullOrEmpty(query) || query.trim().isEmpty() ? null : query.trim();
   }
 
   @Nullable
@@ -142,6 +260,69 @@ public final class BigQuerySourceConfig extends GCPReferenceSourceConfig {
           .withConfigProperty(NAME_BUCKET);
       }
     }
+    validateReadModeProperties(collector);
+    validateWatermarkProperties(collector);
+    validateQueryProperties(collector);
+  }
+
+  private void validateQueryProperties(FailureCollector collector) {
+    if (containsMacro(NAME_TABLE) || containsMacro(NAME_QUERY)) {
+      return;
+    }
+    if (getTable() == null && getQuery() == null) {
+      collector.addFailure("Either a table or a query must be given.", "Set the table or the query to read.")
+        .withConfigProperty(NAME_TABLE).withConfigProperty(NAME_QUERY);
+    } else if (getTable() != null && getQuery() != null) {
+      collector.addFailure("A table and a query cannot both be given.", "Remove the table or the query.")
+        .withConfigProperty(NAME_TABLE).withConfigProperty(NAME_QUERY);
+    } else if (getQuery() != null && !containsMacro(NAME_WATERMARK_FIELD) && getWatermarkField() != null) {
+      collector.addFailure("Incremental reads are not supported for queries.",
+                           "Remove the watermark field, or filter the rows in the query.")
+        .withConfigProperty(NAME_WATERMARK_FIELD);
+    } else if ((isMultiTable() || (!containsMacro(NAME_TABLE_NAME_FIELD) && getTableNameField() != null))
+      && !containsMacro(NAME_WATERMARK_FIELD) && getWatermarkField() != null) {
+      collector.addFailure("Incremental reads are only supported for a single table without a table name field.",
+                           "Remove the watermark field.")
+        .withConfigProperty(NAME_WATERMARK_FIELD);
+    }
+    if (getQuery() != null && !containsMacro(NAME_TABLE_NAME_FIELD) && getTableNameField() != null) {
+      collector.addFailure("A table name field cannot be used with a query.", "Remove the table name field.")
+        .withConfigProperty(NAME_TABLE_NAME_FIELD);
+    }
+  }
+
+  private void validateReadModeProperties(FailureCollector collector) {
+    if (!containsMacro(NAME_READ_MODE) && !Strings.isNullOrEmpty(readMode)
+      && Arrays.stream(ReadMode.values()).map(Enum::name).noneMatch(readMode.toUpperCase()::equals)) {
+      collector.addFailure(String.format("Read mode has incorrect value '%s'.", readMode),
+                           "Set the read mode to 'export', 'sharded_export' or 'storage_read'.")
+        .withConfigProperty(NAME_READ_MODE);
+    }
+    if (!containsMacro(NAME_READ_STREAM_COUNT) && readStreamCount != null && readStreamCount < 1) {
+      collector.addFailure(String.format("Invalid number of read streams '%d'.", readStreamCount),
+                           "Number of read streams must be at least 1.")
+        .withConfigProperty(NAME_READ_STREAM_COUNT);
+    }
+  }
+
+  private void validateWatermarkProperties(FailureCollector collector) {
+    if (containsMacro(NAME_WATERMARK_FIELD) || getWatermarkField() == null || containsMacro(NAME_WATERMARK_PATH)) {
+      return;
+    }
+    String path = getWatermarkPath();
+    if (path == null) {
+      collector.addFailure("Watermark path must be set for incremental reads.",
+                           "Set the watermark path or remove the watermark field.")
+        .withConfigProperty(NAME_WATERMARK_PATH);
+      return;
+    }
+    try {
+      GCSPath.from(path);
+    } catch (IllegalArgumentException e) {
+      collector.addFailure(String.format("Invalid watermark path '%s': %s", path, e.getMessage()),
+                           "Set the watermark path to a path of the form 'gs://bucket/dir'.")
+        .withConfigProperty(NAME_WATERMARK_PATH);
+    }
   }
 
   /**
@@ -168,12 +349,39 @@ public final class BigQuerySourceConfig extends GCPReferenceSourceConfig {
     return Strings.isNullOrEmpty(partitionTo) ? null : partitionTo;
   }
 
+  @Nullable
+  public String getFilter() {
+    return Strings.isNullOrEmpty(filter) || filter.trim().isEmpty() ? null : filter.trim();
+  }
+
+  public ReadMode getReadMode() {
+    return Strings.isNullOrEmpty(readMode) ? ReadMode.EXPORT : ReadMode.valueOf(readMode.toUpperCase());
+  }
+
+  public boolean shouldReuseQueryResults() {
+    return reuseQueryResults == null ? false : reuseQueryResults;
+  }
+
+  public int getReadStreamCount() {
+    return readStreamCount == null ? DEFAULT_READ_STREAM_COUNT : readStreamCount;
+  }
+
+  @Nullable
+  public String getWatermarkField() {
+    return Strings.isNullOrEmpty(watermarkField) ? null : watermarkField.trim();
+  }
+
+  @Nullable
+  public String getWatermarkPath() {
+    return Strings.isNullOrEmpty(watermarkPath) ? null : watermarkPath.trim();
+  }
+
   /**
    * Returns true if bigquery table can be connected and schema is not a macro.
    */
   public boolean canConnect() {
     return !containsMacro(NAME_SCHEMA) && !containsMacro(NAME_DATASET) && !containsMacro(NAME_TABLE) &&
-      !containsMacro(NAME_DATASET_PROJECT) && !containsMacro(NAME_SERVICE_ACCOUNT_FILE_PATH) &&
-      !containsMacro(NAME_PROJECT);
+      !containsMacro(NAME_QUERY) && !containsMacro(NAME_DATASET_PROJECT) &&
+      !containsMacro(NAME_SERVICE_ACCOUNT_FILE_PATH) && !containsMacro(NAME_PROJECT);
   }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import com.google.api.gax.rpc.ServerStream;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.storage.v1.BigQueryReadClient;
+import com.google.cloud.bigquery.storage.v1.CreateReadSessionRequest;
+import com.google.cloud.bigquery.storage.v1.DataFormat;
+import com.google.cloud.bigquery.storage.v1.ReadRowsRequest;
+import com.google.cloud.bigquery.storage.v1.ReadRowsResponse;
+import com.google.cloud.bigquery.storage.v1.ReadSession;
+import com.google.cloud.bigquery.storage.v1.ReadStream;
+import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
+import com.google.cloud.hadoop.io.bigquery.BigQueryFactory;
+import com.google.cloud.hadoop.io.bigquery.BigQueryHelper;
+import com.google.cloud.hadoop.util.ConfigurationUtil;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
+import org.apache.avro.generic.GenericData;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Input format for the {@link ReadMode#STORAGE_READ} read mode. The table is read directly from BigQuery with the
+ * BigQuery Storage Read API, so nothing is exported to Google Cloud Storage. A read session is created for the table
+ * with up to the configured number of streams, and every stream of the session is read by its own split.
+ * Only the selected fields are read, and the partition range and the filter are evaluated by the read session as its
+ * row restriction. If a row limit is configured, as it is in preview, every stream stops after that many rows.
+ */
+public class BigQueryStorageReadInputFormat extends InputFormat<LongWritable, GenericData.Record> {
+  private static final Logger LOG = LoggerFactory.getLogger(BigQueryStorageReadInputFormat.class);
+
+  private static final int DEFAULT_READ_STREAM_COUNT = 10;
+
+  @Override
+  public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+    Configuration configuration = context.getConfiguration();
+    // the results of a source query are stored in the input table first, everything else is done by the session
+    PartitionedBigQueryInputFormat.processSourceQuery(configuration, getBigQueryHelper(configuration));
+
+    Map<String, String> mandatoryConfig = ConfigurationUtil.getMandatoryConfig(
+      configuration, BigQueryConfiguration.MANDATORY_CONFIG_PROPERTIES_INPUT);
+    String project = mandatoryConfig.get(BigQueryConfiguration.INPUT_PROJECT_ID_KEY);
+    String dataset = mandatoryConfig.get(BigQueryConfiguration.INPUT_DATASET_ID_KEY);
+    String table = mandatoryConfig.get(BigQueryConfiguration.INPUT_TABLE_ID_KEY);
+    String serviceFilePath = configuration.get(BigQueryConstants.CONFIG_SERVICE_ACCOUNT_FILE_PATH, null);
+    Table sourceTable = BigQueryUtil.getBigQueryTable(project, dataset, table, serviceFilePath);
+    StandardTableDefinition tableDefinition = Objects.requireNonNull(sourceTable).getDefinition();
+
+    ReadSession.TableReadOptions.Builder readOptions = ReadSession.TableReadOptions.newBuilder()
+      .addAllSelectedFields(getSelectedFields(tableDefinition, configuration));
+    String rowRestriction = PartitionedBigQueryInputFormat.generateRowRestriction(
+      tableDefinition, configuration.get(BigQueryConstants.CONFIG_PARTITION_FROM_DATE, null),
+      configuration.get(BigQueryConstants.CONFIG_PARTITION_TO_DATE, null),
+      configuration.get(BigQueryConstants.CONFIG_FILTER, null));
+    if (rowRestriction != null) {
+      readOptions.setRowRestriction(rowRestriction);
+    }
+    // the session is billed to the project the job runs in, which may differ from the project of the table
+    String jobProject = ConfigurationUtil.getMandatoryConfig(configuration, BigQueryConfiguration.PROJECT_ID_KEY);
+    CreateReadSessionRequest request = CreateReadSessionRequest.newBuilder()
+      .setParent("projects/" + jobProject)
+      .setReadSession(ReadSession.newBuilder()
+                        .setTable(String.format("projects/%s/datasets/%s/tables/%s", project, dataset, table))
+                        .setDataFormat(DataFormat.AVRO)
+                        .setReadOptions(readOptions))
+      .setMaxStreamCount(configuration.getInt(BigQueryConstants.CONFIG_READ_STREAM_COUNT, DEFAULT_READ_STREAM_COUNT))
+      .build();
+
+    ReadSession session;
+    try (BigQueryReadClient client = BigQueryUtil.getBigQueryReadClient(serviceFilePath)) {
+      session = client.createReadSession(request);
+    }
+    // an empty table, or a table without any row that matches the restriction, has no streams
+    List<InputSplit> splits = new ArrayList<>(session.getStreamsCount());
+    for (ReadStream stream : session.getStreamsList()) {
+      splits.add(new ReadStreamSplit(stream.getName(), session.getAvroSchema().getSchema()));
+    }
+    LOG.info("Reading table '{}:{}.{}' with {} read streams of session '{}'.", project, dataset, table,
+             splits.size(), session.getName());
+    return splits;
+  }
+
+  /**
+   * Returns the selected fields that are in the table, or an empty list to read all fields.
+   */
+  private static List<String> getSelectedFields(StandardTableDefinition tableDefinition, Configuration configuration) {
+    Set<String> selected = new HashSet<>(Arrays.asList(
+      configuration.getTrimmedStrings(BigQueryConstants.CONFIG_SELECTED_FIELDS)));
+    if (selected.isEmpty() || tableDefinition.getSchema() == null) {
+      return new ArrayList<>();
+    }
+    return tableDefinition.getSchema().getFields().stream()
+      .map(Field::getName)
+      .filter(selected::contains)
+      .collect(Collectors.toList());
+  }
+
+  @Override
+  public RecordReader<LongWritable, GenericData.Record> createRecordReader(InputSplit split,
+                                                                           TaskAttemptContext context)
+    throws IOException {
+    Configuration configuration = context.getConfiguration();
+    BigQueryReadClient client = BigQueryUtil.getBigQueryReadClient(
+      configuration.get(BigQueryConstants.CONFIG_SERVICE_ACCOUNT_FILE_PATH, null));
+    return new ReadStreamRecordReader(new ClientStreamReader(client),
+                                      configuration.getLong(BigQueryConstants.CONFIG_READ_ROW_LIMIT, -1L));
+  }
+
+  private static BigQueryHelper getBigQueryHelper(Configuration configuration) throws IOException {
+    try {
+      return new BigQueryFactory().getBigQueryHelper(configuration);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to create BigQuery client", e);
+    }
+  }
+
+  /**
+   * Reads a stream with a {@link BigQueryReadClient}, which resumes the stream at the last row it received if the
+   * connection fails.
+   */
+  private static final class ClientStreamReader implements ReadStreamRecordReader.StreamReader {
+    private final BigQueryReadClient client;
+    private ServerStream<ReadRowsResponse> responses;
+
+    private ClientStreamReader(BigQueryReadClient client) {
+      this.client = client;
+    }
+
+    @Override
+    public Iterator<ReadRowsResponse> readRows(String stream) {
+      responses = client.readRowsCallable().call(ReadRowsRequest.newBuilder().setReadStream(stream).build());
+      return responses.iterator();
+    }
+
+    @Override
+    public void close() {
+      // the stream is cancelled if it was not read to the end, for example because of a row limit
+      if (responses != null) {
+        responses.cancel();
+      }
+      client.close();
+    }
+  }
+}
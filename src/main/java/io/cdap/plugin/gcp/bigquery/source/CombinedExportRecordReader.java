@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Reads the files of a {@link CombinedExportSplit} one after the other, each with its own record reader.
+ */
+public class CombinedExportRecordReader extends RecordReader<LongWritable, GenericData.Record> {
+
+  private final Supplier<RecordReader<LongWritable, GenericData.Record>> readerFactory;
+  private List<FileSplit> splits;
+  private TaskAttemptContext context;
+  private int nextSplit;
+  private long totalLength;
+  private long completedLength;
+  private RecordReader<LongWritable, GenericData.Record> reader;
+
+  public CombinedExportRecordReader(Supplier<RecordReader<LongWritable, GenericData.Record>> readerFactory) {
+    this.readerFactory = readerFactory;
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context) {
+    CombinedExportSplit combinedSplit = (CombinedExportSplit) split;
+    this.splits = combinedSplit.getSplits();
+    this.totalLength = combinedSplit.getLength();
+    this.context = context;
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (true) {
+      if (reader != null) {
+        if (reader.nextKeyValue()) {
+          return true;
+        }
+        reader.close();
+        reader = null;
+        completedLength += splits.get(nextSplit - 1).getLength();
+      }
+      if (nextSplit == splits.size()) {
+        return false;
+      }
+      reader = readerFactory.get();
+      reader.initialize(splits.get(nextSplit++), context);
+    }
+  }
+
+  @Override
+  public LongWritable getCurrentKey() throws IOException, InterruptedException {
+    return reader.getCurrentKey();
+  }
+
+  @Override
+  public GenericData.Record getCurrentValue() throws IOException, InterruptedException {
+    return reader.getCurrentValue();
+  }
+
+  @Override
+  public float getProgress() throws IOException, InterruptedException {
+    if (totalLength == 0) {
+      return nextSplit == splits.size() && reader == null ? 1f : 0f;
+    }
+    long length = completedLength;
+    if (reader != null) {
+      length += (long) (reader.getProgress() * splits.get(nextSplit - 1).getLength());
+    }
+    return Math.min(1f, (float) length / totalLength);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+}
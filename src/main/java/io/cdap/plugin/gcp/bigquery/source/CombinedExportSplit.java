@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Input split that combines several small exported files, which are read one after the other.
+ */
+public class CombinedExportSplit extends InputSplit implements Writable {
+
+  private List<FileSplit> splits;
+
+  public CombinedExportSplit() {
+    // is needed for Hadoop deserialization
+  }
+
+  public CombinedExportSplit(List<FileSplit> splits) {
+    this.splits = new ArrayList<>(splits);
+  }
+
+  @Override
+  public void write(DataOutput dataOutput) throws IOException {
+    dataOutput.writeInt(splits.size());
+    for (FileSplit split : splits) {
+      split.write(dataOutput);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput dataInput) throws IOException {
+    int size = dataInput.readInt();
+    splits = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      FileSplit split = new FileSplit();
+      split.readFields(dataInput);
+      splits.add(split);
+    }
+  }
+
+  @Override
+  public long getLength() {
+    long length = 0;
+    for (FileSplit split : splits) {
+      length += split.getLength();
+    }
+    return length;
+  }
+
+  @Override
+  public String[] getLocations() {
+    return new String[0];
+  }
+
+  public List<FileSplit> getSplits() {
+    return Collections.unmodifiableList(splits);
+  }
+
+  @Override
+  public String toString() {
+    return splits.toString();
+  }
+}
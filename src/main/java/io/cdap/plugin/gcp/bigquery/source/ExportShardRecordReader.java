@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Reads the files of an {@link ExportShardSplit} while the export job is still writing them.
+ *
+ * The export job writes the files of a shard as data-000000000000.avro, data-000000000001.avro and so on, and ends
+ * every shard with a file that contains no records. Files are read in that order as soon as they appear. When the
+ * next file does not exist yet, the reader waits for it unless the export job has finished, in which case no more
+ * files will be written. The current record is reused for the next record of the shard.
+ */
+public class ExportShardRecordReader extends RecordReader<LongWritable, GenericData.Record> {
+  private static final Logger LOG = LoggerFactory.getLogger(ExportShardRecordReader.class);
+
+  private static final String FILE_NAME_FORMAT = "data-%012d.avro";
+
+  private final ExportStatus exportStatus;
+  private final long pollIntervalMillis;
+  private final LongWritable key = new LongWritable();
+  private FileSystem fileSystem;
+  private Path shardPath;
+  private int fileIndex;
+  private long recordIndex;
+  private long fileRecords;
+  private DataFileStream<GenericData.Record> fileReader;
+  private GenericData.Record value;
+  private boolean finished;
+
+  public ExportShardRecordReader(ExportStatus exportStatus, long pollIntervalMillis) {
+    this.exportStatus = exportStatus;
+    this.pollIntervalMillis = pollIntervalMillis;
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+    shardPath = new Path(((ExportShardSplit) split).getShardPath());
+    fileSystem = shardPath.getFileSystem(context.getConfiguration());
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (!finished) {
+      if (fileReader != null) {
+        if (fileReader.hasNext()) {
+          value = fileReader.next(value);
+          fileRecords++;
+          key.set(recordIndex++);
+          return true;
+        }
+        fileReader.close();
+        fileReader = null;
+        // a file without records marks the end of the shard
+        finished = fileRecords == 0;
+        continue;
+      }
+
+      Path file = new Path(shardPath, String.format(FILE_NAME_FORMAT, fileIndex));
+      if (fileSystem.exists(file)) {
+        openFile(file);
+      } else if (exportStatus.isDone()) {
+        // the file may have been written between the check for it and the check of the job
+        if (fileSystem.exists(file)) {
+          openFile(file);
+        } else {
+          finished = true;
+        }
+      } else {
+        Thread.sleep(pollIntervalMillis);
+      }
+    }
+    return false;
+  }
+
+  private void openFile(Path file) throws IOException {
+    LOG.debug("Reading exported file {}", file);
+    fileReader = new DataFileStream<>(fileSystem.open(file), new GenericDatumReader<>());
+    fileIndex++;
+    fileRecords = 0;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    return key;
+  }
+
+  @Override
+  public GenericData.Record getCurrentValue() {
+    return value;
+  }
+
+  @Override
+  public float getProgress() {
+    // the number of records of the shard is not known until the export finishes
+    return finished ? 1f : 0f;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (fileReader != null) {
+      fileReader.close();
+      fileReader = null;
+    }
+  }
+
+  /**
+   * Status of the export job that writes the shards.
+   */
+  public interface ExportStatus {
+    /**
+     * Returns whether the export job has finished, and throws an exception if it has failed.
+     */
+    boolean isDone() throws IOException;
+  }
+}
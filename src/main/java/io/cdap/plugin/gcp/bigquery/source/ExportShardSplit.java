@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Input split of the {@link ReadMode#SHARDED_EXPORT} read mode. Every split is one shard of a running export job,
+ * which is a directory that the export job writes a sequence of files into.
+ */
+public class ExportShardSplit extends InputSplit implements Writable {
+
+  private String project;
+  private String jobId;
+  private String location;
+  private String shardPath;
+
+  public ExportShardSplit() {
+    // is needed for Hadoop deserialization
+  }
+
+  public ExportShardSplit(String project, String jobId, String location, String shardPath) {
+    this.project = project;
+    this.jobId = jobId;
+    this.location = location;
+    this.shardPath = shardPath;
+  }
+
+  @Override
+  public void write(DataOutput dataOutput) throws IOException {
+    dataOutput.writeUTF(project);
+    dataOutput.writeUTF(jobId);
+    dataOutput.writeUTF(location);
+    dataOutput.writeUTF(shardPath);
+  }
+
+  @Override
+  public void readFields(DataInput dataInput) throws IOException {
+    project = dataInput.readUTF();
+    jobId = dataInput.readUTF();
+    location = dataInput.readUTF();
+    shardPath = dataInput.readUTF();
+  }
+
+  @Override
+  public long getLength() {
+    // the size of the shard is not known until the export finishes
+    return 0;
+  }
+
+  @Override
+  public String[] getLocations() {
+    return new String[0];
+  }
+
+  public String getProject() {
+    return project;
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public String getShardPath() {
+    return shardPath;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (export job %s)", shardPath, jobId);
+  }
+}
@@ -6,7 +6,9 @@ import com.google.api.services.bigquery.model.JobConfigurationQuery;
 import com.google.api.services.bigquery.model.JobReference;
 import com.google.api.services.bigquery.model.Table;
 import com.google.api.services.bigquery.model.TableReference;
+import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.TimePartitioning;
 import com.google.cloud.hadoop.io.bigquery.AbstractBigQueryInputFormat;
@@ -18,11 +20,14 @@ import com.google.cloud.hadoop.io.bigquery.BigQueryUtils;
 import com.google.cloud.hadoop.io.bigquery.ExportFileFormat;
 import com.google.cloud.hadoop.util.ConfigurationUtil;
 import com.google.common.base.Preconditions;
-import com.sun.istack.Nullable;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryJobStatistics;
 import io.cdap.plugin.gcp.bigquery.util.BigQueryUtil;
 import org.apache.avro.generic.GenericData;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -31,20 +36,35 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.Progressable;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * BigQuery input format, splits query from the configuration into list of queries
  * in order to create input splits.
  */
 public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<LongWritable, GenericData.Record> {
-  private static final String DEFAULT_COLUMN_NAME = "_PARTITIONTIME";
+  static final String DEFAULT_COLUMN_NAME = "_PARTITIONTIME";
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionedBigQueryInputFormat.class);
+  private static final long DEFAULT_TARGET_SPLIT_SIZE = 128 * 1024 * 1024L;
+  // reused query results must be available for at least this long, so that the run can read them before they expire
+  private static final int REUSE_MIN_REMAINING_HOURS = 2;
 
   private InputFormat<LongWritable, GenericData.Record> delegateInputFormat =
     new AvroBigQueryInputFormat();
@@ -58,7 +78,59 @@ public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<
   public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
     processQuery(context);
 
-    return delegateInputFormat.getSplits(context);
+    long targetSplitSize = context.getConfiguration().getLong(BigQueryConstants.CONFIG_TARGET_SPLIT_SIZE,
+                                                              DEFAULT_TARGET_SPLIT_SIZE);
+    return planSplits(delegateInputFormat.getSplits(context), targetSplitSize);
+  }
+
+  /**
+   * Plans splits of about the target size from the splits of the exported files, independent of how the export
+   * sharded the table. Files larger than the target size are divided into ranges of nearly equal size, each of which
+   * is read from the first Avro sync marker in the range. Smaller files are combined. Splits that are not file splits
+   * are kept as they are.
+   */
+  public static List<InputSplit> planSplits(List<InputSplit> splits, long targetSplitSize) {
+    // the files may already have been split, so the length of every file is recovered from its splits
+    Map<Path, Long> fileLengths = new LinkedHashMap<>();
+    List<InputSplit> plannedSplits = new ArrayList<>();
+    for (InputSplit split : splits) {
+      if (split instanceof FileSplit) {
+        FileSplit fileSplit = (FileSplit) split;
+        fileLengths.merge(fileSplit.getPath(), fileSplit.getStart() + fileSplit.getLength(), Math::max);
+      } else {
+        plannedSplits.add(split);
+      }
+    }
+
+    List<FileSplit> smallFiles = new ArrayList<>();
+    long smallFilesLength = 0;
+    for (Map.Entry<Path, Long> file : fileLengths.entrySet()) {
+      long length = file.getValue();
+      if (length >= targetSplitSize) {
+        long count = Math.round((double) length / targetSplitSize);
+        for (long i = 0; i < count; i++) {
+          long start = length * i / count;
+          long end = length * (i + 1) / count;
+          plannedSplits.add(new FileSplit(file.getKey(), start, end - start, new String[0]));
+        }
+        continue;
+      }
+      if (!smallFiles.isEmpty() && smallFilesLength + length > targetSplitSize) {
+        plannedSplits.add(combine(smallFiles));
+        smallFiles = new ArrayList<>();
+        smallFilesLength = 0;
+      }
+      smallFiles.add(new FileSplit(file.getKey(), 0, length, new String[0]));
+      smallFilesLength += length;
+    }
+    if (!smallFiles.isEmpty()) {
+      plannedSplits.add(combine(smallFiles));
+    }
+    return plannedSplits;
+  }
+
+  private static InputSplit combine(List<FileSplit> files) {
+    return files.size() == 1 ? files.get(0) : new CombinedExportSplit(files);
   }
 
 
@@ -66,6 +138,9 @@ public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<
   public RecordReader<LongWritable, GenericData.Record> createDelegateRecordReader(InputSplit split,
                                                                                    Configuration configuration)
     throws IOException, InterruptedException {
+    if (split instanceof CombinedExportSplit) {
+      return new CombinedExportRecordReader(AvroRecordReader::new);
+    }
     Preconditions.checkState(
       split instanceof FileSplit, "AvroBigQueryInputFormat requires FileSplit input splits");
     return new AvroRecordReader();
@@ -79,48 +154,243 @@ public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<
     } catch (GeneralSecurityException gse) {
       throw new IOException("Failed to create BigQuery client", gse);
     }
+    processQuery(configuration, bigQueryHelper);
+  }
+
+  /**
+   * Materializes the results of the configured source query into the input table, if there is one.
+   * Then materializes the rows of the configured partition range and filter into a temporary table, and updates the
+   * input table in the configuration to the temporary table. Only the selected fields are materialized.
+   * Nothing is done if the whole table is read.
+   */
+  static void processQuery(Configuration configuration,
+                           BigQueryHelper bigQueryHelper) throws IOException, InterruptedException {
     Map<String, String> mandatoryConfig = ConfigurationUtil.getMandatoryConfig(
       configuration, BigQueryConfiguration.MANDATORY_CONFIG_PROPERTIES_INPUT);
     String inputProjectId = mandatoryConfig.get(BigQueryConfiguration.INPUT_PROJECT_ID_KEY);
     String datasetId = mandatoryConfig.get(BigQueryConfiguration.INPUT_DATASET_ID_KEY);
     String tableName = mandatoryConfig.get(BigQueryConfiguration.INPUT_TABLE_ID_KEY);
     String serviceFilePath = configuration.get(BigQueryConstants.CONFIG_SERVICE_ACCOUNT_FILE_PATH, null);
+    String sourceQuery = processSourceQuery(configuration, bigQueryHelper);
 
     String partitionFromDate = configuration.get(BigQueryConstants.CONFIG_PARTITION_FROM_DATE, null);
     String partitionToDate = configuration.get(BigQueryConstants.CONFIG_PARTITION_TO_DATE, null);
+    String filter = configuration.get(BigQueryConstants.CONFIG_FILTER, null);
+    String[] selectedFields = configuration.getTrimmedStrings(BigQueryConstants.CONFIG_SELECTED_FIELDS);
 
-    String query = generateQuery(partitionFromDate, partitionToDate, inputProjectId, datasetId, tableName,
-                                 serviceFilePath);
+    com.google.cloud.bigquery.Table sourceTable = BigQueryUtil.getBigQueryTable(inputProjectId, datasetId, tableName,
+                                                                                serviceFilePath);
+    StandardTableDefinition tableDefinition = Objects.requireNonNull(sourceTable).getDefinition();
+    String query = generateQuery(tableDefinition, datasetId, tableName, partitionFromDate, partitionToDate, filter,
+                                 selectedFields.length == 0 ? null : Arrays.asList(selectedFields));
+    long rowLimit = configuration.getLong(BigQueryConstants.CONFIG_READ_ROW_LIMIT, -1L);
+    if (query != null && rowLimit >= 0) {
+      query = limitQuery(query, rowLimit);
+    }
 
     if (query != null) {
-      TableReference sourceTable = new TableReference()
+      TableReference sourceTableReference = new TableReference()
         .setDatasetId(datasetId)
         .setProjectId(inputProjectId)
         .setTableId(tableName);
-      String location = bigQueryHelper.getTable(sourceTable).getLocation();
-      String temporaryTableName = tableName + "_" + UUID.randomUUID().toString().replaceAll("-", "_");
+      String location = bigQueryHelper.getTable(sourceTableReference).getLocation();
+      // the results are only the same for the same version of the table, which is not known while it is streamed into
+      boolean reuseResults = configuration.getBoolean(BigQueryConstants.CONFIG_REUSE_QUERY_RESULTS, false)
+        && sourceQuery == null && sourceTable.getLastModifiedTime() != null
+        && tableDefinition.getStreamingBuffer() == null;
+      String temporaryTableName = reuseResults
+        ? getReusableTableName(inputProjectId, tableName, query, sourceTable.getLastModifiedTime())
+        : tableName + "_" + UUID.randomUUID().toString().replaceAll("-", "_");
       TableReference exportTableReference = new TableReference()
         .setDatasetId(datasetId)
         .setProjectId(inputProjectId)
         .setTableId(temporaryTableName);
-      runQuery(bigQueryHelper, inputProjectId, exportTableReference, query, location);
+      if (reuseResults && isReusable(bigQueryHelper, exportTableReference)) {
+        LOG.info("Reusing the results of query '{}' stored in table '{}'.", query, temporaryTableName);
+      } else {
+        // a table with reusable results may exist but expire too soon, in which case it is replaced
+        runQuery(configuration, bigQueryHelper, inputProjectId, exportTableReference, query, location,
+                 reuseResults ? "WRITE_TRUNCATE" : "WRITE_EMPTY");
+      }
       configuration.set(BigQueryConfiguration.INPUT_TABLE_ID_KEY, temporaryTableName);
     }
   }
 
-  private String generateQuery(String partitionFromDate, String partitionToDate, String project, String dataset,
-                               String table, @Nullable String serviceFilePath) {
-    if (partitionFromDate == null && partitionToDate == null) {
+  /**
+   * Materializes the results of the configured source query into the input table, if there is one, so that the
+   * input table can be read like any other table.
+   *
+   * @return the source query, or null if there is none
+   */
+  @Nullable
+  static String processSourceQuery(Configuration configuration,
+                                   BigQueryHelper bigQueryHelper) throws IOException, InterruptedException {
+    String sourceQuery = configuration.get(BigQueryConstants.CONFIG_QUERY, null);
+    if (sourceQuery == null) {
       return null;
     }
-    String queryTemplate = "select * from %s where %s";
-    com.google.cloud.bigquery.Table sourceTable = BigQueryUtil.getBigQueryTable(project, dataset, table,
-                                                                                serviceFilePath);
-    StandardTableDefinition tableDefinition = Objects.requireNonNull(sourceTable).getDefinition();
-    TimePartitioning timePartitioning = tableDefinition.getTimePartitioning();
-    if (timePartitioning == null) {
+    // rows after the read limit are never read, so the query does not need to produce them
+    long rowLimit = configuration.getLong(BigQueryConstants.CONFIG_READ_ROW_LIMIT, -1L);
+    if (rowLimit >= 0) {
+      sourceQuery = limitQuery(sourceQuery, rowLimit);
+    }
+    Map<String, String> mandatoryConfig = ConfigurationUtil.getMandatoryConfig(
+      configuration, BigQueryConfiguration.MANDATORY_CONFIG_PROPERTIES_INPUT);
+    String inputProjectId = mandatoryConfig.get(BigQueryConfiguration.INPUT_PROJECT_ID_KEY);
+    String datasetId = mandatoryConfig.get(BigQueryConfiguration.INPUT_DATASET_ID_KEY);
+    String location = bigQueryHelper.getRawBigquery().datasets().get(inputProjectId, datasetId).execute()
+      .getLocation();
+    TableReference queryTableReference = new TableReference()
+      .setDatasetId(datasetId)
+      .setProjectId(inputProjectId)
+      .setTableId(mandatoryConfig.get(BigQueryConfiguration.INPUT_TABLE_ID_KEY));
+    runQuery(configuration, bigQueryHelper, inputProjectId, queryTableReference, sourceQuery, location);
+    return sourceQuery;
+  }
+
+  /**
+   * Limits the number of rows returned by a query. The query is used as a subquery, so that it may have its own
+   * limit, ordering or trailing comment.
+   *
+   * @param query the query to limit, which may end with a semicolon
+   * @param rowLimit the maximum number of rows to return
+   * @return the limited query
+   */
+  public static String limitQuery(String query, long rowLimit) {
+    String subquery = query.trim();
+    while (subquery.endsWith(";")) {
+      subquery = subquery.substring(0, subquery.length() - 1).trim();
+    }
+    return String.format("select * from (\n%s\n) limit %d", subquery, rowLimit);
+  }
+
+  /**
+   * Returns the name of the table that stores the results of a query of a version of a table. Queries that only
+   * differ in whitespace outside of quotes have the same name.
+   *
+   * @param project project the query runs in
+   * @param table name of the table
+   * @param query query of the table
+   * @param lastModifiedTime last modification time of the table, which identifies its version
+   * @return the name of the table that stores the results
+   */
+  public static String getReusableTableName(String project, String table, String query, long lastModifiedTime) {
+    String key = String.join("\n", project, normalizeQuery(query), Long.toString(lastModifiedTime));
+    return table + "_cache_" + Hashing.sha256().hashString(key, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Collapses every run of whitespace outside of string literals and quoted identifiers into a single space.
+   */
+  private static String normalizeQuery(String query) {
+    StringBuilder normalized = new StringBuilder(query.length());
+    char quote = 0;
+    boolean whitespace = false;
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (quote == 0 && Character.isWhitespace(c)) {
+        whitespace = true;
+        continue;
+      }
+      if (whitespace && normalized.length() > 0) {
+        normalized.append(' ');
+      }
+      whitespace = false;
+      normalized.append(c);
+      if (quote == 0 && (c == '\'' || c == '"' || c == '`')) {
+        quote = c;
+      } else if (quote != 0 && c == '\\' && i + 1 < query.length()) {
+        normalized.append(query.charAt(++i));
+      } else if (c == quote) {
+        quote = 0;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Returns whether the table exists and does not expire before the run is expected to have read it.
+   */
+  private static boolean isReusable(BigQueryHelper bigQueryHelper, TableReference tableReference) throws IOException {
+    if (!bigQueryHelper.tableExists(tableReference)) {
+      return false;
+    }
+    Long expirationTime = bigQueryHelper.getTable(tableReference).getExpirationTime();
+    return expirationTime == null || expirationTime > DateTime.now().plusHours(REUSE_MIN_REMAINING_HOURS).getMillis();
+  }
+
+  /**
+   * Generates the query that selects the given fields of the rows in the partition range that match the filter.
+   * No query is generated just to leave out fields, since such a query is billed for the bytes of the selected
+   * fields while the table could be read without one.
+   *
+   * @param tableDefinition definition of the table to read
+   * @param dataset dataset of the table
+   * @param table name of the table
+   * @param partitionFromDate inclusive start of the partition range, ignored if the table is not partitioned
+   * @param partitionToDate exclusive end of the partition range, ignored if the table is not partitioned
+   * @param filter SQL condition that the rows must match
+   * @param selectedFields top level fields to select, or null to select all fields
+   * @return the query, or null if no rows are filtered out
+   */
+  @Nullable
+  public static String generateQuery(StandardTableDefinition tableDefinition, String dataset, String table,
+                                     @Nullable String partitionFromDate, @Nullable String partitionToDate,
+                                     @Nullable String filter, @Nullable List<String> selectedFields) {
+    String rowRestriction = generateRowRestriction(tableDefinition, partitionFromDate, partitionToDate, filter);
+    if (rowRestriction == null) {
       return null;
     }
+
+    // only project when it removes fields, as selecting all of them by name is the same as reading the whole table
+    List<String> projectedFields = null;
+    if (selectedFields != null && tableDefinition.getSchema() != null) {
+      Set<String> selected = new HashSet<>(selectedFields);
+      List<String> tableFields = tableDefinition.getSchema().getFields().stream()
+        .map(Field::getName)
+        .collect(Collectors.toList());
+      if (!selected.containsAll(tableFields)) {
+        projectedFields = tableFields.stream().filter(selected::contains).collect(Collectors.toList());
+      }
+    }
+
+    String selection = projectedFields == null ? "*"
+      : projectedFields.stream().map(name -> "`" + name + "`").collect(Collectors.joining(", "));
+    StringBuilder query = new StringBuilder("select ").append(selection)
+      .append(" from ").append(dataset).append(".").append(table)
+      .append(" where ").append(rowRestriction);
+    return query.toString();
+  }
+
+  /**
+   * Generates the condition that selects the rows in the partition range that match the filter.
+   *
+   * @param tableDefinition definition of the table to read
+   * @param partitionFromDate inclusive start of the partition range, ignored if the table is not partitioned
+   * @param partitionToDate exclusive end of the partition range, ignored if the table is not partitioned
+   * @param filter SQL condition that the rows must match
+   * @return the condition, or null if all rows are selected
+   */
+  @Nullable
+  public static String generateRowRestriction(StandardTableDefinition tableDefinition,
+                                              @Nullable String partitionFromDate, @Nullable String partitionToDate,
+                                              @Nullable String filter) {
+    List<String> conditions = new ArrayList<>();
+    TimePartitioning timePartitioning = tableDefinition.getTimePartitioning();
+    if (timePartitioning != null && (partitionFromDate != null || partitionToDate != null)) {
+      conditions.add(generatePartitionCondition(tableDefinition, timePartitioning, partitionFromDate,
+                                                partitionToDate));
+    }
+    if (!Strings.isNullOrEmpty(filter)) {
+      conditions.add("(" + filter + ")");
+    }
+    return conditions.isEmpty() ? null : String.join(" and ", conditions);
+  }
+
+  private static String generatePartitionCondition(StandardTableDefinition tableDefinition,
+                                                   TimePartitioning timePartitioning,
+                                                   @Nullable String partitionFromDate,
+                                                   @Nullable String partitionToDate) {
     StringBuilder condition = new StringBuilder();
     String columnName = timePartitioning.getField() != null ? timePartitioning.getField() : DEFAULT_COLUMN_NAME;
 
@@ -148,13 +418,125 @@ public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<
       }
       condition.append(" < ").append("TIMESTAMP(\"").append(partitionToDate).append("\")");
     }
+    return condition.toString();
+  }
+
+  /**
+   * Generates the query that reads all rows of several tables together. Every table may be a wildcard table, such as
+   * 'events_*'.
+   *
+   * @param project project of the tables
+   * @param dataset dataset of the tables
+   * @param tables names of the tables
+   * @param selectedFields the fields to read, or null to read all fields
+   * @param tableNameField the field to store the name of the table of every row in, or null
+   */
+  public static String generateMultiTableQuery(String project, String dataset, List<String> tables,
+                                               @Nullable List<String> selectedFields,
+                                               @Nullable String tableNameField) {
+    return generateMultiTableQuery(project, dataset, tables, Collections.emptyMap(), null, null, null,
+                                   selectedFields, tableNameField);
+  }
+
+  /**
+   * Generates the query that reads several tables together. Every table may be a wildcard table, such as 'events_*'.
+   * The partition range and the filter are applied to every table, so that only the selected rows are read.
+   *
+   * @param project project of the tables
+   * @param dataset dataset of the tables
+   * @param tables names of the tables
+   * @param tableDefinitions definitions of the tables by name, which determine the partition column of each table.
+   *                         The partition range is ignored for tables without definition or partitioning
+   * @param partitionFromDate inclusive start of the partition range
+   * @param partitionToDate exclusive end of the partition range
+   * @param filter SQL condition that the rows of every table must match
+   * @param selectedFields the fields to read, or null to read all fields
+   * @param tableNameField the field to store the name of the table of every row in, or null
+   */
+  public static String generateMultiTableQuery(String project, String dataset, List<String> tables,
+                                               Map<String, StandardTableDefinition> tableDefinitions,
+                                               @Nullable String partitionFromDate, @Nullable String partitionToDate,
+                                               @Nullable String filter, @Nullable List<String> selectedFields,
+                                               @Nullable String tableNameField) {
+    String selection = selectedFields == null ? "*"
+      : selectedFields.stream().map(name -> "`" + name + "`").collect(Collectors.joining(", "));
+    List<String> queries = new ArrayList<>(tables.size());
+    for (String table : tables) {
+      StringBuilder query = new StringBuilder("select ").append(selection);
+      if (tableNameField != null) {
+        query.append(", ");
+        if (table.endsWith("*")) {
+          // the suffix of a wildcard table is the part of the table name that matched the wildcard
+          String prefix = table.substring(0, table.length() - 1);
+          query.append("concat('").append(prefix).append("', _TABLE_SUFFIX)");
+        } else {
+          query.append("'").append(table).append("'");
+        }
+        query.append(" as `").append(tableNameField).append("`");
+      }
+      query.append(" from `").append(project).append(".").append(dataset).append(".").append(table).append("`");
+
+      StandardTableDefinition tableDefinition = tableDefinitions.get(table);
+      String rowRestriction = tableDefinition == null
+        ? (Strings.isNullOrEmpty(filter) ? null : "(" + filter + ")")
+        : generateRowRestriction(tableDefinition, partitionFromDate, partitionToDate, filter);
+      if (rowRestriction != null) {
+        query.append(" where ").append(rowRestriction);
+      }
+      queries.add(query.toString());
+    }
+    return String.join(" union all ", queries);
+  }
 
-    String tableName = dataset + "." + table;
-    return String.format(queryTemplate, tableName, condition.toString());
+  /**
+   * Generates the query that returns the maximum value of the watermark field of the table as a string.
+   *
+   * @param project project of the table
+   * @param dataset dataset of the table
+   * @param table name of the table
+   * @param field the watermark field, or _PARTITIONTIME for the ingestion time of the rows
+   */
+  public static String generateWatermarkQuery(String project, String dataset, String table, String field) {
+    return String.format("select cast(max(%s) as string) from `%s.%s.%s`", quoteWatermarkField(field),
+                         project, dataset, table);
+  }
+
+  /**
+   * Generates the condition that selects the rows with a value of the watermark field after the low watermark and
+   * up to the high watermark. No rows are selected without a high watermark, which means that the table is empty.
+   *
+   * @param field the watermark field, or _PARTITIONTIME for the ingestion time of the rows
+   * @param type standard SQL type of the watermark field
+   * @param lowWatermark the watermark of the previous read, or null if the table has not been read yet
+   * @param highWatermark the maximum value of the watermark field
+   */
+  public static String generateWatermarkCondition(String field, StandardSQLTypeName type,
+                                                  @Nullable String lowWatermark, @Nullable String highWatermark) {
+    if (highWatermark == null) {
+      return "false";
+    }
+    String column = quoteWatermarkField(field);
+    String condition = String.format("%s <= %s", column, toLiteral(highWatermark, type));
+    return lowWatermark == null ? condition
+      : String.format("%s > %s and %s", column, toLiteral(lowWatermark, type), condition);
   }
 
-  private static void runQuery(
-    BigQueryHelper bigQueryHelper, String projectId, TableReference tableRef, String query, String location)
+  private static String quoteWatermarkField(String field) {
+    return DEFAULT_COLUMN_NAME.equals(field) ? field : "`" + field + "`";
+  }
+
+  private static String toLiteral(String value, StandardSQLTypeName type) {
+    return String.format("cast('%s' as %s)", value.replace("\\", "\\\\").replace("'", "\\'"), type.name());
+  }
+
+  private static void runQuery(Configuration configuration, BigQueryHelper bigQueryHelper, String projectId,
+                               TableReference tableRef, String query, String location)
+    throws IOException, InterruptedException {
+    runQuery(configuration, bigQueryHelper, projectId, tableRef, query, location, "WRITE_EMPTY");
+  }
+
+  private static void runQuery(Configuration configuration, BigQueryHelper bigQueryHelper, String projectId,
+                               TableReference tableRef, String query, String location, String writeDisposition)
     throws IOException, InterruptedException {
 
     // Create a query statement and query request object.
@@ -168,8 +550,8 @@ public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<
 
     queryConfig.setCreateDisposition("CREATE_IF_NEEDED");
 
-    // Require table to be empty.
-    queryConfig.setWriteDisposition("WRITE_EMPTY");
+    // Require table to be empty, unless it is replaced.
+    queryConfig.setWriteDisposition(writeDisposition);
 
     JobConfiguration config = new JobConfiguration();
     config.setQuery(queryConfig);
@@ -192,9 +574,13 @@ public class PartitionedBigQueryInputFormat extends AbstractBigQueryInputFormat<
       }
     };
 
-    // Poll until job is complete.
-    BigQueryUtils.waitForJobCompletion(
-      bigQueryHelper.getRawBigquery(), projectId, jobReference, progressable);
+    // Poll until job is complete. Failed queries are recorded too, since they take slot time as well.
+    try {
+      BigQueryUtils.waitForJobCompletion(
+        bigQueryHelper.getRawBigquery(), projectId, jobReference, progressable);
+    } finally {
+      BigQueryJobStatistics.recordFinished(configuration, bigQueryHelper.getRawBigquery(), jobReference);
+    }
     if (bigQueryHelper.tableExists(tableRef)) {
       long expirationMillis = DateTime.now().plusDays(1).getMillis();
       Table table = bigQueryHelper.getTable(tableRef).setExpirationTime(expirationMillis);
@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+/**
+ * The way records are read from BigQuery.
+ */
+public enum ReadMode {
+  /**
+   * The table is exported to Google Cloud Storage and the exported files are read.
+   */
+  EXPORT,
+  /**
+   * The table is exported to Google Cloud Storage in shards, and every shard is read while it is being exported.
+   */
+  SHARDED_EXPORT,
+  /**
+   * The table is read directly from BigQuery by parallel read streams, without going through Google Cloud Storage.
+   */
+  STORAGE_READ;
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import com.google.cloud.bigquery.storage.v1.ReadRowsResponse;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads the rows of a {@link ReadStreamSplit} from its read stream. Every response of the stream is a block of Avro
+ * encoded rows, which are decoded into Avro records of the schema of the read session. These records have the same
+ * layout as the records of a table export, so they can be read with {@link BigQueryAvroToStructuredTransformer}.
+ * The record is reused for every row.
+ */
+public class ReadStreamRecordReader extends RecordReader<LongWritable, GenericData.Record> {
+
+  private final StreamReader streamReader;
+  private final long rowLimit;
+  private final LongWritable key = new LongWritable();
+  private Iterator<ReadRowsResponse> responses;
+  private GenericDatumReader<GenericData.Record> datumReader;
+  private BinaryDecoder decoder;
+  // rows of the current response that have not been read yet
+  private long remainingRows;
+  private long rowIndex;
+  private float progress;
+  private GenericData.Record value;
+
+  /**
+   * @param streamReader reader of the stream of the split
+   * @param rowLimit maximum number of rows to read, or a negative number to read all rows
+   */
+  public ReadStreamRecordReader(StreamReader streamReader, long rowLimit) {
+    this.streamReader = streamReader;
+    this.rowLimit = rowLimit;
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+    ReadStreamSplit streamSplit = (ReadStreamSplit) split;
+    datumReader = new GenericDatumReader<>(new Schema.Parser().parse(streamSplit.getAvroSchema()));
+    responses = streamReader.readRows(streamSplit.getStream());
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException {
+    if (rowLimit >= 0 && rowIndex >= rowLimit) {
+      return false;
+    }
+    while (remainingRows == 0) {
+      if (!responses.hasNext()) {
+        progress = 1f;
+        return false;
+      }
+      ReadRowsResponse response = responses.next();
+      if (response.hasAvroRows()) {
+        decoder = DecoderFactory.get().binaryDecoder(response.getAvroRows().getSerializedBinaryRows().newInput(),
+                                                     decoder);
+        remainingRows = response.getRowCount();
+      }
+      if (response.hasStats()) {
+        progress = (float) response.getStats().getProgress().getAtResponseEnd();
+      }
+    }
+    value = datumReader.read(value, decoder);
+    remainingRows--;
+    key.set(rowIndex++);
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    return key;
+  }
+
+  @Override
+  public GenericData.Record getCurrentValue() {
+    return value;
+  }
+
+  @Override
+  public float getProgress() {
+    return progress;
+  }
+
+  @Override
+  public void close() throws IOException {
+    streamReader.close();
+  }
+
+  /**
+   * Reads the responses of a read stream.
+   */
+  public interface StreamReader extends Closeable {
+    /**
+     * Returns the responses of the given stream, starting at its first row.
+     */
+    Iterator<ReadRowsResponse> readRows(String stream) throws IOException;
+  }
+}
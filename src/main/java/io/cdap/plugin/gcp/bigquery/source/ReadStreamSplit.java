@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Input split of the {@link ReadMode#STORAGE_READ} read mode. Every split is one stream of a read session of the
+ * BigQuery Storage Read API, along with the Avro schema of the rows of the session.
+ */
+public class ReadStreamSplit extends InputSplit implements Writable {
+
+  private String stream;
+  private String avroSchema;
+
+  public ReadStreamSplit() {
+    // is needed for Hadoop deserialization
+  }
+
+  public ReadStreamSplit(String stream, String avroSchema) {
+    this.stream = stream;
+    this.avroSchema = avroSchema;
+  }
+
+  @Override
+  public void write(DataOutput dataOutput) throws IOException {
+    dataOutput.writeUTF(stream);
+    // the schema of a wide table may be longer than writeUTF supports
+    Text.writeString(dataOutput, avroSchema);
+  }
+
+  @Override
+  public void readFields(DataInput dataInput) throws IOException {
+    stream = dataInput.readUTF();
+    avroSchema = Text.readString(dataInput);
+  }
+
+  @Override
+  public long getLength() {
+    // the number of rows of a stream is not known until it has been read
+    return 0;
+  }
+
+  @Override
+  public String[] getLocations() {
+    return new String[0];
+  }
+
+  /**
+   * Returns the name of the read stream, of the form 'projects/../locations/../sessions/../streams/..'.
+   */
+  public String getStream() {
+    return stream;
+  }
+
+  public String getAvroSchema() {
+    return avroSchema;
+  }
+
+  @Override
+  public String toString() {
+    return stream;
+  }
+}
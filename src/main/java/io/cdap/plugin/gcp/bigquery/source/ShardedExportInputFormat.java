@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationExtract;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.JobStatus;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
+import com.google.cloud.hadoop.io.bigquery.BigQueryFactory;
+import com.google.cloud.hadoop.io.bigquery.BigQueryHelper;
+import com.google.cloud.hadoop.util.ConfigurationUtil;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryJobStatistics;
+import org.apache.avro.generic.GenericData;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Input format for the {@link ReadMode#SHARDED_EXPORT} read mode. The table is exported to Google Cloud Storage
+ * with one destination pattern per shard, and every shard is an input split. The export job is started when the
+ * splits are computed but is not waited for, so that the splits are read while the table is still being exported.
+ *
+ * The sharded export of the BigQuery connector is not used, since it only supports JSON exports.
+ */
+public class ShardedExportInputFormat extends InputFormat<LongWritable, GenericData.Record> {
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedExportInputFormat.class);
+
+  private static final int DEFAULT_SHARD_COUNT = 10;
+  private static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000L;
+
+  @Override
+  public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+    Configuration configuration = context.getConfiguration();
+    BigQueryHelper bigQueryHelper = getBigQueryHelper(configuration);
+    PartitionedBigQueryInputFormat.processQuery(configuration, bigQueryHelper);
+
+    Map<String, String> mandatoryConfig = ConfigurationUtil.getMandatoryConfig(
+      configuration, BigQueryConfiguration.MANDATORY_CONFIG_PROPERTIES_INPUT);
+    String projectId = mandatoryConfig.get(BigQueryConfiguration.PROJECT_ID_KEY);
+    TableReference tableReference = new TableReference()
+      .setProjectId(mandatoryConfig.get(BigQueryConfiguration.INPUT_PROJECT_ID_KEY))
+      .setDatasetId(mandatoryConfig.get(BigQueryConfiguration.INPUT_DATASET_ID_KEY))
+      .setTableId(mandatoryConfig.get(BigQueryConfiguration.INPUT_TABLE_ID_KEY));
+    Table table = bigQueryHelper.getTable(tableReference);
+    String exportPath = configuration.get(BigQueryConfiguration.TEMP_GCS_PATH_KEY);
+    if (exportPath == null) {
+      throw new IOException(String.format("Temporary Google Cloud Storage path '%s' is not set.",
+                                          BigQueryConfiguration.TEMP_GCS_PATH_KEY));
+    }
+    int shardCount = Math.max(1, configuration.getInt(BigQueryConstants.CONFIG_READ_STREAM_COUNT,
+                                                      DEFAULT_SHARD_COUNT));
+
+    List<String> shardPaths = new ArrayList<>(shardCount);
+    List<String> destinationUris = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      String shardPath = String.format("%s/shard-%d", exportPath, i);
+      shardPaths.add(shardPath);
+      destinationUris.add(shardPath + "/data-*.avro");
+    }
+
+    JobConfigurationExtract extractConfig = new JobConfigurationExtract()
+      .setSourceTable(tableReference)
+      .setDestinationUris(destinationUris)
+      .setDestinationFormat("AVRO");
+    JobReference jobReference = bigQueryHelper.createJobReference(projectId, "shardedexport", table.getLocation());
+    Job job = new Job()
+      .setConfiguration(new JobConfiguration().setExtract(extractConfig))
+      .setJobReference(jobReference);
+    bigQueryHelper.insertJobOrFetchDuplicate(projectId, job);
+    LOG.info("Started export job {} of table '{}:{}.{}' into {} shards.", jobReference.getJobId(),
+             tableReference.getProjectId(), tableReference.getDatasetId(), tableReference.getTableId(), shardCount);
+
+    List<InputSplit> splits = new ArrayList<>(shardCount);
+    for (String shardPath : shardPaths) {
+      splits.add(new ExportShardSplit(projectId, jobReference.getJobId(), jobReference.getLocation(), shardPath));
+    }
+    return splits;
+  }
+
+  @Override
+  public RecordReader<LongWritable, GenericData.Record> createRecordReader(InputSplit split,
+                                                                           TaskAttemptContext context)
+    throws IOException {
+    Configuration configuration = context.getConfiguration();
+    ExportShardSplit shardSplit = (ExportShardSplit) split;
+    Bigquery bigquery = getBigQueryHelper(configuration).getRawBigquery();
+    long pollIntervalMillis = configuration.getLong(BigQueryConstants.CONFIG_EXPORT_POLL_INTERVAL_MILLIS,
+                                                    DEFAULT_POLL_INTERVAL_MILLIS);
+    return new ExportShardRecordReader(() -> {
+      Job job = bigquery.jobs().get(shardSplit.getProject(), shardSplit.getJobId())
+        .setLocation(shardSplit.getLocation())
+        .execute();
+      JobStatus status = job.getStatus();
+      if (!"DONE".equals(status.getState())) {
+        return false;
+      }
+      BigQueryJobStatistics.record(configuration, job);
+      ErrorProto error = status.getErrorResult();
+      if (error != null) {
+        throw new IOException(String.format("Export job %s failed: %s", shardSplit.getJobId(), error.getMessage()));
+      }
+      return true;
+    }, pollIntervalMillis);
+  }
+
+  private static BigQueryHelper getBigQueryHelper(Configuration configuration) throws IOException {
+    try {
+      return new BigQueryFactory().getBigQueryHelper(configuration);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to create BigQuery client", e);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.source;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import io.cdap.plugin.gcp.gcs.GCSPath;
+
+import java.nio.charset.StandardCharsets;
+import javax.annotation.Nullable;
+
+/**
+ * Stores the high watermark of an incremental read in a Google Cloud Storage object. Every source of every pipeline
+ * has its own object under the configured watermark path.
+ */
+public final class WatermarkStore {
+
+  private final Storage storage;
+  private final BlobId blobId;
+
+  public WatermarkStore(Storage storage, GCSPath path, String namespace, String pipeline, String referenceName,
+                        String field) {
+    this.storage = storage;
+    String prefix = path.getName().isEmpty() || path.getName().endsWith("/") ? path.getName() : path.getName() + "/";
+    this.blobId = BlobId.of(path.getBucket(), String.format("%s%s/%s/%s/%s.watermark", prefix, namespace, pipeline,
+                                                            referenceName, field));
+  }
+
+  /**
+   * Returns the stored watermark, or null if no watermark has been stored yet.
+   */
+  @Nullable
+  public String read() {
+    Blob blob = storage.get(blobId);
+    return blob == null ? null : new String(blob.getContent(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Replaces the stored watermark.
+   */
+  public void write(String watermark) {
+    storage.create(BlobInfo.newBuilder(blobId).setContentType("text/plain").build(),
+                   watermark.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("gs://%s/%s", blobId.getBucket(), blobId.getName());
+  }
+}
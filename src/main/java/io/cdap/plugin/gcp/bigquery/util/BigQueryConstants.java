@@ -27,9 +27,37 @@ public interface BigQueryConstants {
   String CONFIG_REQUIRE_PARTITION_FILTER = "cdap.bq.sink.require.partition.filter";
   String CONFIG_PARTITION_FROM_DATE = "cdap.bq.source.partition.from.date";
   String CONFIG_PARTITION_TO_DATE = "cdap.bq.source.partition.to.date";
+  String CONFIG_FILTER = "cdap.bq.source.filter";
+  String CONFIG_QUERY = "cdap.bq.source.query";
+  String CONFIG_REUSE_QUERY_RESULTS = "cdap.bq.source.reuse.query.results";
+  String CONFIG_SELECTED_FIELDS = "cdap.bq.source.selected.fields";
+  String CONFIG_READ_STREAM_COUNT = "cdap.bq.source.read.stream.count";
+  String CONFIG_READ_ROW_LIMIT = "cdap.bq.source.read.row.limit";
+  String CONFIG_TARGET_SPLIT_SIZE = "cdap.bq.source.target.split.size";
+  String CONFIG_EXPORT_POLL_INTERVAL_MILLIS = "cdap.bq.source.export.poll.interval.millis";
   String CONFIG_SERVICE_ACCOUNT_FILE_PATH = "cdap.bq.service.account.file.path";
+  String CONFIG_JOB_STATISTICS_PATH = "cdap.bq.job.statistics.path";
   String CONFIG_CLUSTERING_ORDER = "cdap.bq.sink.clustering.order";
   String CONFIG_OPERATION = "cdap.bq.sink.operation";
   String CONFIG_TABLE_KEY = "cdap.bq.sink.table.key";
   String CONFIG_TABLE_FIELDS = "cdap.bq.sink.table.fields";
+  String CONFIG_PRUNE_PARTITIONS = "cdap.bq.sink.prune.partitions";
+  String CONFIG_OVERWRITE_PARTITIONS = "cdap.bq.sink.overwrite.partitions";
+  String CONFIG_STAGING_MAX_OPEN_FILES = "cdap.bq.sink.staging.max.open.files";
+  String CONFIG_STAGING_MAX_FILE_BYTES = "cdap.bq.sink.staging.max.file.bytes";
+  String CONFIG_STAGING_FORMAT = "cdap.bq.sink.staging.format";
+  String CONFIG_STAGING_SORT_FIELDS = "cdap.bq.sink.staging.sort.fields";
+  String CONFIG_STAGING_SORT_MEMORY_BYTES = "cdap.bq.sink.staging.sort.memory.bytes";
+  String CONFIG_WRITE_STREAM_COUNT = "cdap.bq.sink.write.stream.count";
+  String CONFIG_WRITE_MAX_IN_FLIGHT_BYTES = "cdap.bq.sink.write.max.in.flight.bytes";
+  String CONFIG_WRITE_SERVICE_FACTORY = "cdap.bq.sink.write.service.factory";
+  String CONFIG_INSERT_ID_PREFIX = "cdap.bq.sink.insert.id.prefix";
+  String CONFIG_INSERT_BATCH_ROWS = "cdap.bq.sink.insert.batch.rows";
+  String CONFIG_INSERT_BATCH_BYTES = "cdap.bq.sink.insert.batch.bytes";
+  String CONFIG_INSERT_MAX_IN_FLIGHT_REQUESTS = "cdap.bq.sink.insert.max.in.flight.requests";
+  String CONFIG_LOAD_MAX_FILES_PER_JOB = "cdap.bq.sink.load.max.files.per.job";
+  String CONFIG_LOAD_MAX_BYTES_PER_JOB = "cdap.bq.sink.load.max.bytes.per.job";
+  String CONFIG_LOAD_MAX_CONCURRENT_JOBS = "cdap.bq.sink.load.max.concurrent.jobs";
+  String CONFIG_LOAD_SKIP_EMPTY = "cdap.bq.sink.load.skip.empty";
+  String CONFIG_MULTI_MAX_CONCURRENT_TABLES = "cdap.bq.multi.sink.max.concurrent.tables";
 }
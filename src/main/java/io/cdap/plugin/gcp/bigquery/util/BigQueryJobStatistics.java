@@ -0,0 +1,282 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery.util;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.JobStatistics;
+import com.google.api.services.bigquery.model.JobStatistics2;
+import com.google.api.services.bigquery.model.JobStatistics3;
+import com.google.api.services.bigquery.model.JobStatistics4;
+import com.google.gson.Gson;
+import io.cdap.cdap.etl.api.StageMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * Statistics of a completed BigQuery job: wall and queue time, bytes processed and billed, slot time, output rows and
+ * file counts. Every job is logged as one structured line, and the statistics are emitted as stage metrics that are
+ * summed up per job type.
+ *
+ * Jobs run in output committers and while splits are computed, which are not always in the process that finishes the
+ * run. The statistics of every job are therefore also written as a small JSON file to the directory set in
+ * {@link BigQueryConstants#CONFIG_JOB_STATISTICS_PATH}, from which the stage collects them when the run finishes.
+ */
+public final class BigQueryJobStatistics {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BigQueryJobStatistics.class);
+  private static final Gson GSON = new Gson();
+  private static final String FILE_EXTENSION = ".json";
+  private static final String SELECT_STATEMENT = "SELECT";
+  private static final String DONE_STATE = "DONE";
+  private static final String STATISTICS_DIRECTORY = "cdap-bq-statistics";
+
+  private final String jobId;
+  private final String type;
+  private final long wallMillis;
+  private final long queueMillis;
+  private final long bytesProcessed;
+  private final long bytesBilled;
+  private final long slotMillis;
+  private final long outputRows;
+  private final long files;
+
+  private BigQueryJobStatistics(String jobId, String type, long wallMillis, long queueMillis, long bytesProcessed,
+                                long bytesBilled, long slotMillis, long outputRows, long files) {
+    this.jobId = jobId;
+    this.type = type;
+    this.wallMillis = wallMillis;
+    this.queueMillis = queueMillis;
+    this.bytesProcessed = bytesProcessed;
+    this.bytesBilled = bytesBilled;
+    this.slotMillis = slotMillis;
+    this.outputRows = outputRows;
+    this.files = files;
+  }
+
+  /**
+   * Returns the statistics of a completed job. Query jobs that run a DML statement, such as a MERGE, are typed by
+   * their statement, so that they are told apart from the queries that read data.
+   */
+  public static BigQueryJobStatistics of(Job job) {
+    JobStatistics statistics = job.getStatistics() == null ? new JobStatistics() : job.getStatistics();
+    long creationTime = valueOf(statistics.getCreationTime());
+    long startTime = statistics.getStartTime() == null ? creationTime : statistics.getStartTime();
+    long endTime = statistics.getEndTime() == null ? startTime : statistics.getEndTime();
+    long bytesProcessed = valueOf(statistics.getTotalBytesProcessed());
+    long bytesBilled = 0L;
+    long outputRows = 0L;
+    long files = 0L;
+    String type;
+
+    JobStatistics2 query = statistics.getQuery();
+    JobStatistics3 load = statistics.getLoad();
+    JobStatistics4 extract = statistics.getExtract();
+    if (load != null) {
+      type = "load";
+      bytesProcessed = valueOf(load.getInputFileBytes());
+      outputRows = valueOf(load.getOutputRows());
+      files = valueOf(load.getInputFiles());
+    } else if (extract != null) {
+      type = "export";
+      List<Long> fileCounts = extract.getDestinationUriFileCounts();
+      files = fileCounts == null ? 0L : fileCounts.stream().mapToLong(BigQueryJobStatistics::valueOf).sum();
+    } else if (query != null) {
+      String statementType = query.getStatementType();
+      type = statementType == null || SELECT_STATEMENT.equals(statementType)
+        ? "query" : statementType.toLowerCase(Locale.ROOT);
+      bytesProcessed = valueOf(query.getTotalBytesProcessed());
+      bytesBilled = valueOf(query.getTotalBytesBilled());
+      outputRows = valueOf(query.getNumDmlAffectedRows());
+    } else if (job.getConfiguration() != null && job.getConfiguration().getCopy() != null) {
+      type = "copy";
+    } else {
+      type = "other";
+    }
+    return new BigQueryJobStatistics(job.getJobReference().getJobId(), type, endTime - creationTime,
+                                     startTime - creationTime, bytesProcessed, bytesBilled,
+                                     valueOf(statistics.getTotalSlotMs()), outputRows, files);
+  }
+
+  /**
+   * Logs the statistics of a completed job, and writes them to the statistics directory of the run if one is set.
+   * Failures to write the statistics are only logged, since they must not fail the job.
+   */
+  public static void record(Configuration conf, Job job) {
+    BigQueryJobStatistics statistics = of(job);
+    String json = GSON.toJson(statistics);
+    LOG.info("BigQuery job statistics: {}", json);
+
+    String directory = conf.get(BigQueryConstants.CONFIG_JOB_STATISTICS_PATH);
+    if (directory == null) {
+      return;
+    }
+    // jobs are recorded by their id, so a job that is recorded more than once is only counted once
+    Path path = new Path(directory, statistics.jobId + FILE_EXTENSION);
+    try (FSDataOutputStream output = path.getFileSystem(conf).create(path, true)) {
+      output.write(json.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      LOG.warn("Failed to write the statistics of BigQuery job {} to '{}': {}", statistics.jobId, path,
+               e.getMessage());
+    }
+  }
+
+  /**
+   * Fetches a job and records its statistics if it is done. This is used when waiting for a job failed, since failed
+   * jobs take wall and slot time and may bill bytes as well. Failures to fetch the job are only logged.
+   */
+  public static void recordFinished(Configuration conf, Bigquery bigquery, JobReference jobReference) {
+    try {
+      Job job = bigquery.jobs().get(jobReference.getProjectId(), jobReference.getJobId())
+        .setLocation(jobReference.getLocation())
+        .execute();
+      if (job.getStatus() != null && DONE_STATE.equals(job.getStatus().getState())) {
+        record(conf, job);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to get the statistics of BigQuery job {}: {}", jobReference.getJobId(), e.getMessage());
+    }
+  }
+
+  /**
+   * Returns a statistics directory for a run on the default file system of the cluster, which every process of the
+   * run can write to. This is used by runs that have no Cloud Storage bucket.
+   */
+  public static String getDefaultDirectory(Configuration conf, String runId) throws IOException {
+    Path path = new Path(new Path(conf.get("hadoop.tmp.dir", "/tmp"), STATISTICS_DIRECTORY), runId);
+    return FileSystem.get(conf).makeQualified(path).toString();
+  }
+
+  /**
+   * Reads the statistics of all jobs recorded in the given directory, and deletes the directory.
+   */
+  public static List<BigQueryJobStatistics> collect(Configuration conf, String directory) throws IOException {
+    Path path = new Path(directory);
+    FileSystem fs = path.getFileSystem(conf);
+    if (!fs.exists(path)) {
+      return new ArrayList<>();
+    }
+    List<BigQueryJobStatistics> statistics = new ArrayList<>();
+    for (FileStatus status : fs.listStatus(path)) {
+      if (!status.getPath().getName().endsWith(FILE_EXTENSION)) {
+        continue;
+      }
+      try (FSDataInputStream input = fs.open(status.getPath());
+           Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+        statistics.add(GSON.fromJson(reader, BigQueryJobStatistics.class));
+      }
+    }
+    fs.delete(path, true);
+    return statistics;
+  }
+
+  /**
+   * Emits the number of jobs and the sum of their statistics per job type, for example {@code bq.load.jobs} and
+   * {@code bq.load.wall.ms}.
+   */
+  public static void emitMetrics(StageMetrics metrics, Collection<BigQueryJobStatistics> statistics) {
+    Map<String, List<BigQueryJobStatistics>> byType = new TreeMap<>();
+    for (BigQueryJobStatistics job : statistics) {
+      byType.computeIfAbsent(job.type, t -> new ArrayList<>()).add(job);
+    }
+    for (Map.Entry<String, List<BigQueryJobStatistics>> entry : byType.entrySet()) {
+      String prefix = "bq." + entry.getKey() + ".";
+      List<BigQueryJobStatistics> jobs = entry.getValue();
+      metrics.count(prefix + "jobs", jobs.size());
+      metrics.gauge(prefix + "wall.ms", jobs.stream().mapToLong(job -> job.wallMillis).sum());
+      metrics.gauge(prefix + "queue.ms", jobs.stream().mapToLong(job -> job.queueMillis).sum());
+      metrics.gauge(prefix + "bytes.processed", jobs.stream().mapToLong(job -> job.bytesProcessed).sum());
+      metrics.gauge(prefix + "bytes.billed", jobs.stream().mapToLong(job -> job.bytesBilled).sum());
+      metrics.gauge(prefix + "slot.ms", jobs.stream().mapToLong(job -> job.slotMillis).sum());
+      metrics.gauge(prefix + "output.rows", jobs.stream().mapToLong(job -> job.outputRows).sum());
+      metrics.gauge(prefix + "files", jobs.stream().mapToLong(job -> job.files).sum());
+    }
+  }
+
+  /**
+   * Collects the statistics recorded in the given directory and emits them as metrics. Failures are only logged,
+   * since statistics must not fail the run.
+   */
+  public static void emitMetrics(StageMetrics metrics, Configuration conf, @Nullable String directory) {
+    if (directory == null) {
+      return;
+    }
+    try {
+      emitMetrics(metrics, collect(conf, directory));
+    } catch (IOException e) {
+      LOG.warn("Failed to collect BigQuery job statistics from '{}': {}", directory, e.getMessage());
+    }
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getWallMillis() {
+    return wallMillis;
+  }
+
+  public long getQueueMillis() {
+    return queueMillis;
+  }
+
+  public long getBytesProcessed() {
+    return bytesProcessed;
+  }
+
+  public long getBytesBilled() {
+    return bytesBilled;
+  }
+
+  public long getSlotMillis() {
+    return slotMillis;
+  }
+
+  public long getOutputRows() {
+    return outputRows;
+  }
+
+  public long getFiles() {
+    return files;
+  }
+
+  private static long valueOf(@Nullable Long value) {
+    return value == null ? 0L : value;
+  }
+}
@@ -16,15 +16,23 @@
 
 package io.cdap.plugin.gcp.bigquery.util;
 
+import com.google.api.gax.core.FixedCredentialsProvider;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetInfo;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
 import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.BigQueryReadClient;
+import com.google.cloud.bigquery.storage.v1.BigQueryReadSettings;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
 import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.BucketInfo;
@@ -50,6 +58,7 @@ import org.apache.hadoop.security.UserGroupInformation;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +71,10 @@ import javax.annotation.Nullable;
  * Common Util class for big query plugins such as {@link BigQuerySource} and {@link BigQuerySink}
  */
 public final class BigQueryUtil {
+  // scopes of the credentials of the BigQuery Storage API clients
+  private static final List<String> CLOUD_PLATFORM_SCOPES =
+    Collections.singletonList("https://www.googleapis.com/auth/cloud-platform");
+
   // array of arrays and map of arrays are not supported by big query
   public static final Set<Schema.Type> UNSUPPORTED_ARRAY_TYPES = ImmutableSet.of(Schema.Type.ARRAY, Schema.Type.MAP);
 
@@ -112,6 +125,39 @@ public final class BigQueryUtil {
     return schema.isNullable() ? schema.getNonNullable() : schema;
   }
 
+  /**
+   * Creates a client of the BigQuery Storage Read API. The client must be closed once it is no longer used.
+   *
+   * @param serviceAccountFilePath service account file path, or null to use the default credentials
+   * @return the client
+   * @throws IOException if not able to get credentials or to create the client
+   */
+  public static BigQueryReadClient getBigQueryReadClient(@Nullable String serviceAccountFilePath) throws IOException {
+    BigQueryReadSettings.Builder settings = BigQueryReadSettings.newBuilder();
+    if (serviceAccountFilePath != null) {
+      settings.setCredentialsProvider(FixedCredentialsProvider.create(
+        GCPUtils.loadServiceAccountCredentials(serviceAccountFilePath).createScoped(CLOUD_PLATFORM_SCOPES)));
+    }
+    return BigQueryReadClient.create(settings.build());
+  }
+
+  /**
+   * Creates a client of the BigQuery Storage Write API. The client must be closed once it is no longer used.
+   *
+   * @param serviceAccountFilePath service account file path, or null to use the default credentials
+   * @return the client
+   * @throws IOException if not able to get credentials or to create the client
+   */
+  public static BigQueryWriteClient getBigQueryWriteClient(@Nullable String serviceAccountFilePath)
+    throws IOException {
+    BigQueryWriteSettings.Builder settings = BigQueryWriteSettings.newBuilder();
+    if (serviceAccountFilePath != null) {
+      settings.setCredentialsProvider(FixedCredentialsProvider.create(
+        GCPUtils.loadServiceAccountCredentials(serviceAccountFilePath).createScoped(CLOUD_PLATFORM_SCOPES)));
+    }
+    return BigQueryWriteClient.create(settings.build());
+  }
+
   /**
    * Get Bigquery {@link Configuration}.
    *
@@ -185,6 +231,20 @@ public final class BigQueryUtil {
     }
   }
 
+  /**
+   * Creates the given dataset if it does not already exist.
+   *
+   * @param bigQuery the bigquery client for the project
+   * @param datasetName the name of the dataset
+   * @throws IOException if there was an error creating or fetching the dataset
+   */
+  public static void createDataset(BigQuery bigQuery, String datasetName) throws IOException {
+    if (bigQuery.getDataset(datasetName) == null) {
+      createDataset(bigQuery, datasetName, null,
+                    () -> String.format("Unable to create BigQuery dataset '%s'", datasetName));
+    }
+  }
+
   private static void createDataset(BigQuery bigQuery, String dataset, @Nullable String location,
                                     Supplier<String> errorMessage) throws IOException {
     DatasetInfo.Builder builder = DatasetInfo.newBuilder(dataset);
@@ -457,4 +517,44 @@ public final class BigQueryUtil {
 
     return table;
   }
+
+  /**
+   * Get the schema of the results of a standard SQL query, with a dry run of the query.
+   *
+   * @param projectId project to run the dry run in
+   * @param query the standard SQL query
+   * @param serviceAccountPath service account file path
+   * @param collector failure collector
+   * @return schema of the query results
+   */
+  @Nullable
+  public static com.google.cloud.bigquery.Schema getQuerySchema(String projectId, String query,
+                                                                @Nullable String serviceAccountPath,
+                                                                FailureCollector collector) {
+    com.google.auth.Credentials credentials = null;
+    if (serviceAccountPath != null) {
+      try {
+        credentials = GCPUtils.loadServiceAccountCredentials(serviceAccountPath);
+      } catch (IOException e) {
+        collector.addFailure(String.format("Unable to load credentials from %s.", serviceAccountPath),
+                             "Ensure the service account file is available on the local filesystem.")
+          .withConfigProperty(GCPConfig.NAME_SERVICE_ACCOUNT_FILE_PATH);
+        throw collector.getOrThrowException();
+      }
+    }
+    BigQuery bigQuery = GCPUtils.getBigQuery(projectId, credentials);
+
+    QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(query)
+      .setDryRun(true)
+      .setUseLegacySql(false)
+      .build();
+    try {
+      JobStatistics.QueryStatistics statistics = bigQuery.create(JobInfo.of(queryConfig)).getStatistics();
+      return statistics.getSchema();
+    } catch (BigQueryException e) {
+      collector.addFailure("Invalid query: " + e.getMessage(), "Ensure the query is valid standard SQL.")
+        .withConfigProperty(BigQuerySourceConfig.NAME_QUERY);
+      throw collector.getOrThrowException();
+    }
+  }
 }
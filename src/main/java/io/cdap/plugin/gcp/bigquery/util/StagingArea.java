@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery.util;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Staging area of a pipeline run in Google Cloud Storage, used when no bucket is configured.
+ *
+ * Every project has one long-lived staging bucket per location, which is created the first time it is needed. Its
+ * name ends with a random salt, and later runs find it by listing the buckets of the project. Each run stages its
+ * files under its own prefix and deletes them when it finishes. Objects are also expired by a lifecycle rule of the
+ * bucket, so the files of runs that could not clean up after themselves do not accumulate.
+ */
+public final class StagingArea {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StagingArea.class);
+
+  // location used by BigQuery for datasets that are created without one
+  private static final String DEFAULT_LOCATION = "US";
+  private static final String BUCKET_PREFIX = "cdap-bq-staging-";
+  private static final int MAX_BUCKET_NAME_LENGTH = 63;
+  private static final Pattern INVALID_BUCKET_CHARACTERS = Pattern.compile("[^a-z0-9-]+");
+  // the batch API of Cloud Storage accepts at most 100 calls per request
+  private static final int DELETE_BATCH_SIZE = 100;
+  private static final int DELETE_THREADS = 8;
+  private static final int EXPIRATION_DAYS = 7;
+  private static final int SALT_LENGTH = 8;
+  private static final Pattern SALT = Pattern.compile("[0-9a-f]{" + SALT_LENGTH + "}");
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final Storage storage;
+  private final String bucket;
+  private final String prefix;
+
+  private StagingArea(Storage storage, String bucket, String prefix) {
+    this.storage = storage;
+    this.bucket = bucket;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Returns the staging area of a run, creating the staging bucket if the project does not have one yet.
+   *
+   * @param storage the storage client of the project, whose buckets are searched for the staging bucket
+   * @param project the project that owns the staging bucket
+   * @param location the location of the BigQuery dataset, or null to use the default location
+   * @param prefix the prefix under which the run stages its files, which must end with a '/'
+   * @param create whether the bucket is created if it does not exist
+   * @return the staging area of the run
+   * @throws IOException if the buckets of the project could not be listed, or the bucket could not be created
+   */
+  public static StagingArea of(Storage storage, String project, @Nullable String location, String prefix,
+                               boolean create) throws IOException {
+    Preconditions.checkArgument(prefix.endsWith("/"), "Staging prefix '%s' must end with a '/'.", prefix);
+    String namePrefix = getBucketNamePrefix(project, location);
+    String bucket;
+    try {
+      bucket = findBucket(storage, namePrefix);
+    } catch (StorageException e) {
+      throw new IOException(String.format("Unable to list the buckets of project '%s'.", project), e);
+    }
+    if (bucket != null) {
+      return new StagingArea(storage, bucket, prefix);
+    }
+
+    // the salt makes the name impossible to guess, so that no other project can create the bucket first
+    bucket = namePrefix + newSalt();
+    if (create) {
+      BucketInfo.Builder builder = BucketInfo.newBuilder(bucket)
+        .setDeleteRules(Collections.singletonList(new BucketInfo.AgeDeleteRule(EXPIRATION_DAYS)));
+      if (location != null) {
+        builder.setLocation(location);
+      }
+      try {
+        storage.create(builder.build());
+        LOG.info("Created staging bucket '{}'.", bucket);
+      } catch (StorageException e) {
+        throw new IOException(String.format("Unable to create staging bucket '%s' in location '%s'.",
+                                            bucket, location == null ? DEFAULT_LOCATION : location), e);
+      }
+    }
+    return new StagingArea(storage, bucket, prefix);
+  }
+
+  /**
+   * Returns the name of the staging bucket with the given name prefix, or null if there is none. Only the buckets of
+   * the project of the storage client are listed, so a bucket with the same prefix that is owned by another project
+   * is never used. If runs created several staging buckets at the same time, the first one by name is used.
+   */
+  @Nullable
+  private static String findBucket(Storage storage, String namePrefix) {
+    Page<Bucket> buckets = storage.list(Storage.BucketListOption.prefix(namePrefix),
+                                        Storage.BucketListOption.fields());
+    for (Bucket bucket : buckets.iterateAll()) {
+      if (SALT.matcher(bucket.getName().substring(namePrefix.length())).matches()) {
+        return bucket.getName();
+      }
+    }
+    return null;
+  }
+
+  private static String newSalt() {
+    byte[] salt = new byte[SALT_LENGTH / 2];
+    RANDOM.nextBytes(salt);
+    return BaseEncoding.base16().lowerCase().encode(salt);
+  }
+
+  /**
+   * Returns the prefix of the name of the staging bucket of a project in a location, which is followed by a random
+   * salt. Bucket names are global, so the name contains the project, unless the project cannot be part of a bucket
+   * name, in which case a hash of it is used instead.
+   */
+  public static String getBucketNamePrefix(String project, @Nullable String location) {
+    String suffix = "-" + INVALID_BUCKET_CHARACTERS.matcher(
+      (location == null ? DEFAULT_LOCATION : location).toLowerCase(Locale.ROOT)).replaceAll("-") + "-";
+    String projectPart = project.toLowerCase(Locale.ROOT);
+    // bucket names cannot contain 'google', and domain-scoped projects contain characters that are not allowed
+    if (projectPart.contains("google") || INVALID_BUCKET_CHARACTERS.matcher(projectPart).find()
+      || BUCKET_PREFIX.length() + projectPart.length() + suffix.length() + SALT_LENGTH > MAX_BUCKET_NAME_LENGTH) {
+      projectPart = Hashing.sha256().hashString(project, StandardCharsets.UTF_8).toString().substring(0, 16);
+    }
+    return BUCKET_PREFIX + projectPart + suffix;
+  }
+
+  public String getBucket() {
+    return bucket;
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Deletes every object staged under the prefix of the run. Objects are deleted with batch requests, which are sent
+   * concurrently.
+   *
+   * @throws IOException if the objects could not be listed or deleted
+   */
+  public void delete() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(
+      DELETE_THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bigquery-staging-delete-%d").build());
+    try {
+      Page<Blob> blobs = storage.list(bucket, Storage.BlobListOption.prefix(prefix),
+                                      Storage.BlobListOption.fields(Storage.BlobField.NAME));
+      List<Future<Integer>> futures = new ArrayList<>();
+      List<BlobId> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+      for (Blob blob : blobs.iterateAll()) {
+        batch.add(blob.getBlobId());
+        if (batch.size() == DELETE_BATCH_SIZE) {
+          futures.add(submitDelete(executor, batch));
+          batch = new ArrayList<>(DELETE_BATCH_SIZE);
+        }
+      }
+      if (!batch.isEmpty()) {
+        futures.add(submitDelete(executor, batch));
+      }
+
+      int failed = 0;
+      for (Future<Integer> future : futures) {
+        failed += future.get();
+      }
+      if (failed > 0) {
+        LOG.warn("{} staged objects under '{}' were not deleted. They will expire in {} days.",
+                 failed, this, EXPIRATION_DAYS);
+      } else {
+        LOG.debug("Deleted staged objects under '{}'.", this);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while deleting staged objects.", e);
+    } catch (ExecutionException e) {
+      throw new IOException(String.format("Failed to delete staged objects under '%s'.", this), e.getCause());
+    } catch (StorageException e) {
+      throw new IOException(String.format("Failed to list staged objects under '%s'.", this), e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Deletes a batch of objects, returning the number of objects that were not deleted.
+   */
+  private Future<Integer> submitDelete(ExecutorService executor, List<BlobId> batch) {
+    return executor.submit(() -> {
+      List<Boolean> deleted = storage.delete(batch);
+      return (int) deleted.stream().filter(result -> !result).count();
+    });
+  }
+
+  @Override
+  public String toString() {
+    return String.format("gs://%s/%s", bucket, prefix);
+  }
+}
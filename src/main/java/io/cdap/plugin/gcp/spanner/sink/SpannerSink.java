@@ -16,16 +16,17 @@
 
 package io.cdap.plugin.gcp.spanner.sink;
 
+import com.google.api.gax.longrunning.OperationFuture;
 import com.google.cloud.spanner.Database;
 import com.google.cloud.spanner.DatabaseAdminClient;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
 import com.google.cloud.spanner.ErrorCode;
 import com.google.cloud.spanner.Mutation;
-import com.google.cloud.spanner.Operation;
 import com.google.cloud.spanner.ResultSet;
 import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerException;
+import com.google.cloud.spanner.SpannerExceptionFactory;
 import com.google.cloud.spanner.Statement;
 import com.google.common.base.Strings;
 import com.google.spanner.admin.database.v1.CreateDatabaseMetadata;
@@ -55,6 +56,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -150,9 +152,10 @@ public final class SpannerSink extends BatchSink<StructuredRecord, NullWritable,
       LOG.debug("Creating table with create statement: {} in database {} of instance {}", createStmt,
                 config.getDatabase(), config.getInstance());
       // In Spanner table creation is an update ddl operation on the database.
-      Operation<Void, UpdateDatabaseDdlMetadata> op = database.updateDdl(Collections.singletonList(createStmt), null);
+      OperationFuture<Void, UpdateDatabaseDdlMetadata> op =
+        database.updateDdl(Collections.singletonList(createStmt), null);
       // Table creation is an async operation. So wait until table is created.
-      op.waitFor().getResult();
+      waitFor(op);
     }
   }
 
@@ -186,15 +189,25 @@ public final class SpannerSink extends BatchSink<StructuredRecord, NullWritable,
     if (database == null) {
       LOG.debug("Database not found. Creating database {} in instance {}.", config.getDatabase(), config.getInstance());
       // Create database
-      Operation<Database, CreateDatabaseMetadata> op =
+      OperationFuture<Database, CreateDatabaseMetadata> op =
         dbAdminClient.createDatabase(config.getInstance(), config.getDatabase(), Collections.emptyList());
       // database creation is an async operation. Wait until database creation operation is complete.
-      database = op.waitFor().getResult();
+      database = waitFor(op);
     }
 
     return database;
   }
 
+  private static <T> T waitFor(OperationFuture<T, ?> op) {
+    try {
+      return op.get();
+    } catch (InterruptedException e) {
+      throw SpannerExceptionFactory.propagateInterrupt(e);
+    } catch (ExecutionException e) {
+      throw SpannerExceptionFactory.asSpannerException(e.getCause());
+    }
+  }
+
   @Nullable
   private Database getDatabaseIfPresent(DatabaseAdminClient dbAdminClient) {
     Database database = null;
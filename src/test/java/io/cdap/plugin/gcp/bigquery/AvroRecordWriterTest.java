@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.AvroRecordWriter;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.io.NullWritable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link AvroRecordWriter}.
+ */
+public class AvroRecordWriterTest {
+
+  private static final Schema SCHEMA_A = Schema.recordOf(
+    "a", Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+  private static final Schema SCHEMA_B = Schema.recordOf(
+    "b", Schema.Field.of("name", Schema.of(Schema.Type.STRING)));
+  private static final Schema SCHEMA_C = Schema.recordOf(
+    "c", Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)));
+
+  @Test
+  public void testInterleavedSchemasWriteOneFilePerSchema() throws IOException {
+    List<ByteArrayOutputStream> files = new ArrayList<>();
+    AvroRecordWriter writer = createWriter(files, 4);
+
+    for (long i = 0; i < 3; i++) {
+      writer.write(StructuredRecord.builder(SCHEMA_A).set("id", i).build(), NullWritable.get());
+      // an equal schema from a different instance must go to the same file
+      Schema copy = Schema.recordOf("b", Schema.Field.of("name", Schema.of(Schema.Type.STRING)));
+      writer.write(StructuredRecord.builder(copy).set("name", "n" + i).build(), NullWritable.get());
+    }
+    writer.close(null);
+
+    Assert.assertEquals(2, files.size());
+    List<GenericRecord> first = read(files.get(0));
+    List<GenericRecord> second = read(files.get(1));
+    Assert.assertEquals(3, first.size());
+    Assert.assertEquals(3, second.size());
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals((long) i, first.get(i).get("id"));
+      Assert.assertEquals("n" + i, second.get(i).get("name").toString());
+    }
+  }
+
+  @Test
+  public void testEvictedSchemaStartsNewFile() throws IOException {
+    List<ByteArrayOutputStream> files = new ArrayList<>();
+    AvroRecordWriter writer = createWriter(files, 2);
+
+    writer.write(StructuredRecord.builder(SCHEMA_A).set("id", 1L).build(), NullWritable.get());
+    writer.write(StructuredRecord.builder(SCHEMA_B).set("name", "x").build(), NullWritable.get());
+    writer.write(StructuredRecord.builder(SCHEMA_C).set("flag", true).build(), NullWritable.get());
+    writer.write(StructuredRecord.builder(SCHEMA_A).set("id", 2L).build(), NullWritable.get());
+    writer.close(null);
+
+    Assert.assertEquals(4, files.size());
+    int total = 0;
+    for (ByteArrayOutputStream file : files) {
+      total += read(file).size();
+    }
+    Assert.assertEquals(4, total);
+    Assert.assertEquals(2L, read(files.get(3)).get(0).get("id"));
+  }
+
+  @Test
+  public void testFilesRollOverAfterMaxSize() throws IOException {
+    List<ByteArrayOutputStream> files = new ArrayList<>();
+    AvroRecordWriter writer = new AvroRecordWriter(CodecFactory.nullCodec(), createFactory(files),
+                                                   1024, 4, 4096);
+
+    for (long i = 0; i < 5000; i++) {
+      writer.write(StructuredRecord.builder(SCHEMA_A).set("id", i * 7919).build(), NullWritable.get());
+    }
+    writer.write(StructuredRecord.builder(SCHEMA_B).set("name", "x").build(), NullWritable.get());
+    writer.close(null);
+
+    Assert.assertTrue(files.size() > 2);
+    long expected = 0;
+    for (ByteArrayOutputStream file : files.subList(0, files.size() - 1)) {
+      // a file is closed at the first block boundary at or after the maximum size
+      Assert.assertTrue(file.size() < 4096 + 2048);
+      for (GenericRecord record : read(file)) {
+        Assert.assertEquals(expected++ * 7919, record.get("id"));
+      }
+    }
+    Assert.assertEquals(5000, expected);
+    Assert.assertEquals("x", read(files.get(files.size() - 1)).get(0).get("name").toString());
+  }
+
+  private static AvroRecordWriter createWriter(List<ByteArrayOutputStream> files, int maxOpenFiles) {
+    return new AvroRecordWriter(CodecFactory.nullCodec(), createFactory(files), 64000, maxOpenFiles);
+  }
+
+  private static AvroRecordWriter.OutputStreamFactory createFactory(List<ByteArrayOutputStream> files) {
+    return () -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      files.add(out);
+      return out;
+    };
+  }
+
+  private static List<GenericRecord> read(ByteArrayOutputStream file) throws IOException {
+    List<GenericRecord> records = new ArrayList<>();
+    try (DataFileStream<GenericRecord> stream = new DataFileStream<>(new ByteArrayInputStream(file.toByteArray()),
+                                                                     new GenericDatumReader<>())) {
+      stream.forEach(records::add);
+    }
+    return records;
+  }
+}
@@ -26,6 +26,8 @@ import org.apache.avro.generic.GenericRecordBuilder;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.time.LocalTime;
 
@@ -176,6 +178,67 @@ public class AvroToStructuredRecordTest {
     Assert.assertEquals(expected, actual);
   }
 
+  @Test
+  public void testDateAndTimeFormats() throws Exception {
+    Schema schema = Schema.recordOf("record",
+                                    Schema.Field.of("dt", Schema.of(Schema.LogicalType.DATE)),
+                                    Schema.Field.of("micros", Schema.of(Schema.LogicalType.TIME_MICROS)),
+                                    Schema.Field.of("millis", Schema.of(Schema.LogicalType.TIME_MILLIS)));
+    org.apache.avro.Schema avroSchema = convertSchema(schema);
+    BigQueryAvroToStructuredTransformer transformer = new BigQueryAvroToStructuredTransformer();
+
+    String[][] values = {
+      {"1969-12-31", "00:00:00", "23:59:59.999999"},
+      {"2019-03-04", "12:34:56.5", "12:34:56.123456789"},
+      {"+12019-03-04", "12:34", "01:02:03.04"}
+    };
+    for (String[] value : values) {
+      GenericRecord record = new GenericRecordBuilder(avroSchema)
+        .set("dt", value[0])
+        .set("micros", value[1])
+        .set("millis", value[2])
+        .build();
+      StructuredRecord actual = transformer.transform(record, schema);
+      Assert.assertEquals(LocalDate.parse(value[0]), actual.getDate("dt"));
+      Assert.assertEquals(LocalTime.parse(value[1]), actual.getTime("micros"));
+      Assert.assertEquals(LocalTime.parse(value[2]).withNano(LocalTime.parse(value[2]).getNano() / 1000000 * 1000000),
+                          actual.getTime("millis"));
+    }
+  }
+
+  @Test
+  public void testRecordsWithDifferentSchemas() throws Exception {
+    Schema schema = Schema.recordOf("record",
+                                    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+                                    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+                                    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(10, 2))));
+    Schema idOnlySchema = Schema.recordOf("record", Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+    BigQueryAvroToStructuredTransformer transformer = new BigQueryAvroToStructuredTransformer();
+
+    // the decimal bytes are in the middle of a larger buffer
+    ByteBuffer price = ByteBuffer.wrap(new byte[] {9, 0, 0x30, 0x39, 9}, 2, 2).slice();
+    GenericRecord record = new GenericRecordBuilder(convertSchema(schema))
+      .set("id", 1L)
+      .set("name", "alice")
+      .set("price", price)
+      .build();
+    StructuredRecord actual = transformer.transform(record, schema);
+    Assert.assertEquals("alice", actual.get("name"));
+    Assert.assertEquals(new BigDecimal("123.45"), actual.getDecimal("price"));
+    Assert.assertEquals(0, price.position());
+
+    // fields that are missing from the Avro record are null
+    record = new GenericRecordBuilder(convertSchema(idOnlySchema)).set("id", 2L).build();
+    actual = transformer.transform(record, schema);
+    Assert.assertEquals(2L, (long) actual.get("id"));
+    Assert.assertNull(actual.get("name"));
+    Assert.assertNull(actual.get("price"));
+
+    actual = transformer.transform(record, idOnlySchema);
+    Assert.assertEquals(idOnlySchema, actual.getSchema());
+    Assert.assertEquals(2L, (long) actual.get("id"));
+  }
+
   @Test(expected = UnexpectedFormatException.class)
   public void testUnionTypeUnsupported() throws Exception {
     Schema schema = Schema.recordOf("record",
@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationTableCopy;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.JobStatistics;
+import com.google.api.services.bigquery.model.JobStatistics2;
+import com.google.api.services.bigquery.model.JobStatistics3;
+import com.google.api.services.bigquery.model.JobStatistics4;
+import com.google.api.services.bigquery.model.JobStatus;
+import io.cdap.cdap.etl.api.StageMetrics;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryJobStatistics;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link BigQueryJobStatistics}.
+ */
+public class BigQueryJobStatisticsTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testStatisticsOfJobTypes() {
+    BigQueryJobStatistics load = BigQueryJobStatistics.of(job("load", new JobStatistics().setLoad(
+      new JobStatistics3().setInputFiles(3L).setInputFileBytes(300L).setOutputRows(30L))));
+    Assert.assertEquals("load", load.getType());
+    Assert.assertEquals(1500L, load.getWallMillis());
+    Assert.assertEquals(500L, load.getQueueMillis());
+    Assert.assertEquals(300L, load.getBytesProcessed());
+    Assert.assertEquals(30L, load.getOutputRows());
+    Assert.assertEquals(3L, load.getFiles());
+    Assert.assertEquals(42L, load.getSlotMillis());
+
+    BigQueryJobStatistics merge = BigQueryJobStatistics.of(job("merge", new JobStatistics().setQuery(
+      new JobStatistics2().setStatementType("MERGE").setTotalBytesProcessed(100L).setTotalBytesBilled(200L)
+        .setNumDmlAffectedRows(7L))));
+    Assert.assertEquals("merge", merge.getType());
+    Assert.assertEquals(100L, merge.getBytesProcessed());
+    Assert.assertEquals(200L, merge.getBytesBilled());
+    Assert.assertEquals(7L, merge.getOutputRows());
+
+    Assert.assertEquals("query", BigQueryJobStatistics.of(job("query", new JobStatistics().setQuery(
+      new JobStatistics2().setStatementType("SELECT")))).getType());
+    BigQueryJobStatistics export = BigQueryJobStatistics.of(job("export", new JobStatistics().setExtract(
+      new JobStatistics4().setDestinationUriFileCounts(Arrays.asList(2L, 3L)))));
+    Assert.assertEquals("export", export.getType());
+    Assert.assertEquals(5L, export.getFiles());
+
+    Job copy = job("copy", new JobStatistics())
+      .setConfiguration(new JobConfiguration().setCopy(new JobConfigurationTableCopy()));
+    Assert.assertEquals("copy", BigQueryJobStatistics.of(copy).getType());
+  }
+
+  @Test
+  public void testRecordedStatisticsAreEmittedPerType() throws Exception {
+    File directory = new File(temporaryFolder.getRoot(), "statistics");
+    Configuration conf = new Configuration();
+    conf.set(BigQueryConstants.CONFIG_JOB_STATISTICS_PATH, directory.toURI().toString());
+    Job first = job("first", new JobStatistics().setLoad(new JobStatistics3().setInputFiles(1L).setOutputRows(10L)));
+    Job second = job("second", new JobStatistics().setLoad(new JobStatistics3().setInputFiles(2L).setOutputRows(5L)));
+    BigQueryJobStatistics.record(conf, first);
+    BigQueryJobStatistics.record(conf, second);
+    // a job that is recorded again, for example by another task, is counted once
+    BigQueryJobStatistics.record(conf, second);
+    BigQueryJobStatistics.record(conf, job("query", new JobStatistics().setQuery(
+      new JobStatistics2().setTotalBytesBilled(1024L))));
+
+    List<BigQueryJobStatistics> statistics = BigQueryJobStatistics.collect(conf, directory.toURI().toString());
+    Assert.assertEquals(3, statistics.size());
+    Assert.assertFalse(directory.exists());
+
+    StageMetrics metrics = Mockito.mock(StageMetrics.class);
+    BigQueryJobStatistics.emitMetrics(metrics, statistics);
+    Mockito.verify(metrics).count("bq.load.jobs", 2);
+    Mockito.verify(metrics).gauge("bq.load.output.rows", 15L);
+    Mockito.verify(metrics).gauge("bq.load.files", 3L);
+    Mockito.verify(metrics).gauge("bq.load.wall.ms", 3000L);
+    Mockito.verify(metrics).count("bq.query.jobs", 1);
+    Mockito.verify(metrics).gauge("bq.query.bytes.billed", 1024L);
+  }
+
+  @Test
+  public void testFailedJobsAreRecorded() throws Exception {
+    File directory = new File(temporaryFolder.getRoot(), "statistics");
+    Configuration conf = new Configuration();
+    conf.set(BigQueryConstants.CONFIG_JOB_STATISTICS_PATH, directory.toURI().toString());
+    Bigquery bigquery = Mockito.mock(Bigquery.class, Mockito.RETURNS_DEEP_STUBS);
+    Mockito.when(bigquery.jobs().get("project", "failed").setLocation("US").execute())
+      .thenReturn(job("failed", new JobStatistics().setQuery(new JobStatistics2().setTotalBytesBilled(10L)))
+                    .setStatus(new JobStatus().setState("DONE").setErrorResult(new ErrorProto().setMessage("error"))));
+    Mockito.when(bigquery.jobs().get("project", "running").setLocation("US").execute())
+      .thenReturn(job("running", new JobStatistics()).setStatus(new JobStatus().setState("RUNNING")));
+
+    BigQueryJobStatistics.recordFinished(
+      conf, bigquery, new JobReference().setProjectId("project").setJobId("failed").setLocation("US"));
+    // a job that is still running has no final statistics yet
+    BigQueryJobStatistics.recordFinished(
+      conf, bigquery, new JobReference().setProjectId("project").setJobId("running").setLocation("US"));
+
+    List<BigQueryJobStatistics> statistics = BigQueryJobStatistics.collect(conf, directory.toURI().toString());
+    Assert.assertEquals(1, statistics.size());
+    Assert.assertEquals("failed", statistics.get(0).getJobId());
+    Assert.assertEquals(1500L, statistics.get(0).getWallMillis());
+  }
+
+  private static Job job(String id, JobStatistics statistics) {
+    return new Job()
+      .setJobReference(new JobReference().setProjectId("project").setJobId(id))
+      .setStatistics(statistics.setCreationTime(1000L).setStartTime(1500L).setEndTime(2500L).setTotalSlotMs(42L));
+  }
+}
@@ -17,6 +17,7 @@
 package io.cdap.plugin.gcp.bigquery;
 
 import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.internal.bind.JsonTreeWriter;
@@ -27,7 +28,10 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
@@ -185,4 +189,69 @@ public class BigQueryRecordToJsonTest {
                           actual.get("base").getAsJsonObject().get("innerB").getAsJsonObject().get("int").getAsInt());
     }
   }
+
+  @Test
+  public void testBytes() throws IOException {
+    Schema schema = Schema.recordOf(
+      "record",
+      Schema.Field.of("bytes", Schema.of(Schema.Type.BYTES)),
+      Schema.Field.of("buffer", Schema.nullableOf(Schema.of(Schema.Type.BYTES)))
+    );
+
+    StructuredRecord record = StructuredRecord.builder(schema)
+      .set("bytes", new byte[] {1, 2, 3})
+      .set("buffer", ByteBuffer.wrap(new byte[] {4, 5})).build();
+
+    try (JsonTreeWriter writer = new JsonTreeWriter()) {
+      writer.beginObject();
+      for (Schema.Field recordField : Objects.requireNonNull(record.getSchema().getFields())) {
+        BigQueryRecordToJson.write(writer, recordField.getName(), record.get(recordField.getName()),
+                                   recordField.getSchema());
+      }
+      writer.endObject();
+
+      JsonObject actual = writer.get().getAsJsonObject();
+      Assert.assertEquals(Base64.getEncoder().encodeToString(new byte[] {1, 2, 3}), actual.get("bytes").getAsString());
+      Assert.assertEquals(Base64.getEncoder().encodeToString(new byte[] {4, 5}), actual.get("buffer").getAsString());
+    }
+  }
+
+  @Test
+  public void testStorageWrite() throws IOException {
+    Schema schema = Schema.recordOf(
+      "record",
+      Schema.Field.of("date", Schema.of(Schema.LogicalType.DATE)),
+      Schema.Field.of("ts_millis", Schema.of(Schema.LogicalType.TIMESTAMP_MILLIS)),
+      Schema.Field.of("ts_micros", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)),
+      Schema.Field.of("decimal", Schema.decimalOf(5, 2)),
+      Schema.Field.of("bytes", Schema.arrayOf(Schema.of(Schema.Type.BYTES)))
+    );
+
+    StructuredRecord record = StructuredRecord.builder(schema)
+      .set("date", 1)
+      .set("ts_millis", 1500L)
+      .set("ts_micros", 1500L)
+      .set("decimal", new BigDecimal("1.50").unscaledValue().toByteArray())
+      .set("bytes", ImmutableList.of(new byte[] {1, -2}, ByteBuffer.wrap(new byte[] {3}))).build();
+
+    try (JsonTreeWriter writer = new JsonTreeWriter()) {
+      writer.beginObject();
+      for (Schema.Field recordField : Objects.requireNonNull(record.getSchema().getFields())) {
+        BigQueryRecordToJson.writeForStorageWrite(writer, recordField.getName(), record.get(recordField.getName()),
+                                                  recordField.getSchema());
+      }
+      writer.endObject();
+
+      JsonObject actual = writer.get().getAsJsonObject();
+      Assert.assertEquals("1970-01-02", actual.get("date").getAsString());
+      Assert.assertEquals(1500000L, actual.get("ts_millis").getAsLong());
+      Assert.assertEquals(1500L, actual.get("ts_micros").getAsLong());
+      Assert.assertEquals("1.50", actual.get("decimal").getAsString());
+      JsonArray bytes = actual.get("bytes").getAsJsonArray();
+      Assert.assertEquals(2, bytes.size());
+      Assert.assertEquals(1, bytes.get(0).getAsJsonArray().get(0).getAsInt());
+      Assert.assertEquals(-2, bytes.get(0).getAsJsonArray().get(1).getAsInt());
+      Assert.assertEquals(3, bytes.get(1).getAsJsonArray().get(0).getAsInt());
+    }
+  }
 }
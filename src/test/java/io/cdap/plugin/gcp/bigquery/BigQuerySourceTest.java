@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy of
+ *  the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations under
+ *  the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.TableId;
+import io.cdap.cdap.etl.api.validation.ValidationFailure;
+import io.cdap.cdap.etl.mock.validation.MockFailureCollector;
+import io.cdap.plugin.gcp.bigquery.source.BigQuerySource;
+import io.cdap.plugin.gcp.bigquery.source.BigQuerySourceConfig;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+
+/**
+ * Tests for {@link BigQuerySource}.
+ */
+public class BigQuerySourceTest {
+
+  @Test
+  public void testTableOrQueryIsRequired() {
+    List<ValidationFailure> failures = validate(new BigQuerySourceConfig("ref", "ds", null, " "));
+    Assert.assertEquals(1, failures.size());
+    Assert.assertEquals("Either a table or a query must be given.", failures.get(0).getMessage());
+  }
+
+  @Test
+  public void testTableAndQueryAreExclusive() {
+    List<ValidationFailure> failures = validate(new BigQuerySourceConfig("ref", "ds", "tb", "select 1"));
+    Assert.assertEquals(1, failures.size());
+    Assert.assertEquals("A table and a query cannot both be given.", failures.get(0).getMessage());
+  }
+
+  @Test
+  public void testTableOrQueryIsValid() {
+    Assert.assertTrue(validate(new BigQuerySourceConfig("ref", "ds", "tb", null)).isEmpty());
+    Assert.assertTrue(validate(new BigQuerySourceConfig("ref", "ds", "tb_*", "")).isEmpty());
+    Assert.assertTrue(validate(new BigQuerySourceConfig("ref", "ds", null, "select * from ds.tb")).isEmpty());
+  }
+
+  @Test
+  public void testQueryTableIsDeleted() {
+    BigQuery bigQuery = Mockito.mock(BigQuery.class);
+    TableId tableId = TableId.of("project", "ds", "_cdap_query_1234");
+    Mockito.when(bigQuery.delete(tableId)).thenReturn(true);
+
+    BigQuerySource.deleteQueryTable(bigQuery, tableId);
+
+    Mockito.verify(bigQuery).delete(tableId);
+  }
+
+  @Test
+  public void testQueryTableDeletionFailureDoesNotFailRun() {
+    BigQuery bigQuery = Mockito.mock(BigQuery.class);
+    TableId tableId = TableId.of("project", "ds", "_cdap_query_1234");
+    Mockito.when(bigQuery.delete(tableId)).thenThrow(new BigQueryException(403, "Access denied."));
+
+    BigQuerySource.deleteQueryTable(bigQuery, tableId);
+
+    Mockito.verify(bigQuery).delete(tableId);
+  }
+
+  private static List<ValidationFailure> validate(BigQuerySourceConfig config) {
+    MockFailureCollector collector = new MockFailureCollector("bqsource");
+    config.validate(collector);
+    return collector.getValidationFailures();
+  }
+}
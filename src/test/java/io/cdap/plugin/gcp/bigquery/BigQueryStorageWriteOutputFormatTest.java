@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.hadoop.io.bigquery.BigQueryConfiguration;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.BigQueryStorageWriteOutputFormat;
+import io.cdap.plugin.gcp.bigquery.sink.BigQueryWriteService;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Tests for {@link BigQueryStorageWriteOutputFormat}, using an in-memory {@link BigQueryWriteService}.
+ */
+public class BigQueryStorageWriteOutputFormatTest {
+
+  @ClassRule
+  public static final TemporaryFolder TEMP_FOLDER = new TemporaryFolder();
+
+  private static final Schema SCHEMA = Schema.recordOf("record", Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+  private static final TableId TABLE = TableId.of("project", "dataset", "table");
+  private static final JobID JOB_ID = new JobID("job", 1);
+
+  private Configuration conf;
+  private File outputDir;
+
+  @Before
+  public void setUp() throws IOException {
+    InMemoryWriteService.reset();
+    outputDir = TEMP_FOLDER.newFolder();
+    conf = new Configuration(false);
+    conf.set(BigQueryConfiguration.PROJECT_ID_KEY, TABLE.getProject());
+    conf.set(BigQueryConfiguration.OUTPUT_DATASET_ID_KEY, TABLE.getDataset());
+    conf.set(BigQueryConfiguration.OUTPUT_TABLE_ID_KEY, TABLE.getTable());
+    conf.set(BigQueryConfiguration.OUTPUT_TABLE_WRITE_DISPOSITION_KEY, JobInfo.WriteDisposition.WRITE_APPEND.name());
+    conf.set(FileOutputFormat.OUTDIR, outputDir.toURI().toString());
+    conf.setInt(BigQueryConstants.CONFIG_WRITE_STREAM_COUNT, 2);
+    conf.setLong(BigQueryConstants.CONFIG_WRITE_MAX_IN_FLIGHT_BYTES, 1024);
+    conf.setClass(BigQueryConstants.CONFIG_WRITE_SERVICE_FACTORY, InMemoryWriteServiceFactory.class,
+                  BigQueryWriteService.Factory.class);
+  }
+
+  @Test
+  public void testRowsAreVisibleOnlyAfterCommit() throws Exception {
+    BigQueryStorageWriteOutputFormat outputFormat = new BigQueryStorageWriteOutputFormat();
+    writeTask(outputFormat, 0, 0, 0, 5, true);
+    writeTask(outputFormat, 1, 0, 5, 10, true);
+    // a task without records does not open streams
+    writeTask(outputFormat, 2, 0, 10, 10, true);
+
+    Assert.assertEquals(4, InMemoryWriteService.finalizedStreams.size());
+    Assert.assertTrue(InMemoryWriteService.tables.isEmpty());
+    Assert.assertEquals(1024L, InMemoryWriteService.lastMaxInFlightBytes);
+
+    getCommitter(outputFormat).commitJob(new JobContextImpl(conf, JOB_ID));
+
+    Assert.assertEquals(range(0, 10), getIds(InMemoryWriteService.tables.get(TABLE)));
+    Assert.assertEquals(1, InMemoryWriteService.commitCount);
+    // the manifests are removed once the streams are committed
+    Assert.assertFalse(new File(outputDir, "_write_streams").exists());
+  }
+
+  @Test
+  public void testStreamsOfFailedAttemptsAreNotCommitted() throws Exception {
+    BigQueryStorageWriteOutputFormat outputFormat = new BigQueryStorageWriteOutputFormat();
+    writeTask(outputFormat, 0, 0, 0, 5, false);
+    writeTask(outputFormat, 0, 1, 100, 105, true);
+
+    getCommitter(outputFormat).commitJob(new JobContextImpl(conf, JOB_ID));
+
+    Assert.assertEquals(range(100, 105), getIds(InMemoryWriteService.tables.get(TABLE)));
+  }
+
+  @Test
+  public void testAbortDoesNotCommitStreams() throws Exception {
+    BigQueryStorageWriteOutputFormat outputFormat = new BigQueryStorageWriteOutputFormat();
+    writeTask(outputFormat, 0, 0, 0, 5, true);
+
+    getCommitter(outputFormat).abortJob(new JobContextImpl(conf, JOB_ID), JobStatus.State.FAILED);
+
+    Assert.assertTrue(InMemoryWriteService.tables.isEmpty());
+    Assert.assertEquals(0, InMemoryWriteService.commitCount);
+    Assert.assertFalse(new File(outputDir, "_write_streams").exists());
+  }
+
+  private void writeTask(BigQueryStorageWriteOutputFormat outputFormat, int task, int attempt,
+                         long fromId, long toId, boolean succeeded) throws IOException, InterruptedException {
+    TaskAttemptContext context = new TaskAttemptContextImpl(
+      conf, new TaskAttemptID(JOB_ID.getJtIdentifier(), JOB_ID.getId(), TaskType.MAP, task, attempt));
+    RecordWriter<StructuredRecord, NullWritable> writer = outputFormat.getRecordWriter(context);
+    for (long id = fromId; id < toId; id++) {
+      writer.write(StructuredRecord.builder(SCHEMA).set("id", id).build(), NullWritable.get());
+    }
+    writer.close(context);
+
+    OutputCommitter committer = outputFormat.getOutputCommitter(context);
+    if (!succeeded) {
+      committer.abortTask(context);
+    } else if (committer.needsTaskCommit(context)) {
+      committer.commitTask(context);
+    }
+  }
+
+  private OutputCommitter getCommitter(BigQueryStorageWriteOutputFormat outputFormat) {
+    return outputFormat.getOutputCommitter(new TaskAttemptContextImpl(conf, new TaskAttemptID()));
+  }
+
+  private static List<Long> getIds(List<StructuredRecord> records) {
+    return records.stream().map(record -> record.<Long>get("id")).sorted().collect(Collectors.toList());
+  }
+
+  private static List<Long> range(long from, long to) {
+    List<Long> ids = new ArrayList<>();
+    for (long id = from; id < to; id++) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  /**
+   * Creates {@link InMemoryWriteService} instances.
+   */
+  public static final class InMemoryWriteServiceFactory implements BigQueryWriteService.Factory {
+    @Override
+    public BigQueryWriteService create(Configuration configuration) {
+      return new InMemoryWriteService();
+    }
+  }
+
+  /**
+   * {@link BigQueryWriteService} that keeps streams and tables in memory. Like BigQuery, it assigns stream names
+   * and only commits finalized streams.
+   */
+  private static final class InMemoryWriteService implements BigQueryWriteService {
+    private static final Map<String, List<StructuredRecord>> finalizedStreams = new HashMap<>();
+    private static final Set<String> committedStreams = new HashSet<>();
+    private static final Map<TableId, List<StructuredRecord>> tables = new HashMap<>();
+    private static long lastMaxInFlightBytes;
+    private static int streamCount;
+    private static int commitCount;
+
+    static void reset() {
+      finalizedStreams.clear();
+      committedStreams.clear();
+      tables.clear();
+      lastMaxInFlightBytes = 0;
+      streamCount = 0;
+      commitCount = 0;
+    }
+
+    @Override
+    public PendingStream createPendingStream(TableId destination, long maxInFlightBytes) {
+      lastMaxInFlightBytes = maxInFlightBytes;
+      String name = String.format("projects/%s/datasets/%s/tables/%s/streams/%d", destination.getProject(),
+                                  destination.getDataset(), destination.getTable(), streamCount++);
+      List<StructuredRecord> rows = new ArrayList<>();
+      return new PendingStream() {
+        @Override
+        public String getName() {
+          return name;
+        }
+
+        @Override
+        public void append(StructuredRecord record) {
+          rows.add(record);
+        }
+
+        @Override
+        public void finalizeStream() {
+          finalizedStreams.put(name, rows);
+        }
+
+        @Override
+        public void abort() {
+          rows.clear();
+        }
+      };
+    }
+
+    @Override
+    public void commitStreams(TableId destination, List<String> streamNames) {
+      for (String name : streamNames) {
+        Assert.assertTrue("Stream " + name + " is not finalized", finalizedStreams.containsKey(name));
+        Assert.assertTrue("Stream " + name + " is committed twice", committedStreams.add(name));
+      }
+      commitCount++;
+      List<StructuredRecord> rows = tables.computeIfAbsent(destination, t -> new ArrayList<>());
+      streamNames.forEach(name -> rows.addAll(finalizedStreams.get(name)));
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+  }
+}
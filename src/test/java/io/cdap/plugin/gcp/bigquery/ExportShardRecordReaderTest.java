@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.plugin.gcp.bigquery.source.ExportShardRecordReader;
+import io.cdap.plugin.gcp.bigquery.source.ExportShardSplit;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link ExportShardRecordReader}.
+ */
+public class ExportShardRecordReaderTest {
+
+  private static final Schema SCHEMA = SchemaBuilder.record("root").fields().requiredLong("id").endRecord();
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testFilesAreReadAsTheyAppear() throws Exception {
+    File shard = temporaryFolder.newFolder("shard-0");
+    AtomicBoolean exportDone = new AtomicBoolean();
+    Thread exporter = new Thread(() -> {
+      try {
+        writeFile(shard, 0, 1L, 2L);
+        Thread.sleep(50);
+        writeFile(shard, 1, 3L);
+        Thread.sleep(50);
+        writeFile(shard, 2);
+        // files written after the end of the shard are not read
+        writeFile(shard, 3, 4L);
+        exportDone.set(true);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    exporter.start();
+
+    // the job status never reports the export as done while the files are being written
+    Assert.assertEquals(Arrays.asList(1L, 2L, 3L), readShard(shard, () -> false));
+    exporter.join();
+    Assert.assertTrue(exportDone.get());
+  }
+
+  @Test
+  public void testShardEndsWhenExportIsDone() throws Exception {
+    File shard = temporaryFolder.newFolder("shard-0");
+    writeFile(shard, 0, 1L);
+    writeFile(shard, 1, 2L);
+    Assert.assertEquals(Arrays.asList(1L, 2L), readShard(shard, () -> true));
+
+    File emptyShard = temporaryFolder.newFolder("shard-1");
+    Assert.assertEquals(Collections.emptyList(), readShard(emptyShard, () -> true));
+  }
+
+  @Test(expected = IOException.class)
+  public void testFailedExportFailsTheRead() throws Exception {
+    File shard = temporaryFolder.newFolder("shard-0");
+    writeFile(shard, 0, 1L);
+    readShard(shard, () -> {
+      throw new IOException("Export failed");
+    });
+  }
+
+  private static List<Long> readShard(File shard, ExportShardRecordReader.ExportStatus status) throws Exception {
+    ExportShardRecordReader reader = new ExportShardRecordReader(status, 5L);
+    reader.initialize(new ExportShardSplit("project", "job", "US", shard.toURI().toString()),
+                      new TaskAttemptContextImpl(new Configuration(), new TaskAttemptID()));
+    List<Long> ids = new ArrayList<>();
+    try {
+      while (reader.nextKeyValue()) {
+        Assert.assertEquals(ids.size(), reader.getCurrentKey().get());
+        ids.add((Long) reader.getCurrentValue().get("id"));
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(1f, reader.getProgress(), 0f);
+    return ids;
+  }
+
+  private static void writeFile(File shard, int index, long... ids) throws IOException {
+    // the file is written under another name and renamed, since exported files appear only once they are complete
+    File temporaryFile = new File(shard, String.format(".data-%012d.avro.tmp", index));
+    try (DataFileWriter<GenericData.Record> writer = new DataFileWriter<>(new GenericDatumWriter<>(SCHEMA))) {
+      writer.create(SCHEMA, temporaryFile);
+      for (long id : ids) {
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("id", id);
+        writer.append(record);
+      }
+    }
+    if (!temporaryFile.renameTo(new File(shard, String.format("data-%012d.avro", index)))) {
+      throw new IOException("Failed to rename " + temporaryFile);
+    }
+  }
+}
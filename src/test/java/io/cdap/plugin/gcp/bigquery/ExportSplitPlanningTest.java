@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.plugin.gcp.bigquery.source.CombinedExportRecordReader;
+import io.cdap.plugin.gcp.bigquery.source.CombinedExportSplit;
+import io.cdap.plugin.gcp.bigquery.source.PartitionedBigQueryInputFormat;
+import io.cdap.plugin.gcp.bigquery.source.ReadStreamSplit;
+import org.apache.avro.generic.GenericData;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the split planning of {@link PartitionedBigQueryInputFormat} and for {@link CombinedExportSplit}.
+ */
+public class ExportSplitPlanningTest {
+
+  @Test
+  public void testSmallFilesAreCombined() {
+    List<InputSplit> splits = PartitionedBigQueryInputFormat.planSplits(
+      Arrays.asList(split("a", 0, 30), split("b", 0, 30), split("c", 0, 30), split("d", 0, 30)), 100);
+    Assert.assertEquals(2, splits.size());
+    Assert.assertEquals(3, ((CombinedExportSplit) splits.get(0)).getSplits().size());
+    Assert.assertEquals(90, splits.get(0).getLength());
+    // a single remaining file is not wrapped
+    Assert.assertEquals(new Path("gs://bucket/d"), ((FileSplit) splits.get(1)).getPath());
+  }
+
+  @Test
+  public void testLargeFilesAreDivided() throws Exception {
+    // the file has been split by block, which does not matter for the planned splits
+    List<InputSplit> splits = PartitionedBigQueryInputFormat.planSplits(
+      Arrays.asList(split("a", 0, 64), split("a", 64, 64), split("a", 128, 122)), 100);
+    Assert.assertEquals(3, splits.size());
+    long next = 0;
+    for (InputSplit split : splits) {
+      FileSplit fileSplit = (FileSplit) split;
+      Assert.assertEquals(next, fileSplit.getStart());
+      Assert.assertTrue(fileSplit.getLength() == 83 || fileSplit.getLength() == 84);
+      next += fileSplit.getLength();
+    }
+    Assert.assertEquals(250, next);
+  }
+
+  @Test
+  public void testOtherSplitsAreKept() {
+    InputSplit other = new ReadStreamSplit("projects/p/locations/us/sessions/s/streams/0", "\"long\"");
+    List<InputSplit> splits = PartitionedBigQueryInputFormat.planSplits(Arrays.asList(other, split("a", 0, 10)), 100);
+    Assert.assertEquals(2, splits.size());
+    Assert.assertSame(other, splits.get(0));
+  }
+
+  @Test
+  public void testCombinedSplitSerialization() throws Exception {
+    CombinedExportSplit split = new CombinedExportSplit(Arrays.asList(split("a", 0, 10), split("b", 0, 20)));
+    DataOutputBuffer output = new DataOutputBuffer();
+    split.write(output);
+    DataInputBuffer input = new DataInputBuffer();
+    input.reset(output.getData(), output.getLength());
+    CombinedExportSplit copy = new CombinedExportSplit();
+    copy.readFields(input);
+
+    Assert.assertEquals(30, copy.getLength());
+    Assert.assertEquals(new Path("gs://bucket/b"), copy.getSplits().get(1).getPath());
+    Assert.assertEquals(20, copy.getSplits().get(1).getLength());
+  }
+
+  @Test
+  public void testCombinedReaderReadsAllFiles() throws Exception {
+    List<String> opened = new ArrayList<>();
+    CombinedExportRecordReader reader = new CombinedExportRecordReader(() -> new CountingReader(opened));
+    reader.initialize(new CombinedExportSplit(Arrays.asList(split("a", 0, 2), split("b", 0, 0), split("c", 0, 3))),
+                      null);
+    int records = 0;
+    while (reader.nextKeyValue()) {
+      records++;
+    }
+    reader.close();
+    Assert.assertEquals(5, records);
+    Assert.assertEquals(Arrays.asList("a", "b", "c"), opened);
+    Assert.assertEquals(1f, reader.getProgress(), 0f);
+  }
+
+  private static FileSplit split(String file, long start, long length) {
+    return new FileSplit(new Path("gs://bucket/" + file), start, length, new String[0]);
+  }
+
+  /**
+   * Reader that returns as many records as the length of its split.
+   */
+  private static final class CountingReader extends RecordReader<LongWritable, GenericData.Record> {
+    private final List<String> opened;
+    private long remaining;
+    private long length;
+
+    private CountingReader(List<String> opened) {
+      this.opened = opened;
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) {
+      FileSplit fileSplit = (FileSplit) split;
+      opened.add(fileSplit.getPath().getName());
+      length = fileSplit.getLength();
+      remaining = length;
+    }
+
+    @Override
+    public boolean nextKeyValue() {
+      return remaining-- > 0;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return new LongWritable(length - remaining);
+    }
+
+    @Override
+    public GenericData.Record getCurrentValue() {
+      return null;
+    }
+
+    @Override
+    public float getProgress() {
+      return length == 0 ? 1f : 1f - (float) Math.max(remaining, 0) / length;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.common.collect.ImmutableList;
+import io.cdap.plugin.gcp.bigquery.sink.LoadJobPlanner;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link LoadJobPlanner}.
+ */
+public class LoadJobPlannerTest {
+
+  private static final String DIR = "gs://bucket/output";
+
+  @Test
+  public void testCollapsesFilesIntoWildcard() {
+    List<FileStatus> listing = Arrays.asList(file("part-m-00000.avro", 10), file("part-m-00001.avro", 10),
+                                             file("part-m-00002.avro", 10), file("_SUCCESS", 0));
+
+    Assert.assertEquals(Collections.singletonList(Collections.singletonList(DIR + "/p*")),
+                        LoadJobPlanner.plan(listing, 100, 1000));
+  }
+
+  @Test
+  public void testWildcardDoesNotMatchOtherEntries() {
+    List<FileStatus> listing = Arrays.asList(file("a1", 10), file("a2", 10), file("ab", 0), dir("a3"),
+                                             file("b", 10));
+
+    Assert.assertEquals(Collections.singletonList(ImmutableList.of(DIR + "/a1", DIR + "/a2", DIR + "/ab",
+                                                                   DIR + "/b")),
+                        LoadJobPlanner.plan(listing, 100, 1000));
+  }
+
+  @Test
+  public void testWildcardDoesNotMatchEarlierFiles() {
+    // 'a' is a prefix of 'ab', so the wildcard 'a*' would load 'a' a second time
+    List<FileStatus> listing = Arrays.asList(file("a", 10), file("ab", 10), file("b", 10));
+
+    Assert.assertEquals(Collections.singletonList(ImmutableList.of(DIR + "/a", DIR + "/ab", DIR + "/b")),
+                        LoadJobPlanner.plan(listing, 100, 1000));
+  }
+
+  @Test
+  public void testSplitsByFilesAndBytes() {
+    List<FileStatus> listing = Arrays.asList(file("x0", 10), file("x1", 10), file("x2", 10), file("x3", 10),
+                                             file("y0", 50), file("y1", 50));
+
+    Assert.assertEquals(ImmutableList.of(ImmutableList.of(DIR + "/x0", DIR + "/x1", DIR + "/x2"),
+                                         ImmutableList.of(DIR + "/x3", DIR + "/y0"),
+                                         ImmutableList.of(DIR + "/y1")),
+                        LoadJobPlanner.plan(listing, 3, 60));
+  }
+
+  @Test
+  public void testWildcardsStayWithinJob() {
+    List<FileStatus> listing = Arrays.asList(file("part-0", 1), file("part-1", 1), file("part-2", 1),
+                                             file("part-3", 1));
+
+    Assert.assertEquals(ImmutableList.of(ImmutableList.of(DIR + "/part-0", DIR + "/part-1", DIR + "/part-2"),
+                                         ImmutableList.of(DIR + "/part-3")),
+                        LoadJobPlanner.plan(listing, 3, 1000));
+  }
+
+  private static FileStatus file(String name, long length) {
+    return new FileStatus(length, false, 1, 1, 0, new Path(DIR, name));
+  }
+
+  private static FileStatus dir(String name) {
+    return new FileStatus(0, true, 1, 1, 0, new Path(DIR, name));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.MultiSinkOutputFormatProvider.RoutingRecordWriter;
+import io.cdap.plugin.gcp.bigquery.sink.MultiSinkOutputFormatProvider.TableRecordWriter;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link RoutingRecordWriter}.
+ */
+public class MultiSinkRoutingRecordWriterTest {
+
+  private static final Schema INPUT_SCHEMA = Schema.recordOf(
+    "input",
+    Schema.Field.of("tablename", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+  private static final Schema USERS_SCHEMA = Schema.recordOf(
+    "users",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+  private static final Schema ORDERS_SCHEMA = Schema.recordOf(
+    "orders",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+
+  @Test
+  public void testRecordsAreRoutedAndProjected() throws Exception {
+    Map<String, List<StructuredRecord>> written = new HashMap<>();
+    List<String> opened = new ArrayList<>();
+    List<String> closed = new ArrayList<>();
+    Map<String, Schema> schemas = new HashMap<>();
+    schemas.put("users", USERS_SCHEMA);
+    schemas.put("orders", ORDERS_SCHEMA);
+    schemas.put("unused", ORDERS_SCHEMA);
+
+    RoutingRecordWriter writer = new RoutingRecordWriter(
+      "tablename", new HashSet<>(Arrays.asList("users", "orders", "unused")), tableName -> {
+        opened.add(tableName);
+        List<StructuredRecord> records = written.computeIfAbsent(tableName, name -> new ArrayList<>());
+        return new TableRecordWriter(schemas.get(tableName), new RecordWriter<StructuredRecord, NullWritable>() {
+          @Override
+          public void write(StructuredRecord key, NullWritable value) {
+            records.add(key);
+          }
+
+          @Override
+          public void close(TaskAttemptContext context) {
+            closed.add(tableName);
+          }
+        });
+      });
+
+    writer.write(record("db.Users", 1L, "a"), NullWritable.get());
+    writer.write(record("orders", 2L, "b"), NullWritable.get());
+    writer.write(record("users", 3L, null), NullWritable.get());
+    writer.write(record("missing", 4L, "c"), NullWritable.get());
+    writer.write(record(null, 5L, "d"), NullWritable.get());
+    writer.close(null);
+
+    Assert.assertEquals(2, opened.size());
+    Assert.assertEquals(new HashSet<>(opened), new HashSet<>(closed));
+
+    List<StructuredRecord> users = written.get("users");
+    Assert.assertEquals(2, users.size());
+    Assert.assertEquals(USERS_SCHEMA, users.get(0).getSchema());
+    Assert.assertEquals(1L, (long) users.get(0).get("id"));
+    Assert.assertEquals("a", users.get(0).get("name"));
+    Assert.assertEquals(3L, (long) users.get(1).get("id"));
+    Assert.assertNull(users.get(1).get("name"));
+
+    List<StructuredRecord> orders = written.get("orders");
+    Assert.assertEquals(1, orders.size());
+    Assert.assertEquals(ORDERS_SCHEMA, orders.get(0).getSchema());
+    Assert.assertEquals(2L, (long) orders.get(0).get("id"));
+  }
+
+  @Test
+  public void testManySplitValuesOpenOneWriterPerTable() throws Exception {
+    List<String> opened = new ArrayList<>();
+    List<StructuredRecord> written = new ArrayList<>();
+    RoutingRecordWriter writer = new RoutingRecordWriter(
+      "tablename", Collections.singleton("users"), tableName -> {
+        opened.add(tableName);
+        return new TableRecordWriter(USERS_SCHEMA, new RecordWriter<StructuredRecord, NullWritable>() {
+          @Override
+          public void write(StructuredRecord key, NullWritable value) {
+            written.add(key);
+          }
+
+          @Override
+          public void close(TaskAttemptContext context) {
+          }
+        });
+      });
+
+    // more distinct values than routes are remembered, so routes of old values are evicted and resolved again
+    for (long i = 0; i < 5000; i++) {
+      writer.write(record("unknown_" + i, i, "x"), NullWritable.get());
+      writer.write(record(i % 2 == 0 ? "users" : "Users", i, "y"), NullWritable.get());
+    }
+    writer.close(null);
+
+    Assert.assertEquals(Collections.singletonList("users"), opened);
+    Assert.assertEquals(5000, written.size());
+  }
+
+  private static StructuredRecord record(String tableName, long id, String name) {
+    return StructuredRecord.builder(INPUT_SCHEMA)
+      .set("tablename", tableName)
+      .set("id", id)
+      .set("name", name)
+      .build();
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.plugin.gcp.bigquery.sink.MultiSinkOutputFormatProvider.MultiTableOutputCommitter;
+import io.cdap.plugin.gcp.bigquery.util.BigQueryConstants;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link MultiTableOutputCommitter}.
+ */
+public class MultiTableOutputCommitterTest {
+
+  private static final JobID JOB_ID = new JobID("multi", 0);
+
+  @Test
+  public void testTablesAreCommittedConcurrently() throws Exception {
+    // every commit waits until all three have started, which only succeeds if they run at the same time
+    CountDownLatch started = new CountDownLatch(3);
+    Set<String> committed = ConcurrentHashMap.newKeySet();
+    Map<String, OutputCommitter> committers = new LinkedHashMap<>();
+    for (String table : new String[] {"a", "b", "c"}) {
+      committers.put(table, new TestCommitter(() -> {
+        started.countDown();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+          throw new IOException("Commits did not run concurrently");
+        }
+        committed.add(table);
+      }));
+    }
+
+    new MultiTableOutputCommitter(committers).commitJob(createJobContext(3));
+    Assert.assertEquals(committers.keySet(), committed);
+  }
+
+  @Test
+  public void testConcurrencyIsBounded() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    Map<String, OutputCommitter> committers = new LinkedHashMap<>();
+    for (int i = 0; i < 8; i++) {
+      committers.put("t" + i, new TestCommitter(() -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        Thread.sleep(20);
+        running.decrementAndGet();
+      }));
+    }
+
+    new MultiTableOutputCommitter(committers).commitJob(createJobContext(2));
+    Assert.assertTrue(maxRunning.get() <= 2);
+  }
+
+  @Test
+  public void testAllTablesAreAwaitedOnFailure() throws Exception {
+    Set<String> committed = ConcurrentHashMap.newKeySet();
+    Map<String, OutputCommitter> committers = new LinkedHashMap<>();
+    committers.put("bad1", new TestCommitter(() -> {
+      throw new IOException("first");
+    }));
+    committers.put("good", new TestCommitter(() -> {
+      Thread.sleep(50);
+      committed.add("good");
+    }));
+    committers.put("bad2", new TestCommitter(() -> {
+      throw new IOException("second");
+    }));
+
+    try {
+      new MultiTableOutputCommitter(committers).commitJob(createJobContext(3));
+      Assert.fail("Commit should fail when a table fails");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().contains("bad1"));
+      Assert.assertEquals(1, e.getSuppressed().length);
+      Assert.assertTrue(e.getSuppressed()[0].getMessage().contains("bad2"));
+    }
+    Assert.assertEquals(Collections.singleton("good"), committed);
+  }
+
+  private static JobContext createJobContext(int maxConcurrentTables) {
+    Configuration conf = new Configuration(false);
+    conf.setInt(BigQueryConstants.CONFIG_MULTI_MAX_CONCURRENT_TABLES, maxConcurrentTables);
+    return new JobContextImpl(conf, JOB_ID);
+  }
+
+  private interface CommitAction {
+    void run() throws Exception;
+  }
+
+  private static final class TestCommitter extends OutputCommitter {
+
+    private final CommitAction action;
+
+    private TestCommitter(CommitAction action) {
+      this.action = action;
+    }
+
+    @Override
+    public void commitJob(JobContext jobContext) throws IOException {
+      try {
+        action.run();
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public void setupJob(JobContext jobContext) {
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext taskContext) {
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext taskContext) {
+      return false;
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext taskContext) {
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext taskContext) {
+    }
+  }
+}
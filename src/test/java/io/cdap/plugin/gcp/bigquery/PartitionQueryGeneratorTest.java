@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.TimePartitioning;
+import io.cdap.plugin.gcp.bigquery.source.PartitionedBigQueryInputFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for the queries generated by {@link PartitionedBigQueryInputFormat}.
+ */
+public class PartitionQueryGeneratorTest {
+
+  private static final StandardTableDefinition TABLE = StandardTableDefinition.of(Schema.of(
+    Field.of("id", LegacySQLTypeName.INTEGER),
+    Field.of("name", LegacySQLTypeName.STRING),
+    Field.of("day", LegacySQLTypeName.DATE)));
+  private static final StandardTableDefinition PARTITIONED_TABLE = TABLE.toBuilder()
+    .setTimePartitioning(TimePartitioning.newBuilder(TimePartitioning.Type.DAY).setField("day").build())
+    .build();
+
+  @Test
+  public void testWholeTableIsReadWithoutQuery() {
+    Assert.assertNull(PartitionedBigQueryInputFormat.generateQuery(TABLE, "ds", "t", null, null, null, null));
+    Assert.assertNull(PartitionedBigQueryInputFormat.generateQuery(
+      TABLE, "ds", "t", null, null, null, Arrays.asList("name", "day", "id")));
+    // partition dates are ignored for tables that are not partitioned
+    Assert.assertNull(PartitionedBigQueryInputFormat.generateQuery(
+      TABLE, "ds", "t", "2019-01-01", null, null, null));
+  }
+
+  @Test
+  public void testFieldsAreOnlyProjectedByQueriesThatFilterRows() {
+    // a query that only leaves out fields would be billed, while the whole table is read for free
+    Assert.assertNull(PartitionedBigQueryInputFormat.generateQuery(
+      TABLE, "ds", "t", null, null, null, Arrays.asList("day", "id")));
+    Assert.assertEquals("select `id`, `day` from ds.t where (id > 3)", PartitionedBigQueryInputFormat.generateQuery(
+      TABLE, "ds", "t", null, null, "id > 3", Arrays.asList("day", "id")));
+  }
+
+  @Test
+  public void testFilterAndPartitionRangeAreCombined() {
+    Assert.assertEquals(
+      "select `id`, `name` from ds.t where TIMESTAMP(day) >= TIMESTAMP(\"2019-01-01\") "
+        + "and TIMESTAMP(day) < TIMESTAMP(\"2019-02-01\") and (name = 'a' or id > 3)",
+      PartitionedBigQueryInputFormat.generateQuery(PARTITIONED_TABLE, "ds", "t", "2019-01-01", "2019-02-01",
+                                                   "name = 'a' or id > 3", Arrays.asList("id", "name")));
+    Assert.assertEquals("select * from ds.t where (id > 3)", PartitionedBigQueryInputFormat.generateQuery(
+      TABLE, "ds", "t", null, null, "id > 3", null));
+  }
+
+  @Test
+  public void testMultiTableQueries() {
+    Assert.assertEquals("select * from `p.ds.events_*`", PartitionedBigQueryInputFormat.generateMultiTableQuery(
+      "p", "ds", Collections.singletonList("events_*"), null, null));
+    Assert.assertEquals(
+      "select `id`, concat('events_', _TABLE_SUFFIX) as `source` from `p.ds.events_*` "
+        + "union all select `id`, 'archive' as `source` from `p.ds.archive`",
+      PartitionedBigQueryInputFormat.generateMultiTableQuery(
+        "p", "ds", Arrays.asList("events_*", "archive"), Collections.singletonList("id"), "source"));
+  }
+
+  @Test
+  public void testMultiTableQueriesSelectPartitionsAndRowsOfEveryTable() {
+    StandardTableDefinition ingestionTimeTable = TABLE.toBuilder()
+      .setTimePartitioning(TimePartitioning.of(TimePartitioning.Type.DAY))
+      .build();
+    Map<String, StandardTableDefinition> definitions = new HashMap<>();
+    definitions.put("events_*", ingestionTimeTable);
+    definitions.put("archive", PARTITIONED_TABLE);
+    definitions.put("lookup", TABLE);
+
+    Assert.assertEquals(
+      "select `id`, concat('events_', _TABLE_SUFFIX) as `source` from `p.ds.events_*` "
+        + "where _PARTITIONTIME >= TIMESTAMP(\"2019-01-01\") and _PARTITIONTIME < TIMESTAMP(\"2019-02-01\") "
+        + "and (id > 5) "
+        + "union all select `id`, 'archive' as `source` from `p.ds.archive` "
+        + "where TIMESTAMP(day) >= TIMESTAMP(\"2019-01-01\") and TIMESTAMP(day) < TIMESTAMP(\"2019-02-01\") "
+        + "and (id > 5) "
+        // the partition range is ignored for tables that are not partitioned, or whose partitioning is not known
+        + "union all select `id`, 'lookup' as `source` from `p.ds.lookup` where (id > 5) "
+        + "union all select `id`, 'other' as `source` from `p.ds.other` where (id > 5)",
+      PartitionedBigQueryInputFormat.generateMultiTableQuery(
+        "p", "ds", Arrays.asList("events_*", "archive", "lookup", "other"), definitions, "2019-01-01", "2019-02-01",
+        "id > 5", Collections.singletonList("id"), "source"));
+
+    Assert.assertEquals(
+      "select * from `p.ds.archive` where TIMESTAMP(day) >= TIMESTAMP(\"2019-01-01\")",
+      PartitionedBigQueryInputFormat.generateMultiTableQuery(
+        "p", "ds", Collections.singletonList("archive"), definitions, "2019-01-01", null, null, null, null));
+  }
+
+  @Test
+  public void testPreviewQueriesAreLimited() {
+    Assert.assertEquals("select * from (\nselect `id` from ds.t where (id > 5)\n) limit 100",
+                        PartitionedBigQueryInputFormat.limitQuery(PartitionedBigQueryInputFormat.generateQuery(
+                          TABLE, "ds", "t", null, null, "id > 5", Collections.singletonList("id")), 100));
+    // source queries keep their own ordering and limit, and may end with a semicolon or a comment
+    Assert.assertEquals("select * from (\nselect * from ds.t order by id limit 500\n) limit 100",
+                        PartitionedBigQueryInputFormat.limitQuery(" select * from ds.t order by id limit 500;\n", 100));
+    Assert.assertEquals("select * from (\nselect * from ds.t -- all rows\n) limit 100",
+                        PartitionedBigQueryInputFormat.limitQuery("select * from ds.t -- all rows", 100));
+  }
+
+  @Test
+  public void testReusableTableNames() {
+    String name = PartitionedBigQueryInputFormat.getReusableTableName(
+      "p", "t", "select `id` from ds.t where (name = 'a  b')", 100L);
+    Assert.assertTrue(name.matches("t_cache_[0-9a-f]{64}"));
+    Assert.assertEquals(name, PartitionedBigQueryInputFormat.getReusableTableName(
+      "p", "t", " select `id`\n  from ds.t\twhere (name = 'a  b') ", 100L));
+    // whitespace in literals is part of the query
+    Assert.assertNotEquals(name, PartitionedBigQueryInputFormat.getReusableTableName(
+      "p", "t", "select `id` from ds.t where (name = 'a b')", 100L));
+    // a new version of the table, or the same table in another project, is queried again
+    Assert.assertNotEquals(name, PartitionedBigQueryInputFormat.getReusableTableName(
+      "p", "t", "select `id` from ds.t where (name = 'a  b')", 101L));
+    Assert.assertNotEquals(name, PartitionedBigQueryInputFormat.getReusableTableName(
+      "q", "t", "select `id` from ds.t where (name = 'a  b')", 100L));
+  }
+
+  @Test
+  public void testWatermarkQueries() {
+    Assert.assertEquals("select cast(max(`updated`) as string) from `p.ds.t`",
+                        PartitionedBigQueryInputFormat.generateWatermarkQuery("p", "ds", "t", "updated"));
+    Assert.assertEquals("select cast(max(_PARTITIONTIME) as string) from `p.ds.t`",
+                        PartitionedBigQueryInputFormat.generateWatermarkQuery("p", "ds", "t", "_PARTITIONTIME"));
+
+    Assert.assertEquals("`id` <= cast('10' as INT64)", PartitionedBigQueryInputFormat.generateWatermarkCondition(
+      "id", StandardSQLTypeName.INT64, null, "10"));
+    Assert.assertEquals("_PARTITIONTIME > cast('2019-01-01 00:00:00+00' as TIMESTAMP) "
+                          + "and _PARTITIONTIME <= cast('2019-01-02 00:00:00+00' as TIMESTAMP)",
+                        PartitionedBigQueryInputFormat.generateWatermarkCondition(
+                          "_PARTITIONTIME", StandardSQLTypeName.TIMESTAMP, "2019-01-01 00:00:00+00",
+                          "2019-01-02 00:00:00+00"));
+    Assert.assertEquals("`name` > cast('it\\'s' as STRING) and `name` <= cast('z' as STRING)",
+                        PartitionedBigQueryInputFormat.generateWatermarkCondition(
+                          "name", StandardSQLTypeName.STRING, "it's", "z"));
+    // an empty table has no high watermark, so nothing is read
+    Assert.assertEquals("false", PartitionedBigQueryInputFormat.generateWatermarkCondition(
+      "id", StandardSQLTypeName.INT64, "10", null));
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.cloud.bigquery.storage.v1.AvroRows;
+import com.google.cloud.bigquery.storage.v1.ReadRowsResponse;
+import com.google.cloud.bigquery.storage.v1.StreamStats;
+import com.google.protobuf.ByteString;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.source.BigQueryAvroToStructuredTransformer;
+import io.cdap.plugin.gcp.bigquery.source.ReadStreamRecordReader;
+import io.cdap.plugin.gcp.bigquery.source.ReadStreamSplit;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link ReadStreamRecordReader} and {@link ReadStreamSplit}, with responses in the format of the
+ * BigQuery Storage Read API.
+ */
+public class ReadStreamRecordReaderTest {
+
+  private static final org.apache.avro.Schema ID_SCHEMA = SchemaBuilder.record("root").fields()
+    .requiredLong("id")
+    .endRecord();
+
+  @Test
+  public void testReaderDecodesAllResponses() throws Exception {
+    FakeStreamReader streamReader = new FakeStreamReader(
+      response(ID_SCHEMA, ids(0, 2), 0.4),
+      // responses may only carry statistics
+      ReadRowsResponse.newBuilder().setStats(stats(0.4)).build(),
+      response(ID_SCHEMA, ids(2, 5), 1.0));
+    ReadStreamRecordReader reader = new ReadStreamRecordReader(streamReader, -1L);
+    reader.initialize(new ReadStreamSplit("streams/0", ID_SCHEMA.toString()), null);
+
+    List<Long> ids = new ArrayList<>();
+    while (reader.nextKeyValue()) {
+      Assert.assertEquals(reader.getCurrentKey().get(), (long) reader.getCurrentValue().get("id"));
+      ids.add((Long) reader.getCurrentValue().get("id"));
+      if (ids.size() == 2) {
+        Assert.assertEquals(0.4f, reader.getProgress(), 0.001f);
+      }
+    }
+    reader.close();
+
+    Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), ids);
+    Assert.assertEquals("streams/0", streamReader.stream);
+    Assert.assertEquals(1f, reader.getProgress(), 0f);
+    Assert.assertTrue(streamReader.closed);
+  }
+
+  @Test
+  public void testReaderStopsAtRowLimit() throws Exception {
+    FakeStreamReader streamReader = new FakeStreamReader(response(ID_SCHEMA, ids(0, 5), 0.5),
+                                                         response(ID_SCHEMA, ids(5, 10), 1.0));
+    ReadStreamRecordReader reader = new ReadStreamRecordReader(streamReader, 3L);
+    reader.initialize(new ReadStreamSplit("streams/0", ID_SCHEMA.toString()), null);
+
+    int count = 0;
+    while (reader.nextKeyValue()) {
+      count++;
+    }
+    reader.close();
+
+    Assert.assertEquals(3, count);
+    // the second response is never requested
+    Assert.assertEquals(1, streamReader.consumed);
+    Assert.assertTrue(streamReader.closed);
+  }
+
+  @Test
+  public void testSplitSerialization() throws Exception {
+    StringBuilder schema = new StringBuilder();
+    // longer than writeUTF supports
+    while (schema.length() < 70000) {
+      schema.append(ID_SCHEMA.toString());
+    }
+    ReadStreamSplit split = new ReadStreamSplit("projects/p/locations/us/sessions/s/streams/0", schema.toString());
+    DataOutputBuffer out = new DataOutputBuffer();
+    split.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ReadStreamSplit copy = new ReadStreamSplit();
+    copy.readFields(in);
+
+    Assert.assertEquals(split.getStream(), copy.getStream());
+    Assert.assertEquals(split.getAvroSchema(), copy.getAvroSchema());
+  }
+
+  @Test
+  public void testDecodedRowsMatchExportedRecords() throws Exception {
+    // the layout of the Avro schema of a read session
+    org.apache.avro.Schema nestedSchema = SchemaBuilder.record("nested").fields()
+      .optionalLong("inner")
+      .endRecord();
+    org.apache.avro.Schema avroSchema = SchemaBuilder.record("root").fields()
+      .requiredLong("long")
+      .optionalDouble("double")
+      .optionalBoolean("bool")
+      .optionalString("string")
+      .optionalBytes("bytes")
+      .name("date").type(nullable(LogicalTypes.date().addToSchema(
+        org.apache.avro.Schema.create(org.apache.avro.Schema.Type.INT)))).withDefault(null)
+      .name("time").type(nullable(LogicalTypes.timeMicros().addToSchema(
+        org.apache.avro.Schema.create(org.apache.avro.Schema.Type.LONG)))).withDefault(null)
+      .name("timestamp").type(nullable(LogicalTypes.timestampMicros().addToSchema(
+        org.apache.avro.Schema.create(org.apache.avro.Schema.Type.LONG)))).withDefault(null)
+      .name("numeric").type(nullable(LogicalTypes.decimal(38, 9).addToSchema(
+        org.apache.avro.Schema.create(org.apache.avro.Schema.Type.BYTES)))).withDefault(null)
+      .name("tags").type().array().items().stringType().noDefault()
+      .name("nested").type(nullable(nestedSchema)).withDefault(null)
+      .optionalString("missing")
+      .endRecord();
+    Schema schema = Schema.recordOf(
+      "output",
+      Schema.Field.of("long", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("double", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+      Schema.Field.of("bool", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))),
+      Schema.Field.of("string", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("bytes", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+      Schema.Field.of("date", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+      Schema.Field.of("time", Schema.nullableOf(Schema.of(Schema.LogicalType.TIME_MICROS))),
+      Schema.Field.of("timestamp", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+      Schema.Field.of("numeric", Schema.nullableOf(Schema.decimalOf(38, 9))),
+      Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("nested", Schema.nullableOf(Schema.recordOf(
+        "nested", Schema.Field.of("inner", Schema.nullableOf(Schema.of(Schema.Type.LONG)))))),
+      Schema.Field.of("missing", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+
+    GenericData.Record nested = new GenericData.Record(nestedSchema);
+    nested.put("inner", 7L);
+    GenericData.Record row = new GenericData.Record(avroSchema);
+    row.put("long", 42L);
+    row.put("double", 1.5d);
+    row.put("bool", true);
+    row.put("string", "text");
+    row.put("bytes", ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)));
+    row.put("date", (int) LocalDate.of(2019, 3, 4).toEpochDay());
+    row.put("time", LocalTime.of(12, 34, 56, 789012000).toNanoOfDay() / 1000);
+    row.put("timestamp", 1551702896123456L);
+    row.put("numeric", ByteBuffer.wrap(new BigDecimal("123.456").setScale(9).unscaledValue().toByteArray()));
+    row.put("tags", Arrays.asList("a", "b"));
+    row.put("nested", nested);
+
+    ReadStreamRecordReader reader = new ReadStreamRecordReader(
+      new FakeStreamReader(response(avroSchema, Arrays.asList(row, row), 1.0)), -1L);
+    reader.initialize(new ReadStreamSplit("streams/0", avroSchema.toString()), null);
+    BigQueryAvroToStructuredTransformer transformer = new BigQueryAvroToStructuredTransformer();
+    List<StructuredRecord> records = new ArrayList<>();
+    while (reader.nextKeyValue()) {
+      // the Avro record is reused, so it is converted right away
+      records.add(transformer.transform(reader.getCurrentValue(), schema));
+    }
+
+    Assert.assertEquals(2, records.size());
+    for (StructuredRecord record : records) {
+      Assert.assertEquals(42L, (long) record.get("long"));
+      Assert.assertEquals(1.5d, record.<Double>get("double"), 0d);
+      Assert.assertTrue(record.<Boolean>get("bool"));
+      Assert.assertEquals("text", record.get("string"));
+      Assert.assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), toBytes(record.get("bytes")));
+      Assert.assertEquals(LocalDate.of(2019, 3, 4), record.getDate("date"));
+      Assert.assertEquals(LocalTime.of(12, 34, 56, 789012000), record.getTime("time"));
+      Assert.assertEquals(1551702896123456L, (long) record.get("timestamp"));
+      Assert.assertEquals(new BigDecimal("123.456000000"), record.getDecimal("numeric"));
+      Assert.assertEquals(Arrays.asList("a", "b"), record.get("tags"));
+      Assert.assertEquals(7L, (long) record.<StructuredRecord>get("nested").get("inner"));
+      Assert.assertNull(record.get("missing"));
+    }
+  }
+
+  private static org.apache.avro.Schema nullable(org.apache.avro.Schema schema) {
+    return org.apache.avro.Schema.createUnion(Arrays.asList(
+      org.apache.avro.Schema.create(org.apache.avro.Schema.Type.NULL), schema));
+  }
+
+  private static List<GenericData.Record> ids(long from, long to) {
+    List<GenericData.Record> records = new ArrayList<>();
+    for (long id = from; id < to; id++) {
+      GenericData.Record record = new GenericData.Record(ID_SCHEMA);
+      record.put("id", id);
+      records.add(record);
+    }
+    return records;
+  }
+
+  private static ReadRowsResponse response(org.apache.avro.Schema schema, List<GenericData.Record> rows,
+                                           double progress) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+    GenericDatumWriter<GenericData.Record> writer = new GenericDatumWriter<>(schema);
+    for (GenericData.Record row : rows) {
+      writer.write(row, encoder);
+    }
+    encoder.flush();
+    return ReadRowsResponse.newBuilder()
+      .setAvroRows(AvroRows.newBuilder().setSerializedBinaryRows(ByteString.copyFrom(bytes.toByteArray())))
+      .setRowCount(rows.size())
+      .setStats(stats(progress))
+      .build();
+  }
+
+  private static StreamStats stats(double progress) {
+    return StreamStats.newBuilder()
+      .setProgress(StreamStats.Progress.newBuilder().setAtResponseEnd(progress))
+      .build();
+  }
+
+  private static byte[] toBytes(Object value) {
+    if (value instanceof byte[]) {
+      return (byte[]) value;
+    }
+    ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Returns the given responses for any stream.
+   */
+  private static final class FakeStreamReader implements ReadStreamRecordReader.StreamReader {
+    private final List<ReadRowsResponse> responses;
+    private String stream;
+    private int consumed;
+    private boolean closed;
+
+    private FakeStreamReader(ReadRowsResponse... responses) {
+      this.responses = Arrays.asList(responses);
+    }
+
+    @Override
+    public Iterator<ReadRowsResponse> readRows(String stream) {
+      this.stream = stream;
+      Iterator<ReadRowsResponse> iterator = responses.iterator();
+      return new Iterator<ReadRowsResponse>() {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public ReadRowsResponse next() {
+          consumed++;
+          return iterator.next();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.SchemaCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link SchemaCache}.
+ */
+public class SchemaCacheTest {
+
+  @Test
+  public void testValuesAreCachedPerInstance() {
+    AtomicInteger loads = new AtomicInteger();
+    SchemaCache<String> cache = new SchemaCache<>(schema -> {
+      loads.incrementAndGet();
+      return schema.getRecordName();
+    });
+    Schema first = schema("first");
+    Schema second = schema("second");
+    Assert.assertEquals("first", cache.get(first));
+    Assert.assertEquals("second", cache.get(second));
+    Assert.assertEquals("first", cache.get(first));
+    Assert.assertEquals(2, loads.get());
+
+    // an equal schema is a different instance, so its value is computed again
+    Assert.assertEquals("first", cache.get(schema("first")));
+    Assert.assertEquals(3, loads.get());
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    SchemaCache<String> cache = new SchemaCache<>(Schema::getRecordName, 4);
+    // a new schema instance for every record
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals("record", cache.get(schema("record")));
+    }
+    Assert.assertEquals(4, cache.size());
+  }
+
+  private static Schema schema(String name) {
+    return Schema.recordOf(name, Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.gcp.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.SortingRecordWriter;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link SortingRecordWriter}.
+ */
+public class SortingRecordWriterTest {
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "record",
+    Schema.Field.of("id", Schema.of(Schema.Type.INT)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("amount", Schema.nullableOf(Schema.decimalOf(10, 2))),
+    Schema.Field.of("payload", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("attributes", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("nested", Schema.nullableOf(Schema.recordOf(
+      "nested", Schema.Field.of("inner", Schema.of(Schema.Type.DOUBLE))))));
+
+  @Test
+  public void testRecordsAreSortedInMemory() throws Exception {
+    CollectingWriter delegate = new CollectingWriter();
+    SortingRecordWriter writer = new SortingRecordWriter(delegate, Arrays.asList("name", "id"),
+                                                         SortingRecordWriter.DEFAULT_MEMORY_BYTES);
+    writer.write(record(3, "b", null), NullWritable.get());
+    writer.write(record(1, null, null), NullWritable.get());
+    writer.write(record(2, "a", null), NullWritable.get());
+    writer.write(record(0, "b", null), NullWritable.get());
+    writer.close(null);
+
+    // nulls sort first
+    Assert.assertEquals(Arrays.asList(1, 2, 0, 3), delegate.getIds());
+    Assert.assertTrue(delegate.closed);
+  }
+
+  @Test
+  public void testDecimalsSortNumerically() throws Exception {
+    CollectingWriter delegate = new CollectingWriter();
+    SortingRecordWriter writer = new SortingRecordWriter(delegate, Collections.singletonList("amount"),
+                                                         SortingRecordWriter.DEFAULT_MEMORY_BYTES);
+    writer.write(record(0, "a", new BigDecimal("2.00")), NullWritable.get());
+    writer.write(record(1, "a", new BigDecimal("-1.50")), NullWritable.get());
+    writer.write(record(2, "a", new BigDecimal("300.00")), NullWritable.get());
+    writer.close(null);
+
+    Assert.assertEquals(Arrays.asList(1, 0, 2), delegate.getIds());
+  }
+
+  @Test
+  public void testSpilledRunsAreMerged() throws Exception {
+    List<StructuredRecord> records = new ArrayList<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 500; i++) {
+      String name = random.nextInt(10) == 0 ? null : "name" + random.nextInt(20);
+      records.add(record(i, name, BigDecimal.valueOf(random.nextInt(1000), 2)));
+    }
+
+    // a tiny budget spills every few records, which also needs more than one merge pass
+    CollectingWriter delegate = new CollectingWriter();
+    SortingRecordWriter writer = new SortingRecordWriter(delegate, Collections.singletonList("name"), 2000L);
+    for (StructuredRecord record : records) {
+      writer.write(record, NullWritable.get());
+    }
+    writer.close(null);
+
+    List<StructuredRecord> expected = new ArrayList<>(records);
+    expected.sort((first, second) -> {
+      String left = first.get("name");
+      String right = second.get("name");
+      if (left == null || right == null) {
+        return left == null ? (right == null ? 0 : -1) : 1;
+      }
+      return left.compareTo(right);
+    });
+    Assert.assertEquals(expected.size(), delegate.records.size());
+    for (int i = 0; i < expected.size(); i++) {
+      StructuredRecord expectedRecord = expected.get(i);
+      StructuredRecord actual = delegate.records.get(i);
+      // records with equal names keep their order
+      Assert.assertEquals((int) expectedRecord.get("id"), (int) actual.get("id"));
+      Assert.assertEquals(expectedRecord.<String>get("name"), actual.get("name"));
+      Assert.assertEquals(expectedRecord.getDecimal("amount"), actual.getDecimal("amount"));
+      Assert.assertEquals(ByteBuffer.wrap(expectedRecord.<byte[]>get("payload")), actual.get("payload"));
+      Assert.assertEquals(expectedRecord.<List<String>>get("tags"), actual.get("tags"));
+      Assert.assertEquals(expectedRecord.<Object>get("attributes"), actual.get("attributes"));
+      Assert.assertEquals(expectedRecord.<StructuredRecord>get("nested").<Double>get("inner"),
+                          actual.<StructuredRecord>get("nested").<Double>get("inner"));
+    }
+    Assert.assertTrue(delegate.closed);
+  }
+
+  private static StructuredRecord record(int id, @Nullable String name, @Nullable BigDecimal amount) {
+    StructuredRecord.Builder builder = StructuredRecord.builder(SCHEMA);
+    if (amount != null) {
+      builder.setDecimal("amount", amount);
+    }
+    return builder
+      .set("id", id)
+      .set("name", name)
+      .set("payload", ("payload" + id).getBytes(StandardCharsets.UTF_8))
+      .set("tags", Arrays.asList("t" + id, "x"))
+      .set("attributes", Collections.singletonMap("k", (long) id))
+      .set("nested", StructuredRecord.builder(SCHEMA.getField("nested").getSchema().getNonNullable())
+        .set("inner", id / 2d).build())
+      .build();
+  }
+
+  /**
+   * Collects the records it receives.
+   */
+  private static final class CollectingWriter extends RecordWriter<StructuredRecord, NullWritable> {
+    private final List<StructuredRecord> records = new ArrayList<>();
+    private boolean closed;
+
+    @Override
+    public void write(StructuredRecord record, NullWritable value) {
+      records.add(record);
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+      closed = true;
+    }
+
+    private List<Integer> getIds() {
+      List<Integer> ids = new ArrayList<>();
+      for (StructuredRecord record : records) {
+        ids.add(record.get("id"));
+      }
+      return ids;
+    }
+  }
+}
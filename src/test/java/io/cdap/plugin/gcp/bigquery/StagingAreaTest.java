@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import io.cdap.plugin.gcp.bigquery.util.StagingArea;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Tests for {@link StagingArea}.
+ */
+public class StagingAreaTest {
+
+  @Test
+  public void testBucketNamePrefixes() {
+    Assert.assertEquals("cdap-bq-staging-my-project-us-", StagingArea.getBucketNamePrefix("my-project", null));
+    Assert.assertEquals("cdap-bq-staging-my-project-europe-west1-",
+                        StagingArea.getBucketNamePrefix("my-project", "europe-west1"));
+    Assert.assertEquals("cdap-bq-staging-my-project-eu-", StagingArea.getBucketNamePrefix("My-Project", "EU"));
+
+    // domain-scoped projects and projects that mention google cannot be part of a bucket name
+    String scoped = StagingArea.getBucketNamePrefix("example.com:project", "US");
+    Assert.assertTrue(scoped.matches("cdap-bq-staging-[0-9a-f]{16}-us-"));
+    Assert.assertEquals(scoped, StagingArea.getBucketNamePrefix("example.com:project", "US"));
+    Assert.assertNotEquals(scoped, StagingArea.getBucketNamePrefix("example.com:other", "US"));
+    Assert.assertFalse(StagingArea.getBucketNamePrefix("google-project", "US").contains("google"));
+    // the prefix leaves room for the salt
+    Assert.assertTrue(StagingArea.getBucketNamePrefix("a-very-long-project-name-abcde", "northamerica-northeast1")
+                        .length() + 8 <= 63);
+  }
+
+  @Test
+  public void testBucketOfProjectIsReused() throws Exception {
+    Storage storage = mockStorage(Arrays.asList("cdap-bq-staging-project-us-eu-0123abcd",
+                                                "cdap-bq-staging-project-us-0123abcd",
+                                                "cdap-bq-staging-project-us-89abcdef"));
+
+    StagingArea stagingArea = StagingArea.of(storage, "project", "US", "run/", true);
+
+    // the bucket of another location with a matching prefix is skipped
+    Assert.assertEquals("cdap-bq-staging-project-us-0123abcd", stagingArea.getBucket());
+    Mockito.verify(storage, Mockito.never()).create(ArgumentMatchers.<BucketInfo>any());
+  }
+
+  @Test
+  public void testBucketIsCreatedWithSalt() throws Exception {
+    Storage storage = mockStorage(Collections.emptyList());
+
+    String bucket = StagingArea.of(storage, "project", "US", "run/", true).getBucket();
+
+    Assert.assertTrue(bucket, bucket.matches("cdap-bq-staging-project-us-[0-9a-f]{8}"));
+    Mockito.verify(storage).create(ArgumentMatchers.<BucketInfo>argThat(
+      info -> info.getName().equals(bucket) && !info.getDeleteRules().isEmpty()));
+    // the salt is random, so the name cannot be derived from the project
+    Assert.assertNotEquals(bucket, StagingArea.of(mockStorage(Collections.emptyList()), "project", "US", "run/",
+                                                  false).getBucket());
+  }
+
+  @Test(expected = IOException.class)
+  public void testBucketOwnedByAnotherProjectIsNotUsed() throws Exception {
+    Storage storage = mockStorage(Collections.emptyList());
+    // the name is taken, but the bucket is not one of the buckets of the project
+    Mockito.when(storage.create(ArgumentMatchers.<BucketInfo>any()))
+      .thenThrow(new StorageException(409, "You already own this bucket."));
+
+    StagingArea.of(storage, "project", "US", "run/", true);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Storage mockStorage(List<String> bucketNames) {
+    List<Bucket> buckets = new ArrayList<>();
+    for (String name : bucketNames) {
+      Bucket bucket = Mockito.mock(Bucket.class);
+      Mockito.when(bucket.getName()).thenReturn(name);
+      buckets.add(bucket);
+    }
+    Storage storage = Mockito.mock(Storage.class);
+    Mockito.when(storage.list(ArgumentMatchers.<Storage.BucketListOption>any(),
+                              ArgumentMatchers.<Storage.BucketListOption>any())).thenAnswer(invocation -> {
+      Page<Bucket> page = Mockito.mock(Page.class);
+      // the service only returns the buckets with the requested prefix
+      String prefix = "cdap-bq-staging-project-us-";
+      Mockito.when(page.iterateAll()).thenReturn(
+        buckets.stream().filter(bucket -> bucket.getName().startsWith(prefix)).collect(Collectors.toList()));
+      return page;
+    });
+    return storage;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testPrefixIsDeletedInBatches() throws Exception {
+    List<Blob> blobs = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      Blob blob = Mockito.mock(Blob.class);
+      Mockito.when(blob.getBlobId()).thenReturn(BlobId.of("bucket", "run/" + i));
+      blobs.add(blob);
+    }
+    Page<Blob> page = Mockito.mock(Page.class);
+    Mockito.when(page.iterateAll()).thenReturn(blobs);
+
+    Storage storage = mockStorage(Collections.emptyList());
+    Mockito.when(storage.list(ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.any()))
+      .thenReturn(page);
+    Set<String> deleted = ConcurrentHashMap.newKeySet();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    Mockito.when(storage.delete(ArgumentMatchers.<Iterable<BlobId>>any())).thenAnswer(invocation -> {
+      List<Boolean> results = new ArrayList<>();
+      for (BlobId id : invocation.<Iterable<BlobId>>getArgument(0)) {
+        deleted.add(id.getName());
+        results.add(true);
+      }
+      batchSizes.add(results.size());
+      return results;
+    });
+
+    StagingArea stagingArea = StagingArea.of(storage, "project", "US", "run/", true);
+    stagingArea.delete();
+    Assert.assertEquals(250, deleted.size());
+    Collections.sort(batchSizes);
+    Assert.assertEquals(Arrays.asList(50, 100, 100), batchSizes);
+  }
+}
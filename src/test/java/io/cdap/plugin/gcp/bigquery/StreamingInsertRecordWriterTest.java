@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.BigQueryStreamingInsertOutputFormat.StreamingInsertRecordWriter;
+import org.apache.hadoop.io.NullWritable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link StreamingInsertRecordWriter}.
+ */
+public class StreamingInsertRecordWriterTest {
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "record",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+
+  @Test
+  public void testBatchingByRows() throws Exception {
+    List<JsonObject> requests = Collections.synchronizedList(new ArrayList<>());
+    StreamingInsertRecordWriter writer = new StreamingInsertRecordWriter(
+      request -> {
+        requests.add(parse(request));
+        return new TableDataInsertAllResponse();
+      }, "run-m00000-", 3, 1024 * 1024, 2);
+    for (long i = 0; i < 7; i++) {
+      writer.write(StructuredRecord.builder(SCHEMA).set("id", i).set("name", "n" + i).build(), NullWritable.get());
+    }
+    writer.close(null);
+
+    Assert.assertEquals(3, requests.size());
+    List<String> insertIds = new ArrayList<>();
+    long rows = 0;
+    for (JsonObject request : requests) {
+      for (JsonElement row : request.getAsJsonArray("rows")) {
+        JsonObject rowObject = row.getAsJsonObject();
+        insertIds.add(rowObject.get("insertId").getAsString());
+        long id = rowObject.getAsJsonObject("json").get("id").getAsLong();
+        Assert.assertEquals("n" + id, rowObject.getAsJsonObject("json").get("name").getAsString());
+        rows++;
+      }
+    }
+    Assert.assertEquals(7, rows);
+    Collections.sort(insertIds);
+    Assert.assertEquals("run-m00000-0", insertIds.get(0));
+    Assert.assertEquals("run-m00000-6", insertIds.get(6));
+  }
+
+  @Test
+  public void testBatchingByBytes() throws Exception {
+    List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+    StreamingInsertRecordWriter writer = new StreamingInsertRecordWriter(
+      request -> {
+        sizes.add(request.length);
+        parse(request);
+        return new TableDataInsertAllResponse();
+      }, "run-m00000-", 500, 200, 1);
+    for (long i = 0; i < 10; i++) {
+      writer.write(StructuredRecord.builder(SCHEMA).set("id", i).set("name", "name").build(), NullWritable.get());
+    }
+    writer.close(null);
+
+    Assert.assertTrue(sizes.size() > 1);
+    for (int size : sizes) {
+      Assert.assertTrue(size <= 200);
+    }
+  }
+
+  @Test
+  public void testRowErrorsAreReported() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    StreamingInsertRecordWriter writer = new StreamingInsertRecordWriter(
+      request -> {
+        if (calls.getAndIncrement() == 0) {
+          return new TableDataInsertAllResponse();
+        }
+        TableDataInsertAllResponse.InsertErrors invalid = new TableDataInsertAllResponse.InsertErrors()
+          .setIndex(1L)
+          .setErrors(Collections.singletonList(
+            new ErrorProto().setReason("invalid").setLocation("name").setMessage("bad value")));
+        TableDataInsertAllResponse.InsertErrors stopped = new TableDataInsertAllResponse.InsertErrors()
+          .setIndex(0L)
+          .setErrors(Collections.singletonList(new ErrorProto().setReason("stopped")));
+        return new TableDataInsertAllResponse().setInsertErrors(Arrays.asList(stopped, invalid));
+      }, "run-m00000-", 2, 1024 * 1024, 1);
+
+    try {
+      for (long i = 0; i < 4; i++) {
+        writer.write(StructuredRecord.builder(SCHEMA).set("id", i).build(), NullWritable.get());
+      }
+      writer.close(null);
+      Assert.fail("Expected the row error to fail the writer.");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("row 3 (insert id 'run-m00000-3')"));
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("field 'name': bad value (invalid)"));
+    }
+  }
+
+  private static JsonObject parse(byte[] request) {
+    return new JsonParser().parse(new String(request, StandardCharsets.UTF_8)).getAsJsonObject();
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.format.avro.StructuredToAvroTransformer;
+import io.cdap.plugin.gcp.bigquery.sink.StructuredRecordDatumWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+/**
+ * Tests for {@link StructuredRecordDatumWriter}.
+ */
+public class StructuredRecordDatumWriterTest {
+
+  private static final Schema NESTED = Schema.recordOf(
+    "nested",
+    Schema.Field.of("city", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("zip", Schema.nullableOf(Schema.of(Schema.Type.INT))));
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "record",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("score", Schema.of(Schema.Type.DOUBLE)),
+    Schema.Field.of("ratio", Schema.of(Schema.Type.FLOAT)),
+    Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)),
+    Schema.Field.of("count", Schema.of(Schema.Type.INT)),
+    Schema.Field.of("data", Schema.of(Schema.Type.BYTES)),
+    Schema.Field.of("dt", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+    Schema.Field.of("tm", Schema.of(Schema.LogicalType.TIME_MICROS)),
+    Schema.Field.of("ts", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(38, 9))),
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("attributes", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("address", Schema.nullableOf(NESTED)),
+    Schema.Field.of("addresses", Schema.arrayOf(NESTED)));
+
+  @Test
+  public void testEncodingMatchesGenericRecordPath() throws IOException {
+    StructuredRecord record = StructuredRecord.builder(SCHEMA)
+      .set("id", 1L)
+      .set("name", "alice")
+      .set("score", 1.5d)
+      .set("ratio", 0.25f)
+      .set("flag", true)
+      .set("count", 7)
+      .set("data", new byte[] {1, 2, 3})
+      .setDate("dt", LocalDate.of(2019, 10, 1))
+      .setTime("tm", LocalTime.of(10, 11, 12))
+      .setTimestamp("ts", ZonedDateTime.of(2019, 10, 1, 1, 2, 3, 4000, ZoneOffset.UTC))
+      .setDecimal("price", new BigDecimal("123.456000000"))
+      .set("tags", ImmutableList.of("a", "b"))
+      .set("attributes", ImmutableMap.of("k1", 1L, "k2", 2L))
+      .set("address", StructuredRecord.builder(NESTED).set("city", "x").set("zip", 1).build())
+      .set("addresses", ImmutableList.of(StructuredRecord.builder(NESTED).set("city", "y").build(),
+                                         StructuredRecord.builder(NESTED).set("city", "z").set("zip", 2).build()))
+      .build();
+
+    Assert.assertArrayEquals(encodeGeneric(record), encodeDirect(record));
+  }
+
+  @Test
+  public void testEncodingNullValues() throws IOException {
+    StructuredRecord record = StructuredRecord.builder(SCHEMA)
+      .set("id", 2L)
+      .set("score", 0d)
+      .set("ratio", 0f)
+      .set("flag", false)
+      .set("count", 0)
+      .set("data", new byte[0])
+      .setTime("tm", LocalTime.MIDNIGHT)
+      .set("tags", new String[] {"c"})
+      .set("attributes", ImmutableMap.of())
+      .set("addresses", ImmutableList.of())
+      .build();
+
+    Assert.assertArrayEquals(encodeGeneric(record), encodeDirect(record));
+  }
+
+  @Test
+  public void testProjection() throws IOException {
+    Schema projected = Schema.recordOf(
+      "record",
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+    Schema full = Schema.recordOf(
+      "record",
+      Schema.Field.of("tablename", Schema.of(Schema.Type.STRING)),
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+
+    StructuredRecord input = StructuredRecord.builder(full).set("tablename", "t").set("id", 3L).set("name", "n")
+      .build();
+    StructuredRecord expected = StructuredRecord.builder(projected).set("id", 3L).set("name", "n").build();
+
+    Assert.assertArrayEquals(encodeGeneric(expected), encode(new StructuredRecordDatumWriter(projected), input));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullInRequiredField() throws IOException {
+    Schema schema = Schema.recordOf("record", Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+    Schema nullable = Schema.recordOf("record", Schema.Field.of("id", Schema.nullableOf(Schema.of(Schema.Type.LONG))));
+    encode(new StructuredRecordDatumWriter(schema), StructuredRecord.builder(nullable).build());
+  }
+
+  private static byte[] encodeDirect(StructuredRecord record) throws IOException {
+    return encode(new StructuredRecordDatumWriter(record.getSchema()), record);
+  }
+
+  private static byte[] encode(StructuredRecordDatumWriter writer, StructuredRecord record) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    writer.write(record, encoder);
+    encoder.flush();
+    return out.toByteArray();
+  }
+
+  private static byte[] encodeGeneric(StructuredRecord record) throws IOException {
+    GenericRecord genericRecord = new StructuredToAvroTransformer(record.getSchema()).transform(record);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new GenericDatumWriter<GenericRecord>(genericRecord.getSchema()).write(genericRecord, encoder);
+    encoder.flush();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonWriter;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.BigQueryRecordToJson;
+import io.cdap.plugin.gcp.bigquery.sink.StructuredRecordJsonWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Tests for {@link StructuredRecordJsonWriter}.
+ */
+public class StructuredRecordJsonWriterTest {
+
+  private static final Schema FLAT = Schema.recordOf(
+    "flat",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("count", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("score", Schema.of(Schema.Type.DOUBLE)),
+    Schema.Field.of("ratio", Schema.of(Schema.Type.FLOAT)),
+    Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("data", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+    Schema.Field.of("dt", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+    Schema.Field.of("tm", Schema.nullableOf(Schema.of(Schema.LogicalType.TIME_MICROS))),
+    Schema.Field.of("tmMillis", Schema.nullableOf(Schema.of(Schema.LogicalType.TIME_MILLIS))),
+    Schema.Field.of("ts", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("tsMillis", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MILLIS))),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(38, 9))),
+    Schema.Field.of("amount", Schema.nullableOf(Schema.decimalOf(10, 0))));
+
+  private static final Schema NESTED = Schema.recordOf(
+    "nested",
+    Schema.Field.of("key", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("inner", Schema.nullableOf(FLAT)));
+
+  private static final Schema REPEATED = Schema.recordOf(
+    "repeated",
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("times", Schema.arrayOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+    Schema.Field.of("items", Schema.arrayOf(NESTED)));
+
+  @Test
+  public void testFlat() throws IOException {
+    StructuredRecord record = StructuredRecord.builder(FLAT)
+      .set("id", -1234567890123L)
+      .set("count", 7)
+      .set("score", 1.5e-10d)
+      .set("ratio", 0.25f)
+      .set("flag", true)
+      .set("name", "quote \" backslash \\ tab \t ctrl \u0001 line \u2028\u2029 é € 😀 lone \uD800 end")
+      .set("data", new byte[] {1, 2, 3, 4, -1})
+      .setDate("dt", LocalDate.of(2019, 10, 1))
+      .setTime("tm", LocalTime.of(23, 59, 59, 999999000))
+      .set("tmMillis", 1234)
+      .setTimestamp("ts", ZonedDateTime.of(1969, 12, 31, 23, 59, 59, 1000, ZoneOffset.UTC))
+      .set("tsMillis", -1500L)
+      .setDecimal("price", new BigDecimal("-0.000000012"))
+      .setDecimal("amount", new BigDecimal("1234567890"))
+      .build();
+    assertSameJson(record);
+    assertSameJson(StructuredRecord.builder(FLAT).set("id", 0L).set("score", 0d).set("ratio", -0f)
+                     .set("flag", false).build());
+  }
+
+  @Test
+  public void testNested() throws IOException {
+    StructuredRecord inner = StructuredRecord.builder(FLAT).set("id", Long.MIN_VALUE).set("score", 1e300d)
+      .set("ratio", Float.MAX_VALUE).set("flag", false).set("data", ByteBuffer.wrap(new byte[] {9, 8, 7, 6}, 1, 2))
+      .setDecimal("price", new BigDecimal("123456789012345678901234567.123456789")).build();
+    assertSameJson(StructuredRecord.builder(NESTED).set("key", "k").set("inner", inner).build());
+    assertSameJson(StructuredRecord.builder(NESTED).set("key", "").build());
+  }
+
+  @Test
+  public void testRepeated() throws IOException {
+    StructuredRecord item = StructuredRecord.builder(NESTED).set("key", "a").build();
+    StructuredRecord record = StructuredRecord.builder(REPEATED)
+      .set("tags", new String[] {"x", "y"})
+      .set("times", ImmutableList.of(0L, 253402300799999999L, -62135596800000000L))
+      .set("items", ImmutableList.of(item, item))
+      .build();
+    assertSameJson(record);
+    assertSameJson(StructuredRecord.builder(REPEATED).set("tags", ImmutableList.of())
+                     .set("times", ImmutableList.of()).set("items", ImmutableList.of()).build());
+  }
+
+  @Test
+  public void testRandomTemporalAndDecimalValues() throws IOException {
+    Random random = new Random(42);
+    StructuredRecordJsonWriter writer = new StructuredRecordJsonWriter(FLAT);
+    for (int i = 0; i < 10000; i++) {
+      // covers dates and timestamps on both sides of the years 1 and 9999
+      long day = random.nextInt(8_000_000) - 4_300_000;
+      long micros = day * 86_400_000_000L + (long) (random.nextDouble() * 86_400_000_000L);
+      BigDecimal price = new BigDecimal(random.nextLong() >> random.nextInt(64)).movePointLeft(random.nextInt(10));
+      StructuredRecord record = StructuredRecord.builder(FLAT)
+        .set("id", random.nextLong())
+        .set("score", random.nextDouble())
+        .set("ratio", random.nextFloat())
+        .set("flag", random.nextBoolean())
+        .set("dt", (int) day)
+        .set("tm", Math.floorMod(micros, 86_400_000_000L))
+        .set("ts", micros)
+        .set("tsMillis", Math.floorDiv(micros, 1000L))
+        .setDecimal("price", price.setScale(9))
+        .build();
+      Assert.assertEquals(toJson(record), toJson(writer, record));
+    }
+  }
+
+  @Test
+  public void testUnsupportedTypeFailsOnWrite() throws IOException {
+    Schema schema = Schema.recordOf(
+      "record",
+      Schema.Field.of("map", Schema.nullableOf(Schema.mapOf(Schema.of(Schema.Type.STRING),
+                                                            Schema.of(Schema.Type.STRING)))));
+    StructuredRecordJsonWriter writer = new StructuredRecordJsonWriter(schema);
+    try {
+      toJson(writer, StructuredRecord.builder(schema).build());
+      Assert.fail("Expected an exception for the map field.");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("Field 'map' is of unsupported type 'UNION'", e.getMessage());
+    }
+  }
+
+  private static void assertSameJson(StructuredRecord record) throws IOException {
+    Assert.assertEquals(toJson(record), toJson(new StructuredRecordJsonWriter(record.getSchema()), record));
+  }
+
+  private static String toJson(StructuredRecordJsonWriter writer, StructuredRecord record) throws IOException {
+    StructuredRecordJsonWriter.Utf8Buffer buffer = new StructuredRecordJsonWriter.Utf8Buffer();
+    writer.write(record, buffer);
+    return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String toJson(StructuredRecord record) throws IOException {
+    StringWriter out = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(out)) {
+      writer.beginObject();
+      for (Schema.Field field : Objects.requireNonNull(record.getSchema().getFields())) {
+        BigQueryRecordToJson.write(writer, field.getName(), record.get(field.getName()), field.getSchema());
+      }
+      writer.endObject();
+    }
+    // the streaming writer encodes to UTF-8 the same way, with '?' for unpaired surrogates
+    return new String(out.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+  }
+}
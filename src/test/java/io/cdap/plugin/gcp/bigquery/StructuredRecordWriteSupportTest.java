@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.common.collect.ImmutableList;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.gcp.bigquery.sink.AvroRecordWriter;
+import io.cdap.plugin.gcp.bigquery.sink.ParquetRecordWriter;
+import io.cdap.plugin.gcp.bigquery.sink.StructuredRecordWriteSupport;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link StructuredRecordWriteSupport} and {@link ParquetRecordWriter}.
+ */
+public class StructuredRecordWriteSupportTest {
+
+  private static final Schema ITEM = Schema.recordOf(
+    "item",
+    Schema.Field.of("sku", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("qty", Schema.nullableOf(Schema.of(Schema.Type.INT))));
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "order",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("note", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("day", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+    Schema.Field.of("ts", Schema.of(Schema.LogicalType.TIMESTAMP_MILLIS)),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(38, 9))),
+    Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("items", Schema.arrayOf(ITEM)),
+    Schema.Field.of("shipping", Schema.nullableOf(ITEM)));
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testSchemaMatchesBigQueryFields() {
+    MessageType expected = MessageTypeParser.parseMessageType(
+      "message record {\n" +
+        "  required int64 id;\n" +
+        "  optional binary note (UTF8);\n" +
+        "  optional int32 day (DATE);\n" +
+        "  required int64 ts (TIMESTAMP_MICROS);\n" +
+        "  optional binary price (DECIMAL(38,9));\n" +
+        "  repeated binary tags (UTF8);\n" +
+        "  repeated group items {\n" +
+        "    required binary sku (UTF8);\n" +
+        "    optional int32 qty;\n" +
+        "  }\n" +
+        "  optional group shipping {\n" +
+        "    required binary sku (UTF8);\n" +
+        "    optional int32 qty;\n" +
+        "  }\n" +
+        "}");
+    Assert.assertEquals(expected, new StructuredRecordWriteSupport(SCHEMA).getMessageType());
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    StructuredRecord item = StructuredRecord.builder(ITEM).set("sku", "a").set("qty", 2).build();
+    StructuredRecord full = StructuredRecord.builder(SCHEMA)
+      .set("id", 1L)
+      .set("note", "first")
+      .setDate("day", LocalDate.of(2019, 10, 1))
+      .set("ts", 1500L)
+      .setDecimal("price", new BigDecimal("-12.500000000"))
+      .set("tags", ImmutableList.of("x", "y"))
+      .set("items", ImmutableList.of(item, item))
+      .set("shipping", item)
+      .build();
+    StructuredRecord sparse = StructuredRecord.builder(SCHEMA)
+      .set("id", 2L)
+      .set("ts", 0L)
+      .set("tags", new String[0])
+      .set("items", ImmutableList.of())
+      .build();
+
+    List<Path> files = new ArrayList<>();
+    ParquetRecordWriter writer = createWriter(files, AvroRecordWriter.UNLIMITED_FILE_SIZE);
+    writer.write(full, NullWritable.get());
+    writer.write(sparse, NullWritable.get());
+    writer.close(null);
+
+    Assert.assertEquals(1, files.size());
+    List<Group> groups = read(files.get(0));
+    Assert.assertEquals(2, groups.size());
+
+    Group first = groups.get(0);
+    Assert.assertEquals(1L, first.getLong("id", 0));
+    Assert.assertEquals("first", first.getString("note", 0));
+    Assert.assertEquals(LocalDate.of(2019, 10, 1).toEpochDay(), first.getInteger("day", 0));
+    Assert.assertEquals(1500000L, first.getLong("ts", 0));
+    Assert.assertEquals(new BigDecimal("-12.500000000"),
+                        new BigDecimal(new BigInteger(first.getBinary("price", 0).getBytes()), 9));
+    Assert.assertEquals(2, first.getFieldRepetitionCount("tags"));
+    Assert.assertEquals("y", first.getString("tags", 1));
+    Assert.assertEquals(2, first.getFieldRepetitionCount("items"));
+    Assert.assertEquals("a", first.getGroup("items", 1).getString("sku", 0));
+    Assert.assertEquals(2, first.getGroup("shipping", 0).getInteger("qty", 0));
+
+    Group second = groups.get(1);
+    Assert.assertEquals(2L, second.getLong("id", 0));
+    Assert.assertEquals(0, second.getFieldRepetitionCount("note"));
+    Assert.assertEquals(0, second.getFieldRepetitionCount("tags"));
+    Assert.assertEquals(0, second.getFieldRepetitionCount("items"));
+    Assert.assertEquals(0, second.getFieldRepetitionCount("shipping"));
+  }
+
+  @Test
+  public void testFilesRollOverAfterMaxSize() throws IOException {
+    List<Path> files = new ArrayList<>();
+    ParquetRecordWriter writer = createWriter(files, 16 * 1024);
+    for (long i = 0; i < 20000; i++) {
+      writer.write(StructuredRecord.builder(SCHEMA).set("id", i).set("ts", i).set("tags", ImmutableList.of())
+                     .set("items", ImmutableList.of()).build(), NullWritable.get());
+    }
+    writer.close(null);
+
+    Assert.assertTrue(files.size() > 1);
+    long expected = 0;
+    for (Path file : files) {
+      for (Group group : read(file)) {
+        Assert.assertEquals(expected++, group.getLong("id", 0));
+      }
+    }
+    Assert.assertEquals(20000, expected);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullRequiredFieldFails() throws IOException {
+    ParquetRecordWriter writer = createWriter(new ArrayList<>(), AvroRecordWriter.UNLIMITED_FILE_SIZE);
+    writer.write(StructuredRecord.builder(ITEM).set("qty", 1).build(), NullWritable.get());
+  }
+
+  private ParquetRecordWriter createWriter(List<Path> files, long maxFileBytes) throws IOException {
+    File directory = temporaryFolder.newFolder();
+    return new ParquetRecordWriter(new Configuration(), () -> {
+      Path path = new Path(new File(directory, "part-" + files.size() + ".parquet").toURI());
+      files.add(path);
+      return path;
+    }, CompressionCodecName.SNAPPY, true, 128 * 1024 * 1024, 4, maxFileBytes);
+  }
+
+  private static List<Group> read(Path file) throws IOException {
+    List<Group> groups = new ArrayList<>();
+    try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(), file).build()) {
+      for (Group group = reader.read(); group != null; group = reader.read()) {
+        groups.add(group);
+      }
+    }
+    return groups;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.gcp.bigquery;
+
+import com.google.common.collect.ImmutableList;
+import io.cdap.plugin.gcp.bigquery.sink.Operation;
+import io.cdap.plugin.gcp.bigquery.sink.UpdateQueryGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Collections;
+
+/**
+ * Tests for {@link UpdateQueryGenerator}.
+ */
+public class UpdateQueryGeneratorTest {
+
+  @Test
+  public void testUpsertDeduplicatesAndPrunes() {
+    String query = UpdateQueryGenerator.generate(Operation.UPSERT, "ds.dest", "ds.tmp", ImmutableList.of("id"),
+                                                 ImmutableList.of("id", "name"),
+                                                 Collections.singletonList("T.id BETWEEN 1 AND 2"));
+    Assert.assertEquals("MERGE ds.dest T USING (SELECT AS VALUE ARRAY_AGG(R LIMIT 1)[OFFSET(0)] FROM ds.tmp R " +
+                          "GROUP BY id) S ON T.id = S.id AND T.id BETWEEN 1 AND 2 WHEN MATCHED THEN UPDATE SET " +
+                          "T.name = S.name WHEN NOT MATCHED THEN INSERT (id, name) VALUES(id, name)", query);
+  }
+
+  @Test
+  public void testUpdate() {
+    String query = UpdateQueryGenerator.generate(Operation.UPDATE, "ds.dest", "ds.tmp", ImmutableList.of("a", "b"),
+                                                 ImmutableList.of("a", "b", "c"), Collections.emptyList());
+    Assert.assertEquals("UPDATE ds.dest T SET T.c = S.c FROM (SELECT AS VALUE ARRAY_AGG(R LIMIT 1)[OFFSET(0)] " +
+                          "FROM ds.tmp R GROUP BY a, b) S WHERE T.a = S.a AND T.b = S.b", query);
+  }
+
+  @Test
+  public void testPartitionPredicate() {
+    LocalDate day1 = LocalDate.of(2019, 10, 1);
+    LocalDate day2 = LocalDate.of(2019, 10, 5);
+    Assert.assertEquals("T.dt IN (DATE '2019-10-01', DATE '2019-10-05')",
+                        UpdateQueryGenerator.partitionPredicate("dt", "DATE", ImmutableList.of(day1, day2),
+                                                                day1, day2, false));
+    Assert.assertEquals("(T.dt BETWEEN DATE '2019-10-01' AND DATE '2019-10-05' OR T.dt IS NULL)",
+                        UpdateQueryGenerator.partitionPredicate("dt", "DATE", Collections.emptyList(),
+                                                                day1, day2, true));
+    Assert.assertEquals("((T.ts >= TIMESTAMP '2019-10-01' AND T.ts < TIMESTAMP '2019-10-02') OR " +
+                          "(T.ts >= TIMESTAMP '2019-10-05' AND T.ts < TIMESTAMP '2019-10-06'))",
+                        UpdateQueryGenerator.partitionPredicate("ts", "TIMESTAMP", ImmutableList.of(day1, day2),
+                                                                day1, day2, false));
+    Assert.assertEquals("FALSE", UpdateQueryGenerator.partitionPredicate("dt", "DATE", Collections.emptyList(),
+                                                                         null, null, false));
+  }
+
+  @Test
+  public void testRangePredicateEscapesValues() {
+    Assert.assertEquals("T.name BETWEEN CAST('a\\'b' AS STRING) AND CAST('c\\\\d\\u000a' AS STRING)",
+                        UpdateQueryGenerator.rangePredicate("name", "STRING", "a'b", "c\\d\n", false));
+    Assert.assertEquals("T.id IS NULL", UpdateQueryGenerator.rangePredicate("id", "INT64", null, null, true));
+  }
+
+  @Test
+  public void testPartitionIdQuery() {
+    Assert.assertEquals("SELECT DISTINCT IFNULL(FORMAT_TIMESTAMP('%Y%m%d', TIMESTAMP(dt)), '__NULL__') AS " +
+                          "partition_id FROM ds.tmp", UpdateQueryGenerator.partitionIdQuery("ds.tmp", "DAY", "dt"));
+    Assert.assertEquals("SELECT DISTINCT IFNULL(FORMAT_TIMESTAMP('%Y%m%d%H', TIMESTAMP(_PARTITIONTIME)), " +
+                          "'__NULL__') AS partition_id FROM ds.tmp",
+                        UpdateQueryGenerator.partitionIdQuery("ds.tmp", "HOUR", null));
+  }
+}